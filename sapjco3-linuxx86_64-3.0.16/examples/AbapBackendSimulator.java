@@ -0,0 +1,1521 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sap.conn.jco.AbapException;
+import com.sap.conn.jco.JCo;
+import com.sap.conn.jco.JCoClassMetaData;
+import com.sap.conn.jco.JCoCustomRepository;
+import com.sap.conn.jco.JCoDestination;
+import com.sap.conn.jco.JCoDestinationManager;
+import com.sap.conn.jco.JCoException;
+import com.sap.conn.jco.JCoFunction;
+import com.sap.conn.jco.JCoFunctionTemplate;
+import com.sap.conn.jco.JCoListMetaData;
+import com.sap.conn.jco.JCoMetaData;
+import com.sap.conn.jco.JCoParameterList;
+import com.sap.conn.jco.JCoRecordMetaData;
+import com.sap.conn.jco.JCoRepository;
+import com.sap.conn.jco.JCoRequest;
+import com.sap.conn.jco.JCoRuntimeException;
+import com.sap.conn.jco.JCoStructure;
+import com.sap.conn.jco.JCoTable;
+import com.sap.conn.jco.ext.DataProviderException;
+import com.sap.conn.jco.ext.DestinationDataEventListener;
+import com.sap.conn.jco.ext.DestinationDataProvider;
+import com.sap.conn.jco.ext.Environment;
+import com.sap.conn.jco.monitor.JCoConnectionData;
+import com.sap.conn.jco.monitor.JCoDestinationMonitor;
+import com.sap.conn.jco.monitor.JCoRepositoryMonitor;
+
+/**
+ * AbapBackendSimulator is an in-process stand-in for the ABAP system used by the client examples.
+ * StepByStepClient, MultiThreadedExample and CustomDestinationDataProvider require a running ABAP
+ * system, so their throughput and latency cannot be measured in a build environment or on a laptop.
+ *
+ * The simulator holds the function templates of STFC_CONNECTION, RFC_SYSTEM_INFO, BAPI_COMPANYCODE_GETLIST,
+ * BAPI_COMPANYCODE_GETDETAIL, RFC_READ_TABLE, Z_INCREMENT_COUNTER and Z_GET_COUNTER in a custom repository. As in
+ * StepByStepServer.step4StaticRepository the metadata is created locally with JCo.createListMetaData and
+ * JCo.createFunctionTemplate, so no DDIC lookup is necessary. The functions are obtained from this repository
+ * as usual and are executed via AbapBackendSimulator.execute(JCoFunction) instead of
+ * JCoFunction.execute(JCoDestination), because the latter always opens an RFC connection.
+ *
+ * Latency, payload size (number of company codes) and failure rate are configurable. Latency jitter and
+ * failures are drawn from a SplittableRandom seeded with the seed of the simulator and the index of the call,
+ * so the n-th call has the same latency and outcome in every run and concurrent callers do not share a
+ * random generator. Which thread executes the n-th call still depends on the scheduling.
+ * The connection pool is emulated with a semaphore sized by the peak limit of the destination.
+ * setWorkProcessCount limits the calls processed in parallel by the backend, so that an oversized pool
+ * shows up as growing response times, as with an overloaded ABAP system.
+ * getRemoteRepository returns a repository that, like the repository of a destination, fills its
+ * cache with metadata queries to the simulated DDIC, each taking the configured metadata latency.
+ *
+ * The destination configuration of the simulated systems can be registered with
+ * com.sap.conn.jco.ext.Environment.registerDestinationDataProvider (see registerDestinations), so that
+ * JCoDestinationManager.getDestination returns the same pool settings the simulator works with.
+ *
+ * RFC_READ_TABLE serves the tables T001, built from the company codes, and ZSIM_DOCUMENTS, whose number
+ * of rows is set with setDocumentCount. It supports FIELDS, DELIMITER, NO_DATA, ROWSKIPS and ROWCOUNT;
+ * the WHERE clause in OPTIONS is not evaluated.
+ *
+ * Note: the stateful counter functions keep their value only between begin() and end(), similar to
+ * JCoContext.begin(JCoDestination) and JCoContext.end(JCoDestination).
+ */
+public class AbapBackendSimulator implements FunctionExecutor
+{
+    static String ABAP_AS = "ABAP_AS_WITHOUT_POOL";
+    static String ABAP_AS_POOLED = "ABAP_AS_WITH_POOL";
+    static String ABAP_MS = "ABAP_MS_WITHOUT_POOL";
+
+    private String name;
+    private volatile int poolCapacity;
+    private volatile int peakLimit;
+    private long maxGetClientTime = 30000;
+    private ResizableSemaphore connections;
+    private volatile ResizableSemaphore workProcesses;
+    private AtomicInteger usedConnections = new AtomicInteger(0);
+    private AtomicInteger maxUsedConnections = new AtomicInteger(0);
+
+    private JCoCustomRepository repository;
+    private RemoteRepository remoteRepository;
+    private volatile long metaDataLatencyNanos = 0;
+    private AtomicLong remoteQueries = new AtomicLong(0);
+    private long seed;
+    private volatile long latencyNanos = 0;
+    private volatile long latencyJitterNanos = 0;
+    private volatile double failureRate = 0;
+    private volatile int companyCodeCount = 10;
+    private volatile int documentCount = 100000;
+
+    private AtomicLong executedCalls = new AtomicLong(0);
+    private AtomicLong failedCalls = new AtomicLong(0);
+    private ThreadLocal<int[]> statefulCounter = new ThreadLocal<int[]>();
+
+    /**
+     * Creates a simulator with a pool of 10 connections and a fixed seed
+     * @param name destination name of the simulated system
+     */
+    public AbapBackendSimulator(String name)
+    {
+        this(name, 5, 10, 4711L);
+    }
+
+    /**
+     * Creates a simulator
+     * @param name destination name of the simulated system
+     * @param poolCapacity number of idle connections kept open, reported in the destination properties
+     * @param peakLimit maximum number of concurrently executed calls
+     * @param seed seed of the random generators deciding latency jitter and failures
+     */
+    public AbapBackendSimulator(String name, int poolCapacity, int peakLimit, long seed)
+    {
+        this.name = name;
+        this.poolCapacity = poolCapacity;
+        this.peakLimit = peakLimit;
+        this.connections = new ResizableSemaphore(peakLimit);
+        this.seed = seed;
+        this.repository = createRepository(name);
+    }
+
+    /**
+     * Sets the time the simulated backend needs for each call
+     * @param latency minimal latency
+     * @param jitter upper bound of the uniformly distributed latency added to the minimal latency
+     * @param unit time unit of latency and jitter
+     */
+    public void setLatency(long latency, long jitter, TimeUnit unit)
+    {
+        this.latencyNanos = unit.toNanos(latency);
+        this.latencyJitterNanos = unit.toNanos(jitter);
+    }
+
+    /**
+     * Sets the time a metadata query of the remote repository needs
+     * @param latency latency of one remote query
+     * @param unit time unit of latency
+     */
+    public void setMetaDataLatency(long latency, TimeUnit unit)
+    {
+        this.metaDataLatencyNanos = unit.toNanos(latency);
+    }
+
+    /**
+     * Sets the probability of a communication failure
+     * @param failureRate value between 0 (never fails) and 1 (always fails)
+     */
+    public void setFailureRate(double failureRate)
+    {
+        if(failureRate < 0 || failureRate > 1)
+            throw new IllegalArgumentException("failure rate must be between 0 and 1: " + failureRate);
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * Sets the number of rows returned in COMPANYCODE_LIST by BAPI_COMPANYCODE_GETLIST
+     * @param companyCodeCount number of company codes, at most 9999
+     */
+    public void setCompanyCodeCount(int companyCodeCount)
+    {
+        if(companyCodeCount < 0 || companyCodeCount > 9999)
+            throw new IllegalArgumentException("company code count must be between 0 and 9999: " + companyCodeCount);
+        this.companyCodeCount = companyCodeCount;
+    }
+
+    /**
+     * Sets the number of rows of the table ZSIM_DOCUMENTS read with RFC_READ_TABLE
+     * @param documentCount number of documents
+     */
+    public void setDocumentCount(int documentCount)
+    {
+        if(documentCount < 0)
+            throw new IllegalArgumentException("document count must not be negative: " + documentCount);
+        this.documentCount = documentCount;
+    }
+
+    /**
+     * Sets the number of dialog work processes of the simulated backend. A call occupying a connection
+     * waits for a free work process before its latency starts, so the response time grows as soon as
+     * more calls are executed concurrently than work processes are available.
+     * @param workProcessCount number of work processes, 0 for an unlimited number
+     */
+    public synchronized void setWorkProcessCount(int workProcessCount)
+    {
+        if(workProcessCount < 0)
+            throw new IllegalArgumentException("work process count must not be negative: " + workProcessCount);
+        if(workProcessCount == 0)
+            workProcesses = null;
+        else if(workProcesses == null)
+            workProcesses = new ResizableSemaphore(workProcessCount);
+        else
+            workProcesses.setLimit(workProcessCount);
+    }
+
+    /**
+     * Changes the pool settings while calls are executed, as the JCo runtime does when the
+     * DestinationDataProvider reports changed properties. Calls holding a connection are not affected.
+     * @param poolCapacity number of idle connections kept open
+     * @param peakLimit maximum number of concurrently executed calls
+     */
+    public synchronized void setPoolLimits(int poolCapacity, int peakLimit)
+    {
+        if(poolCapacity < 0 || peakLimit < 1 || poolCapacity > peakLimit)
+            throw new IllegalArgumentException("invalid pool settings: capacity " + poolCapacity + ", peak limit " + peakLimit);
+        connections.setLimit(peakLimit);
+        this.poolCapacity = poolCapacity;
+        this.peakLimit = peakLimit;
+    }
+
+    /**
+     * Sets the time a call waits for a free connection before the pool is reported as exhausted
+     * @param maxGetClientTime wait time in milliseconds
+     */
+    public void setMaxGetClientTime(long maxGetClientTime)
+    {
+        this.maxGetClientTime = maxGetClientTime;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public JCoRepository getRepository()
+    {
+        return repository;
+    }
+
+    /**
+     * Returns a repository behaving like the repository of a destination: metadata not yet cached
+     * is queried from the simulated DDIC, which takes the configured metadata latency. Lookups of
+     * unknown names are not cached and cost a remote query each time.
+     * @return the remote repository of this simulator
+     */
+    public synchronized JCoRepository getRemoteRepository()
+    {
+        if(remoteRepository == null)
+            remoteRepository = new RemoteRepository();
+        return remoteRepository;
+    }
+
+    /**
+     * Returns the number of metadata queries sent to the simulated DDIC
+     */
+    public long getRemoteQueryCount()
+    {
+        return remoteQueries.get();
+    }
+
+    public int getPeakLimit()
+    {
+        return peakLimit;
+    }
+
+    public int getPoolCapacity()
+    {
+        return poolCapacity;
+    }
+
+    /**
+     * Returns the number of connections currently used by executing calls
+     */
+    public int getUsedConnectionCount()
+    {
+        return usedConnections.get();
+    }
+
+    /**
+     * Returns the highest number of connections used at the same time
+     */
+    public int getMaxUsedConnectionCount()
+    {
+        return maxUsedConnections.get();
+    }
+
+    /**
+     * Returns a monitor of the simulated pool, like JCoDestination.getMonitor()
+     */
+    public JCoDestinationMonitor getMonitor()
+    {
+        return new SimulatorMonitor();
+    }
+
+    /**
+     * Snapshot of the simulated connection pool
+     */
+    class SimulatorMonitor implements JCoDestinationMonitor
+    {
+        private int poolCapacity = AbapBackendSimulator.this.poolCapacity;
+        private int peakLimit = AbapBackendSimulator.this.peakLimit;
+        private int used = usedConnections.get();
+        private int maxUsed = maxUsedConnections.get();
+        private int waiting = connections.getQueueLength();
+        private long timestamp = System.currentTimeMillis();
+
+        public String getDestinationID()
+        {
+            return name;
+        }
+
+        public String getOriginDestinationID()
+        {
+            return name;
+        }
+
+        public String getDestinationName()
+        {
+            return name;
+        }
+
+        public int getPoolCapacity()
+        {
+            return poolCapacity;
+        }
+
+        public int getPeakLimit()
+        {
+            return peakLimit;
+        }
+
+        public int getUsedConnectionCount()
+        {
+            return used;
+        }
+
+        public int getPooledConnectionCount()
+        {
+            //idle connections are kept up to the pool capacity
+            return Math.max(used, Math.min(maxUsed, poolCapacity));
+        }
+
+        public int getMaxUsedCount()
+        {
+            return maxUsed;
+        }
+
+        public int getWaitingThreadCount()
+        {
+            return waiting;
+        }
+
+        public long getLastActivityTimestamp()
+        {
+            return timestamp;
+        }
+
+        public List<? extends JCoConnectionData> getConnectionsData()
+        {
+            return Collections.<JCoConnectionData>emptyList();
+        }
+
+        public boolean isValid()
+        {
+            return true;
+        }
+    }
+
+    public long getExecutedCallCount()
+    {
+        return executedCalls.get();
+    }
+
+    public long getFailedCallCount()
+    {
+        return failedCalls.get();
+    }
+
+    /**
+     * Starts a stateful session for the current thread, like JCoContext.begin(JCoDestination)
+     */
+    public void begin()
+    {
+        if(statefulCounter.get() == null)
+            statefulCounter.set(new int[1]);
+    }
+
+    /**
+     * Ends the stateful session of the current thread, like JCoContext.end(JCoDestination)
+     */
+    public void end()
+    {
+        statefulCounter.remove();
+    }
+
+    /**
+     * Executes the function in the simulated backend. The call occupies one connection of the
+     * simulated pool for the configured latency.
+     * @param function function created from the repository of this simulator
+     * @throws AbapException if the function raised an ABAP exception
+     * @throws JCoException if the pool is exhausted or a communication failure was simulated
+     */
+    public void execute(JCoFunction function) throws JCoException
+    {
+        acquireConnection();
+        try
+        {
+            SplittableRandom random = new SplittableRandom(seed ^ executedCalls.incrementAndGet());
+            ResizableSemaphore processes = workProcesses;
+            if(processes == null)
+                simulateLatency(random);
+            else
+            {
+                acquireWorkProcess(processes);
+                try
+                {
+                    simulateLatency(random);
+                }
+                finally
+                {
+                    processes.release();
+                }
+            }
+            if(failureRate > 0 && random.nextDouble() < failureRate)
+            {
+                failedCalls.incrementAndGet();
+                throw new JCoException(JCoException.JCO_ERROR_COMMUNICATION,
+                        "Simulated communication failure on " + name + " while executing " + function.getName());
+            }
+            dispatch(function);
+        }
+        finally
+        {
+            releaseConnection();
+        }
+    }
+
+    void dispatch(JCoFunction function) throws JCoException
+    {
+        String functionName = function.getName();
+        if(functionName.equals("STFC_CONNECTION"))
+            stfcConnection(function);
+        else if(functionName.equals("RFC_SYSTEM_INFO"))
+            rfcSystemInfo(function);
+        else if(functionName.equals("BAPI_COMPANYCODE_GETLIST"))
+            companyCodeGetList(function);
+        else if(functionName.equals("BAPI_COMPANYCODE_GETDETAIL"))
+            companyCodeGetDetail(function);
+        else if(functionName.equals("RFC_READ_TABLE"))
+            readTable(function);
+        else if(functionName.equals("Z_INCREMENT_COUNTER"))
+            incrementCounter(function);
+        else if(functionName.equals("Z_GET_COUNTER"))
+            getCounter(function);
+        else
+            throw new JCoException(JCoException.JCO_ERROR_FUNCTION_NOT_FOUND,
+                    "Function " + functionName + " is not available in " + name);
+    }
+
+    void acquireConnection() throws JCoException
+    {
+        try
+        {
+            if(!connections.tryAcquire(maxGetClientTime, TimeUnit.MILLISECONDS))
+                throw new JCoException(JCoException.JCO_ERROR_RESOURCE,
+                        "Connection pool " + name + " is exhausted. The current pool size limit is " + peakLimit + " connections.");
+        }
+        catch(InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new JCoException(JCoException.JCO_ERROR_CANCELLED, "Interrupted while waiting for a connection of " + name);
+        }
+
+        int used = usedConnections.incrementAndGet();
+        int max = maxUsedConnections.get();
+        while(used > max && !maxUsedConnections.compareAndSet(max, used))
+            max = maxUsedConnections.get();
+    }
+
+    void acquireWorkProcess(ResizableSemaphore processes) throws JCoException
+    {
+        try
+        {
+            processes.acquire();
+        }
+        catch(InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new JCoException(JCoException.JCO_ERROR_CANCELLED, "Call to " + name + " was interrupted");
+        }
+    }
+
+    void releaseConnection()
+    {
+        usedConnections.decrementAndGet();
+        connections.release();
+    }
+
+    void simulateLatency(SplittableRandom random) throws JCoException
+    {
+        long latency = latencyNanos;
+        if(latencyJitterNanos > 0)
+            latency += (long)(random.nextDouble() * latencyJitterNanos);
+        if(latency <= 0)
+            return;
+
+        try
+        {
+            TimeUnit.NANOSECONDS.sleep(latency);
+        }
+        catch(InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new JCoException(JCoException.JCO_ERROR_CANCELLED, "Call to " + name + " was interrupted");
+        }
+    }
+
+    void stfcConnection(JCoFunction function)
+    {
+        JCoParameterList exports = function.getExportParameterList();
+        exports.setValue("ECHOTEXT", function.getImportParameterList().getString("REQUTEXT"));
+        exports.setValue("RESPTEXT", "SAP R/3 Rel. 740   Sysid: SIM      Date: 20161206   Time: 120000   Logon_Data: 000/SIMULATOR/E");
+    }
+
+    void rfcSystemInfo(JCoFunction function)
+    {
+        JCoStructure info = function.getExportParameterList().getStructure("RFCSI_EXPORT");
+        info.setValue("RFCPROTO", "011");
+        info.setValue("RFCCHARTYP", "4103");
+        info.setValue("RFCINTTYP", "LIT");
+        info.setValue("RFCFLOTYP", "IE3");
+        info.setValue("RFCDEST", "localhost_SIM_00");
+        info.setValue("RFCHOST", "localhost");
+        info.setValue("RFCSYSID", "SIM");
+        info.setValue("RFCDATABS", "SIM");
+        info.setValue("RFCDBHOST", "localhost");
+        info.setValue("RFCDBSYS", "SIMULATOR");
+        info.setValue("RFCSAPRL", "740");
+        info.setValue("RFCMACH", "390");
+        info.setValue("RFCOPSYS", System.getProperty("os.name"));
+        info.setValue("RFCTZONE", "0");
+        info.setValue("RFCDAYST", "");
+        info.setValue("RFCIPADDR", "127.0.0.1");
+        info.setValue("RFCKERNRL", "721");
+    }
+
+    void companyCodeGetList(JCoFunction function)
+    {
+        JCoTable codes = function.getTableParameterList().getTable("COMPANYCODE_LIST");
+        int count = companyCodeCount;
+        //the function may be executed again, as ABAP returns the table without the rows of a previous call
+        codes.clear();
+        codes.appendRows(count);
+        for(int i = 0; i < count; i++)
+        {
+            codes.setRow(i);
+            codes.setValue("COMP_CODE", companyCode(i));
+            codes.setValue("COMP_NAME", "Company " + i);
+        }
+        setReturn(function.getExportParameterList().getStructure("RETURN"), "", null);
+    }
+
+    void companyCodeGetDetail(JCoFunction function)
+    {
+        JCoParameterList exports = function.getExportParameterList();
+        String code = function.getImportParameterList().getString("COMPANYCODEID");
+        int index = companyCodeIndex(code);
+        if(index < 0)
+        {
+            setReturn(exports.getStructure("RETURN"), "E", "Company code " + code + " does not exist");
+            return;
+        }
+
+        JCoStructure detail = exports.getStructure("COMPANYCODE_DETAIL");
+        detail.setValue("COMP_CODE", code);
+        detail.setValue("COMP_NAME", "Company " + index);
+        detail.setValue("CITY", CITIES[index % CITIES.length]);
+        detail.setValue("COUNTRY", COUNTRIES[index % COUNTRIES.length]);
+        detail.setValue("CURRENCY", CURRENCIES[index % CURRENCIES.length]);
+        detail.setValue("LANGU", "E");
+        detail.setValue("CHRT_ACCTS", "INT");
+        detail.setValue("FY_VARIANT", "K4");
+        detail.setValue("VAT_REG_NO", "VAT" + code);
+        detail.setValue("COMPANY", code);
+        detail.setValue("ADDR_NO", String.valueOf(10000 + index));
+
+        //like the ABAP runtime the simulator does not fill inactive parameters
+        if(exports.isActive("COMPANYCODE_ADDRESS"))
+        {
+            JCoStructure address = exports.getStructure("COMPANYCODE_ADDRESS");
+            address.setValue("COMP_CODE", code);
+            address.setValue("ADDR_NO", String.valueOf(10000 + index));
+            address.setValue("NAME", "Company " + index);
+            address.setValue("CITY", CITIES[index % CITIES.length]);
+            address.setValue("POSTL_COD1", String.valueOf(10000 + index * 7 % 90000));
+            address.setValue("STREET", "Main Street " + (index + 1));
+            address.setValue("COUNTRY", COUNTRIES[index % COUNTRIES.length]);
+            address.setValue("LANGU", "E");
+        }
+        setReturn(exports.getStructure("RETURN"), "", null);
+    }
+
+    private static final String[] T001_FIELDS = { "BUKRS", "BUTXT", "ORT01", "LAND1", "WAERS" };
+    private static final int[] T001_LENGTHS = { 4, 25, 25, 3, 5 };
+    private static final String[] DOCUMENT_FIELDS = { "BELNR", "BUKRS", "BLDAT", "WAERS", "WRBTR" };
+    private static final int[] DOCUMENT_LENGTHS = { 10, 4, 8, 5, 16 };
+
+    void readTable(JCoFunction function) throws AbapException
+    {
+        JCoParameterList imports = function.getImportParameterList();
+        JCoParameterList tables = function.getTableParameterList();
+        String tableName = imports.getString("QUERY_TABLE").trim();
+        String[] tableFields;
+        int[] lengths;
+        int tableRows;
+        if(tableName.equals("T001"))
+        {
+            tableFields = T001_FIELDS;
+            lengths = T001_LENGTHS;
+            tableRows = companyCodeCount;
+        }
+        else if(tableName.equals("ZSIM_DOCUMENTS"))
+        {
+            tableFields = DOCUMENT_FIELDS;
+            lengths = DOCUMENT_LENGTHS;
+            tableRows = documentCount;
+        }
+        else
+            throw new AbapException("TABLE_NOT_AVAILABLE", "Table " + tableName + " is not available");
+
+        JCoTable fields = tables.getTable("FIELDS");
+        int[] columns;
+        if(fields.isEmpty())
+        {
+            columns = new int[tableFields.length];
+            for(int i = 0; i < columns.length; i++)
+            {
+                fields.appendRow();
+                fields.setValue("FIELDNAME", tableFields[i]);
+                columns[i] = i;
+            }
+        }
+        else
+        {
+            columns = new int[fields.getNumRows()];
+            for(int i = 0; i < columns.length; i++)
+            {
+                fields.setRow(i);
+                String fieldName = fields.getString("FIELDNAME").trim();
+                columns[i] = Arrays.asList(tableFields).indexOf(fieldName);
+                if(columns[i] < 0)
+                    throw new AbapException("FIELD_NOT_VALID", "Field " + fieldName + " does not exist in " + tableName);
+            }
+        }
+
+        String delimiter = imports.getString("DELIMITER");
+        int offset = 0;
+        for(int i = 0; i < columns.length; i++)
+        {
+            fields.setRow(i);
+            fields.setValue("OFFSET", offset);
+            fields.setValue("LENGTH", lengths[columns[i]]);
+            fields.setValue("TYPE", "C");
+            fields.setValue("FIELDTEXT", tableFields[columns[i]]);
+            offset += lengths[columns[i]] + delimiter.length();
+        }
+        if(offset - delimiter.length() > 512)
+            throw new AbapException("DATA_BUFFER_EXCEEDED", "The selected fields exceed 512 characters");
+        if(imports.getString("NO_DATA").equals("X"))
+            return;
+
+        int first = Math.min(Math.max(imports.getInt("ROWSKIPS"), 0), tableRows);
+        int rowCount = imports.getInt("ROWCOUNT");
+        int last = rowCount > 0 ? (int)Math.min((long)first + rowCount, tableRows) : tableRows;
+        JCoTable data = tables.getTable("DATA");
+        data.clear();
+        data.appendRows(last - first);
+        StringBuilder wa = new StringBuilder(512);
+        for(int row = first; row < last; row++)
+        {
+            wa.setLength(0);
+            for(int i = 0; i < columns.length; i++)
+            {
+                if(i > 0)
+                    wa.append(delimiter);
+                String value = tableValue(tableName, row, columns[i]);
+                wa.append(value);
+                for(int pad = value.length(); pad < lengths[columns[i]]; pad++)
+                    wa.append(' ');
+            }
+            data.setRow(row - first);
+            data.setValue("WA", wa.toString());
+        }
+    }
+
+    static String tableValue(String tableName, int row, int column)
+    {
+        if(tableName.equals("T001"))
+        {
+            switch(column)
+            {
+                case 0: return companyCode(row);
+                case 1: return "Company " + row;
+                case 2: return CITIES[row % CITIES.length];
+                case 3: return COUNTRIES[row % COUNTRIES.length];
+                default: return CURRENCIES[row % CURRENCIES.length];
+            }
+        }
+        switch(column)
+        {
+            case 0: return String.format("%010d", row + 1);
+            case 1: return companyCode(row % 10);
+            case 2: return String.format("2016%02d%02d", row % 12 + 1, row % 28 + 1);
+            case 3: return CURRENCIES[row % 10 % CURRENCIES.length];
+            default: return String.valueOf(row % 100000) + "." + String.format("%02d", row % 100);
+        }
+    }
+
+    void incrementCounter(JCoFunction function)
+    {
+        int[] counter = statefulCounter.get();
+        //without stateful session the ABAP context is discarded after each call
+        if(counter != null)
+            counter[0]++;
+    }
+
+    void getCounter(JCoFunction function)
+    {
+        int[] counter = statefulCounter.get();
+        function.getExportParameterList().setValue("GET_VALUE", counter != null ? counter[0] : 0);
+    }
+
+    static void setReturn(JCoStructure returnStructure, String type, String message)
+    {
+        returnStructure.setValue("TYPE", type);
+        if(message != null)
+        {
+            returnStructure.setValue("CODE", "SIM001");
+            returnStructure.setValue("MESSAGE", message);
+        }
+    }
+
+    static String companyCode(int index)
+    {
+        return String.format("%04d", index + 1);
+    }
+
+    int companyCodeIndex(String code)
+    {
+        try
+        {
+            int index = Integer.parseInt(code.trim()) - 1;
+            return index >= 0 && index < companyCodeCount ? index : -1;
+        }
+        catch(NumberFormatException nfe)
+        {
+            return -1;
+        }
+    }
+
+    private static final String[] CITIES = { "Walldorf", "Berlin", "Paris", "London", "New York", "Tokyo", "Shanghai" };
+    private static final String[] COUNTRIES = { "DE", "DE", "FR", "GB", "US", "JP", "CN" };
+    private static final String[] CURRENCIES = { "EUR", "EUR", "EUR", "GBP", "USD", "JPY", "CNY" };
+
+    /**
+     * Creates the record metadata with the non-Unicode and Unicode offsets calculated from
+     * the field types. Records created locally with JCo.createRecordMetaData require
+     * the byte lengths and offsets of both layouts.
+     */
+    static class RecordBuilder
+    {
+        private JCoRecordMetaData metaData;
+        private int nucOffset = 0;
+        private int ucOffset = 0;
+
+        RecordBuilder(String name)
+        {
+            metaData = JCo.createRecordMetaData(name);
+        }
+
+        /**
+         * adds a CHAR field
+         * @param fieldName field name
+         * @param length field length in characters
+         */
+        RecordBuilder addChar(String fieldName, int length)
+        {
+            return add(fieldName, JCoMetaData.TYPE_CHAR, length, 0);
+        }
+
+        /**
+         * adds a field
+         * @param fieldName field name
+         * @param type field type, one of the JCoMetaData.TYPE_XXX constants
+         * @param length length in characters for character-like types, length in bytes for
+         *        TYPE_BCD and TYPE_BYTE, ignored for all other types
+         * @param decimals number of decimals for TYPE_BCD
+         */
+        RecordBuilder add(String fieldName, int type, int length, int decimals)
+        {
+            int nucLength, ucLength, alignment;
+            switch(type)
+            {
+                case JCoMetaData.TYPE_CHAR:
+                case JCoMetaData.TYPE_NUM:
+                    nucLength = length;
+                    ucLength = 2 * length;
+                    alignment = 1;
+                    break;
+                case JCoMetaData.TYPE_DATE:
+                    nucLength = 8;
+                    ucLength = 16;
+                    alignment = 1;
+                    break;
+                case JCoMetaData.TYPE_TIME:
+                    nucLength = 6;
+                    ucLength = 12;
+                    alignment = 1;
+                    break;
+                case JCoMetaData.TYPE_BCD:
+                case JCoMetaData.TYPE_BYTE:
+                    nucLength = ucLength = length;
+                    alignment = 1;
+                    break;
+                case JCoMetaData.TYPE_INT1:
+                    nucLength = ucLength = alignment = 1;
+                    break;
+                case JCoMetaData.TYPE_INT2:
+                    nucLength = ucLength = alignment = 2;
+                    break;
+                case JCoMetaData.TYPE_INT:
+                    nucLength = ucLength = alignment = 4;
+                    break;
+                case JCoMetaData.TYPE_FLOAT:
+                case JCoMetaData.TYPE_DECF16:
+                case JCoMetaData.TYPE_STRING:
+                case JCoMetaData.TYPE_XSTRING:
+                    nucLength = ucLength = alignment = 8;
+                    break;
+                case JCoMetaData.TYPE_DECF34:
+                    nucLength = ucLength = 16;
+                    alignment = 8;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported type " + type + " for field " + fieldName);
+            }
+
+            nucOffset = align(nucOffset, alignment);
+            ucOffset = align(ucOffset, Math.max(alignment, type == JCoMetaData.TYPE_CHAR || type == JCoMetaData.TYPE_NUM
+                    || type == JCoMetaData.TYPE_DATE || type == JCoMetaData.TYPE_TIME ? 2 : 1));
+            metaData.add(fieldName, type, nucLength, nucOffset, ucLength, ucOffset, decimals, null, null, null);
+            nucOffset += nucLength;
+            ucOffset += ucLength;
+            return this;
+        }
+
+        static int align(int offset, int alignment)
+        {
+            return (offset + alignment - 1) / alignment * alignment;
+        }
+
+        JCoRecordMetaData lock()
+        {
+            metaData.lock();
+            return metaData;
+        }
+    }
+
+    static JCoListMetaData createList(String name)
+    {
+        return JCo.createListMetaData(name);
+    }
+
+    static void addChar(JCoListMetaData list, String name, int length, int flags)
+    {
+        list.add(name, JCoMetaData.TYPE_CHAR, length, 2 * length, 0, null, null, flags, null, null);
+    }
+
+    /**
+     * Creates the custom repository holding the function templates served by the simulator
+     * @param name repository name
+     * @return the locked repository content
+     */
+    static JCoCustomRepository createRepository(String name)
+    {
+        JCoCustomRepository cR = JCo.createCustomRepository(name);
+
+        JCoRecordMetaData bapiReturn = new RecordBuilder("BAPIRETURN")
+            .addChar("TYPE", 1)
+            .addChar("CODE", 5)
+            .addChar("MESSAGE", 220)
+            .addChar("LOG_NO", 20)
+            .add("LOG_MSG_NO", JCoMetaData.TYPE_NUM, 6, 0)
+            .addChar("MESSAGE_V1", 50)
+            .addChar("MESSAGE_V2", 50)
+            .addChar("MESSAGE_V3", 50)
+            .addChar("MESSAGE_V4", 50)
+            .lock();
+        cR.addRecordMetaDataToCache(bapiReturn);
+
+        //STFC_CONNECTION
+        JCoListMetaData impList = createList("IMPORTS");
+        addChar(impList, "REQUTEXT", 255, JCoListMetaData.IMPORT_PARAMETER);
+        impList.lock();
+        JCoListMetaData expList = createList("EXPORTS");
+        addChar(expList, "ECHOTEXT", 255, JCoListMetaData.EXPORT_PARAMETER);
+        addChar(expList, "RESPTEXT", 255, JCoListMetaData.EXPORT_PARAMETER);
+        expList.lock();
+        cR.addFunctionTemplateToCache(JCo.createFunctionTemplate("STFC_CONNECTION", impList, expList, null, null, null));
+
+        //RFC_SYSTEM_INFO
+        JCoRecordMetaData rfcsi = new RecordBuilder("RFCSI")
+            .addChar("RFCPROTO", 3)
+            .addChar("RFCCHARTYP", 4)
+            .addChar("RFCINTTYP", 3)
+            .addChar("RFCFLOTYP", 3)
+            .addChar("RFCDEST", 32)
+            .addChar("RFCHOST", 8)
+            .addChar("RFCSYSID", 8)
+            .addChar("RFCDATABS", 8)
+            .addChar("RFCDBHOST", 32)
+            .addChar("RFCDBSYS", 10)
+            .addChar("RFCSAPRL", 4)
+            .addChar("RFCMACH", 5)
+            .addChar("RFCOPSYS", 10)
+            .addChar("RFCTZONE", 6)
+            .addChar("RFCDAYST", 1)
+            .addChar("RFCIPADDR", 15)
+            .addChar("RFCKERNRL", 4)
+            .lock();
+        cR.addRecordMetaDataToCache(rfcsi);
+        expList = createList("EXPORTS");
+        expList.add("RFCSI_EXPORT", JCoMetaData.TYPE_STRUCTURE, rfcsi, JCoListMetaData.EXPORT_PARAMETER);
+        expList.lock();
+        cR.addFunctionTemplateToCache(JCo.createFunctionTemplate("RFC_SYSTEM_INFO", null, expList, null, null, null));
+
+        //BAPI_COMPANYCODE_GETLIST
+        JCoRecordMetaData companyCodeList = new RecordBuilder("BAPI0002_1")
+            .addChar("COMP_CODE", 4)
+            .addChar("COMP_NAME", 25)
+            .lock();
+        cR.addRecordMetaDataToCache(companyCodeList);
+        expList = createList("EXPORTS");
+        expList.add("RETURN", JCoMetaData.TYPE_STRUCTURE, bapiReturn, JCoListMetaData.EXPORT_PARAMETER);
+        expList.lock();
+        JCoListMetaData tabList = createList("TABLES");
+        tabList.add("COMPANYCODE_LIST", JCoMetaData.TYPE_TABLE, companyCodeList, 0);
+        tabList.lock();
+        cR.addFunctionTemplateToCache(JCo.createFunctionTemplate("BAPI_COMPANYCODE_GETLIST", null, expList, null, tabList, null));
+
+        //BAPI_COMPANYCODE_GETDETAIL
+        JCoRecordMetaData companyCodeDetail = new RecordBuilder("BAPI0002_2")
+            .addChar("COMP_CODE", 4)
+            .addChar("COMP_NAME", 25)
+            .addChar("CITY", 25)
+            .addChar("COUNTRY", 3)
+            .addChar("CURRENCY", 5)
+            .addChar("LANGU", 1)
+            .addChar("CHRT_ACCTS", 4)
+            .addChar("FY_VARIANT", 2)
+            .addChar("VAT_REG_NO", 20)
+            .addChar("COMPANY", 6)
+            .addChar("ADDR_NO", 10)
+            .lock();
+        JCoRecordMetaData companyCodeAddress = new RecordBuilder("BAPI0002_3")
+            .addChar("COMP_CODE", 4)
+            .addChar("ADDR_NO", 10)
+            .addChar("FORMOFADDR", 15)
+            .addChar("NAME", 30)
+            .addChar("NAME_2", 30)
+            .addChar("CITY", 25)
+            .addChar("POSTL_COD1", 10)
+            .addChar("STREET", 30)
+            .addChar("COUNTRY", 3)
+            .addChar("LANGU", 1)
+            .addChar("TELEPHONE", 16)
+            .lock();
+        cR.addRecordMetaDataToCache(companyCodeDetail);
+        cR.addRecordMetaDataToCache(companyCodeAddress);
+        impList = createList("IMPORTS");
+        addChar(impList, "COMPANYCODEID", 4, JCoListMetaData.IMPORT_PARAMETER);
+        impList.lock();
+        expList = createList("EXPORTS");
+        expList.add("COMPANYCODE_DETAIL", JCoMetaData.TYPE_STRUCTURE, companyCodeDetail, JCoListMetaData.EXPORT_PARAMETER);
+        expList.add("COMPANYCODE_ADDRESS", JCoMetaData.TYPE_STRUCTURE, companyCodeAddress, JCoListMetaData.EXPORT_PARAMETER);
+        expList.add("RETURN", JCoMetaData.TYPE_STRUCTURE, bapiReturn, JCoListMetaData.EXPORT_PARAMETER);
+        expList.lock();
+        cR.addFunctionTemplateToCache(JCo.createFunctionTemplate("BAPI_COMPANYCODE_GETDETAIL", impList, expList, null, null, null));
+
+        //RFC_READ_TABLE
+        JCoRecordMetaData options = new RecordBuilder("RFC_DB_OPT")
+            .addChar("TEXT", 72)
+            .lock();
+        JCoRecordMetaData fields = new RecordBuilder("RFC_DB_FLD")
+            .addChar("FIELDNAME", 30)
+            .add("OFFSET", JCoMetaData.TYPE_NUM, 6, 0)
+            .add("LENGTH", JCoMetaData.TYPE_NUM, 6, 0)
+            .addChar("TYPE", 1)
+            .addChar("FIELDTEXT", 60)
+            .lock();
+        JCoRecordMetaData data = new RecordBuilder("TAB512")
+            .addChar("WA", 512)
+            .lock();
+        cR.addRecordMetaDataToCache(options);
+        cR.addRecordMetaDataToCache(fields);
+        cR.addRecordMetaDataToCache(data);
+        impList = createList("IMPORTS");
+        addChar(impList, "QUERY_TABLE", 30, JCoListMetaData.IMPORT_PARAMETER);
+        addChar(impList, "DELIMITER", 1, JCoListMetaData.IMPORT_PARAMETER | JCoListMetaData.OPTIONAL_PARAMETER);
+        addChar(impList, "NO_DATA", 1, JCoListMetaData.IMPORT_PARAMETER | JCoListMetaData.OPTIONAL_PARAMETER);
+        impList.add("ROWSKIPS", JCoMetaData.TYPE_INT, 4, 4, 0, null, null,
+                JCoListMetaData.IMPORT_PARAMETER | JCoListMetaData.OPTIONAL_PARAMETER, null, null);
+        impList.add("ROWCOUNT", JCoMetaData.TYPE_INT, 4, 4, 0, null, null,
+                JCoListMetaData.IMPORT_PARAMETER | JCoListMetaData.OPTIONAL_PARAMETER, null, null);
+        impList.lock();
+        tabList = createList("TABLES");
+        tabList.add("OPTIONS", JCoMetaData.TYPE_TABLE, options, JCoListMetaData.OPTIONAL_PARAMETER);
+        tabList.add("FIELDS", JCoMetaData.TYPE_TABLE, fields, JCoListMetaData.OPTIONAL_PARAMETER);
+        tabList.add("DATA", JCoMetaData.TYPE_TABLE, data, 0);
+        tabList.lock();
+        cR.addFunctionTemplateToCache(JCo.createFunctionTemplate("RFC_READ_TABLE", impList, null, null, tabList,
+                new AbapException[] { new AbapException("TABLE_NOT_AVAILABLE", "Table not available"),
+                                      new AbapException("FIELD_NOT_VALID", "Field not valid"),
+                                      new AbapException("DATA_BUFFER_EXCEEDED", "Data buffer exceeded") }));
+
+        //Z_INCREMENT_COUNTER and Z_GET_COUNTER
+        cR.addFunctionTemplateToCache(JCo.createFunctionTemplate("Z_INCREMENT_COUNTER", null, null, null, null, null));
+        expList = createList("EXPORTS");
+        expList.add("GET_VALUE", JCoMetaData.TYPE_INT, 4, 4, 0, null, null, JCoListMetaData.EXPORT_PARAMETER, null, null);
+        expList.lock();
+        cR.addFunctionTemplateToCache(JCo.createFunctionTemplate("Z_GET_COUNTER", null, expList, null, null, null));
+
+        return cR;
+    }
+
+    /**
+     * Repository with a lazily filled cache in front of the simulated DDIC
+     */
+    class RemoteRepository implements JCoRepository
+    {
+        private Map<String, JCoFunctionTemplate> functions = new ConcurrentHashMap<String, JCoFunctionTemplate>();
+        private Map<String, JCoRecordMetaData> records = new ConcurrentHashMap<String, JCoRecordMetaData>();
+        private Map<String, JCoClassMetaData> classes = new ConcurrentHashMap<String, JCoClassMetaData>();
+
+        private volatile long lastAccess;
+        private volatile long lastRemoteQuery;
+
+        void remoteQuery() throws JCoException
+        {
+            remoteQueries.incrementAndGet();
+            lastRemoteQuery = System.currentTimeMillis();
+            long latency = metaDataLatencyNanos;
+            if(latency <= 0)
+                return;
+            try
+            {
+                TimeUnit.NANOSECONDS.sleep(latency);
+            }
+            catch(InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                throw new JCoException(JCoException.JCO_ERROR_CANCELLED, "Metadata query to " + name + " was interrupted");
+            }
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * updates the access timestamp at most once per second, so cache hits rarely write the shared field
+         */
+        void access()
+        {
+            long now = System.currentTimeMillis();
+            if(now - lastAccess >= 1000)
+                lastAccess = now;
+        }
+
+        public JCoFunctionTemplate getFunctionTemplate(String functionName) throws JCoException
+        {
+            access();
+            JCoFunctionTemplate template = functions.get(functionName);
+            if(template == null)
+            {
+                remoteQuery();
+                template = repository.getFunctionTemplate(functionName);
+                if(template != null)
+                    functions.put(functionName, template);
+            }
+            return template;
+        }
+
+        public JCoFunction getFunction(String functionName) throws JCoException
+        {
+            JCoFunctionTemplate template = getFunctionTemplate(functionName);
+            return template != null ? template.getFunction() : null;
+        }
+
+        public JCoRequest getRequest(String functionName) throws JCoException
+        {
+            JCoFunctionTemplate template = getFunctionTemplate(functionName);
+            return template != null ? template.getRequest() : null;
+        }
+
+        public JCoListMetaData getFunctionInterface(String functionName) throws JCoException
+        {
+            JCoFunctionTemplate template = getFunctionTemplate(functionName);
+            return template != null ? template.getFunctionInterface() : null;
+        }
+
+        public JCoRecordMetaData getRecordMetaData(String recordName) throws JCoException
+        {
+            access();
+            JCoRecordMetaData record = records.get(recordName);
+            if(record == null)
+            {
+                remoteQuery();
+                record = repository.getRecordMetaData(recordName);
+                if(record != null)
+                    records.put(recordName, record);
+            }
+            return record;
+        }
+
+        public JCoRecordMetaData getStructureDefinition(String structureName) throws JCoException
+        {
+            return getRecordMetaData(structureName);
+        }
+
+        public JCoClassMetaData getClassMetaData(String className) throws JCoException
+        {
+            access();
+            JCoClassMetaData classMeta = classes.get(className);
+            if(classMeta == null)
+            {
+                remoteQuery();
+                classMeta = repository.getClassMetaData(className);
+                if(classMeta != null)
+                    classes.put(className, classMeta);
+            }
+            return classMeta;
+        }
+
+        public void removeFunctionTemplateFromCache(String functionName)
+        {
+            functions.remove(functionName);
+        }
+
+        public void removeRecordMetaDataFromCache(String recordName)
+        {
+            records.remove(recordName);
+        }
+
+        public void removeClassMetaDataFromCache(String className)
+        {
+            classes.remove(className);
+        }
+
+        public String[] getCachedFunctionTemplateNames()
+        {
+            return functions.keySet().toArray(new String[0]);
+        }
+
+        public String[] getCachedRecordMetaDataNames()
+        {
+            return records.keySet().toArray(new String[0]);
+        }
+
+        public String[] getCachedClassMetaDataNames()
+        {
+            return classes.keySet().toArray(new String[0]);
+        }
+
+        public boolean isUnicode()
+        {
+            return repository.isUnicode();
+        }
+
+        public void clear()
+        {
+            functions.clear();
+            records.clear();
+            classes.clear();
+        }
+
+        /**
+         * returns a monitor of the cache, the simulated system is the only repository destination
+         */
+        public JCoRepositoryMonitor getMonitor()
+        {
+            return new JCoRepositoryMonitor()
+            {
+                public long getLastAccessTimestamp()
+                {
+                    return lastAccess;
+                }
+
+                public long getLastRemoteQueryTimestamp()
+                {
+                    return lastRemoteQuery;
+                }
+
+                public int getFunctionMetaDataCount()
+                {
+                    return functions.size();
+                }
+
+                public int getTypeMetaDataCount()
+                {
+                    return records.size();
+                }
+
+                public int getClassMetaDataCount()
+                {
+                    return classes.size();
+                }
+
+                public List<String> getDestinationIDs()
+                {
+                    return Collections.singletonList(name);
+                }
+
+                public JCoDestinationMonitor getRespositoryDestinationMonitor(String destinationID) throws JCoRuntimeException
+                {
+                    if(!name.equals(destinationID))
+                        throw new JCoRuntimeException(JCoException.JCO_ERROR_ILLEGAL_ARGUMENT, "JCO_ERROR_ILLEGAL_ARGUMENT",
+                                "Destination " + destinationID + " is not used by " + name);
+                    return AbapBackendSimulator.this.getMonitor();
+                }
+            };
+        }
+
+        /**
+         * saves the cached metadata in the format of JCoCustomRepository
+         */
+        public void save(Writer writer) throws IOException
+        {
+            JCoCustomRepository cached = JCo.createCustomRepository(name);
+            for(JCoFunctionTemplate template : functions.values())
+                cached.addFunctionTemplateToCache(template);
+            for(JCoRecordMetaData record : records.values())
+                cached.addRecordMetaDataToCache(record);
+            for(JCoClassMetaData classMeta : classes.values())
+                cached.addClassMetaDataToCache(classMeta);
+            cached.save(writer);
+        }
+
+        /**
+         * adds the metadata saved by save(Writer) to the cache
+         */
+        public void load(Reader reader) throws IOException
+        {
+            JCoCustomRepository loaded = JCo.createCustomRepository(name);
+            loaded.load(reader);
+            try
+            {
+                for(String functionName : loaded.getCachedFunctionTemplateNames())
+                    functions.put(functionName, loaded.getFunctionTemplate(functionName));
+                for(String recordName : loaded.getCachedRecordMetaDataNames())
+                    records.put(recordName, loaded.getRecordMetaData(recordName));
+                for(String className : loaded.getCachedClassMetaDataNames())
+                    classes.put(className, loaded.getClassMetaData(className));
+            }
+            catch(JCoException je)
+            {
+                throw new IOException("Unable to read the loaded metadata: " + je.getMessage(), je);
+            }
+        }
+    }
+
+    /**
+     * Returns the destination configuration matching the simulated pool
+     */
+    public Properties getDestinationProperties()
+    {
+        Properties connectProperties = new Properties();
+        if(name.startsWith("ABAP_MS"))
+        {
+            connectProperties.setProperty(DestinationDataProvider.JCO_MSHOST, "localhost");
+            connectProperties.setProperty(DestinationDataProvider.JCO_R3NAME, "SIM");
+            connectProperties.setProperty(DestinationDataProvider.JCO_GROUP,  "PUBLIC");
+        }
+        else
+        {
+            connectProperties.setProperty(DestinationDataProvider.JCO_ASHOST, "localhost");
+            connectProperties.setProperty(DestinationDataProvider.JCO_SYSNR,  "00");
+        }
+        connectProperties.setProperty(DestinationDataProvider.JCO_CLIENT, "000");
+        connectProperties.setProperty(DestinationDataProvider.JCO_USER,   "SIMULATOR");
+        connectProperties.setProperty(DestinationDataProvider.JCO_PASSWD, "SIMULATOR");
+        connectProperties.setProperty(DestinationDataProvider.JCO_LANG,   "en");
+        connectProperties.setProperty(DestinationDataProvider.JCO_POOL_CAPACITY, String.valueOf(poolCapacity));
+        connectProperties.setProperty(DestinationDataProvider.JCO_PEAK_LIMIT, String.valueOf(peakLimit));
+        connectProperties.setProperty(DestinationDataProvider.JCO_MAX_GET_TIME, String.valueOf(maxGetClientTime));
+        return connectProperties;
+    }
+
+    /**
+     * DestinationDataProvider serving the configuration of the registered simulators.
+     * Like CustomDestinationDataProvider.MyDestinationDataProvider it supports events, so that
+     * changed pool settings are propagated to the JCo runtime. The pool settings of an updated
+     * destination are also applied to its simulator, which does not use the JCo runtime pool.
+     */
+    static class SimulatorDestinationDataProvider implements DestinationDataProvider
+    {
+        private DestinationDataEventListener eL;
+        private Map<String, Properties> destinations = new HashMap<String, Properties>();
+        private Map<String, AbapBackendSimulator> simulators = new HashMap<String, AbapBackendSimulator>();
+
+        public Properties getDestinationProperties(String destinationName)
+        {
+            synchronized(destinations)
+            {
+                Properties p = destinations.get(destinationName);
+                if(p != null && p.isEmpty())
+                    throw new DataProviderException(DataProviderException.Reason.INVALID_CONFIGURATION, "destination configuration is incorrect", null);
+                return p;
+            }
+        }
+
+        public void setDestinationDataEventListener(DestinationDataEventListener eventListener)
+        {
+            this.eL = eventListener;
+        }
+
+        public boolean supportsEvents()
+        {
+            return true;
+        }
+
+        void changeProperties(String destName, Properties properties)
+        {
+            synchronized(destinations)
+            {
+                if(properties == null)
+                {
+                    if(destinations.remove(destName) != null && eL != null)
+                        eL.deleted(destName);
+                }
+                else
+                {
+                    destinations.put(destName, properties);
+                    AbapBackendSimulator simulator = simulators.get(destName);
+                    if(simulator != null)
+                        simulator.setPoolLimits(Integer.parseInt(properties.getProperty(JCO_POOL_CAPACITY, "1")),
+                                Integer.parseInt(properties.getProperty(JCO_PEAK_LIMIT, "10")));
+                    if(eL != null)
+                        eL.updated(destName);
+                }
+            }
+        }
+
+        void addSimulator(AbapBackendSimulator simulator)
+        {
+            synchronized(destinations)
+            {
+                simulators.put(simulator.getName(), simulator);
+            }
+            changeProperties(simulator.getName(), simulator.getDestinationProperties());
+        }
+    }
+
+    /**
+     * Registers the destination configuration of the given simulators with the JCo environment
+     * @param simulators simulated systems
+     * @return the registered provider
+     * @throws IllegalStateException if another DestinationDataProvider is already registered
+     */
+    static SimulatorDestinationDataProvider registerDestinations(AbapBackendSimulator... simulators)
+    {
+        SimulatorDestinationDataProvider provider = new SimulatorDestinationDataProvider();
+        for(AbapBackendSimulator simulator : simulators)
+            provider.addSimulator(simulator);
+        Environment.registerDestinationDataProvider(provider);
+        return provider;
+    }
+
+    /**
+     * Repeats the calls of StepByStepClient.step3SimpleCall, step3WorkWithStructure and
+     * step4WorkWithTable against the simulator
+     */
+    static void runStepByStep(AbapBackendSimulator simulator) throws JCoException
+    {
+        JCoFunction function = simulator.getRepository().getFunction("STFC_CONNECTION");
+        function.getImportParameterList().setValue("REQUTEXT", "Hello SAP");
+        simulator.execute(function);
+        System.out.println("STFC_CONNECTION finished:");
+        System.out.println(" Echo: " + function.getExportParameterList().getString("ECHOTEXT"));
+        System.out.println(" Response: " + function.getExportParameterList().getString("RESPTEXT"));
+        System.out.println();
+
+        function = simulator.getRepository().getFunction("RFC_SYSTEM_INFO");
+        simulator.execute(function);
+        JCoStructure exportStructure = function.getExportParameterList().getStructure("RFCSI_EXPORT");
+        for(int i = 0; i < exportStructure.getMetaData().getFieldCount(); i++)
+            System.out.println(exportStructure.getMetaData().getName(i) + ":\t" + exportStructure.getString(i));
+        System.out.println();
+
+        function = simulator.getRepository().getFunction("BAPI_COMPANYCODE_GETLIST");
+        simulator.execute(function);
+        JCoTable codes = function.getTableParameterList().getTable("COMPANYCODE_LIST");
+        for(int i = 0; i < codes.getNumRows(); i++, codes.nextRow())
+        {
+            function = simulator.getRepository().getFunction("BAPI_COMPANYCODE_GETDETAIL");
+            function.getImportParameterList().setValue("COMPANYCODEID", codes.getString("COMP_CODE"));
+            function.getExportParameterList().setActive("COMPANYCODE_ADDRESS", false);
+            simulator.execute(function);
+            JCoStructure detail = function.getExportParameterList().getStructure("COMPANYCODE_DETAIL");
+            System.out.println(detail.getString("COMP_CODE") + '\t' +
+                               detail.getString("COUNTRY") + '\t' +
+                               detail.getString("CITY"));
+        }
+        System.out.println();
+
+        simulator.begin();
+        try
+        {
+            JCoFunctionTemplate incrementCounterTemplate = simulator.getRepository().getFunctionTemplate("Z_INCREMENT_COUNTER");
+            for(int i = 0; i < 5; i++)
+                simulator.execute(incrementCounterTemplate.getFunction());
+            JCoFunction getCounter = simulator.getRepository().getFunction("Z_GET_COUNTER");
+            simulator.execute(getCounter);
+            System.out.println("Remote counter has value [" + getCounter.getExportParameterList().getInt("GET_VALUE") + "]");
+        }
+        finally
+        {
+            simulator.end();
+        }
+        System.out.println();
+    }
+
+    /**
+     * Executes BAPI_COMPANYCODE_GETDETAIL from several threads and prints throughput and latency percentiles
+     */
+    static void runLoadTest(final AbapBackendSimulator simulator, int threadCount, final int callsPerThread) throws JCoException
+    {
+        final JCoFunctionTemplate template = simulator.getRepository().getFunctionTemplate("BAPI_COMPANYCODE_GETDETAIL");
+        final long[] latencies = new long[threadCount * callsPerThread];
+        final AtomicInteger failures = new AtomicInteger(0);
+        final CountDownLatch startSignal = new CountDownLatch(threadCount);
+        final CountDownLatch doneSignal = new CountDownLatch(threadCount);
+
+        for(int t = 0; t < threadCount; t++)
+        {
+            final int offset = t * callsPerThread;
+            new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    startSignal.countDown();
+                    try
+                    {
+                        startSignal.await();
+                        for(int i = 0; i < callsPerThread; i++)
+                        {
+                            JCoFunction function = template.getFunction();
+                            function.getImportParameterList().setValue("COMPANYCODEID", companyCode((offset + i) % 10));
+                            long start = System.nanoTime();
+                            try
+                            {
+                                simulator.execute(function);
+                            }
+                            catch(JCoException je)
+                            {
+                                failures.incrementAndGet();
+                            }
+                            latencies[offset + i] = System.nanoTime() - start;
+                        }
+                    }
+                    catch(InterruptedException ie)
+                    {
+                        //just leave
+                    }
+                    finally
+                    {
+                        doneSignal.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        long start = System.nanoTime();
+        try
+        {
+            doneSignal.await();
+        }
+        catch(InterruptedException ie)
+        {
+            //just leave
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        System.out.println(">>> " + latencies.length + " calls with " + threadCount + " threads on " + simulator.getName());
+        System.out.println("throughput : " + (latencies.length * 1000000000L / Math.max(elapsed, 1)) + " calls/s");
+        System.out.println("failures   : " + failures.get());
+        System.out.println("max used   : " + simulator.getMaxUsedConnectionCount() + " of " + simulator.getPeakLimit() + " connections");
+        System.out.println("p50        : " + TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length / 2]) + " us");
+        System.out.println("p99        : " + TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length * 99 / 100]) + " us");
+        System.out.println("max        : " + TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length - 1]) + " us");
+        System.out.println();
+    }
+
+    public static void main(String[] args) throws JCoException
+    {
+        AbapBackendSimulator simulator = new AbapBackendSimulator(ABAP_AS_POOLED, 3, 10, 4711L);
+        registerDestinations(simulator, new AbapBackendSimulator(ABAP_AS), new AbapBackendSimulator(ABAP_MS));
+
+        JCoDestination destination = JCoDestinationManager.getDestination(ABAP_AS_POOLED);
+        System.out.println("Destination " + destination.getDestinationName() + " has pool capacity "
+                + destination.getPoolCapacity() + " and peak limit " + destination.getPeakLimit());
+        System.out.println();
+
+        runStepByStep(simulator);
+
+        simulator.setLatency(2, 3, TimeUnit.MILLISECONDS);
+        simulator.setFailureRate(0.01);
+        runLoadTest(simulator, 20, 200);
+    }
+}
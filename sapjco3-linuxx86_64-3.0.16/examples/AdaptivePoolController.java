@@ -0,0 +1,446 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sap.conn.jco.JCoDestination;
+import com.sap.conn.jco.JCoException;
+import com.sap.conn.jco.JCoFunction;
+import com.sap.conn.jco.JCoFunctionTemplate;
+import com.sap.conn.jco.JCoRepository;
+import com.sap.conn.jco.ext.DestinationDataProvider;
+import com.sap.conn.jco.monitor.JCoDestinationMonitor;
+
+/**
+ * The pool of ABAP_AS_WITH_POOL is sized with the static properties jco.destination.pool_capacity and
+ * jco.destination.peak_limit. A peak limit chosen too low leaves threads waiting for a connection, one
+ * chosen too high lets more calls into the ABAP system than it has work processes for, so the calls queue
+ * in the dispatcher and only the response time grows.
+ *
+ * AdaptivePoolController executes the calls of a destination and adjusts its peak limit at runtime with
+ * an AIMD (additive increase, multiplicative decrease) limit, as used for TCP congestion control. In each
+ * interval it compares the mean call latency with the baseline, the lowest latency observed:
+ * <ul>
+ * <li>if the latency exceeds the baseline by the tolerance factor, or calls failed with JCO_ERROR_RESOURCE
+ * or JCO_ERROR_TIMEOUT, the limit is multiplied by the backoff factor</li>
+ * <li>otherwise, if the limit was reached or threads wait for a connection according to the
+ * JCoDestinationMonitor, the limit is increased by one</li>
+ * </ul>
+ * A changed limit is published as new peak limit, together with a pool capacity keeping the ratio of the
+ * initial configuration, by changing the destination properties like CustomDestinationDataProvider does,
+ * i.e. with DestinationDataEventListener.updated.
+ *
+ * The controller also enforces the limit itself and measures a call only after it obtained a permit, so
+ * the time waiting for a connection is not mistaken for backend latency. The baseline rises by half a percent
+ * per interval, so it follows a lasting change of the call latency, e.g. after a backend upgrade.
+ *
+ * Note: each update makes the JCo runtime reload the destination configuration. For a real destination
+ * use an interval of several seconds; the additive increase keeps the changes small.
+ */
+public class AdaptivePoolController implements FunctionExecutor
+{
+    /**
+     * Returns the current state of the connection pool
+     */
+    interface MonitorSource
+    {
+        JCoDestinationMonitor getMonitor();
+    }
+
+    /**
+     * Publishes changed destination properties, e.g. CustomDestinationDataProvider.MyDestinationDataProvider.changeProperties
+     */
+    interface PropertiesUpdater
+    {
+        void changeProperties(String destName, Properties properties);
+    }
+
+    static final double BASELINE_DRIFT = 0.005;
+
+    private FunctionExecutor executor;
+    private MonitorSource monitorSource;
+    private DestinationDataProvider provider;
+    private PropertiesUpdater updater;
+    private int minLimit;
+    private int maxLimit;
+    private double capacityRatio;
+    private double tolerance = 1.5;
+    private double backoff = 0.75;
+
+    private ResizableSemaphore permits;
+    private volatile int limit;
+    private AtomicInteger inFlight = new AtomicInteger();
+    private AtomicInteger maxInFlight = new AtomicInteger();
+    private AtomicInteger overloads = new AtomicInteger();
+    private LatencyHistogram latencies = new LatencyHistogram();
+    private long lastCount;
+    private long lastTotalMicros;
+    private double baselineMicros;
+    private volatile double lastMeanMicros;
+    private boolean decreased;
+    private AtomicLong increases = new AtomicLong();
+    private AtomicLong decreases = new AtomicLong();
+    private ScheduledExecutorService timer;
+
+    /**
+     * Creates a controller starting with the current peak limit of the executor
+     * @param executor destination or simulator executing the calls
+     * @param monitorSource monitor of the connection pool of the destination
+     * @param provider provider of the destination properties
+     * @param updater publishes the changed properties
+     * @param minLimit lowest peak limit
+     * @param maxLimit highest peak limit
+     */
+    public AdaptivePoolController(FunctionExecutor executor, MonitorSource monitorSource, DestinationDataProvider provider,
+            PropertiesUpdater updater, int minLimit, int maxLimit)
+    {
+        if(minLimit < 1 || maxLimit < minLimit)
+            throw new IllegalArgumentException("invalid limits: minimum " + minLimit + ", maximum " + maxLimit);
+        this.executor = executor;
+        this.monitorSource = monitorSource;
+        this.provider = provider;
+        this.updater = updater;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+
+        Properties properties = provider.getDestinationProperties(executor.getName());
+        int peakLimit = Integer.parseInt(properties.getProperty(DestinationDataProvider.JCO_PEAK_LIMIT, "10"));
+        int poolCapacity = Integer.parseInt(properties.getProperty(DestinationDataProvider.JCO_POOL_CAPACITY, "1"));
+        this.capacityRatio = peakLimit > 0 ? Math.min(1.0, (double)poolCapacity / peakLimit) : 0.5;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, executor.getPeakLimit()));
+        this.permits = new ResizableSemaphore(limit);
+    }
+
+    /**
+     * Creates a controller for a destination
+     * @param destination pooled destination
+     * @param provider registered provider of the destination properties
+     * @param updater publishes the changed properties, usually the change method of the provider
+     */
+    static AdaptivePoolController forDestination(final JCoDestination destination, DestinationDataProvider provider,
+            PropertiesUpdater updater, int minLimit, int maxLimit)
+    {
+        return new AdaptivePoolController(new DestinationExecutor(destination), new MonitorSource()
+        {
+            public JCoDestinationMonitor getMonitor()
+            {
+                return destination.getMonitor();
+            }
+        }, provider, updater, minLimit, maxLimit);
+    }
+
+    /**
+     * Creates a controller for a simulator registered with the given provider
+     */
+    static AdaptivePoolController forSimulator(final AbapBackendSimulator simulator,
+            final AbapBackendSimulator.SimulatorDestinationDataProvider provider, int minLimit, int maxLimit)
+    {
+        return new AdaptivePoolController(simulator, new MonitorSource()
+        {
+            public JCoDestinationMonitor getMonitor()
+            {
+                return simulator.getMonitor();
+            }
+        }, provider, new PropertiesUpdater()
+        {
+            public void changeProperties(String destName, Properties properties)
+            {
+                provider.changeProperties(destName, properties);
+            }
+        }, minLimit, maxLimit);
+    }
+
+    /**
+     * Sets the factor by which the interval latency may exceed the baseline before the limit is decreased
+     * @param tolerance factor greater than 1, default 1.5
+     */
+    public synchronized void setTolerance(double tolerance)
+    {
+        if(tolerance <= 1)
+            throw new IllegalArgumentException("tolerance must be greater than 1: " + tolerance);
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Sets the factor applied to the limit on overload
+     * @param backoff factor between 0 and 1, default 0.75
+     */
+    public synchronized void setBackoff(double backoff)
+    {
+        if(backoff <= 0 || backoff >= 1)
+            throw new IllegalArgumentException("backoff must be between 0 and 1: " + backoff);
+        this.backoff = backoff;
+    }
+
+    /**
+     * Adjusts the limit periodically in a background thread
+     * @param interval time between two adjustments
+     * @param unit time unit of interval
+     */
+    public synchronized void start(long interval, TimeUnit unit)
+    {
+        if(timer != null)
+            throw new IllegalStateException("controller of " + executor.getName() + " is already started");
+        timer = Executors.newSingleThreadScheduledExecutor(ThreadSupport.createThreadFactory("PoolController-" + executor.getName()));
+        timer.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    adjust();
+                }
+                catch(RuntimeException re)
+                {
+                    //keep the current limit and retry in the next interval
+                    re.printStackTrace();
+                }
+            }
+        }, interval, interval, unit);
+    }
+
+    /**
+     * Stops the adjustment, the last limit stays in effect
+     */
+    public synchronized void stop()
+    {
+        if(timer != null)
+            timer.shutdown();
+        timer = null;
+    }
+
+    public String getName()
+    {
+        return executor.getName();
+    }
+
+    public JCoRepository getRepository() throws JCoException
+    {
+        return executor.getRepository();
+    }
+
+    /**
+     * returns the current limit, which is also the published peak limit
+     */
+    public int getPeakLimit()
+    {
+        return limit;
+    }
+
+    /**
+     * Executes the function, as soon as less calls than the current limit are executed
+     */
+    public void execute(JCoFunction function) throws JCoException
+    {
+        try
+        {
+            permits.acquire();
+        }
+        catch(InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new JCoException(JCoException.JCO_ERROR_CANCELLED, "Interrupted while waiting for a connection of " + executor.getName());
+        }
+        int current = inFlight.incrementAndGet();
+        int max = maxInFlight.get();
+        while(current > max && !maxInFlight.compareAndSet(max, current))
+            max = maxInFlight.get();
+
+        long start = System.nanoTime();
+        try
+        {
+            executor.execute(function);
+            latencies.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+        catch(JCoException je)
+        {
+            if(je.getGroup() == JCoException.JCO_ERROR_RESOURCE || je.getGroup() == JCoException.JCO_ERROR_TIMEOUT)
+                overloads.incrementAndGet();
+            else
+                latencies.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            throw je;
+        }
+        finally
+        {
+            inFlight.decrementAndGet();
+            permits.release();
+        }
+    }
+
+    /**
+     * Evaluates the calls since the previous adjustment and changes the limit
+     * @return the new limit
+     */
+    synchronized int adjust()
+    {
+        long count = latencies.getCount();
+        long totalMicros = latencies.getTotal(TimeUnit.MICROSECONDS);
+        long intervalCount = count - lastCount;
+        long intervalMicros = totalMicros - lastTotalMicros;
+        lastCount = count;
+        lastTotalMicros = totalMicros;
+        int intervalMaxInFlight = maxInFlight.getAndSet(inFlight.get());
+        int intervalOverloads = overloads.getAndSet(0);
+
+        int waiting = permits.getQueueLength();
+        JCoDestinationMonitor monitor = monitorSource.getMonitor();
+        if(monitor != null)
+            waiting += monitor.getWaitingThreadCount();
+
+        if(intervalCount == 0 && intervalOverloads == 0)
+            return limit;
+
+        double mean = intervalCount > 0 ? (double)intervalMicros / intervalCount : lastMeanMicros;
+        lastMeanMicros = mean;
+        if(baselineMicros == 0 || mean < baselineMicros)
+            baselineMicros = mean;
+        else
+            baselineMicros = Math.min(mean, baselineMicros * (1 + BASELINE_DRIFT));
+
+        int newLimit = limit;
+        boolean overloaded = intervalOverloads > 0 || mean > baselineMicros * tolerance;
+        if(overloaded)
+        {
+            //the latency of the previous decrease may still show in this interval
+            if(!decreased)
+                newLimit = Math.max(minLimit, (int)(limit * backoff));
+            decreased = !decreased;
+        }
+        else
+        {
+            decreased = false;
+            if(intervalMaxInFlight >= limit || waiting > 0)
+                newLimit = Math.min(maxLimit, limit + 1);
+        }
+
+        if(newLimit != limit)
+        {
+            if(newLimit > limit)
+                increases.incrementAndGet();
+            else
+                decreases.incrementAndGet();
+            permits.setLimit(newLimit);
+            limit = newLimit;
+            publish(newLimit);
+        }
+        return limit;
+    }
+
+    void publish(int peakLimit)
+    {
+        Properties properties = new Properties();
+        Properties current = provider.getDestinationProperties(executor.getName());
+        if(current != null)
+            properties.putAll(current);
+        int poolCapacity = Math.max(1, (int)Math.round(peakLimit * capacityRatio));
+        properties.setProperty(DestinationDataProvider.JCO_POOL_CAPACITY, String.valueOf(Math.min(poolCapacity, peakLimit)));
+        properties.setProperty(DestinationDataProvider.JCO_PEAK_LIMIT, String.valueOf(peakLimit));
+        updater.changeProperties(executor.getName(), properties);
+    }
+
+    /**
+     * returns the lowest mean latency of an interval, raised by the drift since it was observed
+     */
+    public synchronized long getBaseline(TimeUnit unit)
+    {
+        return unit.convert((long)baselineMicros, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * returns the latencies of all calls executed by the controller
+     */
+    public LatencyHistogram getLatencies()
+    {
+        return latencies;
+    }
+
+    public long getIncreaseCount()
+    {
+        return increases.get();
+    }
+
+    public long getDecreaseCount()
+    {
+        return decreases.get();
+    }
+
+    public String toString()
+    {
+        return executor.getName() + ": limit " + limit + " [" + minLimit + ", " + maxLimit + "], " + increases.get() + " increases, "
+                + decreases.get() + " decreases, last mean " + (long)lastMeanMicros + " us, baseline " + getBaseline(TimeUnit.MICROSECONDS) + " us";
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        //starts with a pool far too small for the load
+        final AbapBackendSimulator simulator = new AbapBackendSimulator("ABAP_AS_WITH_POOL", 2, 4, 4711L);
+        simulator.setCompanyCodeCount(100);
+        simulator.setLatency(20, 5, TimeUnit.MILLISECONDS);
+        simulator.setWorkProcessCount(12);
+        AbapBackendSimulator.SimulatorDestinationDataProvider provider = AbapBackendSimulator.registerDestinations(simulator);
+        final JCoFunctionTemplate template = simulator.getRepository().getFunctionTemplate("BAPI_COMPANYCODE_GETDETAIL");
+
+        final AdaptivePoolController controller = forSimulator(simulator, provider, 1, 64);
+        controller.start(250, TimeUnit.MILLISECONDS);
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        List<Thread> clients = new ArrayList<Thread>();
+        for(int i = 0; i < 48; i++)
+        {
+            final int client = i;
+            Thread thread = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    int n = client;
+                    while(running.get())
+                    {
+                        JCoFunction function = template.getFunction();
+                        function.getImportParameterList().setValue("COMPANYCODEID", AbapBackendSimulator.companyCode(n++ % 100));
+                        try
+                        {
+                            controller.execute(function);
+                            calls.incrementAndGet();
+                        }
+                        catch(JCoException je)
+                        {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            }, "Client-" + i);
+            thread.setDaemon(true);
+            clients.add(thread);
+            thread.start();
+        }
+
+        //after 4 seconds the backend loses two thirds of its work processes
+        long lastCalls = 0;
+        for(int second = 1; second <= 8; second++)
+        {
+            if(second == 5)
+            {
+                simulator.setWorkProcessCount(4);
+                System.out.println("backend reduced to 4 work processes");
+            }
+            Thread.sleep(1000);
+            long total = calls.get();
+            System.out.println("second " + second + ": " + (total - lastCalls) + " calls/s, pool capacity " + simulator.getPoolCapacity()
+                    + ", peak limit " + simulator.getPeakLimit() + ", " + controller);
+            lastCalls = total;
+        }
+
+        running.set(false);
+        for(Thread thread : clients)
+            thread.join();
+        controller.stop();
+        System.out.println(calls.get() + " calls, " + errors.get() + " errors, latency " + controller.getLatencies());
+    }
+}
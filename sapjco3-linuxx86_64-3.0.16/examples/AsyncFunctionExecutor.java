@@ -0,0 +1,269 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import com.sap.conn.jco.JCoException;
+import com.sap.conn.jco.JCoFunction;
+import com.sap.conn.jco.JCoFunctionTemplate;
+
+/**
+ * All client examples block the calling thread in JCoFunction.execute until the ABAP system answered.
+ * AsyncFunctionExecutor executes the functions in a bounded pool of worker threads and returns a
+ * CompletableFuture immediately, which the worker completes with the executed function. A service
+ * can chain the processing of the result with thenApply, whenComplete etc. and does not need to keep a
+ * request thread waiting for it.
+ *
+ * The number of workers is limited by the peak limit of the destination, the number of waiting calls by
+ * the queue capacity. If the queue is full, submit does not block; it returns a future failed with
+ * JCO_ERROR_RESOURCE, so the caller can apply back-pressure. A call can be cancelled and submitted with a
+ * timeout, after which its future fails with JCO_ERROR_TIMEOUT. A call waiting in the queue is never
+ * started then; a running call is interrupted.
+ *
+ * Note: the interruption stops calls of AbapBackendSimulator, but a JCoFunction.execute running in the
+ * native RFC library is not interrupted. The future completes in time, the connection however stays
+ * busy until the ABAP system answered. Dependent actions registered without the Async suffix run in the
+ * thread completing the future, i.e. the worker or, after a timeout, the single timer thread; actions
+ * which block or take long have to be registered with thenApplyAsync, whenCompleteAsync etc.
+ */
+public class AsyncFunctionExecutor
+{
+    /**
+     * A submitted call, run by a worker
+     */
+    class Call implements Runnable
+    {
+        private JCoFunction function;
+        private CompletableFuture<JCoFunction> future = new CompletableFuture<JCoFunction>();
+        private Thread runner;
+
+        Call(JCoFunction function)
+        {
+            this.function = function;
+            future.whenComplete(new BiConsumer<JCoFunction, Throwable>()
+            {
+                public void accept(JCoFunction result, Throwable failure)
+                {
+                    if(failure != null)
+                        abort();
+                }
+            });
+        }
+
+        public void run()
+        {
+            synchronized(this)
+            {
+                if(future.isDone())
+                    return;
+                runner = Thread.currentThread();
+            }
+            try
+            {
+                executor.execute(function);
+                future.complete(function);
+            }
+            catch(Throwable t)
+            {
+                future.completeExceptionally(t);
+            }
+            finally
+            {
+                synchronized(this)
+                {
+                    runner = null;
+                    //clears an interrupt, which hit after the call completed
+                    Thread.interrupted();
+                }
+            }
+        }
+
+        /**
+         * removes a waiting call from the queue and interrupts a running one after its future failed
+         */
+        void abort()
+        {
+            synchronized(this)
+            {
+                if(runner != null)
+                    runner.interrupt();
+            }
+            workers.remove(this);
+        }
+    }
+
+    private FunctionExecutor executor;
+    private ThreadPoolExecutor workers;
+    private ScheduledExecutorService timer;
+    private AtomicInteger rejected = new AtomicInteger();
+
+    /**
+     * Creates an executor with a bounded number of workers and a bounded queue
+     * @param executor destination or simulator executing the calls
+     * @param threads number of workers, limited by the peak limit of the destination
+     * @param queueCapacity maximum number of calls waiting for a worker
+     */
+    public AsyncFunctionExecutor(FunctionExecutor executor, int threads, int queueCapacity)
+    {
+        this.executor = executor;
+        int size = Math.min(threads, executor.getPeakLimit());
+        workers = new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity),
+                ThreadSupport.createThreadFactory("Async-" + executor.getName()));
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+                ThreadSupport.createThreadFactory("Async-" + executor.getName() + "-Timer"));
+        scheduler.setRemoveOnCancelPolicy(true);
+        timer = scheduler;
+    }
+
+    /**
+     * Submits a call without timeout
+     * @param function function to be executed
+     * @return the future of the call
+     */
+    public CompletableFuture<JCoFunction> submit(JCoFunction function)
+    {
+        return submit(function, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Submits a call
+     * @param function function to be executed
+     * @param timeout maximum time from the submission to the end of the call, 0 for no timeout
+     * @param unit time unit of timeout
+     * @return the future of the call, failed with JCO_ERROR_RESOURCE if the queue is full
+     */
+    public CompletableFuture<JCoFunction> submit(final JCoFunction function, final long timeout, final TimeUnit unit)
+    {
+        Call call = new Call(function);
+        final CompletableFuture<JCoFunction> future = call.future;
+        try
+        {
+            workers.execute(call);
+        }
+        catch(RejectedExecutionException ree)
+        {
+            rejected.incrementAndGet();
+            future.completeExceptionally(new JCoException(JCoException.JCO_ERROR_RESOURCE, "Queue of " + executor.getName() + " is full, "
+                    + workers.getActiveCount() + " calls are running and " + workers.getQueue().size() + " waiting"));
+            return future;
+        }
+
+        if(timeout > 0)
+        {
+            final Future<?> timeoutTask = timer.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    future.completeExceptionally(new JCoException(JCoException.JCO_ERROR_TIMEOUT, "Call of " + function.getName()
+                            + " did not complete within " + timeout + " " + unit.toString().toLowerCase()));
+                }
+            }, timeout, unit);
+            future.whenComplete(new BiConsumer<JCoFunction, Throwable>()
+            {
+                public void accept(JCoFunction result, Throwable failure)
+                {
+                    timeoutTask.cancel(false);
+                }
+            });
+        }
+        return future;
+    }
+
+    /**
+     * Submits several calls with the same timeout
+     * @return the futures in the order of the functions
+     */
+    public List<CompletableFuture<JCoFunction>> submitAll(List<JCoFunction> functions, long timeout, TimeUnit unit)
+    {
+        List<CompletableFuture<JCoFunction>> futures = new ArrayList<CompletableFuture<JCoFunction>>(functions.size());
+        for(JCoFunction function : functions)
+            futures.add(submit(function, timeout, unit));
+        return futures;
+    }
+
+    /**
+     * returns the number of calls waiting for a worker
+     */
+    public int getQueuedCount()
+    {
+        return workers.getQueue().size();
+    }
+
+    /**
+     * returns the number of calls rejected because the queue was full
+     */
+    public int getRejectedCount()
+    {
+        return rejected.get();
+    }
+
+    /**
+     * Stops the worker threads after the submitted calls completed
+     */
+    public void shutdown()
+    {
+        workers.shutdown();
+        timer.shutdown();
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        AbapBackendSimulator simulator = new AbapBackendSimulator("ABAP_AS_WITH_POOL", 5, 10, 4711L);
+        simulator.setCompanyCodeCount(500);
+        simulator.setLatency(20, 40, TimeUnit.MILLISECONDS);
+        JCoFunctionTemplate template = simulator.getRepository().getFunctionTemplate("BAPI_COMPANYCODE_GETDETAIL");
+
+        AsyncFunctionExecutor async = new AsyncFunctionExecutor(simulator, 10, 100);
+        List<JCoFunction> functions = new ArrayList<JCoFunction>();
+        for(int i = 0; i < 200; i++)
+        {
+            JCoFunction function = template.getFunction();
+            function.getImportParameterList().setValue("COMPANYCODEID", AbapBackendSimulator.companyCode(i));
+            functions.add(function);
+        }
+
+        final CountDownLatch latch = new CountDownLatch(functions.size());
+        final AtomicInteger succeeded = new AtomicInteger();
+        final AtomicInteger timedOut = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+        BiConsumer<JCoFunction, Throwable> callback = new BiConsumer<JCoFunction, Throwable>()
+        {
+            public void accept(JCoFunction function, Throwable failure)
+            {
+                if(failure instanceof CompletionException)
+                    failure = failure.getCause();
+                if(failure == null)
+                    succeeded.incrementAndGet();
+                else if(failure instanceof JCoException && ((JCoException)failure).getGroup() == JCoException.JCO_ERROR_TIMEOUT)
+                    timedOut.incrementAndGet();
+                else if(failure instanceof JCoException && ((JCoException)failure).getGroup() == JCoException.JCO_ERROR_RESOURCE)
+                    rejected.incrementAndGet();
+                latch.countDown();
+            }
+        };
+
+        long start = System.nanoTime();
+        List<CompletableFuture<JCoFunction>> futures = async.submitAll(functions, 300, TimeUnit.MILLISECONDS);
+        long submitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        for(CompletableFuture<JCoFunction> future : futures)
+            future.whenComplete(callback);
+        latch.await();
+        System.out.println(functions.size() + " calls submitted in " + submitMillis + " ms, completed after "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms: " + succeeded + " succeeded, " + timedOut
+                + " timed out, " + rejected + " rejected because the queue was full");
+
+        CompletableFuture<JCoFunction> cancelled = async.submit(template.getFunction());
+        System.out.println("cancelled: " + cancelled.cancel(true) + ", max used connections " + simulator.getMaxUsedConnectionCount());
+        async.shutdown();
+    }
+}
@@ -0,0 +1,628 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sap.conn.jco.AbapException;
+import com.sap.conn.jco.JCo;
+import com.sap.conn.jco.JCoFunction;
+import com.sap.conn.jco.JCoFunctionUnitState;
+import com.sap.conn.jco.JCoRepository;
+import com.sap.conn.jco.JCoUnitIdentifier;
+import com.sap.conn.jco.server.JCoServerContext;
+import com.sap.conn.jco.server.JCoServerFunctionHandler;
+import com.sap.conn.jco.server.JCoServerUnitIDHandler;
+
+/**
+ * BackgroundUnitHandler receives bgRFC units, as the JCoServerTIDHandler in StepByStepServer receives tRFC
+ * transactions, and processes them asynchronously. It is registered with JCoServer.setUnitIDHandler and as
+ * the JCoServerFunctionHandler of the functions sent in units.
+ *
+ * While a unit is received, handleRequest only encodes the functions with FunctionCodec. commit writes the
+ * unit to a MappedAppendLog and returns after the record was forced to disk, so the ABAP system may delete
+ * the unit on its side. Commits of several connections are forced together (group commit). The unit is then
+ * added to a QueueDispatcher: the units of a qRFC queue (type Q) are processed one after the other in the
+ * order of their commits, different queues and the units of type T are processed in parallel. When the
+ * processing of a unit fails, its queue stops until resume is called.
+ *
+ * After a restart the units committed but not processed are read from the log and added to their queues
+ * again, in the order of their commits. A unit is forgotten when it was processed and the ABAP system
+ * confirmed it; until then checkUnitID rejects a repeated execution.
+ *
+ * Note: JCo does not pass the queue names of a unit of type Q to the server, so a QueueResolver derives
+ * the queue name from the first function of the unit, e.g. from the key of the business object it changes.
+ * A unit is processed in one queue only. The processing of a unit and the record marking it as processed
+ * cannot be written atomically; after a crash between both, the unit is processed again, so the
+ * UnitProcessor should be idempotent.
+ */
+public class BackgroundUnitHandler implements JCoServerUnitIDHandler, JCoServerFunctionHandler
+{
+    /**
+     * Derives the queue a unit of type Q is processed in
+     */
+    public interface QueueResolver
+    {
+        String getQueueName(JCoUnitIdentifier unitID, JCoFunction function);
+    }
+
+    /**
+     * Processes the functions of a committed unit
+     */
+    public interface UnitProcessor
+    {
+        /**
+         * @param queueName queue of the unit, null for units of type T
+         * @throws Exception stops the queue until BackgroundUnitHandler.resume is called
+         */
+        void process(String queueName, String unitID, List<JCoFunction> functions) throws Exception;
+    }
+
+    enum UnitState
+    {
+        RECEIVING, COMMITTED, PROCESSED;
+    }
+
+    static class Unit
+    {
+        String id;
+        String queueName;
+        volatile UnitState state;
+        ByteArrayOutputStream functions;
+        DataOutputStream out;
+        int functionCount;
+        //the UNIT record, while the unit is committed but not processed
+        byte[] record;
+        boolean confirmed;
+
+        Unit(String id, UnitState state)
+        {
+            this.id = id;
+            this.state = state;
+        }
+    }
+
+    private static final byte RECORD_UNIT = 1;
+    private static final byte RECORD_PROCESSED = 2;
+    private static final byte RECORD_CONFIRMED = 3;
+
+    private File file;
+    private JCoRepository repository;
+    private QueueResolver queueResolver;
+    private UnitProcessor unitProcessor;
+    private ConcurrentHashMap<String, Unit> units = new ConcurrentHashMap<String, Unit>(1024, 0.75f, 64);
+    private QueueDispatcher<Unit> dispatcher;
+    private MappedAppendLog log;
+    private AtomicLong commits = new AtomicLong();
+    private AtomicLong rollbacks = new AtomicLong();
+    private int recoveredCount;
+
+    /**
+     * Opens the log, recovers the units not yet processed and starts processing them
+     * @param file log file, created if it does not exist
+     * @param initialSize initial size of the log in bytes
+     * @param repository repository providing the metadata of the functions
+     * @param queueResolver derives the queue names of units of type Q
+     * @param unitProcessor processes the units
+     * @param threads number of threads processing the queues
+     * @throws IOException if the log cannot be read or mapped
+     */
+    public BackgroundUnitHandler(File file, int initialSize, JCoRepository repository, QueueResolver queueResolver,
+            UnitProcessor unitProcessor, int threads) throws IOException
+    {
+        this.file = file;
+        this.repository = repository;
+        this.queueResolver = queueResolver;
+        this.unitProcessor = unitProcessor;
+        this.dispatcher = new QueueDispatcher<Unit>("bgRFC", threads, 16, new QueueDispatcher.Processor<Unit>()
+        {
+            public void process(String queueName, Unit unit) throws Exception
+            {
+                processUnit(unit);
+            }
+        });
+
+        final List<Unit> recovered = new ArrayList<Unit>();
+        this.log = new MappedAppendLog(file, initialSize, new MappedAppendLog.RecordVisitor()
+        {
+            public void visit(byte[] record, int length) throws IOException
+            {
+                recover(Arrays.copyOf(record, length), recovered);
+            }
+        }, new MappedAppendLog.LiveRecords()
+        {
+            public List<byte[]> collect()
+            {
+                List<byte[]> live = new ArrayList<byte[]>();
+                for(Unit unit : units.values())
+                {
+                    if(unit.record != null)
+                    {
+                        live.add(unit.record);
+                        if(unit.confirmed)
+                            live.add(createRecord(RECORD_CONFIRMED, unit.id));
+                    }
+                    else if(unit.state == UnitState.PROCESSED)
+                        live.add(createRecord(RECORD_PROCESSED, unit.id));
+                }
+                return live;
+            }
+        });
+
+        for(Unit unit : recovered)
+        {
+            if(unit.state == UnitState.COMMITTED)
+            {
+                dispatcher.add(unit.queueName, unit);
+                recoveredCount++;
+            }
+        }
+    }
+
+    void recover(byte[] record, List<Unit> recovered) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        String id = in.readUTF();
+        Unit unit = units.get(id);
+        if(type == RECORD_UNIT)
+        {
+            unit = new Unit(id, UnitState.COMMITTED);
+            unit.queueName = in.readBoolean() ? in.readUTF() : null;
+            unit.record = record;
+            units.put(id, unit);
+            recovered.add(unit);
+        }
+        else if(type == RECORD_PROCESSED)
+        {
+            if(unit == null)
+            {
+                unit = new Unit(id, UnitState.PROCESSED);
+                units.put(id, unit);
+            }
+            unit.state = UnitState.PROCESSED;
+            unit.record = null;
+            if(unit.confirmed)
+                units.remove(id);
+        }
+        else if(type == RECORD_CONFIRMED && unit != null)
+        {
+            if(unit.state == UnitState.PROCESSED)
+                units.remove(id);
+            else
+                unit.confirmed = true;
+        }
+    }
+
+    static byte[] createRecord(byte type, String unitID)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(40);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+            out.writeByte(type);
+            out.writeUTF(unitID);
+        }
+        catch(IOException e)
+        {
+            //not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public boolean checkUnitID(JCoServerContext serverCtx, JCoUnitIdentifier unitID)
+    {
+        Unit unit = units.get(unitID.getID());
+        if(unit != null && unit.state != UnitState.RECEIVING)
+            return false;
+        //a unit received before, but not committed, is received again
+        units.put(unitID.getID(), new Unit(unitID.getID(), UnitState.RECEIVING));
+        return true;
+    }
+
+    public void handleRequest(JCoServerContext serverCtx, JCoFunction function) throws AbapException
+    {
+        JCoUnitIdentifier unitID = serverCtx.getUnitIdentifier();
+        if(unitID == null)
+            throw new AbapException("NOT_IN_UNIT", "Function " + function.getName() + " is only accepted in a bgRFC unit");
+        Unit unit = units.get(unitID.getID());
+        if(unit == null || unit.state != UnitState.RECEIVING)
+            throw new AbapException("UNIT_NOT_ACTIVE", "Unit " + unitID.getID() + " is not being received");
+
+        synchronized(unit)
+        {
+            try
+            {
+                if(unit.out == null)
+                {
+                    if(unitID.getType() == JCoUnitIdentifier.Type.TYPE_Q)
+                        unit.queueName = queueResolver.getQueueName(unitID, function);
+                    unit.functions = new ByteArrayOutputStream(512);
+                    unit.out = new DataOutputStream(unit.functions);
+                }
+                FunctionCodec.write(unit.out, function);
+                unit.functionCount++;
+            }
+            catch(IOException e)
+            {
+                throw new AbapException("UNIT_NOT_STORED", "Function " + function.getName() + " cannot be stored: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes the unit to the log and returns after it was forced to disk
+     * @throws RuntimeException if the log could not be written, so JCo reports the failure to the ABAP system
+     */
+    public void commit(JCoServerContext serverCtx, JCoUnitIdentifier unitID)
+    {
+        Unit unit = units.get(unitID.getID());
+        if(unit == null || unit.state != UnitState.RECEIVING)
+            throw new IllegalStateException("Unit " + unitID.getID() + " is not being received");
+
+        long seq;
+        try
+        {
+            byte[] record = createUnitRecord(unit);
+            //a compaction triggered by the append already writes the record to the new log, later ones see it as live
+            synchronized(log)
+            {
+                seq = log.append(record, record.length);
+                unit.record = record;
+            }
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException("Unable to log unit " + unitID.getID() + " in " + file, e);
+        }
+        log.awaitDurable(seq);
+        unit.state = UnitState.COMMITTED;
+        unit.functions = null;
+        unit.out = null;
+        commits.incrementAndGet();
+        dispatcher.add(unit.queueName, unit);
+    }
+
+    static byte[] createUnitRecord(Unit unit) throws IOException
+    {
+        synchronized(unit)
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (unit.functions == null ? 0 : unit.functions.size()));
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(RECORD_UNIT);
+            out.writeUTF(unit.id);
+            out.writeBoolean(unit.queueName != null);
+            if(unit.queueName != null)
+                out.writeUTF(unit.queueName);
+            out.writeInt(unit.functionCount);
+            if(unit.functions != null)
+                unit.functions.writeTo(out);
+            out.flush();
+            return bytes.toByteArray();
+        }
+    }
+
+    List<JCoFunction> decodeFunctions(byte[] record) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        in.readByte();
+        in.readUTF();
+        if(in.readBoolean())
+            in.readUTF();
+        int count = in.readInt();
+        List<JCoFunction> functions = new ArrayList<JCoFunction>(count);
+        for(int i = 0; i < count; i++)
+            functions.add(FunctionCodec.read(in, repository));
+        return functions;
+    }
+
+    void processUnit(Unit unit) throws Exception
+    {
+        unitProcessor.process(unit.queueName, unit.id, decodeFunctions(unit.record));
+        byte[] record = createRecord(RECORD_PROCESSED, unit.id);
+        long seq;
+        synchronized(log)
+        {
+            seq = log.append(record, record.length);
+            unit.state = UnitState.PROCESSED;
+            unit.record = null;
+            if(unit.confirmed)
+                units.remove(unit.id);
+        }
+        //otherwise the unit would be processed again after a restart
+        log.awaitDurable(seq);
+    }
+
+    public void rollback(JCoServerContext serverCtx, JCoUnitIdentifier unitID)
+    {
+        Unit unit = units.get(unitID.getID());
+        //the ABAP system sends a rolled back unit again, so it is not kept
+        if(unit != null && unit.state == UnitState.RECEIVING)
+        {
+            units.remove(unitID.getID(), unit);
+            rollbacks.incrementAndGet();
+        }
+    }
+
+    public void confirmUnitID(JCoServerContext serverCtx, JCoUnitIdentifier unitID)
+    {
+        Unit unit = units.get(unitID.getID());
+        if(unit == null)
+            return;
+        byte[] record = createRecord(RECORD_CONFIRMED, unitID.getID());
+        synchronized(log)
+        {
+            if(unit.state == UnitState.RECEIVING)
+            {
+                units.remove(unit.id, unit);
+                return;
+            }
+            unit.confirmed = true;
+            if(unit.state == UnitState.PROCESSED)
+                units.remove(unit.id);
+            try
+            {
+                //not forced, if the record is lost, the unit is only kept longer
+                log.append(record, record.length);
+            }
+            catch(IOException e)
+            {
+                //the partner does not react on an exception at this point, the unit is kept in the log
+            }
+        }
+    }
+
+    public JCoFunctionUnitState getFunctionUnitState(JCoServerContext serverCtx, JCoUnitIdentifier unitID)
+    {
+        Unit unit = units.get(unitID.getID());
+        if(unit == null)
+            return JCoFunctionUnitState.NOT_FOUND;
+        if(unit.state == UnitState.RECEIVING)
+            return JCoFunctionUnitState.IN_PROCESS;
+        return unit.confirmed ? JCoFunctionUnitState.CONFIRMED : JCoFunctionUnitState.COMMITTED;
+    }
+
+    /**
+     * Processes a stopped queue again, starting with the unit that failed
+     * @param queueName name of the queue, null for the units of type T
+     * @return false if the queue does not exist
+     */
+    public boolean resume(String queueName)
+    {
+        return dispatcher.resume(queueName);
+    }
+
+    public QueueDispatcher<Unit> getDispatcher()
+    {
+        return dispatcher;
+    }
+
+    public long getCommitCount()
+    {
+        return commits.get();
+    }
+
+    public long getRollbackCount()
+    {
+        return rollbacks.get();
+    }
+
+    /**
+     * returns the number of units added to the queues again when the handler was opened
+     */
+    public int getRecoveredCount()
+    {
+        return recoveredCount;
+    }
+
+    /**
+     * returns the number of units known to the handler
+     */
+    public int size()
+    {
+        return units.size();
+    }
+
+    /**
+     * Stops processing and closes the log, units not yet processed are processed after the next start
+     */
+    public void close() throws IOException
+    {
+        dispatcher.shutdown();
+        log.close();
+    }
+
+    public String toString()
+    {
+        return file + ": " + units.size() + " units, " + commits.get() + " commits, " + rollbacks.get() + " rollbacks, "
+                + dispatcher.getDepth() + " waiting, " + log.getForceCount() + " forces, " + log.getCompactionCount() + " compactions";
+    }
+
+    static JCoServerContext createContext(final JCoUnitIdentifier[] currentUnit)
+    {
+        return (JCoServerContext)Proxy.newProxyInstance(BackgroundUnitHandler.class.getClassLoader(), new Class<?>[] { JCoServerContext.class },
+                new InvocationHandler()
+                {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        if(method.getName().equals("getUnitIdentifier"))
+                            return currentUnit[0];
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * Sends units as an ABAP system does: checkUnitID, the functions, commit and confirmUnitID
+     * @param requestTexts REQUTEXT of the STFC_CONNECTION calls, one array per unit
+     */
+    static void sendUnits(BackgroundUnitHandler handler, JCoRepository repository, String prefix, JCoUnitIdentifier.Type type,
+            String[][] requestTexts) throws Exception
+    {
+        JCoUnitIdentifier[] currentUnit = new JCoUnitIdentifier[1];
+        JCoServerContext ctx = createContext(currentUnit);
+        for(int i = 0; i < requestTexts.length; i++)
+        {
+            JCoUnitIdentifier unitID = JCo.createUnitIdentifier(String.format("%s%024X", prefix, i), type);
+            currentUnit[0] = unitID;
+            if(!handler.checkUnitID(ctx, unitID))
+                continue;
+            for(String text : requestTexts[i])
+            {
+                JCoFunction function = repository.getFunction("STFC_CONNECTION");
+                function.getImportParameterList().setValue("REQUTEXT", text);
+                handler.handleRequest(ctx, function);
+            }
+            handler.commit(ctx, unitID);
+            handler.confirmUnitID(ctx, unitID);
+        }
+    }
+
+    static String[][] createRequestTexts(String queueName, int units, int functionsPerUnit)
+    {
+        String[][] texts = new String[units][functionsPerUnit];
+        for(int i = 0; i < units; i++)
+            for(int f = 0; f < functionsPerUnit; f++)
+                texts[i][f] = queueName + ":" + (i * functionsPerUnit + f);
+        return texts;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        final JCoRepository repository = new AbapBackendSimulator("SIM").getRepository();
+        File file = File.createTempFile("units", ".log");
+        file.deleteOnExit();
+
+        //the queue of a unit is the prefix of the request text, e.g. QUEUE03 for "QUEUE03:17"
+        QueueResolver resolver = new QueueResolver()
+        {
+            public String getQueueName(JCoUnitIdentifier unitID, JCoFunction function)
+            {
+                String text = function.getImportParameterList().getString("REQUTEXT");
+                return text.substring(0, text.indexOf(':'));
+            }
+        };
+
+        //each function takes 1 ms, as if it updated a database; the numbers of a queue must arrive in order
+        final ConcurrentHashMap<String, AtomicInteger> lastNumbers = new ConcurrentHashMap<String, AtomicInteger>();
+        final AtomicInteger orderViolations = new AtomicInteger();
+        final AtomicInteger processedFunctions = new AtomicInteger();
+        final AtomicInteger injectedFailures = new AtomicInteger(1);
+        UnitProcessor processor = new UnitProcessor()
+        {
+            public void process(String queueName, String unitID, List<JCoFunction> functions) throws Exception
+            {
+                for(JCoFunction function : functions)
+                {
+                    String text = function.getImportParameterList().getString("REQUTEXT");
+                    int number = Integer.parseInt(text.substring(text.indexOf(':') + 1));
+                    if(text.startsWith("QUEUE02:") && number == 99 && injectedFailures.getAndDecrement() > 0)
+                        throw new IllegalStateException("Material locked by another user");
+                    Thread.sleep(1);
+                    if(queueName != null)
+                    {
+                        AtomicInteger last = lastNumbers.get(queueName);
+                        if(last == null)
+                        {
+                            lastNumbers.putIfAbsent(queueName, new AtomicInteger(-1));
+                            last = lastNumbers.get(queueName);
+                        }
+                        if(last.getAndSet(number) != number - 1)
+                            orderViolations.incrementAndGet();
+                    }
+                    processedFunctions.incrementAndGet();
+                }
+            }
+        };
+
+        final BackgroundUnitHandler handler = new BackgroundUnitHandler(file, 32 * 1024, repository, resolver, processor, 4);
+        final int queues = 8;
+        final int unitsPerQueue = 100;
+        final int functionsPerUnit = 3;
+
+        //one connection per queue, as the ABAP system sends the units of a queue one after the other
+        final CountDownLatch done = new CountDownLatch(queues + 1);
+        long start = System.nanoTime();
+        for(int q = 0; q <= queues; q++)
+        {
+            final int queue = q;
+            Thread sender = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        if(queue < queues)
+                        {
+                            String name = String.format("QUEUE%02d", queue);
+                            sendUnits(handler, repository, String.format("%08X", queue), JCoUnitIdentifier.Type.TYPE_Q,
+                                    createRequestTexts(name, unitsPerQueue, functionsPerUnit));
+                        }
+                        else
+                            sendUnits(handler, repository, "FFFFFFFF", JCoUnitIdentifier.Type.TYPE_T,
+                                    createRequestTexts("TRFC", unitsPerQueue, 1));
+                    }
+                    catch(Exception e)
+                    {
+                        e.printStackTrace();
+                    }
+                    done.countDown();
+                }
+            }, "connection-" + q);
+            sender.setDaemon(true);
+            sender.start();
+        }
+        done.await();
+        long receiveNanos = System.nanoTime() - start;
+        System.out.println((queues + 1) * unitsPerQueue + " units received in " + TimeUnit.NANOSECONDS.toMillis(receiveNanos) + " ms, "
+                + String.format("%.1f", (double)handler.getCommitCount() / handler.log.getForceCount()) + " commits per force");
+
+        handler.getDispatcher().awaitIdle(60, TimeUnit.SECONDS);
+        System.out.println("\nQUEUE02 stopped: " + handler.getDispatcher().getQueue("QUEUE02"));
+        handler.resume("QUEUE02");
+        handler.getDispatcher().awaitIdle(60, TimeUnit.SECONDS);
+        long nanos = System.nanoTime() - start;
+        System.out.println("\n" + processedFunctions.get() + " functions processed in " + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms, "
+                + orderViolations.get() + " order violations, 4 threads for 1 ms per function");
+        System.out.print(handler.getDispatcher().report());
+        System.out.println(handler);
+        handler.close();
+
+        //units committed while the processing is stopped are processed after a restart
+        final AtomicInteger stopped = new AtomicInteger(1);
+        UnitProcessor stoppedProcessor = new UnitProcessor()
+        {
+            public void process(String queueName, String unitID, List<JCoFunction> functions) throws Exception
+            {
+                if(stopped.get() > 0)
+                    throw new IllegalStateException("processing stopped");
+            }
+        };
+        BackgroundUnitHandler beforeCrash = new BackgroundUnitHandler(file, 64 * 1024, repository, resolver, stoppedProcessor, 4);
+        sendUnits(beforeCrash, repository, "EEEEEEEE", JCoUnitIdentifier.Type.TYPE_Q, createRequestTexts("QUEUE09", 20, functionsPerUnit));
+        beforeCrash.close();
+
+        lastNumbers.clear();
+        orderViolations.set(0);
+        processedFunctions.set(0);
+        BackgroundUnitHandler restarted = new BackgroundUnitHandler(file, 64 * 1024, repository, resolver, processor, 4);
+        restarted.getDispatcher().awaitIdle(60, TimeUnit.SECONDS);
+        System.out.println("\nafter restart: " + restarted.getRecoveredCount() + " units recovered, " + processedFunctions.get()
+                + " functions processed, " + orderViolations.get() + " order violations");
+        System.out.println(restarted);
+        restarted.close();
+    }
+}
@@ -0,0 +1,234 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.sap.conn.jco.JCoException;
+import com.sap.conn.jco.JCoFunction;
+import com.sap.conn.jco.JCoFunctionTemplate;
+
+/**
+ * StepByStepClient.step4WorkWithTable and MultiThreadedExample.StatelessMultiStepExample issue a call,
+ * wait for it, and only then create and fill the next function. The latency of the items adds up.
+ *
+ * CallPipeline processes a sequence of items with a configurable depth. The CallPreparer creates the
+ * function for the next item from its template and fills the imports in the calling thread, while up to
+ * depth previous calls are executed by worker threads. The CallCompletion receives the results in the
+ * order of the items, also in the calling thread, so neither the preparer nor the completion have to be
+ * thread safe.
+ *
+ * With depth 1 the calls are still executed one after the other, only the preparation of the next
+ * function overlaps with the current call. This is the right choice if a call must see the effect of the
+ * previous one in the backend. With a higher depth the call latencies overlap as well. The depth is
+ * limited by the peak limit of the destination.
+ */
+public class CallPipeline<T>
+{
+    /**
+     * Creates the function for an item, e.g. from a template, and fills its imports
+     */
+    interface CallPreparer<T>
+    {
+        JCoFunction prepare(T item) throws JCoException;
+    }
+
+    /**
+     * Receives the executed functions in item order
+     */
+    interface CallCompletion<T>
+    {
+        /**
+         * @param exception exception raised by the call or null, if the function was executed successfully
+         */
+        void completed(T item, JCoFunction function, JCoException exception);
+    }
+
+    /**
+     * A call in flight
+     */
+    static class Call<T>
+    {
+        T item;
+        JCoFunction function;
+        Future<?> future;
+        JCoException exception;
+    }
+
+    private FunctionExecutor executor;
+    private int depth;
+    private ExecutorService workers;
+
+    /**
+     * Creates a pipeline
+     * @param executor destination or simulator executing the calls
+     * @param depth maximum number of calls in flight, limited by the peak limit of the destination
+     */
+    public CallPipeline(FunctionExecutor executor, int depth)
+    {
+        if(depth < 1)
+            throw new IllegalArgumentException("depth must be positive: " + depth);
+        this.executor = executor;
+        this.depth = Math.min(depth, executor.getPeakLimit());
+        this.workers = Executors.newFixedThreadPool(this.depth, ThreadSupport.createThreadFactory("Pipeline-" + executor.getName()));
+    }
+
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    /**
+     * Executes one call per item
+     * @param items items in processing order
+     * @param preparer creates the function of an item
+     * @param completion receives the results in item order
+     * @return number of processed items
+     * @throws JCoException if the preparer failed; the calls in flight are completed before
+     * @throws InterruptedException if the calling thread was interrupted while waiting for a call
+     */
+    public int run(Iterator<T> items, CallPreparer<T> preparer, CallCompletion<T> completion) throws JCoException, InterruptedException
+    {
+        Deque<Call<T>> inFlight = new ArrayDeque<Call<T>>(depth);
+        int count = 0;
+        try
+        {
+            while(items.hasNext())
+            {
+                final Call<T> call = new Call<T>();
+                call.item = items.next();
+                //prepared while the previous calls are executed
+                call.function = preparer.prepare(call.item);
+
+                while(inFlight.size() >= depth)
+                    complete(inFlight.removeFirst(), completion);
+
+                call.future = workers.submit(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            executor.execute(call.function);
+                        }
+                        catch(JCoException je)
+                        {
+                            call.exception = je;
+                        }
+                    }
+                });
+                inFlight.addLast(call);
+                count++;
+            }
+            while(!inFlight.isEmpty())
+                complete(inFlight.removeFirst(), completion);
+            return count;
+        }
+        catch(InterruptedException ie)
+        {
+            for(Call<T> call : inFlight)
+                call.future.cancel(true);
+            inFlight.clear();
+            throw ie;
+        }
+        finally
+        {
+            //the preparer or the completion failed, the calls already started are still reported
+            while(!inFlight.isEmpty())
+                complete(inFlight.removeFirst(), completion);
+        }
+    }
+
+    void complete(Call<T> call, CallCompletion<T> completion) throws InterruptedException
+    {
+        try
+        {
+            call.future.get();
+        }
+        catch(ExecutionException ee)
+        {
+            Throwable cause = ee.getCause();
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new RuntimeException(cause);
+        }
+        completion.completed(call.item, call.function, call.exception);
+    }
+
+    /**
+     * Stops the worker threads
+     */
+    public void shutdown()
+    {
+        workers.shutdown();
+    }
+
+    public static void main(String[] args) throws JCoException, InterruptedException
+    {
+        AbapBackendSimulator simulator = new AbapBackendSimulator("ABAP_AS_WITH_POOL", 5, 10, 4711L);
+        simulator.setCompanyCodeCount(200);
+        simulator.setLatency(5, 2, TimeUnit.MILLISECONDS);
+        final JCoFunctionTemplate template = simulator.getRepository().getFunctionTemplate("BAPI_COMPANYCODE_GETDETAIL");
+        String[] codes = new String[200];
+        for(int i = 0; i < codes.length; i++)
+            codes[i] = AbapBackendSimulator.companyCode(i);
+
+        CallPreparer<String> preparer = new CallPreparer<String>()
+        {
+            public JCoFunction prepare(String code)
+            {
+                JCoFunction function = template.getFunction();
+                function.getImportParameterList().setValue("COMPANYCODEID", code);
+                return function;
+            }
+        };
+        final int[] errors = new int[1];
+        CallCompletion<String> completion = new CallCompletion<String>()
+        {
+            public void completed(String code, JCoFunction function, JCoException exception)
+            {
+                if(exception != null || !code.equals(function.getExportParameterList().getStructure("COMPANYCODE_DETAIL").getString("COMP_CODE")))
+                    errors[0]++;
+            }
+        };
+
+        //call, wait, then build the next call
+        long start = System.nanoTime();
+        for(String code : codes)
+        {
+            JCoFunction function = preparer.prepare(code);
+            JCoException exception = null;
+            try
+            {
+                simulator.execute(function);
+            }
+            catch(JCoException je)
+            {
+                exception = je;
+            }
+            completion.completed(code, function, exception);
+        }
+        System.out.println("serial:  " + codes.length + " calls in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+        for(int depth : new int[] { 1, 4, 8 })
+        {
+            CallPipeline<String> pipeline = new CallPipeline<String>(simulator, depth);
+            try
+            {
+                start = System.nanoTime();
+                int count = pipeline.run(Arrays.asList(codes).iterator(), preparer, completion);
+                System.out.println("depth " + pipeline.getDepth() + ": " + count + " calls in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            }
+            finally
+            {
+                pipeline.shutdown();
+            }
+        }
+        System.out.println(errors[0] + " errors");
+    }
+}
@@ -0,0 +1,842 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sap.conn.jco.JCo;
+import com.sap.conn.jco.JCoMetaData;
+import com.sap.conn.jco.JCoRecordMetaData;
+import com.sap.conn.jco.JCoTable;
+
+/**
+ * Large JCoTable results are usually copied row by row into application objects before they are passed
+ * to an analytics pipeline, so the data is kept twice on the heap. ColumnarTableExporter walks the
+ * table once and writes each field into a column buffer allocated outside of the heap with
+ * ByteBuffer.allocateDirect:
+ * <ul>
+ *  <li>INT, INT1, INT2, DATE (yyyymmdd) and TIME (hhmmss) as 4 byte integers</li>
+ *  <li>NUM and BCD as 8 byte integers, BCD values unscaled with the decimals of the field as scale</li>
+ *  <li>FLOAT as 8 byte doubles</li>
+ *  <li>DECF16 and DECF34 exactly as 20 bytes: the unscaled value as 16 byte two's complement integer
+ *      (high and low 8 bytes) followed by the 4 byte scale of the value</li>
+ *  <li>CHAR and STRING dictionary encoded: a 4 byte code per row and a dictionary of the distinct values</li>
+ * </ul>
+ * Other types, e.g. BYTE, XSTRING or nested structures, are rejected.
+ *
+ * The dictionary is kept on the heap, so it only pays off for columns with few distinct values. Once a
+ * batch contains more distinct values than the dictionary limit, the column is converted to plain
+ * encoding and stays plain for the following batches: a CHAR column as fixed width UTF-16 with 2 bytes
+ * per character of the field length, a STRING column as 4 byte end offsets per row into a second buffer
+ * holding the UTF-8 bytes.
+ *
+ * The batches are handed to a BatchConsumer as read-only views of the column buffers, i.e. without
+ * copying. export(JCoTable, int, BatchConsumer) reuses the buffers for all batches of a table, which
+ * limits the memory outside of the heap to one batch. A batch can be written to a file with writeTo and
+ * mapped back with read. The file contains the header followed by the column buffers aligned to 8 bytes,
+ * in little endian byte order.
+ *
+ * The main function exports a locally created table, so the exporter can be measured without an
+ * ABAP system.
+ */
+public class ColumnarTableExporter
+{
+    static final int ENCODING_INT32 = 1;
+    static final int ENCODING_INT64 = 2;
+    static final int ENCODING_FLOAT64 = 3;
+    static final int ENCODING_DICTIONARY = 4;
+    static final int ENCODING_DECIMAL = 5;
+    static final int ENCODING_FIXED_CHAR = 6;
+    static final int ENCODING_VARIABLE = 7;
+
+    static final int DEFAULT_DICTIONARY_LIMIT = 4096;
+    static final long MAGIC = 0x4a434f434f4c3032L; //"JCOCOL02"
+    static final BigInteger LOW_MASK = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+    static Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * One column of a batch
+     */
+    static class Column
+    {
+        private String name;
+        private int fieldIndex;
+        private int encoding;
+        private int scale;
+        private int width;
+        private int length;
+        private int capacity;
+        private ByteBuffer data;
+        private ByteBuffer bytes;
+        private Map<String, Integer> codes;
+        private List<String> dictionary;
+
+        /**
+         * @param length characters of a CHAR column, used after the change to plain encoding
+         */
+        Column(String name, int fieldIndex, int encoding, int scale, int length)
+        {
+            this.name = name;
+            this.fieldIndex = fieldIndex;
+            this.encoding = encoding;
+            this.scale = scale;
+            this.length = length;
+            this.width = getWidth(encoding, length);
+            if(encoding == ENCODING_DICTIONARY)
+            {
+                codes = new HashMap<String, Integer>();
+                dictionary = new ArrayList<String>();
+            }
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * returns one of the ENCODING constants
+         */
+        public int getEncoding()
+        {
+            return encoding;
+        }
+
+        /**
+         * returns the number of decimals of unscaled BCD values
+         */
+        public int getScale()
+        {
+            return scale;
+        }
+
+        /**
+         * returns the number of bytes per row in the column data
+         */
+        public int getWidth()
+        {
+            return width;
+        }
+
+        /**
+         * returns a read-only view of the column data from position 0 to the number of rows
+         */
+        public ByteBuffer getData()
+        {
+            ByteBuffer view = data.asReadOnlyBuffer();
+            view.order(ByteOrder.LITTLE_ENDIAN);
+            return view;
+        }
+
+        /**
+         * returns a read-only view of the UTF-8 bytes of a column with ENCODING_VARIABLE or null
+         */
+        public ByteBuffer getBytes()
+        {
+            return bytes != null ? bytes.asReadOnlyBuffer() : null;
+        }
+
+        /**
+         * returns a copy of the distinct values of a dictionary encoded column, indexed by their code, or null
+         * if the column is not dictionary encoded
+         */
+        public List<String> getDictionary()
+        {
+            return dictionary != null ? Collections.unmodifiableList(new ArrayList<String>(dictionary)) : null;
+        }
+
+        static int getWidth(int encoding, int length)
+        {
+            switch(encoding)
+            {
+                case ENCODING_INT32:
+                case ENCODING_DICTIONARY:
+                case ENCODING_VARIABLE:
+                    return 4;
+                case ENCODING_DECIMAL:
+                    return 20;
+                case ENCODING_FIXED_CHAR:
+                    return 2 * length;
+                default:
+                    return 8;
+            }
+        }
+
+        void allocate(int rows)
+        {
+            capacity = rows;
+            data = ByteBuffer.allocateDirect(rows * width).order(ByteOrder.LITTLE_ENDIAN);
+            if(encoding == ENCODING_VARIABLE)
+                bytes = ByteBuffer.allocateDirect(Math.max(4096, rows * 16));
+        }
+
+        void clear()
+        {
+            data.clear();
+            if(bytes != null)
+                bytes.clear();
+            if(dictionary != null)
+            {
+                codes.clear();
+                dictionary.clear();
+            }
+        }
+
+        /**
+         * returns the code of the value, -1 if the value is new and the dictionary is full
+         */
+        int encode(String value, int limit)
+        {
+            Integer code = codes.get(value);
+            if(code == null)
+            {
+                if(dictionary.size() >= limit)
+                    return -1;
+                code = Integer.valueOf(dictionary.size());
+                codes.put(value, code);
+                dictionary.add(value);
+            }
+            return code.intValue();
+        }
+
+        /**
+         * Converts the rows written so far from dictionary to plain encoding and drops the dictionary
+         */
+        void changeToPlainEncoding(int rows)
+        {
+            ByteBuffer coded = data;
+            List<String> values = dictionary;
+            encoding = length > 0 ? ENCODING_FIXED_CHAR : ENCODING_VARIABLE;
+            width = getWidth(encoding, length);
+            codes = null;
+            dictionary = null;
+            allocate(capacity);
+            for(int row = 0; row < rows; row++)
+                putPlain(values.get(coded.getInt(row * 4)));
+        }
+
+        void putPlain(String value)
+        {
+            if(encoding == ENCODING_FIXED_CHAR)
+            {
+                int chars = Math.min(value.length(), length);
+                for(int i = 0; i < chars; i++)
+                    data.putChar(value.charAt(i));
+                for(int i = chars; i < length; i++)
+                    data.putChar((char)0);
+            }
+            else
+            {
+                byte[] encoded = value.getBytes(UTF8);
+                if(bytes.remaining() < encoded.length)
+                {
+                    ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(bytes.capacity() * 2, bytes.position() + encoded.length));
+                    bytes.flip();
+                    larger.put(bytes);
+                    bytes = larger;
+                }
+                bytes.put(encoded);
+                data.putInt(bytes.position());
+            }
+        }
+
+        void putDecimal(BigDecimal value)
+        {
+            BigInteger unscaled = value.unscaledValue();
+            if(unscaled.bitLength() > 127)
+                throw new IllegalArgumentException("Value " + value + " of " + name + " exceeds 38 digits");
+            data.putLong(unscaled.shiftRight(64).longValue());
+            data.putLong(unscaled.longValue());
+            data.putInt(value.scale());
+        }
+
+        public int getInt(int row)
+        {
+            return data.getInt(row * 4);
+        }
+
+        public long getLong(int row)
+        {
+            return data.getLong(row * 8);
+        }
+
+        public double getDouble(int row)
+        {
+            return data.getDouble(row * 8);
+        }
+
+        /**
+         * returns the value of a CHAR or STRING column
+         */
+        public String getString(int row)
+        {
+            switch(encoding)
+            {
+                case ENCODING_DICTIONARY:
+                    return dictionary.get(data.getInt(row * 4));
+                case ENCODING_FIXED_CHAR:
+                    char[] chars = new char[length];
+                    int count = 0;
+                    for(int position = row * width; count < length; position += 2)
+                    {
+                        char c = data.getChar(position);
+                        if(c == 0)
+                            break;
+                        chars[count++] = c;
+                    }
+                    return new String(chars, 0, count);
+                case ENCODING_VARIABLE:
+                    int start = row > 0 ? data.getInt((row - 1) * 4) : 0;
+                    byte[] encoded = new byte[data.getInt(row * 4) - start];
+                    ByteBuffer view = bytes.duplicate();
+                    view.position(start);
+                    view.get(encoded);
+                    return new String(encoded, UTF8);
+                default:
+                    throw new IllegalStateException("Column " + name + " does not contain strings");
+            }
+        }
+
+        /**
+         * returns the value of a BCD, DECF16 or DECF34 column
+         */
+        public BigDecimal getBigDecimal(int row)
+        {
+            if(encoding != ENCODING_DECIMAL)
+                return BigDecimal.valueOf(getLong(row), scale);
+            int position = row * width;
+            BigInteger unscaled = BigInteger.valueOf(data.getLong(position)).shiftLeft(64)
+                    .or(BigInteger.valueOf(data.getLong(position + 8)).and(LOW_MASK));
+            return new BigDecimal(unscaled, data.getInt(position + 16));
+        }
+    }
+
+    /**
+     * Rows of a table in columnar form
+     */
+    static class ColumnarBatch
+    {
+        private int firstRow;
+        private int rowCount;
+        private List<Column> columns;
+
+        ColumnarBatch(List<Column> columns)
+        {
+            this.columns = columns;
+        }
+
+        /**
+         * returns the index of the first table row contained in this batch
+         */
+        public int getFirstRow()
+        {
+            return firstRow;
+        }
+
+        public int getRowCount()
+        {
+            return rowCount;
+        }
+
+        public List<Column> getColumns()
+        {
+            return columns;
+        }
+
+        public Column getColumn(String name)
+        {
+            for(Column column : columns)
+            {
+                if(column.name.equals(name))
+                    return column;
+            }
+            throw new IllegalArgumentException("Column " + name + " does not exist");
+        }
+
+        /**
+         * returns the number of bytes stored outside of the heap
+         */
+        public long getDataSize()
+        {
+            long size = 0;
+            for(Column column : columns)
+            {
+                size += column.data.limit();
+                if(column.bytes != null)
+                    size += column.bytes.limit();
+            }
+            return size;
+        }
+
+        /**
+         * Writes the batch to a file
+         */
+        public void writeTo(File file) throws IOException
+        {
+            ByteBuffer header = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+            header = putLong(header, MAGIC);
+            header = putInt(header, rowCount);
+            header = putInt(header, columns.size());
+            for(Column column : columns)
+            {
+                header = putString(header, column.name);
+                header = putInt(header, column.encoding);
+                header = putInt(header, column.scale);
+                header = putInt(header, column.length);
+                header = putInt(header, column.dictionary != null ? column.dictionary.size() : 0);
+                if(column.dictionary != null)
+                {
+                    for(String value : column.dictionary)
+                        header = putString(header, value);
+                }
+            }
+            while(header.position() % 8 != 0)
+                header.put((byte)0);
+            header.flip();
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try
+            {
+                raf.setLength(0);
+                FileChannel channel = raf.getChannel();
+                List<ByteBuffer> list = new ArrayList<ByteBuffer>();
+                list.add(header);
+                for(Column column : columns)
+                {
+                    addAligned(list, column.data.duplicate());
+                    if(column.bytes != null)
+                        addAligned(list, column.bytes.duplicate());
+                }
+                ByteBuffer[] buffers = list.toArray(new ByteBuffer[list.size()]);
+                long remaining = 0;
+                for(ByteBuffer buffer : buffers)
+                    remaining += buffer.remaining();
+                while(remaining > 0)
+                    remaining -= channel.write(buffers);
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+
+        static void addAligned(List<ByteBuffer> buffers, ByteBuffer data)
+        {
+            buffers.add(data);
+            buffers.add(ByteBuffer.allocate((8 - data.remaining() % 8) % 8));
+        }
+
+        static ByteBuffer ensure(ByteBuffer buffer, int bytes)
+        {
+            if(buffer.remaining() >= bytes)
+                return buffer;
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes)).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.flip();
+            larger.put(buffer);
+            return larger;
+        }
+
+        static ByteBuffer putInt(ByteBuffer buffer, int value)
+        {
+            return ensure(buffer, 4).putInt(value);
+        }
+
+        static ByteBuffer putLong(ByteBuffer buffer, long value)
+        {
+            return ensure(buffer, 8).putLong(value);
+        }
+
+        static ByteBuffer putString(ByteBuffer buffer, String value)
+        {
+            byte[] bytes = value.getBytes(UTF8);
+            return ensure(buffer, 4 + bytes.length).putInt(bytes.length).put(bytes);
+        }
+
+        static String getString(ByteBuffer buffer)
+        {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, UTF8);
+        }
+
+        /**
+         * returns the next buffer of the given size, aligned to 8 bytes
+         */
+        static ByteBuffer slice(ByteBuffer mapped, int size)
+        {
+            mapped.position((mapped.position() + 7) & ~7);
+            ByteBuffer data = mapped.slice();
+            data.limit(size);
+            mapped.position(mapped.position() + size);
+            return data;
+        }
+
+        /**
+         * Maps a file written by writeTo. The column data is not copied into the heap.
+         */
+        public static ColumnarBatch read(File file) throws IOException
+        {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try
+            {
+                ByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()).order(ByteOrder.LITTLE_ENDIAN);
+                if(mapped.getLong() != MAGIC)
+                    throw new IOException(file + " is not a columnar table file");
+                int rowCount = mapped.getInt();
+                int columnCount = mapped.getInt();
+                List<Column> columns = new ArrayList<Column>(columnCount);
+                for(int i = 0; i < columnCount; i++)
+                {
+                    Column column = new Column(getString(mapped), -1, mapped.getInt(), mapped.getInt(), mapped.getInt());
+                    int dictionarySize = mapped.getInt();
+                    for(int j = 0; j < dictionarySize; j++)
+                        column.encode(getString(mapped), Integer.MAX_VALUE);
+                    columns.add(column);
+                }
+                for(Column column : columns)
+                {
+                    column.data = slice(mapped, rowCount * column.width).order(ByteOrder.LITTLE_ENDIAN);
+                    if(column.encoding == ENCODING_VARIABLE)
+                        column.bytes = slice(mapped, rowCount > 0 ? column.data.getInt((rowCount - 1) * 4) : 0);
+                }
+                ColumnarBatch batch = new ColumnarBatch(columns);
+                batch.rowCount = rowCount;
+                return batch;
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Receives the batches of a table
+     */
+    interface BatchConsumer
+    {
+        /**
+         * The column buffers are reused for the next batch after this method returned
+         */
+        void accept(ColumnarBatch batch) throws IOException;
+    }
+
+    private JCoRecordMetaData metaData;
+    private String[] fieldNames;
+    private int dictionaryLimit = DEFAULT_DICTIONARY_LIMIT;
+
+    /**
+     * Creates an exporter for all fields of the line type
+     * @throws IllegalArgumentException if a field has an unsupported type
+     */
+    public ColumnarTableExporter(JCoRecordMetaData metaData)
+    {
+        this(metaData, getFieldNames(metaData));
+    }
+
+    /**
+     * Creates an exporter for the given fields
+     * @throws IllegalArgumentException if a field does not exist or has an unsupported type
+     */
+    public ColumnarTableExporter(JCoRecordMetaData metaData, String[] fieldNames)
+    {
+        this.metaData = metaData;
+        this.fieldNames = fieldNames.clone();
+        createColumns();
+    }
+
+    /**
+     * Sets the maximum number of distinct values of a dictionary encoded column in a batch. A column with
+     * more values is changed to plain encoding.
+     */
+    public void setDictionaryLimit(int dictionaryLimit)
+    {
+        if(dictionaryLimit < 0)
+            throw new IllegalArgumentException("dictionary limit must not be negative: " + dictionaryLimit);
+        this.dictionaryLimit = dictionaryLimit;
+    }
+
+    static String[] getFieldNames(JCoRecordMetaData metaData)
+    {
+        String[] names = new String[metaData.getFieldCount()];
+        for(int i = 0; i < names.length; i++)
+            names[i] = metaData.getName(i);
+        return names;
+    }
+
+    List<Column> createColumns()
+    {
+        List<Column> columns = new ArrayList<Column>(fieldNames.length);
+        for(String fieldName : fieldNames)
+        {
+            int index = metaData.indexOf(fieldName);
+            if(index < 0)
+                throw new IllegalArgumentException("Field " + fieldName + " does not exist in " + metaData.getName());
+            int encoding;
+            int scale = 0;
+            int length = 0;
+            switch(metaData.getType(index))
+            {
+                case JCoMetaData.TYPE_INT:
+                case JCoMetaData.TYPE_INT1:
+                case JCoMetaData.TYPE_INT2:
+                case JCoMetaData.TYPE_DATE:
+                case JCoMetaData.TYPE_TIME:
+                    encoding = ENCODING_INT32;
+                    break;
+                case JCoMetaData.TYPE_NUM:
+                    if(metaData.getLength(index) > 18)
+                        throw new IllegalArgumentException("NUM field " + fieldName + " exceeds 18 digits");
+                    encoding = ENCODING_INT64;
+                    break;
+                case JCoMetaData.TYPE_BCD:
+                    if(metaData.getLength(index) * 2 - 1 > 18)
+                        throw new IllegalArgumentException("BCD field " + fieldName + " exceeds 18 digits");
+                    encoding = ENCODING_INT64;
+                    scale = metaData.getDecimals(index);
+                    break;
+                case JCoMetaData.TYPE_FLOAT:
+                    encoding = ENCODING_FLOAT64;
+                    break;
+                case JCoMetaData.TYPE_DECF16:
+                case JCoMetaData.TYPE_DECF34:
+                    encoding = ENCODING_DECIMAL;
+                    break;
+                case JCoMetaData.TYPE_CHAR:
+                    encoding = ENCODING_DICTIONARY;
+                    length = metaData.getLength(index);
+                    break;
+                case JCoMetaData.TYPE_STRING:
+                    encoding = ENCODING_DICTIONARY;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Field " + fieldName + " of type " + metaData.getTypeAsString(index)
+                            + " is not supported");
+            }
+            columns.add(new Column(fieldName, index, encoding, scale, length));
+        }
+        return columns;
+    }
+
+    /**
+     * Exports all rows of the table into one batch
+     * @param table table to be exported; the row cursor is moved by this method
+     * @return the batch, whose buffers are owned by the caller
+     */
+    public ColumnarBatch export(JCoTable table)
+    {
+        ColumnarBatch batch = allocate(Math.max(1, table.getNumRows()));
+        fill(batch, table, 0, table.getNumRows());
+        return batch;
+    }
+
+    /**
+     * Exports the table in batches, which share the same column buffers
+     * @param table table to be exported; the row cursor is moved by this method
+     * @param batchRows maximum number of rows per batch
+     * @param consumer receives the batches in row order
+     */
+    public void export(JCoTable table, int batchRows, BatchConsumer consumer) throws IOException
+    {
+        int rows = table.getNumRows();
+        ColumnarBatch batch = allocate(Math.max(1, Math.min(batchRows, rows)));
+        for(int first = 0; first < rows; first += batchRows)
+        {
+            fill(batch, table, first, Math.min(batchRows, rows - first));
+            consumer.accept(batch);
+        }
+    }
+
+    ColumnarBatch allocate(int rows)
+    {
+        List<Column> columns = createColumns();
+        for(Column column : columns)
+            column.allocate(rows);
+        return new ColumnarBatch(columns);
+    }
+
+    void fill(ColumnarBatch batch, JCoTable table, int firstRow, int rowCount)
+    {
+        JCoRecordMetaData tableMetaData = table.getRecordMetaData();
+        if(tableMetaData.getFieldCount() != metaData.getFieldCount() || !tableMetaData.getName().equals(metaData.getName()))
+            throw new IllegalArgumentException("Table " + tableMetaData.getName() + " does not match " + metaData.getName());
+
+        List<Column> columns = batch.columns;
+        for(Column column : columns)
+            column.clear();
+
+        for(int row = firstRow; row < firstRow + rowCount; row++)
+        {
+            table.setRow(row);
+            for(int i = 0; i < columns.size(); i++)
+            {
+                Column column = columns.get(i);
+                int index = column.fieldIndex;
+                switch(column.encoding)
+                {
+                    case ENCODING_INT32:
+                        int type = metaData.getType(index);
+                        if(type == JCoMetaData.TYPE_DATE || type == JCoMetaData.TYPE_TIME)
+                            column.data.putInt(digits(table.getString(index)));
+                        else
+                            column.data.putInt(table.getInt(index));
+                        break;
+                    case ENCODING_INT64:
+                        if(column.scale > 0)
+                            column.data.putLong(table.getBigDecimal(index).movePointRight(column.scale).longValue());
+                        else
+                            column.data.putLong(table.getLong(index));
+                        break;
+                    case ENCODING_FLOAT64:
+                        column.data.putDouble(table.getDouble(index));
+                        break;
+                    case ENCODING_DECIMAL:
+                        column.putDecimal(table.getBigDecimal(index));
+                        break;
+                    case ENCODING_DICTIONARY:
+                        String value = table.getString(index);
+                        int code = column.encode(value, dictionaryLimit);
+                        if(code >= 0)
+                        {
+                            column.data.putInt(code);
+                            break;
+                        }
+                        column.changeToPlainEncoding(row - firstRow);
+                        column.putPlain(value);
+                        break;
+                    default:
+                        column.putPlain(table.getString(index));
+                }
+            }
+        }
+
+        for(Column column : columns)
+        {
+            column.data.flip();
+            if(column.bytes != null)
+                column.bytes.flip();
+        }
+        batch.firstRow = firstRow;
+        batch.rowCount = rowCount;
+    }
+
+    /**
+     * converts the digits of "2016-12-06" or "23:59:59" into 20161206 or 235959
+     */
+    static int digits(String value)
+    {
+        int result = 0;
+        for(int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if(c >= '0' && c <= '9')
+                result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        JCoRecordMetaData metaData = new AbapBackendSimulator.RecordBuilder("ZCOLUMNAR_ROW")
+            .addChar("COMP_CODE", 4)
+            .addChar("CURRENCY", 5)
+            .add("POSTING_DATE", JCoMetaData.TYPE_DATE, 0, 0)
+            .add("QUANTITY", JCoMetaData.TYPE_INT, 0, 0)
+            .add("AMOUNT", JCoMetaData.TYPE_BCD, 8, 2)
+            .add("RATE", JCoMetaData.TYPE_FLOAT, 0, 0)
+            .add("PRICE", JCoMetaData.TYPE_DECF34, 0, 0)
+            .addChar("DOC_ID", 12)
+            .add("NOTE", JCoMetaData.TYPE_STRING, 0, 0)
+            .lock();
+        String[] currencies = { "EUR", "USD", "JPY", "GBP", "CHF" };
+        JCoTable table = JCo.createTable(metaData);
+        table.appendRows(rows);
+        for(int i = 0; i < rows; i++)
+        {
+            table.setRow(i);
+            table.setValue(0, AbapBackendSimulator.companyCode(i % 50));
+            table.setValue(1, currencies[i % currencies.length]);
+            table.setValue(2, "201612" + (10 + i % 20));
+            table.setValue(3, i);
+            table.setValue(4, new BigDecimal(i).movePointLeft(2));
+            table.setValue(5, 1.0 + i % 7 / 10.0);
+            //34 significant digits, which a double would round to about 16
+            table.setValue(6, new BigDecimal("1234567890123456789012345678.901234").add(BigDecimal.valueOf(i)));
+            table.setValue(7, "DOC" + (1000000000L + i));
+            table.setValue(8, "note " + i);
+        }
+
+        ColumnarTableExporter exporter = new ColumnarTableExporter(metaData);
+        for(int round = 0; round < 3; round++)
+        {
+            long allocated = ThreadSupport.getAllocatedBytes();
+            long start = System.nanoTime();
+            ColumnarBatch batch = exporter.export(table);
+            System.out.println("single batch: " + (System.nanoTime() - start) / 1000000 + " ms, " + batch.getDataSize() / rows
+                    + " bytes/row off-heap, " + (ThreadSupport.getAllocatedBytes() - allocated) / rows + " bytes/row allocated on the heap");
+            if(round == 0)
+            {
+                for(Column column : batch.getColumns())
+                {
+                    List<String> dictionary = column.getDictionary();
+                    System.out.println("  " + column.getName() + ": encoding " + column.getEncoding() + ", " + column.getWidth()
+                            + " bytes/row" + (dictionary != null ? ", " + dictionary.size() + " dictionary values" : ""));
+                }
+            }
+        }
+
+        final long[] amountSum = new long[1];
+        long start = System.nanoTime();
+        exporter.export(table, 65536, new BatchConsumer()
+        {
+            public void accept(ColumnarBatch batch)
+            {
+                Column amount = batch.getColumn("AMOUNT");
+                for(int i = 0; i < batch.getRowCount(); i++)
+                    amountSum[0] += amount.getLong(i);
+            }
+        });
+        System.out.println("batches of 65536 rows: " + (System.nanoTime() - start) / 1000000 + " ms, sum of AMOUNT "
+                + BigDecimal.valueOf(amountSum[0], 2));
+
+        File file = File.createTempFile("columnar", ".jcol");
+        file.deleteOnExit();
+        ColumnarBatch batch = exporter.export(table);
+        start = System.nanoTime();
+        batch.writeTo(file);
+        System.out.println("written " + file.length() + " bytes in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+        ColumnarBatch mapped = ColumnarBatch.read(file);
+        int mismatches = 0;
+        for(int i = 0; i < rows; i++)
+        {
+            table.setRow(i);
+            if(table.getBigDecimal("PRICE").compareTo(mapped.getColumn("PRICE").getBigDecimal(i)) != 0
+                    || !table.getString("DOC_ID").equals(mapped.getColumn("DOC_ID").getString(i))
+                    || !table.getString("NOTE").equals(mapped.getColumn("NOTE").getString(i)))
+                mismatches++;
+        }
+        System.out.println("PRICE, DOC_ID and NOTE from file compared with the table: " + mismatches + " mismatches");
+        int row = rows - 1;
+        table.setRow(row);
+        System.out.println("last row from file: " + mapped.getColumn("COMP_CODE").getString(row) + " "
+                + mapped.getColumn("CURRENCY").getString(row) + " " + mapped.getColumn("POSTING_DATE").getInt(row) + " "
+                + mapped.getColumn("QUANTITY").getInt(row) + " " + mapped.getColumn("AMOUNT").getBigDecimal(row) + " "
+                + mapped.getColumn("RATE").getDouble(row) + " " + mapped.getColumn("PRICE").getBigDecimal(row) + " "
+                + mapped.getColumn("DOC_ID").getString(row) + " " + mapped.getColumn("NOTE").getString(row));
+        System.out.println("last row from table: " + table.getString("COMP_CODE") + " " + table.getString("CURRENCY") + " "
+                + table.getString("POSTING_DATE") + " " + table.getInt("QUANTITY") + " " + table.getBigDecimal("AMOUNT") + " "
+                + table.getDouble("RATE") + " " + table.getBigDecimal("PRICE") + " " + table.getString("DOC_ID") + " "
+                + table.getString("NOTE"));
+    }
+}
@@ -0,0 +1,360 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sap.conn.jco.JCoDestination;
+import com.sap.conn.jco.JCoException;
+import com.sap.conn.jco.JCoFunction;
+import com.sap.conn.jco.JCoFunctionTemplate;
+
+/**
+ * If one ABAP system answers slowly, the threads of a service calling several destinations pile up in
+ * JCoFunction.execute for this system, until no thread is left for the calls to the other systems.
+ *
+ * DestinationBulkhead isolates the destinations from each other. Each destination gets a Compartment
+ * with a limit of calls in flight, a bounded number of waiting calls and a maximum wait time:
+ * <ul>
+ * <li>a call below the limit is executed immediately</li>
+ * <li>otherwise it waits for a free slot, at most the maximum wait time</li>
+ * <li>if the queue of waiting calls is full, it fails at once</li>
+ * </ul>
+ * A rejected call fails with a JCoException of group JCO_ERROR_RESOURCE, as if the pool were exhausted,
+ * so the caller handles both cases alike. The compartments count the executed and rejected calls, record
+ * the wait times and report the current queue depth.
+ *
+ * The compartments are kept in a ConcurrentHashMap by destination name and created on first use. A
+ * compartment only holds the permits and counters; each call is executed with the executor or
+ * destination passed to it, so a destination recreated under the same name, e.g. after its properties
+ * changed, is used at once. A call only touches the semaphore and counters of its own compartment, so
+ * there is no lock shared between destinations.
+ */
+public class DestinationBulkhead
+{
+    /**
+     * Limits the calls of one destination
+     */
+    static class Compartment
+    {
+        private String name;
+        private int maxConcurrent;
+        private int maxQueued;
+        private long maxWaitNanos;
+        private Semaphore permits;
+        private AtomicInteger queued = new AtomicInteger();
+        private AtomicInteger maxQueueDepth = new AtomicInteger();
+        private AtomicLong executed = new AtomicLong();
+        private AtomicLong rejectedQueueFull = new AtomicLong();
+        private AtomicLong rejectedTimeout = new AtomicLong();
+        private LatencyHistogram waitTimes = new LatencyHistogram();
+
+        /**
+         * @param name destination name
+         * @param peakLimit peak limit of the destination, further limiting maxConcurrent
+         */
+        Compartment(String name, int peakLimit, int maxConcurrent, int maxQueued, long maxWait, TimeUnit unit)
+        {
+            if(maxConcurrent < 1 || maxQueued < 0 || maxWait < 0)
+                throw new IllegalArgumentException("invalid limits for " + name + ": " + maxConcurrent + " concurrent, "
+                        + maxQueued + " queued, " + maxWait + " wait time");
+            this.name = name;
+            this.maxConcurrent = Math.min(maxConcurrent, peakLimit);
+            this.maxQueued = maxQueued;
+            this.maxWaitNanos = unit.toNanos(maxWait);
+            this.permits = new Semaphore(this.maxConcurrent, true);
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * returns the maximum number of calls in flight
+         */
+        public int getMaxConcurrent()
+        {
+            return maxConcurrent;
+        }
+
+        /**
+         * Executes the function with the executor, if a slot becomes free within the maximum wait time
+         * @param executor executor of the destination of this compartment
+         * @throws JCoException with group JCO_ERROR_RESOURCE if the call was rejected
+         */
+        public void execute(FunctionExecutor executor, JCoFunction function) throws JCoException
+        {
+            acquire();
+            try
+            {
+                executor.execute(function);
+            }
+            finally
+            {
+                permits.release();
+                executed.incrementAndGet();
+            }
+        }
+
+        void acquire() throws JCoException
+        {
+            if(permits.tryAcquire())
+            {
+                waitTimes.record(0, TimeUnit.NANOSECONDS);
+                return;
+            }
+
+            int depth = queued.incrementAndGet();
+            try
+            {
+                if(depth > maxQueued)
+                {
+                    rejectedQueueFull.incrementAndGet();
+                    throw new JCoException(JCoException.JCO_ERROR_RESOURCE, "Bulkhead of " + name + " is full, "
+                            + maxConcurrent + " calls are running and " + maxQueued + " waiting");
+                }
+                int max = maxQueueDepth.get();
+                while(depth > max && !maxQueueDepth.compareAndSet(max, depth))
+                    max = maxQueueDepth.get();
+
+                long start = System.nanoTime();
+                if(!permits.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS))
+                {
+                    rejectedTimeout.incrementAndGet();
+                    throw new JCoException(JCoException.JCO_ERROR_RESOURCE, "No call of " + name + " completed within "
+                            + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos) + " ms, " + maxConcurrent + " calls are running");
+                }
+                waitTimes.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+            catch(InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                throw new JCoException(JCoException.JCO_ERROR_CANCELLED, "Interrupted while waiting in the bulkhead of " + name);
+            }
+            finally
+            {
+                queued.decrementAndGet();
+            }
+        }
+
+        /**
+         * returns the number of calls currently executed
+         */
+        public int getInFlightCount()
+        {
+            return maxConcurrent - permits.availablePermits();
+        }
+
+        /**
+         * returns the number of calls currently waiting for a slot
+         */
+        public int getQueueDepth()
+        {
+            return Math.min(queued.get(), maxQueued);
+        }
+
+        public int getMaxQueueDepth()
+        {
+            return maxQueueDepth.get();
+        }
+
+        public long getExecutedCount()
+        {
+            return executed.get();
+        }
+
+        /**
+         * returns the number of calls rejected at once, because the queue was full
+         */
+        public long getRejectedQueueFullCount()
+        {
+            return rejectedQueueFull.get();
+        }
+
+        /**
+         * returns the number of calls rejected after waiting the maximum wait time
+         */
+        public long getRejectedTimeoutCount()
+        {
+            return rejectedTimeout.get();
+        }
+
+        /**
+         * returns the time the executed calls waited for a slot
+         */
+        public LatencyHistogram getWaitTimes()
+        {
+            return waitTimes;
+        }
+
+        public String toString()
+        {
+            return name + ": " + getInFlightCount() + "/" + maxConcurrent + " in flight, " + getQueueDepth() + "/" + maxQueued
+                    + " queued (max " + maxQueueDepth.get() + "), " + executed.get() + " executed, " + rejectedQueueFull.get()
+                    + " rejected (queue full), " + rejectedTimeout.get() + " rejected (timeout), wait " + waitTimes;
+        }
+    }
+
+    /**
+     * Limits used for a destination
+     */
+    static class Limits
+    {
+        final int maxConcurrent;
+        final int maxQueued;
+        final long maxWait;
+        final TimeUnit unit;
+
+        Limits(int maxConcurrent, int maxQueued, long maxWait, TimeUnit unit)
+        {
+            this.maxConcurrent = maxConcurrent;
+            this.maxQueued = maxQueued;
+            this.maxWait = maxWait;
+            this.unit = unit;
+        }
+    }
+
+    private Limits defaultLimits;
+    private ConcurrentMap<String, Limits> limits = new ConcurrentHashMap<String, Limits>();
+    private ConcurrentMap<String, Compartment> compartments = new ConcurrentHashMap<String, Compartment>();
+
+    /**
+     * Creates a bulkhead
+     * @param maxConcurrent default maximum of calls in flight per destination, limited by its peak limit
+     * @param maxQueued default maximum of calls waiting per destination
+     * @param maxWait default maximum wait time of a call
+     * @param unit time unit of maxWait
+     */
+    public DestinationBulkhead(int maxConcurrent, int maxQueued, long maxWait, TimeUnit unit)
+    {
+        this.defaultLimits = new Limits(maxConcurrent, maxQueued, maxWait, unit);
+    }
+
+    /**
+     * Sets the limits of a destination. They are used when its compartment is created,
+     * so they must be set before the first call.
+     */
+    public void setLimits(String destinationName, int maxConcurrent, int maxQueued, long maxWait, TimeUnit unit)
+    {
+        limits.put(destinationName, new Limits(maxConcurrent, maxQueued, maxWait, unit));
+    }
+
+    /**
+     * Returns the compartment of the executor's destination, created on first use
+     */
+    public Compartment getCompartment(FunctionExecutor executor)
+    {
+        String name = executor.getName();
+        Compartment compartment = compartments.get(name);
+        if(compartment != null)
+            return compartment;
+
+        Limits l = limits.get(name);
+        if(l == null)
+            l = defaultLimits;
+        compartment = new Compartment(name, executor.getPeakLimit(), l.maxConcurrent, l.maxQueued, l.maxWait, l.unit);
+        Compartment existing = compartments.putIfAbsent(name, compartment);
+        return existing != null ? existing : compartment;
+    }
+
+    /**
+     * Executes the function with the executor in the compartment of its destination
+     */
+    public void execute(FunctionExecutor executor, JCoFunction function) throws JCoException
+    {
+        getCompartment(executor).execute(executor, function);
+    }
+
+    /**
+     * Executes the function in the destination, limited by the compartment of the destination
+     */
+    public void execute(JCoDestination destination, JCoFunction function) throws JCoException
+    {
+        execute(new FunctionExecutor.DestinationExecutor(destination), function);
+    }
+
+    /**
+     * returns the compartments created so far
+     */
+    public List<Compartment> getCompartments()
+    {
+        return new ArrayList<Compartment>(compartments.values());
+    }
+
+    /**
+     * Calls the slow and the fast system alternately from a fixed pool of service threads
+     */
+    static void runService(final AbapBackendSimulator slow, final AbapBackendSimulator fast, final DestinationBulkhead bulkhead)
+            throws Exception
+    {
+        final JCoFunctionTemplate slowTemplate = slow.getRepository().getFunctionTemplate("STFC_CONNECTION");
+        final JCoFunctionTemplate fastTemplate = fast.getRepository().getFunctionTemplate("STFC_CONNECTION");
+        final AtomicInteger fastCalls = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+        final LatencyHistogram fastLatency = new LatencyHistogram();
+        ExecutorService service = Executors.newFixedThreadPool(16, ThreadSupport.createThreadFactory("Service"));
+        List<Future<?>> requests = new ArrayList<Future<?>>();
+
+        long start = System.nanoTime();
+        for(int i = 0; i < 1000; i++)
+        {
+            final boolean toSlow = i % 2 == 0;
+            final long submitted = System.nanoTime();
+            requests.add(service.submit(new Runnable()
+            {
+                public void run()
+                {
+                    FunctionExecutor executor = toSlow ? slow : fast;
+                    JCoFunction function = (toSlow ? slowTemplate : fastTemplate).getFunction();
+                    function.getImportParameterList().setValue("REQUTEXT", "Hello SAP");
+                    try
+                    {
+                        if(bulkhead == null)
+                            executor.execute(function);
+                        else
+                            bulkhead.execute(executor, function);
+                        if(!toSlow)
+                        {
+                            fastCalls.incrementAndGet();
+                            fastLatency.record(System.nanoTime() - submitted, TimeUnit.NANOSECONDS);
+                        }
+                    }
+                    catch(JCoException je)
+                    {
+                        rejected.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for(Future<?> request : requests)
+            request.get();
+        service.shutdown();
+        System.out.println((bulkhead == null ? "without bulkhead: " : "with bulkhead:    ") + "1000 requests in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, " + rejected + " rejected, fast system response time "
+                + fastLatency + ", " + fastCalls + " fast calls");
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        //the slow system answers in 200 ms, the fast system in 5 ms
+        AbapBackendSimulator slow = new AbapBackendSimulator("ABAP_AS_WITH_POOL", 5, 16, 4711L);
+        slow.setLatency(200, 0, TimeUnit.MILLISECONDS);
+        AbapBackendSimulator fast = new AbapBackendSimulator("ABAP_MS_WITH_POOL", 5, 16, 4712L);
+        fast.setLatency(5, 0, TimeUnit.MILLISECONDS);
+
+        runService(slow, fast, null);
+
+        DestinationBulkhead bulkhead = new DestinationBulkhead(8, 16, 100, TimeUnit.MILLISECONDS);
+        bulkhead.setLimits(slow.getName(), 4, 4, 50, TimeUnit.MILLISECONDS);
+        runService(slow, fast, bulkhead);
+        for(Compartment compartment : bulkhead.getCompartments())
+            System.out.println(compartment);
+    }
+}
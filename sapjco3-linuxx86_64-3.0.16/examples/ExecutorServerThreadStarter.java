@@ -0,0 +1,316 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sap.conn.jco.JCoException;
+import com.sap.conn.jco.server.DefaultServerHandlerFactory;
+import com.sap.conn.jco.server.JCoServer;
+import com.sap.conn.jco.server.JCoServerContext;
+import com.sap.conn.jco.server.JCoServerFactory;
+import com.sap.conn.jco.server.JCoServerRunnable;
+import com.sap.conn.jco.server.JCoServerThreadStarter;
+
+/**
+ * StepByStepServer and StatefulServerExample run on the server threads JCo creates itself. JCo calls
+ * JCoServerThreadStarter.start once per long-lived server thread, e.g. for each of the connection_count
+ * connections listening at the gateway, not once per request. A runnable therefore occupies its thread
+ * until the connection is closed, and a started thread serves all requests of its connection.
+ *
+ * ExecutorServerThreadStarter is a JCoServerThreadStarter, installed with JCoServer.setServerThreadStarter,
+ * which runs the JCoServerRunnables on daemon threads of an ExecutorService, names them and counts the
+ * started, active, completed, failed and rejected runnables. createFixed limits the server to a number of
+ * threads: it must be at least the number of server threads JCo starts, i.e. connection_count or
+ * worker_thread_count if that is configured larger. A start beyond the limit is rejected with an
+ * IllegalStateException instead of being queued, because a queued runnable would only begin after
+ * another connection is closed and its connection would not listen in the meantime. createCached does not
+ * limit the threads. The start delay is the time from start to the begin of the runnable, i.e. the
+ * hand-off to a pooled or newly created thread; it is no request queueing.
+ *
+ * Note: virtual threads do not help here. A server thread spends its life blocked in the native RFC
+ * listen of its connection, which pins a virtual thread to its carrier thread, so each connection still
+ * needs a platform thread. The number of threads is decided by connection_count, not by the load.
+ *
+ * The main function simulates the server threads of a server with four connections, because a
+ * JCoServer requires an SAP gateway. With the argument -server it starts the server of
+ * StepByStepServer.step1SimpleServer with a cached starter and prints the number of threads JCo starts,
+ * which is the value to pass to createFixed.
+ */
+public class ExecutorServerThreadStarter implements JCoServerThreadStarter
+{
+    private ExecutorService executor;
+    private int limit;
+    private AtomicInteger reserved = new AtomicInteger();
+    private AtomicLong started = new AtomicLong();
+    private AtomicLong completed = new AtomicLong();
+    private AtomicLong failed = new AtomicLong();
+    private AtomicLong rejected = new AtomicLong();
+    private AtomicInteger active = new AtomicInteger();
+    private AtomicInteger maxActive = new AtomicInteger();
+    private LatencyHistogram startDelay = new LatencyHistogram();
+
+    /**
+     * Creates a starter using the given executor without limiting the number of runnables
+     * @param executor executor running the server runnables; it must not run them in the calling thread
+     *        and must not queue them
+     */
+    public ExecutorServerThreadStarter(ExecutorService executor)
+    {
+        this(executor, Integer.MAX_VALUE);
+    }
+
+    ExecutorServerThreadStarter(ExecutorService executor, int limit)
+    {
+        this.executor = executor;
+        this.limit = limit;
+    }
+
+    /**
+     * Creates a starter using a cached pool of daemon threads, which creates a thread for each server
+     * thread JCo starts and reuses it after its connection was closed
+     * @param name prefix of the thread names
+     */
+    public static ExecutorServerThreadStarter createCached(String name)
+    {
+        return new ExecutorServerThreadStarter(Executors.newCachedThreadPool(ThreadSupport.createThreadFactory(name)));
+    }
+
+    /**
+     * Creates a starter using a fixed number of daemon threads, which rejects the runnables exceeding it
+     * @param name prefix of the thread names
+     * @param threads number of threads, at least the number of server threads of the server
+     */
+    public static ExecutorServerThreadStarter createFixed(String name, int threads)
+    {
+        if(threads < 1)
+            throw new IllegalArgumentException("thread count must be positive: " + threads);
+        return new ExecutorServerThreadStarter(Executors.newFixedThreadPool(threads, ThreadSupport.createThreadFactory(name)), threads);
+    }
+
+    /**
+     * Starts the runnable in a thread of the executor
+     * @throws IllegalStateException if all threads of a fixed starter are in use
+     */
+    public void start(final JCoServerRunnable runnable) throws Exception
+    {
+        if(reserved.incrementAndGet() > limit)
+        {
+            reserved.decrementAndGet();
+            rejected.incrementAndGet();
+            throw new IllegalStateException("All " + limit + " server threads are in use, the thread count must be at least"
+                    + " the number of server threads, e.g. the connection count of the server");
+        }
+        final long submitted = System.nanoTime();
+        started.incrementAndGet();
+        try
+        {
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    startDelay.record(System.nanoTime() - submitted, TimeUnit.NANOSECONDS);
+                    int current = active.incrementAndGet();
+                    int max = maxActive.get();
+                    while(current > max && !maxActive.compareAndSet(max, current))
+                        max = maxActive.get();
+                    try
+                    {
+                        runnable.run();
+                    }
+                    catch(RuntimeException re)
+                    {
+                        failed.incrementAndGet();
+                        throw re;
+                    }
+                    finally
+                    {
+                        active.decrementAndGet();
+                        completed.incrementAndGet();
+                        reserved.decrementAndGet();
+                    }
+                }
+            });
+        }
+        catch(RuntimeException re)
+        {
+            //e.g. rejected after shutdown
+            reserved.decrementAndGet();
+            started.decrementAndGet();
+            rejected.incrementAndGet();
+            throw re;
+        }
+    }
+
+    /**
+     * returns the maximum number of concurrently running server threads, Integer.MAX_VALUE if not limited
+     */
+    public int getLimit()
+    {
+        return limit;
+    }
+
+    /**
+     * returns the delay between start and the begin of the runnables, i.e. the hand-off to a thread
+     */
+    public LatencyHistogram getStartDelay()
+    {
+        return startDelay;
+    }
+
+    public long getStartedCount()
+    {
+        return started.get();
+    }
+
+    public long getCompletedCount()
+    {
+        return completed.get();
+    }
+
+    /**
+     * returns the number of runnables terminated by an exception
+     */
+    public long getFailedCount()
+    {
+        return failed.get();
+    }
+
+    /**
+     * returns the number of starts rejected, because all threads were in use
+     */
+    public long getRejectedCount()
+    {
+        return rejected.get();
+    }
+
+    public int getActiveCount()
+    {
+        return active.get();
+    }
+
+    public int getMaxActiveCount()
+    {
+        return maxActive.get();
+    }
+
+    /**
+     * Stops accepting runnables. The runnables already started are completed.
+     */
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    public String toString()
+    {
+        return (limit == Integer.MAX_VALUE ? "unlimited" : String.valueOf(limit)) + " server threads: " + started.get() + " started, "
+                + active.get() + " active (max " + maxActive.get() + "), " + completed.get() + " completed, " + failed.get() + " failed, "
+                + rejected.get() + " rejected, start delay " + startDelay;
+    }
+
+    /**
+     * A server thread listening on its connection until the connection is closed
+     */
+    static class SimulatedConnection implements JCoServerRunnable
+    {
+        private CountDownLatch closed = new CountDownLatch(1);
+
+        public JCoServerContext getContext()
+        {
+            throw new IllegalStateException("The simulated runnable has no server context");
+        }
+
+        public void run()
+        {
+            try
+            {
+                closed.await();
+            }
+            catch(InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void close()
+        {
+            closed.countDown();
+        }
+    }
+
+    static void awaitActive(ExecutorServerThreadStarter starter, int count) throws InterruptedException
+    {
+        while(starter.getActiveCount() != count)
+            Thread.sleep(1);
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length == 1 && args[0].equals("-server"))
+        {
+            JCoServer server;
+            try
+            {
+                server = JCoServerFactory.getServer(StepByStepServer.SERVER_NAME1);
+            }
+            catch(JCoException ex)
+            {
+                throw new RuntimeException("Unable to create the server " + StepByStepServer.SERVER_NAME1 + " because of " + ex.getMessage(), ex);
+            }
+            ExecutorServerThreadStarter starter = createCached("JCoServer");
+            server.setServerThreadStarter(starter);
+            DefaultServerHandlerFactory.FunctionHandlerFactory factory = new DefaultServerHandlerFactory.FunctionHandlerFactory();
+            factory.registerHandler("STFC_CONNECTION", new StepByStepServer.StfcConnectionHandler(false));
+            server.setCallHandlerFactory(factory);
+            server.start();
+            System.out.println("The program can be stoped using <ctrl>+<c>");
+            while(true)
+            {
+                Thread.sleep(10000);
+                System.out.println("connection count " + server.getConnectionCount() + ", " + starter);
+            }
+        }
+
+        //a server with connection_count=4: JCo starts four server threads, which live as long as their connections
+        int connectionCount = 4;
+        ExecutorServerThreadStarter starter = createFixed("JCoServer", connectionCount);
+        List<SimulatedConnection> connections = new ArrayList<SimulatedConnection>();
+        for(int i = 0; i < connectionCount; i++)
+        {
+            SimulatedConnection connection = new SimulatedConnection();
+            connections.add(connection);
+            starter.start(connection);
+        }
+        awaitActive(starter, connectionCount);
+        System.out.println("after server start: " + starter);
+
+        //a fifth server thread does not fit, it is rejected instead of waiting for a closed connection
+        try
+        {
+            starter.start(new SimulatedConnection());
+        }
+        catch(IllegalStateException e)
+        {
+            System.out.println("fifth start: " + e.getMessage());
+        }
+
+        //a broken connection ends its thread, JCo starts a new one for the reopened connection
+        connections.remove(0).close();
+        awaitActive(starter, connectionCount - 1);
+        SimulatedConnection reopened = new SimulatedConnection();
+        connections.add(reopened);
+        starter.start(reopened);
+        awaitActive(starter, connectionCount);
+        System.out.println("after reconnect: " + starter);
+
+        for(SimulatedConnection connection : connections)
+            connection.close();
+        starter.shutdown();
+        starter.executor.awaitTermination(1, TimeUnit.MINUTES);
+        System.out.println("after server stop: " + starter);
+    }
+}
@@ -0,0 +1,277 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.sap.conn.jco.JCoException;
+import com.sap.conn.jco.JCoFunction;
+import com.sap.conn.jco.JCoFunctionTemplate;
+import com.sap.conn.jco.JCoStructure;
+import com.sap.conn.jco.JCoTable;
+
+/**
+ * StepByStepClient.step4WorkWithTable reads the COMPANYCODE_LIST and then executes
+ * BAPI_COMPANYCODE_GETDETAIL for each row, one call after the other, and fetches the function from the
+ * repository in every iteration. With many rows the sum of the call latencies dominates the runtime.
+ *
+ * FanOutExecutor executes such detail calls concurrently. It takes a driver table, a function template
+ * and an ImportMapper copying the values of the current driver row into the imports of the function.
+ * The functions are created from the template and their imports are filled in the calling thread,
+ * because JCoTable is not thread safe and the mapper works with the table cursor. Only the execution
+ * is distributed over the worker threads. By default there is one worker per connection the destination
+ * may open, i.e. its peak limit, because the calls wait for the backend and not for a processor. Callers
+ * sharing the destination with other work may lower the parallelism; it is never raised above the peak
+ * limit, so the fan-out never waits for pooled connections itself.
+ *
+ * The results are returned in row order. Each Result contains the executed function or the exception
+ * raised by the call as well as the latency of the call.
+ */
+public class FanOutExecutor
+{
+    /**
+     * Fills the imports of the function from the current row of the driver table
+     */
+    interface ImportMapper
+    {
+        void map(JCoTable driver, JCoFunction function);
+    }
+
+    /**
+     * Outcome of a single call
+     */
+    static class Result
+    {
+        private int row;
+        private JCoFunction function;
+        private JCoException exception;
+        private long latencyNanos;
+
+        Result(int row, JCoFunction function)
+        {
+            this.row = row;
+            this.function = function;
+        }
+
+        /**
+         * returns the index of the driver row this call was created for
+         */
+        public int getRow()
+        {
+            return row;
+        }
+
+        /**
+         * returns the executed function, which contains the exports in case of success
+         */
+        public JCoFunction getFunction()
+        {
+            return function;
+        }
+
+        /**
+         * returns the exception raised by the call or null
+         */
+        public JCoException getException()
+        {
+            return exception;
+        }
+
+        public boolean isSuccessful()
+        {
+            return exception == null;
+        }
+
+        /**
+         * returns the time spent in execute, without the time the call waited for a worker
+         */
+        public long getLatency(TimeUnit unit)
+        {
+            return unit.convert(latencyNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * parallelism used for a destination without peak limit
+     */
+    static final int UNLIMITED_PARALLELISM = 32;
+
+    private FunctionExecutor executor;
+    private int parallelism;
+    private ExecutorService workers;
+
+    /**
+     * Creates a fan-out executor with a worker for each connection allowed by the peak limit of the destination
+     * @param executor destination or simulator executing the calls
+     */
+    public FanOutExecutor(FunctionExecutor executor)
+    {
+        this(executor, executor.getPeakLimit() == Integer.MAX_VALUE ? UNLIMITED_PARALLELISM : executor.getPeakLimit());
+    }
+
+    /**
+     * Creates a fan-out executor
+     * @param executor destination or simulator executing the calls
+     * @param parallelism maximum number of concurrent calls, limited to the peak limit of the destination
+     */
+    public FanOutExecutor(FunctionExecutor executor, int parallelism)
+    {
+        if(parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        this.executor = executor;
+        this.parallelism = Math.min(parallelism, executor.getPeakLimit());
+        this.workers = Executors.newFixedThreadPool(this.parallelism, ThreadSupport.createThreadFactory("FanOut-" + executor.getName()));
+    }
+
+    public int getParallelism()
+    {
+        return parallelism;
+    }
+
+    /**
+     * Executes one function per row of the driver table
+     * @param driver table, whose rows determine the calls; the cursor is moved by this method
+     * @param template template used to create the functions
+     * @param mapper fills the imports of the function from the current driver row
+     * @return the results in row order
+     * @throws InterruptedException if the calling thread was interrupted while waiting for the results
+     */
+    public List<Result> execute(JCoTable driver, JCoFunctionTemplate template, ImportMapper mapper) throws InterruptedException
+    {
+        int rows = driver.getNumRows();
+        List<Result> results = new ArrayList<Result>(rows);
+        List<Future<?>> futures = new ArrayList<Future<?>>(rows);
+        for(int i = 0; i < rows; i++)
+        {
+            driver.setRow(i);
+            JCoFunction function = template.getFunction();
+            mapper.map(driver, function);
+            final Result result = new Result(i, function);
+            results.add(result);
+            futures.add(workers.submit(new Runnable()
+            {
+                public void run()
+                {
+                    long start = System.nanoTime();
+                    try
+                    {
+                        executor.execute(result.function);
+                    }
+                    catch(JCoException je)
+                    {
+                        result.exception = je;
+                    }
+                    finally
+                    {
+                        result.latencyNanos = System.nanoTime() - start;
+                    }
+                }
+            }));
+        }
+
+        try
+        {
+            for(Future<?> future : futures)
+                future.get();
+        }
+        catch(ExecutionException ee)
+        {
+            //runtime exceptions of the call are not expected to be handled by the caller row by row
+            Throwable cause = ee.getCause();
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new RuntimeException(cause);
+        }
+        catch(InterruptedException ie)
+        {
+            for(Future<?> future : futures)
+                future.cancel(true);
+            throw ie;
+        }
+        return results;
+    }
+
+    /**
+     * Stops the worker threads
+     */
+    public void shutdown()
+    {
+        workers.shutdown();
+    }
+
+    static void printLatencies(String label, long elapsedNanos, List<Result> results)
+    {
+        long[] latencies = new long[results.size()];
+        int failures = 0;
+        for(int i = 0; i < latencies.length; i++)
+        {
+            latencies[i] = results.get(i).getLatency(TimeUnit.MICROSECONDS);
+            if(!results.get(i).isSuccessful())
+                failures++;
+        }
+        Arrays.sort(latencies);
+        System.out.println(label + ": " + results.size() + " calls in " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms, "
+                + failures + " failures, p50 " + latencies[latencies.length / 2] + " us, max " + latencies[latencies.length - 1] + " us");
+    }
+
+    public static void main(String[] args) throws JCoException, InterruptedException
+    {
+        AbapBackendSimulator simulator = new AbapBackendSimulator("ABAP_AS_WITH_POOL", 5, 10, 4711L);
+        simulator.setCompanyCodeCount(200);
+        simulator.setLatency(2, 1, TimeUnit.MILLISECONDS);
+
+        JCoFunction function = simulator.getRepository().getFunction("BAPI_COMPANYCODE_GETLIST");
+        simulator.execute(function);
+        JCoTable codes = function.getTableParameterList().getTable("COMPANYCODE_LIST");
+        JCoFunctionTemplate detailTemplate = simulator.getRepository().getFunctionTemplate("BAPI_COMPANYCODE_GETDETAIL");
+
+        ImportMapper mapper = new ImportMapper()
+        {
+            public void map(JCoTable driver, JCoFunction detail)
+            {
+                detail.getImportParameterList().setValue("COMPANYCODEID", driver.getString("COMP_CODE"));
+                detail.getExportParameterList().setActive("COMPANYCODE_ADDRESS", false);
+            }
+        };
+
+        //serial loop as in StepByStepClient.step4WorkWithTable
+        List<Result> serial = new ArrayList<Result>();
+        long start = System.nanoTime();
+        for(int i = 0; i < codes.getNumRows(); i++)
+        {
+            codes.setRow(i);
+            JCoFunction detail = detailTemplate.getFunction();
+            mapper.map(codes, detail);
+            Result result = new Result(i, detail);
+            long callStart = System.nanoTime();
+            simulator.execute(detail);
+            result.latencyNanos = System.nanoTime() - callStart;
+            serial.add(result);
+        }
+        printLatencies("serial ", System.nanoTime() - start, serial);
+
+        FanOutExecutor fanOut = new FanOutExecutor(simulator);
+        try
+        {
+            start = System.nanoTime();
+            List<Result> results = fanOut.execute(codes, detailTemplate, mapper);
+            printLatencies("fan-out", System.nanoTime() - start, results);
+            System.out.println("parallelism " + fanOut.getParallelism() + ", max used connections " + simulator.getMaxUsedConnectionCount());
+
+            for(Result result : results.subList(0, 5))
+            {
+                JCoStructure detail = result.getFunction().getExportParameterList().getStructure("COMPANYCODE_DETAIL");
+                System.out.println(detail.getString("COMP_CODE") + '\t' +
+                                   detail.getString("COUNTRY") + '\t' +
+                                   detail.getString("CITY"));
+            }
+        }
+        finally
+        {
+            fanOut.shutdown();
+        }
+    }
+}
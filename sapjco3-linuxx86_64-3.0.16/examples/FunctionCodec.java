@@ -0,0 +1,238 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import com.sap.conn.jco.JCoException;
+import com.sap.conn.jco.JCoFunction;
+import com.sap.conn.jco.JCoMetaData;
+import com.sap.conn.jco.JCoParameterList;
+import com.sap.conn.jco.JCoRecord;
+import com.sap.conn.jco.JCoRepository;
+import com.sap.conn.jco.JCoTable;
+
+/**
+ * Writes the parameter values of a JCoFunction to a stream and creates the function again from the
+ * repository. Java serialization of a JCoFunction includes its metadata and takes several kilobytes even for
+ * STFC_CONNECTION; this encoding only contains the function name and the field values, so it is suited for
+ * functions stored in the logs of BackgroundUnitHandler and UnitBatchSender.
+ *
+ * The values are written in the order of the fields, structures and tables recursively. The function must be
+ * read with a repository providing the same metadata. Strings are written as their length in bytes followed by
+ * their UTF-8 encoding; writeUTF is not used, because it fails for strings longer than 65,535 bytes, e.g.
+ * STRING fields or long texts.
+ */
+final class FunctionCodec
+{
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte DECIMAL = 5;
+    private static final byte DATE = 6;
+    private static final byte BYTES = 7;
+
+    private FunctionCodec()
+    {
+    }
+
+    static void write(DataOutputStream out, JCoFunction function) throws IOException
+    {
+        writeString(out, function.getName());
+        writeList(out, function.getImportParameterList());
+        writeList(out, function.getChangingParameterList());
+        writeList(out, function.getTableParameterList());
+        writeList(out, function.getExportParameterList());
+    }
+
+    static JCoFunction read(DataInputStream in, JCoRepository repository) throws IOException
+    {
+        String name = readString(in);
+        JCoFunction function;
+        try
+        {
+            function = repository.getFunction(name);
+        }
+        catch(JCoException e)
+        {
+            throw new IOException("Unable to create function " + name + ": " + e.getMessage());
+        }
+        if(function == null)
+            throw new IOException("Function " + name + " is not available in repository " + repository.getName());
+        readList(in, function.getImportParameterList());
+        readList(in, function.getChangingParameterList());
+        readList(in, function.getTableParameterList());
+        readList(in, function.getExportParameterList());
+        return function;
+    }
+
+    static void writeList(DataOutputStream out, JCoParameterList list) throws IOException
+    {
+        out.writeBoolean(list != null);
+        if(list != null)
+            writeRecord(out, list);
+    }
+
+    static void readList(DataInputStream in, JCoParameterList list) throws IOException
+    {
+        if(in.readBoolean())
+        {
+            if(list == null)
+                throw new IOException("Parameter list does not exist in the metadata of the repository");
+            readRecord(in, list);
+        }
+    }
+
+    static void writeRecord(DataOutputStream out, JCoRecord record) throws IOException
+    {
+        JCoMetaData metaData = record.getMetaData();
+        for(int i = 0; i < metaData.getFieldCount(); i++)
+        {
+            switch(metaData.getType(i))
+            {
+                case JCoMetaData.TYPE_STRUCTURE:
+                    writeRecord(out, record.getStructure(i));
+                    break;
+                case JCoMetaData.TYPE_TABLE:
+                    JCoTable table = record.getTable(i);
+                    out.writeInt(table.getNumRows());
+                    for(int row = 0; row < table.getNumRows(); row++)
+                    {
+                        table.setRow(row);
+                        writeRecord(out, table);
+                    }
+                    break;
+                default:
+                    writeValue(out, record.getValue(i));
+            }
+        }
+    }
+
+    static void readRecord(DataInputStream in, JCoRecord record) throws IOException
+    {
+        JCoMetaData metaData = record.getMetaData();
+        for(int i = 0; i < metaData.getFieldCount(); i++)
+        {
+            switch(metaData.getType(i))
+            {
+                case JCoMetaData.TYPE_STRUCTURE:
+                    readRecord(in, record.getStructure(i));
+                    break;
+                case JCoMetaData.TYPE_TABLE:
+                    JCoTable table = record.getTable(i);
+                    int rows = in.readInt();
+                    table.clear();
+                    table.appendRows(rows);
+                    for(int row = 0; row < rows; row++)
+                    {
+                        table.setRow(row);
+                        readRecord(in, table);
+                    }
+                    break;
+                default:
+                    Object value = readValue(in);
+                    if(value != null)
+                        record.setValue(i, value);
+            }
+        }
+    }
+
+    static void writeValue(DataOutputStream out, Object value) throws IOException
+    {
+        if(value == null)
+            out.writeByte(NULL);
+        else if(value instanceof String)
+        {
+            out.writeByte(STRING);
+            writeString(out, (String)value);
+        }
+        else if(value instanceof Integer)
+        {
+            out.writeByte(INTEGER);
+            out.writeInt(((Integer)value).intValue());
+        }
+        else if(value instanceof Long)
+        {
+            out.writeByte(LONG);
+            out.writeLong(((Long)value).longValue());
+        }
+        else if(value instanceof Double)
+        {
+            out.writeByte(DOUBLE);
+            out.writeDouble(((Double)value).doubleValue());
+        }
+        else if(value instanceof BigDecimal)
+        {
+            out.writeByte(DECIMAL);
+            byte[] unscaled = ((BigDecimal)value).unscaledValue().toByteArray();
+            out.writeInt(((BigDecimal)value).scale());
+            out.writeInt(unscaled.length);
+            out.write(unscaled);
+        }
+        else if(value instanceof Date)
+        {
+            out.writeByte(DATE);
+            out.writeLong(((Date)value).getTime());
+        }
+        else if(value instanceof byte[])
+        {
+            out.writeByte(BYTES);
+            out.writeInt(((byte[])value).length);
+            out.write((byte[])value);
+        }
+        else
+            throw new IOException("Values of " + value.getClass().getName() + " are not supported");
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if(length < 0)
+            throw new IOException("Invalid string length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static Object readValue(DataInputStream in) throws IOException
+    {
+        byte type = in.readByte();
+        switch(type)
+        {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(in);
+            case INTEGER:
+                return Integer.valueOf(in.readInt());
+            case LONG:
+                return Long.valueOf(in.readLong());
+            case DOUBLE:
+                return Double.valueOf(in.readDouble());
+            case DECIMAL:
+                int scale = in.readInt();
+                byte[] unscaled = new byte[in.readInt()];
+                in.readFully(unscaled);
+                return new BigDecimal(new BigInteger(unscaled), scale);
+            case DATE:
+                return new Date(in.readLong());
+            case BYTES:
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return bytes;
+            default:
+                throw new IOException("Unknown value type " + type);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+import com.sap.conn.jco.JCoDestination;
+import com.sap.conn.jco.JCoException;
+import com.sap.conn.jco.JCoFunction;
+import com.sap.conn.jco.JCoRepository;
+
+/**
+ * FunctionExecutor is the minimal view of a JCoDestination needed to send a function to an ABAP system.
+ * The client examples work with JCoDestination directly, which always requires a reachable backend.
+ * Components written against FunctionExecutor can run either against a real destination
+ * (see DestinationExecutor) or against the in-process AbapBackendSimulator, so that their throughput
+ * and latency can be measured without a SAP system.
+ */
+public interface FunctionExecutor
+{
+    /**
+     * Returns the name of the destination (or simulated system) the functions are sent to
+     * @return the destination name
+     */
+    String getName();
+
+    /**
+     * Returns the metadata repository used to create the functions for this executor
+     * @return the metadata repository
+     * @throws JCoException if the repository cannot be obtained
+     */
+    JCoRepository getRepository() throws JCoException;
+
+    /**
+     * Returns the maximum number of calls that can be executed concurrently,
+     * i.e. the peak limit of the connection pool
+     * @return the maximum number of concurrently executed calls
+     */
+    int getPeakLimit();
+
+    /**
+     * Executes the function and returns after the result was received
+     * @param function function to be executed
+     * @throws JCoException if the call failed
+     */
+    void execute(JCoFunction function) throws JCoException;
+
+    /**
+     * FunctionExecutor implementation delegating to JCoFunction.execute(JCoDestination)
+     */
+    class DestinationExecutor implements FunctionExecutor
+    {
+        private JCoDestination destination;
+
+        public DestinationExecutor(JCoDestination destination)
+        {
+            this.destination = destination;
+        }
+
+        public String getName()
+        {
+            return destination.getDestinationName();
+        }
+
+        public JCoRepository getRepository() throws JCoException
+        {
+            return destination.getRepository();
+        }
+
+        public int getPeakLimit()
+        {
+            //a destination without pool allows an unlimited number of connections
+            int peakLimit = destination.getPeakLimit();
+            return peakLimit > 0 ? peakLimit : Integer.MAX_VALUE;
+        }
+
+        public void execute(JCoFunction function) throws JCoException
+        {
+            function.execute(destination);
+        }
+
+        public JCoDestination getDestination()
+        {
+            return destination;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.sap.conn.jco.JCo;
+import com.sap.conn.jco.JCoCustomRepository;
+import com.sap.conn.jco.JCoException;
+import com.sap.conn.jco.JCoFunction;
+import com.sap.conn.jco.JCoFunctionTemplate;
+import com.sap.conn.jco.JCoRepository;
+
+/**
+ * The client examples call destination.getRepository().getFunction(...) or getFunctionTemplate(...)
+ * on the hot path; StepByStepClient.step4WorkWithTable even does it inside the loop. The first call for
+ * each function queries the metadata from the ABAP system, so the first requests after a deployment
+ * pay one metadata round trip per function.
+ *
+ * FunctionTemplateCache resolves the templates of a known set of functions before the application
+ * takes traffic and then hands out JCoFunction instances created from these pre-resolved templates.
+ * The function names are read either from a configuration file with one name per line ('#' starts a
+ * comment) or from a file written by JCoRepository.save.
+ *
+ * For a repository connected to an ABAP system all templates not yet cached are fetched with
+ * JCo.queryMetaDataSet in one round trip, which also fills the JCo repository cache. Custom repositories
+ * and other repositories not accepted by queryMetaDataSet are queried one by one. When the repository
+ * is a JCoCustomRepository, the metadata from a saved repository file is added to its cache directly;
+ * otherwise only the function names are taken from the file and the metadata is queried from the
+ * backend, so that outdated metadata is never used.
+ */
+public class FunctionTemplateCache
+{
+    private JCoRepository repository;
+    private Map<String, JCoFunctionTemplate> templates = new ConcurrentHashMap<String, JCoFunctionTemplate>();
+
+    public FunctionTemplateCache(JCoRepository repository)
+    {
+        this.repository = repository;
+    }
+
+    public JCoRepository getRepository()
+    {
+        return repository;
+    }
+
+    /**
+     * Resolves the templates of the given functions
+     * @param functionNames names of the functions to be resolved
+     * @return names of the functions not available in the repository
+     * @throws JCoException if the metadata could not be queried
+     */
+    public List<String> warmUp(List<String> functionNames) throws JCoException
+    {
+        List<String> uncached = new ArrayList<String>(functionNames);
+        uncached.removeAll(Arrays.asList(repository.getCachedFunctionTemplateNames()));
+        if(!uncached.isEmpty() && !(repository instanceof JCoCustomRepository))
+        {
+            try
+            {
+                //one round trip for all functions, fills the repository cache
+                JCo.queryMetaDataSet(repository, uncached, null, null);
+            }
+            catch(JCoException je)
+            {
+                //thrown for repositories not connected to an ABAP system, continue with single queries
+                if(je.getGroup() != JCoException.JCO_ERROR_ILLEGAL_ARGUMENT)
+                    throw je;
+            }
+        }
+
+        List<String> missing = new ArrayList<String>();
+        for(String functionName : functionNames)
+        {
+            JCoFunctionTemplate template = repository.getFunctionTemplate(functionName);
+            if(template == null)
+                missing.add(functionName);
+            else
+                templates.put(functionName, template);
+        }
+        return missing;
+    }
+
+    /**
+     * Resolves the templates of the functions listed in a configuration file
+     * @param configFile file containing one function name per line
+     * @return names of the functions not available in the repository
+     */
+    public List<String> warmUp(File configFile) throws IOException, JCoException
+    {
+        Reader reader = new FileReader(configFile);
+        try
+        {
+            return warmUp(readFunctionNames(reader));
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Resolves the templates of the functions contained in a file written by JCoRepository.save
+     * @param repositoryFile saved repository
+     * @return names of the functions not available in the repository
+     */
+    public List<String> warmUpFromRepositoryFile(File repositoryFile) throws IOException, JCoException
+    {
+        JCoCustomRepository saved = JCo.createCustomRepository(repositoryFile.getName());
+        Reader reader = new FileReader(repositoryFile);
+        try
+        {
+            saved.load(reader);
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        List<String> functionNames = Arrays.asList(saved.getCachedFunctionTemplateNames());
+        if(repository instanceof JCoCustomRepository)
+        {
+            JCoCustomRepository customRepository = (JCoCustomRepository)repository;
+            for(String recordName : saved.getCachedRecordMetaDataNames())
+                customRepository.addRecordMetaDataToCache(saved.getRecordMetaData(recordName));
+            for(String functionName : functionNames)
+                customRepository.addFunctionTemplateToCache(saved.getFunctionTemplate(functionName));
+        }
+        return warmUp(functionNames);
+    }
+
+    /**
+     * Reads function names, one per line, ignoring empty lines and comments starting with '#'
+     */
+    static List<String> readFunctionNames(Reader reader) throws IOException
+    {
+        List<String> functionNames = new ArrayList<String>();
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        while((line = lines.readLine()) != null)
+        {
+            int comment = line.indexOf('#');
+            if(comment >= 0)
+                line = line.substring(0, comment);
+            line = line.trim();
+            if(line.length() > 0)
+                functionNames.add(line.toUpperCase());
+        }
+        return functionNames;
+    }
+
+    /**
+     * Returns the template of the function. Functions not warmed up are resolved and cached on first use.
+     * @param functionName function name
+     * @return the template or null, if the function is not available in the repository
+     */
+    public JCoFunctionTemplate getFunctionTemplate(String functionName) throws JCoException
+    {
+        JCoFunctionTemplate template = templates.get(functionName);
+        if(template == null)
+        {
+            template = repository.getFunctionTemplate(functionName);
+            if(template != null)
+                templates.put(functionName, template);
+        }
+        return template;
+    }
+
+    /**
+     * Creates a new function instance from the cached template
+     * @param functionName function name
+     * @return the function or null, if the function is not available in the repository
+     */
+    public JCoFunction getFunction(String functionName) throws JCoException
+    {
+        JCoFunctionTemplate template = getFunctionTemplate(functionName);
+        return template != null ? template.getFunction() : null;
+    }
+
+    /**
+     * Returns the names of the cached templates
+     */
+    public String[] getCachedFunctionNames()
+    {
+        return templates.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * Removes the template from this cache and from the repository cache, e.g. after the function
+     * was changed in the ABAP system
+     * @param functionName function name
+     */
+    public void remove(String functionName)
+    {
+        templates.remove(functionName);
+        repository.removeFunctionTemplateFromCache(functionName);
+    }
+
+    static long firstCallMicros(FunctionTemplateCache cache, String functionName) throws JCoException
+    {
+        long start = System.nanoTime();
+        cache.getFunction(functionName);
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+    }
+
+    public static void main(String[] args) throws JCoException, IOException
+    {
+        List<String> functionNames = Arrays.asList("STFC_CONNECTION", "RFC_SYSTEM_INFO",
+                "BAPI_COMPANYCODE_GETLIST", "BAPI_COMPANYCODE_GETDETAIL");
+
+        //cold: each first call queries the metadata
+        AbapBackendSimulator simulator = new AbapBackendSimulator("ABAP_AS_WITH_POOL");
+        simulator.setMetaDataLatency(50, TimeUnit.MILLISECONDS);
+        FunctionTemplateCache cache = new FunctionTemplateCache(simulator.getRemoteRepository());
+        for(String functionName : functionNames)
+            System.out.println("cold   " + functionName + ": " + firstCallMicros(cache, functionName) + " us");
+
+        File repositoryFile = File.createTempFile("repository", ".txt");
+        repositoryFile.deleteOnExit();
+        Writer writer = new FileWriter(repositoryFile);
+        try
+        {
+            simulator.getRemoteRepository().save(writer);
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        //warm: the templates are resolved before the first call
+        simulator = new AbapBackendSimulator("ABAP_AS_WITH_POOL");
+        simulator.setMetaDataLatency(50, TimeUnit.MILLISECONDS);
+        cache = new FunctionTemplateCache(simulator.getRemoteRepository());
+        long start = System.nanoTime();
+        List<String> missing = cache.warmUpFromRepositoryFile(repositoryFile);
+        System.out.println("warm-up of " + cache.getCachedFunctionNames().length + " functions took "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, missing " + missing);
+        for(String functionName : functionNames)
+            System.out.println("warm   " + functionName + ": " + firstCallMicros(cache, functionName) + " us");
+
+        //warm-up from a custom repository: the saved metadata is used without remote queries
+        JCoCustomRepository customRepository = JCo.createCustomRepository("WARM_CUSTOM");
+        cache = new FunctionTemplateCache(customRepository);
+        missing = cache.warmUpFromRepositoryFile(repositoryFile);
+        System.out.println("custom repository contains " + customRepository.getCachedFunctionTemplateNames().length
+                + " functions, missing " + missing);
+    }
+}
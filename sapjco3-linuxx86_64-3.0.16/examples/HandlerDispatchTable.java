@@ -0,0 +1,508 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sap.conn.jco.JCoException;
+import com.sap.conn.jco.JCoFunction;
+import com.sap.conn.jco.JCoFunctionTemplate;
+import com.sap.conn.jco.server.DefaultServerHandlerFactory;
+import com.sap.conn.jco.server.JCoServerContext;
+import com.sap.conn.jco.server.JCoServerFunctionHandler;
+import com.sap.conn.jco.server.JCoServerFunctionHandlerFactory;
+
+/**
+ * HandlerDispatchTable is a JCoServerFunctionHandlerFactory mapping function names to handlers with a
+ * perfect hash table built once at startup. StatefulServerExample compared the function name with each name
+ * it knows, so the cost of a call grew with the number of function modules, and
+ * DefaultServerHandlerFactory.FunctionHandlerFactory needs a registerHandler call per name.
+ *
+ * The handlers are registered with their RfcFunction annotation or explicitly. The table is built with the
+ * hash-and-displace method: the mixed hash code of the name selects a bucket, and for each bucket a
+ * displacement is searched which maps all names of the bucket to free slots. A lookup mixes the hash code,
+ * reads the displacement of its bucket and compares the name with the entry of the computed slot, so it
+ * needs one string comparison regardless of the number of functions. Names with the same hash code cannot
+ * be separated by the table; all but the first of them are kept in a map consulted only when the slot does
+ * not match. Whether a handler needs a stateful session is stored in its entry, so the policy is not
+ * evaluated again per call.
+ *
+ * The calls per function are counted in a LongAdder per slot, so server threads dispatching the same
+ * function do not contend on one cache line, and the calls of unknown functions, for which null is
+ * returned, are counted separately.
+ *
+ * Note: the table cannot be changed after it was built. To register another handler, build a new table
+ * and set it with JCoServer.setCallHandlerFactory.
+ */
+public class HandlerDispatchTable implements JCoServerFunctionHandlerFactory
+{
+    /**
+     * A handler with the name and the session policy of a function module
+     */
+    public static class Registration
+    {
+        String functionName;
+        JCoServerFunctionHandler handler;
+        boolean stateful;
+
+        public Registration(String functionName, JCoServerFunctionHandler handler, boolean stateful)
+        {
+            this.functionName = functionName;
+            this.handler = handler;
+            this.stateful = stateful;
+        }
+
+        /**
+         * Creates the registrations of a handler from its RfcFunction annotation
+         * @throws IllegalArgumentException if the handler class is not annotated
+         */
+        public static List<Registration> of(JCoServerFunctionHandler handler)
+        {
+            RfcFunction annotation = null;
+            for(Class<?> c = handler.getClass(); c != null && annotation == null; c = c.getSuperclass())
+                annotation = c.getAnnotation(RfcFunction.class);
+            if(annotation == null)
+                throw new IllegalArgumentException(handler.getClass().getName() + " is not annotated with @RfcFunction");
+            List<Registration> registrations = new ArrayList<Registration>();
+            for(String functionName : annotation.value())
+                registrations.add(new Registration(functionName, handler, annotation.stateful()));
+            return registrations;
+        }
+    }
+
+    private SessionRegistry sessions;
+    private int bucketMask;
+    private int[] displacements;
+    private int slotMask;
+    private String[] names;
+    private JCoServerFunctionHandler[] handlers;
+    private boolean[] stateful;
+    private LongAdder[] dispatchCounts;
+    //names with the hash code of a name in the table, mapped to their index in collisionHandlers
+    private Map<String, Integer> collisions;
+    private JCoServerFunctionHandler[] collisionHandlers;
+    private boolean[] collisionStateful;
+    private LongAdder[] collisionCounts;
+    private LongAdder unknownCount = new LongAdder();
+
+    /**
+     * Builds the table from the RfcFunction annotations of the handlers
+     * @param sessions holds the data of the stateful sessions, may be null if no handler is stateful
+     */
+    public static HandlerDispatchTable forAnnotated(SessionRegistry sessions, JCoServerFunctionHandler... handlers)
+    {
+        List<Registration> registrations = new ArrayList<Registration>();
+        for(JCoServerFunctionHandler handler : handlers)
+            registrations.addAll(Registration.of(handler));
+        return new HandlerDispatchTable(sessions, registrations);
+    }
+
+    /**
+     * Builds the table
+     * @param sessions holds the data of the stateful sessions, may be null if no handler is stateful
+     * @param registrations the handlers
+     * @throws IllegalArgumentException if a function name is registered twice, or a handler is stateful and
+     *         sessions is null
+     */
+    public HandlerDispatchTable(SessionRegistry sessions, List<Registration> registrations)
+    {
+        this.sessions = sessions;
+        Map<String, Registration> byName = new LinkedHashMap<String, Registration>();
+        Map<Integer, String> hashCodes = new HashMap<Integer, String>();
+        List<Registration> colliding = new ArrayList<Registration>();
+        for(Registration registration : registrations)
+        {
+            if(registration.stateful && sessions == null)
+                throw new IllegalArgumentException("Function " + registration.functionName + " is stateful, but no SessionRegistry was passed");
+            boolean registered = byName.containsKey(registration.functionName);
+            for(Registration other : colliding)
+                registered |= other.functionName.equals(registration.functionName);
+            if(registered)
+                throw new IllegalArgumentException("Function " + registration.functionName + " is registered twice");
+            if(hashCodes.put(Integer.valueOf(registration.functionName.hashCode()), registration.functionName) != null)
+                colliding.add(registration);
+            else
+                byName.put(registration.functionName, registration);
+        }
+
+        //a load factor of at most 0.5 keeps the search for displacements short
+        int slotCount = Integer.highestOneBit(Math.max(1, byName.size()) * 2 - 1) << 1;
+        int bucketCount = Integer.highestOneBit(Math.max(1, byName.size() / 2));
+        while(!build(new ArrayList<Registration>(byName.values()), slotCount, bucketCount))
+            slotCount <<= 1;
+        dispatchCounts = new LongAdder[slotCount];
+        for(int slot = 0; slot < slotCount; slot++)
+            if(names[slot] != null)
+                dispatchCounts[slot] = new LongAdder();
+
+        if(!colliding.isEmpty())
+        {
+            collisions = new HashMap<String, Integer>();
+            collisionHandlers = new JCoServerFunctionHandler[colliding.size()];
+            collisionStateful = new boolean[colliding.size()];
+            collisionCounts = new LongAdder[colliding.size()];
+            for(int i = 0; i < colliding.size(); i++)
+            {
+                collisions.put(colliding.get(i).functionName, Integer.valueOf(i));
+                collisionHandlers[i] = colliding.get(i).handler;
+                collisionStateful[i] = colliding.get(i).stateful;
+                collisionCounts[i] = new LongAdder();
+            }
+        }
+    }
+
+    /**
+     * mixes the hash code, so names differing only in their last characters are spread over the table
+     */
+    static long mix(int hashCode, int displacement)
+    {
+        long h = (hashCode & 0xffffffffL) ^ (displacement * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    static int slot(int hashCode, int displacement)
+    {
+        return (int)mix(hashCode, displacement);
+    }
+
+    static int bucket(int hashCode)
+    {
+        return (int)(mix(hashCode, -1) >>> 32);
+    }
+
+    boolean build(List<Registration> registrations, int slotCount, int bucketCount)
+    {
+        final List<List<Registration>> buckets = new ArrayList<List<Registration>>(bucketCount);
+        for(int i = 0; i < bucketCount; i++)
+            buckets.add(new ArrayList<Registration>());
+        for(Registration registration : registrations)
+            buckets.get(bucket(registration.functionName.hashCode()) & (bucketCount - 1)).add(registration);
+
+        //the large buckets are placed first, while most slots are free
+        Integer[] order = new Integer[bucketCount];
+        for(int i = 0; i < bucketCount; i++)
+            order[i] = Integer.valueOf(i);
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            public int compare(Integer a, Integer b)
+            {
+                return buckets.get(b.intValue()).size() - buckets.get(a.intValue()).size();
+            }
+        });
+
+        String[] newNames = new String[slotCount];
+        JCoServerFunctionHandler[] newHandlers = new JCoServerFunctionHandler[slotCount];
+        boolean[] newStateful = new boolean[slotCount];
+        int[] newDisplacements = new int[bucketCount];
+        int[] slots = new int[registrations.size()];
+        for(Integer b : order)
+        {
+            List<Registration> bucket = buckets.get(b.intValue());
+            if(bucket.isEmpty())
+                break;
+            int displacement = 0;
+            search: for(; displacement < 100000; displacement++)
+            {
+                for(int i = 0; i < bucket.size(); i++)
+                {
+                    slots[i] = slot(bucket.get(i).functionName.hashCode(), displacement) & (slotCount - 1);
+                    if(newNames[slots[i]] != null)
+                        continue search;
+                    for(int j = 0; j < i; j++)
+                        if(slots[j] == slots[i])
+                            continue search;
+                }
+                break;
+            }
+            if(displacement == 100000)
+                return false;
+            newDisplacements[b.intValue()] = displacement;
+            for(int i = 0; i < bucket.size(); i++)
+            {
+                newNames[slots[i]] = bucket.get(i).functionName;
+                newHandlers[slots[i]] = bucket.get(i).handler;
+                newStateful[slots[i]] = bucket.get(i).stateful;
+            }
+        }
+
+        names = newNames;
+        handlers = newHandlers;
+        stateful = newStateful;
+        displacements = newDisplacements;
+        slotMask = slotCount - 1;
+        bucketMask = bucketCount - 1;
+        return true;
+    }
+
+    /**
+     * returns the slot of the function, -2 - index for a function in the collision map, -1 if it is not registered
+     */
+    int lookup(String functionName)
+    {
+        int hashCode = functionName.hashCode();
+        int slot = slot(hashCode, displacements[bucket(hashCode) & bucketMask]) & slotMask;
+        if(functionName.equals(names[slot]))
+            return slot;
+        if(collisions != null)
+        {
+            Integer index = collisions.get(functionName);
+            if(index != null)
+                return -2 - index.intValue();
+        }
+        return -1;
+    }
+
+    public JCoServerFunctionHandler getCallHandler(JCoServerContext serverCtx, String functionName)
+    {
+        int slot = lookup(functionName);
+        if(slot == -1)
+        {
+            unknownCount.increment();
+            //null leads to a system failure on the ABAP side
+            return null;
+        }
+        if(slot >= 0 ? stateful[slot] : collisionStateful[-2 - slot])
+        {
+            SessionRegistry.Session session;
+            if(!serverCtx.isStatefulSession())
+            {
+                serverCtx.setStateful(true);
+                session = sessions.getOrCreate(serverCtx.getSessionID());
+            }
+            else if((session = sessions.get(serverCtx.getSessionID())) == null)
+                throw new RuntimeException("Unable to find the session context for session id " + serverCtx.getSessionID());
+            session.release();
+        }
+        if(slot >= 0)
+        {
+            dispatchCounts[slot].increment();
+            return handlers[slot];
+        }
+        collisionCounts[-2 - slot].increment();
+        return collisionHandlers[-2 - slot];
+    }
+
+    public void sessionClosed(JCoServerContext serverCtx, String message, boolean error)
+    {
+        if(sessions != null)
+            sessions.remove(serverCtx.getSessionID());
+    }
+
+    public boolean isStateful(String functionName)
+    {
+        int slot = lookup(functionName);
+        return slot == -1 ? false : slot >= 0 ? stateful[slot] : collisionStateful[-2 - slot];
+    }
+
+    /**
+     * returns the number of calls dispatched to the function
+     */
+    public long getDispatchCount(String functionName)
+    {
+        int slot = lookup(functionName);
+        return slot == -1 ? 0 : slot >= 0 ? dispatchCounts[slot].sum() : collisionCounts[-2 - slot].sum();
+    }
+
+    /**
+     * returns the number of calls of functions without handler
+     */
+    public long getUnknownCount()
+    {
+        return unknownCount.sum();
+    }
+
+    /**
+     * returns the calls per function, the most called functions first
+     */
+    public List<Map.Entry<String, Long>> getDispatchCounts()
+    {
+        List<Map.Entry<String, Long>> counts = new ArrayList<Map.Entry<String, Long>>();
+        Map<String, Long> map = new HashMap<String, Long>();
+        for(int slot = 0; slot < names.length; slot++)
+            if(names[slot] != null)
+                map.put(names[slot], Long.valueOf(dispatchCounts[slot].sum()));
+        if(collisions != null)
+            for(Map.Entry<String, Integer> collision : collisions.entrySet())
+                map.put(collision.getKey(), Long.valueOf(collisionCounts[collision.getValue().intValue()].sum()));
+        counts.addAll(map.entrySet());
+        Collections.sort(counts, new Comparator<Map.Entry<String, Long>>()
+        {
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b)
+            {
+                int c = b.getValue().compareTo(a.getValue());
+                return c != 0 ? c : a.getKey().compareTo(b.getKey());
+            }
+        });
+        return counts;
+    }
+
+    /**
+     * returns the number of registered functions
+     */
+    public int size()
+    {
+        int size = collisions == null ? 0 : collisions.size();
+        for(String name : names)
+            if(name != null)
+                size++;
+        return size;
+    }
+
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(size()).append(" functions in ").append(names.length).append(" slots, ").append(displacements.length)
+                .append(" buckets, ").append(unknownCount.sum()).append(" calls of unknown functions");
+        List<Map.Entry<String, Long>> counts = getDispatchCounts();
+        for(int i = 0; i < Math.min(5, counts.size()); i++)
+            sb.append(i == 0 ? ", most called: " : ", ").append(counts.get(i).getKey()).append('=').append(counts.get(i).getValue());
+        return sb.toString();
+    }
+
+    /**
+     * The dispatch of StatefulServerExample before it used the table
+     */
+    static class EqualsChainFactory implements JCoServerFunctionHandlerFactory
+    {
+        String[] names;
+        JCoServerFunctionHandler[] handlers;
+
+        EqualsChainFactory(String[] names, JCoServerFunctionHandler[] handlers)
+        {
+            this.names = names;
+            this.handlers = handlers;
+        }
+
+        public JCoServerFunctionHandler getCallHandler(JCoServerContext serverCtx, String functionName)
+        {
+            for(int i = 0; i < names.length; i++)
+                if(functionName.equals(names[i]))
+                    return handlers[i];
+            return null;
+        }
+
+        public void sessionClosed(JCoServerContext serverCtx, String message, boolean error)
+        {
+        }
+    }
+
+    /**
+     * A handler answering two test functions without doing anything
+     */
+    @RfcFunction({ "Z_PING", "Z_PING_ALL" })
+    static class PingHandler implements JCoServerFunctionHandler
+    {
+        public void handleRequest(JCoServerContext serverCtx, JCoFunction function)
+        {
+        }
+    }
+
+    /**
+     * returns the lookups per second
+     */
+    static long measure(JCoServerFunctionHandlerFactory factory, JCoServerContext ctx, String[] calls, int rounds)
+    {
+        long start = System.nanoTime();
+        int found = 0;
+        for(int r = 0; r < rounds; r++)
+            for(String call : calls)
+                if(factory.getCallHandler(ctx, call) != null)
+                    found++;
+        long nanos = System.nanoTime() - start;
+        if(found != (long)rounds * calls.length)
+            throw new IllegalStateException("only " + found + " handlers found");
+        return (long)rounds * calls.length * 1000000000L / nanos;
+    }
+
+    public static void main(String[] args) throws JCoException, InterruptedException
+    {
+        JCoServerContext ctx = (JCoServerContext)Proxy.newProxyInstance(HandlerDispatchTable.class.getClassLoader(),
+                new Class<?>[] { JCoServerContext.class }, new InvocationHandler()
+                {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        JCoServerFunctionHandler handler = new JCoServerFunctionHandler()
+        {
+            public void handleRequest(JCoServerContext serverCtx, JCoFunction function)
+            {
+            }
+        };
+
+        System.out.println("functions   equals chain/s   FunctionHandlerFactory/s   HandlerDispatchTable/s");
+        for(int functionCount : new int[] { 10, 100, 500 })
+        {
+            String[] names = new String[functionCount];
+            JCoServerFunctionHandler[] handlers = new JCoServerFunctionHandler[functionCount];
+            List<Registration> registrations = new ArrayList<Registration>();
+            DefaultServerHandlerFactory.FunctionHandlerFactory jcoFactory = new DefaultServerHandlerFactory.FunctionHandlerFactory();
+            for(int i = 0; i < functionCount; i++)
+            {
+                names[i] = String.format("Z_SALES_ORDER_%04d", i);
+                handlers[i] = handler;
+                registrations.add(new Registration(names[i], handler, false));
+                jcoFactory.registerHandler(names[i], handler);
+            }
+            EqualsChainFactory chain = new EqualsChainFactory(names, handlers);
+            HandlerDispatchTable table = new HandlerDispatchTable(null, registrations);
+
+            //the names of the calls are new strings, as received from the ABAP system
+            String[] calls = new String[4096];
+            Random random = new Random(functionCount);
+            for(int i = 0; i < calls.length; i++)
+                calls[i] = new String(names[random.nextInt(functionCount)].toCharArray());
+
+            int rounds = 2000000 / calls.length;
+            for(int warmup = 0; warmup < 3; warmup++)
+            {
+                measure(chain, ctx, calls, rounds / 4);
+                measure(jcoFactory, ctx, calls, rounds / 4);
+                measure(table, ctx, calls, rounds / 4);
+            }
+            System.out.println(String.format("%9d   %14d   %24d   %22d", functionCount, measure(chain, ctx, calls, rounds),
+                    measure(jcoFactory, ctx, calls, rounds), measure(table, ctx, calls, rounds)));
+            if(functionCount == 500)
+                System.out.println(table);
+        }
+
+        //"Aa" and "BB" have the same hash code
+        List<Registration> colliding = new ArrayList<Registration>();
+        colliding.add(new Registration("Z_Aa", handler, false));
+        colliding.add(new Registration("Z_BB", handler, false));
+        HandlerDispatchTable collisionTable = new HandlerDispatchTable(null, colliding);
+        System.out.println("\nsame hash code: Z_Aa found " + (collisionTable.getCallHandler(ctx, "Z_Aa") != null) + ", Z_BB found "
+                + (collisionTable.getCallHandler(ctx, "Z_BB") != null) + ", " + collisionTable);
+
+        //a handler declaring its functions with the annotation
+        HandlerDispatchTable annotatedTable = forAnnotated(null, new PingHandler());
+        System.out.println("annotated: Z_PING found " + (annotatedTable.getCallHandler(ctx, "Z_PING") != null) + ", " + annotatedTable);
+
+        //the stateful handlers of StatefulServerExample
+        SessionRegistry sessions = new SessionRegistry(16, "COUNTER");
+        List<Registration> statefulRegistrations = new ArrayList<Registration>();
+        statefulRegistrations.add(new Registration("Z_GET_COUNTER", new StatefulServerExample.ZGetCounterFunctionHandler(sessions), true));
+        statefulRegistrations.add(new Registration("Z_INCREMENT_COUNTER", new StatefulServerExample.ZIncrementCounterFunctionHandler(sessions),
+                true));
+        HandlerDispatchTable statefulTable = new HandlerDispatchTable(sessions, statefulRegistrations);
+        JCoFunctionTemplate template = new AbapBackendSimulator("ABAP_AS_WITH_POOL").getRepository().getFunctionTemplate("Z_INCREMENT_COUNTER");
+        SessionRegistry.runDispatch(statefulTable, template, 100, 4, 10000);
+        statefulTable.getCallHandler(ctx, "STFC_CONNECTION");
+        System.out.println("StatefulServerExample handlers: Z_INCREMENT_COUNTER stateful " + statefulTable.isStateful("Z_INCREMENT_COUNTER")
+                + ", " + statefulTable);
+    }
+}
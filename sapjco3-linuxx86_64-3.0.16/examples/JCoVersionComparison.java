@@ -0,0 +1,381 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import com.sap.conn.jco.JCo;
+import com.sap.conn.jco.JCoCustomRepository;
+import com.sap.conn.jco.JCoMetaData;
+import com.sap.conn.jco.JCoRecordMetaData;
+import com.sap.conn.jco.JCoTable;
+
+/**
+ * The repository contains several JCo drops (3.0.11-720.612, 3.0.14, sapjco3-linuxx86_64-3.0.16 and
+ * the zipped 3.0.17). JCoVersionComparison runs the same workloads with each sapjco3.jar and prints a
+ * side-by-side report of throughput, allocation rate and startup time, so that the version configured
+ * by set-linux.sh can be chosen based on measured data.
+ *
+ * Workloads:
+ * <ul>
+ *  <li>tableFillRead: appends, fills and reads a 10,000 row table created from local JCoRecordMetaData</li>
+ *  <li>templateCreation: creates the function templates of AbapBackendSimulator in a custom repository</li>
+ *  <li>repositorySaveLoad: saves this custom repository with JCoRepository.save and loads it into a new one</li>
+ * </ul>
+ *
+ * Each jar is loaded in a JVM of its own. An isolated class loader within one JVM is not sufficient:
+ * every JCo version loads libsapjco3 in its static initializer and a native library can only be
+ * bound to a single class loader. The java.library.path of each child JVM is the directory of the
+ * native library used for the jar. It is searched next to the jar and in its subdirectories (e.g.
+ * linuxx86_64 as used by set-linux.sh), then in the directory given with -lib and finally in the
+ * java.library.path of the comparing JVM. The native library row shows which library each jar ran with;
+ * jars sharing one library compare the Java part of JCo, which contains the table, metadata and
+ * repository code measured here.
+ *
+ * Startup is reported as the JVM uptime when JCo is initialized and when the first call of the first
+ * workload has completed. Warm-up and measurement of the workloads are not part of the startup rows.
+ *
+ * Usage:
+ * <pre>
+ *   java -cp sapjco3.jar:. JCoVersionComparison [-root &lt;repository&gt;] [-lib &lt;directory&gt;] [jar ...]
+ * </pre>
+ * Without jar arguments the jars bundled in the repository are compared. The repository root is found
+ * by searching upwards from the location of this class and from the working directory, or given with
+ * -root. The repository contains the native library of the Linux drops only in the zipped 3.0.17; extract
+ * it and pass its directory with -lib, or start the comparison with the same java.library.path or
+ * LD_LIBRARY_PATH as set-linux.sh configures. To include 3.0.17 itself, pass the path of its sapjco3.jar.
+ */
+public class JCoVersionComparison
+{
+    static String[] BUNDLED_JARS = { "3.0.11-720.612/sapjco3.jar", "3.0.14/sapjco3.jar", "sapjco3-linuxx86_64-3.0.16/sapjco3.jar" };
+    static String[] WORKLOADS = { "tableFillRead", "templateCreation", "repositorySaveLoad" };
+    static long WARMUP_NANOS = 2000000000L;
+    static long MEASURE_NANOS = 3000000000L;
+    static int TABLE_ROWS = 10000;
+
+    /**
+     * A workload executed in the child JVM
+     */
+    static abstract class Workload
+    {
+        /**
+         * runs the workload once
+         * @return number of executed operations
+         */
+        abstract int run() throws Exception;
+    }
+
+    static Workload createWorkload(String name) throws IOException
+    {
+        if(name.equals("tableFillRead"))
+        {
+            final JCoRecordMetaData metaData = new AbapBackendSimulator.RecordBuilder("ZVERSION_ROW")
+                .addChar("COMP_CODE", 4)
+                .addChar("COMP_NAME", 25)
+                .add("QUANTITY", JCoMetaData.TYPE_INT, 0, 0)
+                .add("AMOUNT", JCoMetaData.TYPE_BCD, 8, 2)
+                .add("POSTING_DATE", JCoMetaData.TYPE_DATE, 0, 0)
+                .lock();
+            return new Workload()
+            {
+                int run()
+                {
+                    JCoTable table = JCo.createTable(metaData);
+                    table.appendRows(TABLE_ROWS);
+                    for(int i = 0; i < TABLE_ROWS; i++)
+                    {
+                        table.setRow(i);
+                        table.setValue(0, "0001");
+                        table.setValue(1, "Company");
+                        table.setValue(2, i);
+                        table.setValue(3, i);
+                        table.setValue(4, "20161206");
+                    }
+                    long sum = 0;
+                    table.firstRow();
+                    do
+                    {
+                        sum += table.getInt(2) + table.getString(1).length();
+                    }
+                    while(table.nextRow());
+                    sink += sum;
+                    return TABLE_ROWS;
+                }
+            };
+        }
+
+        if(name.equals("templateCreation"))
+        {
+            return new Workload()
+            {
+                int run()
+                {
+                    JCoCustomRepository repository = AbapBackendSimulator.createRepository("VERSION_TEST");
+                    return repository.getCachedFunctionTemplateNames().length;
+                }
+            };
+        }
+
+        if(name.equals("repositorySaveLoad"))
+        {
+            StringWriter writer = new StringWriter();
+            AbapBackendSimulator.createRepository("VERSION_TEST").save(writer);
+            final String saved = writer.toString();
+            return new Workload()
+            {
+                int run() throws IOException
+                {
+                    JCoCustomRepository repository = JCo.createCustomRepository("VERSION_TEST_LOADED");
+                    repository.load(new StringReader(saved));
+                    StringWriter copy = new StringWriter(saved.length());
+                    repository.save(copy);
+                    return repository.getCachedFunctionTemplateNames().length;
+                }
+            };
+        }
+
+        throw new IllegalArgumentException("Unknown workload " + name);
+    }
+
+    static volatile long sink;
+
+    /**
+     * Runs all workloads in the current JVM and prints the results in properties format
+     */
+    static void runWorker() throws Exception
+    {
+        Properties results = new Properties();
+        long initStart = System.nanoTime();
+        String version = JCo.getVersion();
+        JCo.createTable(new AbapBackendSimulator.RecordBuilder("ZINIT").addChar("F", 1).lock());
+        results.setProperty("version", version);
+        results.setProperty("startup.initMillis", String.valueOf((System.nanoTime() - initStart) / 1000000));
+        results.setProperty("startup.jvmUptimeMillis", String.valueOf(ManagementFactory.getRuntimeMXBean().getUptime()));
+
+        for(String name : WORKLOADS)
+        {
+            Workload workload = createWorkload(name);
+            if(results.getProperty("startup.firstCallMillis") == null)
+            {
+                workload.run();
+                results.setProperty("startup.firstCallMillis", String.valueOf(ManagementFactory.getRuntimeMXBean().getUptime()));
+            }
+            long end = System.nanoTime() + WARMUP_NANOS;
+            while(System.nanoTime() < end)
+                workload.run();
+
+            long operations = 0;
+            long allocatedStart = ThreadSupport.getAllocatedBytes();
+            long start = System.nanoTime();
+            end = start + MEASURE_NANOS;
+            long now;
+            do
+            {
+                operations += workload.run();
+                now = System.nanoTime();
+            }
+            while(now < end);
+            long elapsed = now - start;
+            long allocated = allocatedStart >= 0 ? ThreadSupport.getAllocatedBytes() - allocatedStart : -1;
+
+            results.setProperty(name + ".opsPerSecond", String.valueOf(operations * 1000000000L / elapsed));
+            results.setProperty(name + ".bytesPerOp", String.valueOf(allocated >= 0 ? allocated / operations : -1));
+            results.setProperty(name + ".mbPerSecond", String.valueOf(allocated >= 0 ? allocated * 1000L / elapsed : -1));
+        }
+        results.store(System.out, null);
+    }
+
+    /**
+     * returns the directory of this class, which contains the compiled examples
+     */
+    static File getClassLocation()
+    {
+        try
+        {
+            return new File(JCoVersionComparison.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        }
+        catch(URISyntaxException e)
+        {
+            throw new IllegalStateException("Unable to determine the location of " + JCoVersionComparison.class.getName(), e);
+        }
+    }
+
+    /**
+     * searches the repository containing the bundled jars upwards from the class location and the working directory
+     * @return the repository root or null if not found
+     */
+    static File findRepositoryRoot()
+    {
+        File[] starts = { getClassLocation(), new File(System.getProperty("user.dir")) };
+        for(File start : starts)
+        {
+            for(File dir = start.getAbsoluteFile(); dir != null; dir = dir.getParentFile())
+            {
+                if(new File(dir, BUNDLED_JARS[0]).isFile())
+                    return dir;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * returns the directory containing the native library shipped with the jar, searched in the directory of
+     * the jar and its subdirectories
+     * @return the library directory or null if the jar comes without native library for this platform
+     */
+    static File findLibraryDirectory(File jar)
+    {
+        String library = System.mapLibraryName("sapjco3");
+        File dir = jar.getAbsoluteFile().getParentFile();
+        if(new File(dir, library).isFile())
+            return dir;
+        File[] subdirs = dir.listFiles();
+        if(subdirs == null)
+            return null;
+        Arrays.sort(subdirs);
+        for(File subdir : subdirs)
+        {
+            if(subdir.isDirectory() && new File(subdir, library).isFile())
+                return subdir;
+        }
+        return null;
+    }
+
+    /**
+     * returns the directory containing the native library in the given directory or, if it is null, in the
+     * java.library.path of this JVM
+     * @return the library directory or null if not found
+     */
+    static File findSharedLibraryDirectory(File dir)
+    {
+        String library = System.mapLibraryName("sapjco3");
+        if(dir != null)
+            return new File(dir, library).isFile() ? dir : null;
+        for(String path : System.getProperty("java.library.path", "").split(File.pathSeparator))
+        {
+            if(path.length() > 0 && new File(path, library).isFile())
+                return new File(path);
+        }
+        return null;
+    }
+
+    /**
+     * Starts a JVM for the given jar and its native library and returns the results reported by the worker
+     */
+    static Properties runJar(File jar, File libraryDirectory) throws IOException, InterruptedException
+    {
+        String examples = getClassLocation().getPath();
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-Djava.library.path=" + libraryDirectory.getPath());
+        command.add("-cp");
+        command.add(jar.getPath() + File.pathSeparator + examples);
+        command.add(JCoVersionComparison.class.getName());
+        command.add("-worker");
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        StringBuilder output = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        try
+        {
+            String line;
+            while((line = reader.readLine()) != null)
+                output.append(line).append('\n');
+        }
+        finally
+        {
+            reader.close();
+        }
+        int exitCode = process.waitFor();
+        if(exitCode != 0)
+            throw new IOException("Worker for " + jar + " failed with exit code " + exitCode + ":\n" + output);
+
+        Properties results = new Properties();
+        results.load(new StringReader(output.toString()));
+        results.setProperty("library", new File(libraryDirectory, System.mapLibraryName("sapjco3")).getPath());
+        return results;
+    }
+
+    static void printRow(String label, List<Properties> results, String key)
+    {
+        StringBuilder sb = new StringBuilder(String.format("%-38s", label));
+        for(Properties result : results)
+            sb.append(String.format(" %21s", result.getProperty(key, "n/a")));
+        System.out.println(sb.toString());
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length == 1 && args[0].equals("-worker"))
+        {
+            runWorker();
+            return;
+        }
+
+        File root = null;
+        File lib = null;
+        List<File> jars = new ArrayList<File>();
+        for(int i = 0; i < args.length; i++)
+        {
+            if(args[i].equals("-root"))
+                root = new File(args[++i]);
+            else if(args[i].equals("-lib"))
+                lib = new File(args[++i]);
+            else
+                jars.add(new File(args[i]));
+        }
+        if(jars.isEmpty())
+        {
+            if(root == null)
+                root = findRepositoryRoot();
+            if(root == null)
+                throw new IllegalArgumentException("The repository containing " + BUNDLED_JARS[0] + " was not found, use -root <repository>");
+            for(String jar : BUNDLED_JARS)
+                jars.add(new File(root, jar));
+        }
+
+        List<Properties> results = new ArrayList<Properties>();
+        for(File jar : jars)
+        {
+            if(!jar.isFile())
+                throw new IllegalArgumentException("jar " + jar + " does not exist");
+            File libraryDirectory = findLibraryDirectory(jar);
+            if(libraryDirectory == null)
+                libraryDirectory = findSharedLibraryDirectory(lib);
+            if(libraryDirectory == null)
+            {
+                System.out.println(">>> skipping " + jar + ": no " + System.mapLibraryName("sapjco3") + " next to the jar, "
+                        + (lib != null ? "in " + lib : "in java.library.path"));
+                continue;
+            }
+            System.out.println(">>> measuring " + jar + " with " + libraryDirectory);
+            results.add(runJar(jar, libraryDirectory));
+        }
+        System.out.println();
+        if(results.isEmpty())
+        {
+            System.out.println("No native library found. Pass the directory containing " + System.mapLibraryName("sapjco3")
+                    + " with -lib, set java.library.path or extract the SAP download of each version next to its sapjco3.jar.");
+            return;
+        }
+
+        printRow("JCo version", results, "version");
+        printRow("native library", results, "library");
+        printRow("startup: JVM start to JCo (ms)", results, "startup.jvmUptimeMillis");
+        printRow("startup: JCo init (ms)", results, "startup.initMillis");
+        printRow("startup: JVM start to first call (ms)", results, "startup.firstCallMillis");
+        for(String workload : WORKLOADS)
+        {
+            printRow(workload + " (ops/s)", results, workload + ".opsPerSecond");
+            printRow(workload + " (bytes/op)", results, workload + ".bytesPerOp");
+            printRow(workload + " (MB/s allocated)", results, workload + ".mbPerSecond");
+        }
+    }
+}
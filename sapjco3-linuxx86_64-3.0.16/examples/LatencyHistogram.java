@@ -0,0 +1,152 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram with log-linear buckets, used by the monitoring examples to record
+ * the duration of repository lookups and function calls without synchronizing the recording threads.
+ *
+ * Values below 16 microseconds have a bucket per microsecond, bucket 0 counting values below
+ * 1 microsecond. Each larger power of two, from 2^m up to 2^(m+1) microseconds, is split into 16 buckets
+ * of equal width. The last bucket also counts all larger values, so the upper bound of the histogram is
+ * about 36 minutes. Percentiles are reported as the upper bound of the bucket containing them, which
+ * overestimates them by at most 1/16, i.e. 6.25 percent.
+ *
+ * The bucket counts are striped: each recording thread increments the counts of one of up to 8 copies,
+ * selected by its thread id, so server threads recording similar durations do not contend on the same
+ * counter. The count and the sum of the durations are LongAdders. A recording therefore updates no
+ * field shared by all threads; the copies are added up when the histogram is read.
+ */
+public class LatencyHistogram
+{
+    static final int SUB_BUCKETS = 16;
+    static final int BUCKETS = SUB_BUCKETS * 28;
+    static final int STRIPES;
+
+    static
+    {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while(stripes < processors && stripes < 8)
+            stripes <<= 1;
+        STRIPES = stripes;
+    }
+
+    private AtomicLongArray counts = new AtomicLongArray(BUCKETS * STRIPES);
+    private LongAdder count = new LongAdder();
+    private LongAdder totalNanos = new LongAdder();
+
+    /**
+     * returns the bucket the value in microseconds belongs to
+     */
+    static int bucket(long micros)
+    {
+        if(micros < SUB_BUCKETS)
+            return micros <= 0 ? 0 : (int)micros;
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+        //the 4 bits below the highest one bit select the bucket within the power of two
+        int bucket = SUB_BUCKETS * (magnitude - 3) + (int)(micros >>> (magnitude - 4)) - SUB_BUCKETS;
+        return Math.min(BUCKETS - 1, bucket);
+    }
+
+    /**
+     * returns the exclusive upper bound of the bucket in microseconds
+     */
+    public static long getUpperBound(int bucket)
+    {
+        int group = bucket / SUB_BUCKETS;
+        if(group == 0)
+            return bucket + 1;
+        return (long)(SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << (group - 1);
+    }
+
+    public void record(long duration, TimeUnit unit)
+    {
+        record(duration, unit, 1);
+    }
+
+    /**
+     * Records a duration standing for weight durations, e.g. a sample taken from one of weight events, so
+     * that the percentiles of sampled and fully recorded durations can be combined in one histogram
+     */
+    public void record(long duration, TimeUnit unit, long weight)
+    {
+        long nanos = unit.toNanos(duration);
+        int stripe = (int)Thread.currentThread().getId() & (STRIPES - 1);
+        counts.addAndGet(stripe * BUCKETS + bucket(TimeUnit.NANOSECONDS.toMicros(nanos)), weight);
+        count.add(weight);
+        totalNanos.add(nanos * weight);
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    /**
+     * returns the sum of all recorded durations
+     */
+    public long getTotal(TimeUnit unit)
+    {
+        return unit.convert(totalNanos.sum(), TimeUnit.NANOSECONDS);
+    }
+
+    public long getMean(TimeUnit unit)
+    {
+        long n = count.sum();
+        return n > 0 ? unit.convert(totalNanos.sum() / n, TimeUnit.NANOSECONDS) : 0;
+    }
+
+    /**
+     * returns a copy of the bucket counts, added up over the stripes
+     */
+    public long[] getCounts()
+    {
+        long[] copy = new long[BUCKETS];
+        for(int stripe = 0; stripe < STRIPES; stripe++)
+            for(int i = 0; i < BUCKETS; i++)
+                copy[i] += counts.get(stripe * BUCKETS + i);
+        return copy;
+    }
+
+    /**
+     * returns the upper bound of the bucket containing the percentile in microseconds
+     * @param percentile percentile between 0 and 100
+     */
+    public long getPercentile(double percentile)
+    {
+        long[] copy = getCounts();
+        long total = 0;
+        for(long n : copy)
+            total += n;
+        if(total == 0)
+            return 0;
+
+        long rank = (long)Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++)
+        {
+            seen += copy[i];
+            if(seen >= rank && copy[i] > 0)
+                return getUpperBound(i);
+        }
+        return getUpperBound(BUCKETS - 1);
+    }
+
+    public void reset()
+    {
+        for(int i = 0; i < counts.length(); i++)
+            counts.set(i, 0);
+        count.reset();
+        totalNanos.reset();
+    }
+
+    /**
+     * returns count, mean and percentiles in microseconds
+     */
+    public String toString()
+    {
+        return "count " + getCount() + ", mean " + getMean(TimeUnit.MICROSECONDS) + " us, p50 <" + getPercentile(50)
+                + " us, p99 <" + getPercentile(99) + " us, max <" + getPercentile(100) + " us";
+    }
+}
@@ -0,0 +1,290 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log in a memory-mapped file with group commit, used by TIDStore and BackgroundUnitHandler
+ * to keep their state across restarts.
+ *
+ * A record consists of its length, its content and a CRC32 checksum. When the log is opened, the records are
+ * passed to a RecordVisitor up to the first incomplete record, which the system may have left behind when it
+ * crashed during an append. append returns a sequence number; awaitDurable(seq) returns after the record was
+ * forced to disk. The first thread waiting forces all records appended so far, threads arriving meanwhile
+ * are covered by the next force (group commit).
+ *
+ * When the log is full, it is compacted: the records still needed, provided by LiveRecords, are written to a
+ * new file, which is forced and atomically moved over the log; then the directory is forced, so the rename
+ * itself survives a crash before the appended records are reported as durable. The new log has four times
+ * the size of the live records, so compaction runs rarely. The appends are synchronized on the log; callers
+ * may synchronize on it as well, to change their state atomically with an append, so a compaction sees the
+ * state consistent with the records.
+ *
+ * Note: the compaction renames the new file over the mapped old one and forces the directory by opening it
+ * for reading, which requires a file system allowing both, as on Linux and other Unix systems.
+ */
+class MappedAppendLog
+{
+    /**
+     * Receives the records when the log is opened
+     */
+    interface RecordVisitor
+    {
+        void visit(byte[] record, int length) throws IOException;
+    }
+
+    /**
+     * Provides the records to be kept by a compaction; called while the log is locked
+     */
+    interface LiveRecords
+    {
+        List<byte[]> collect();
+    }
+
+    private File file;
+    private LiveRecords liveRecords;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer log;
+    private int position;
+    private long appendedSeq;
+    private CRC32 crc = new CRC32();
+
+    private Object flushLock = new Object();
+    private long durableSeq;
+    private boolean flushing;
+
+    private AtomicLong forces = new AtomicLong();
+    private AtomicInteger compactions = new AtomicInteger();
+
+    /**
+     * Opens the log and passes its records to the visitor
+     * @param file log file, created if it does not exist
+     * @param initialSize initial size of the log in bytes
+     * @param visitor receives the records of an existing log
+     * @param liveRecords provides the records to be kept, when the log is compacted
+     * @throws IOException if the log cannot be mapped or the visitor failed
+     */
+    MappedAppendLog(File file, int initialSize, RecordVisitor visitor, LiveRecords liveRecords) throws IOException
+    {
+        this.file = file;
+        this.liveRecords = liveRecords;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        long size = Math.max(Math.max(initialSize, 4096), raf.length());
+        this.log = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        recover(visitor);
+    }
+
+    synchronized void recover(RecordVisitor visitor) throws IOException
+    {
+        int offset = 0;
+        byte[] record = new byte[256];
+        while(offset + 8 <= log.capacity())
+        {
+            int length = log.getInt(offset);
+            if(length <= 0 || offset + 8L + length > log.capacity())
+                break;
+            if(record.length < length)
+                record = new byte[length];
+            log.position(offset + 4);
+            log.get(record, 0, length);
+            crc.reset();
+            crc.update(record, 0, length);
+            if(log.getInt(offset + 4 + length) != (int)crc.getValue())
+                break;
+            visitor.visit(record, length);
+            offset += 8 + length;
+        }
+        position = offset;
+        //clears the length of a partially written record, so it cannot be mistaken for a valid one later
+        if(offset + 4 <= log.capacity())
+            log.putInt(offset, 0);
+    }
+
+    /**
+     * Appends a record
+     * @return the sequence number to be passed to awaitDurable
+     * @throws IOException if the log had to be compacted and this failed
+     */
+    synchronized long append(byte[] record, int length) throws IOException
+    {
+        if(length <= 0)
+            throw new IllegalArgumentException("record must not be empty");
+        if(position + 12L + length > log.capacity())
+            compact(8 + length);
+        position += writeRecord(log, position, record, length);
+        //marks the end of the log
+        log.putInt(position, 0);
+        return ++appendedSeq;
+    }
+
+    int writeRecord(MappedByteBuffer buffer, int offset, byte[] record, int length)
+    {
+        crc.reset();
+        crc.update(record, 0, length);
+        buffer.position(offset);
+        buffer.putInt(length);
+        buffer.put(record, 0, length);
+        buffer.putInt((int)crc.getValue());
+        return 8 + length;
+    }
+
+    /**
+     * Waits until the record with the given sequence number was forced to disk
+     * @throws RuntimeException if the thread was interrupted
+     */
+    void awaitDurable(long seq)
+    {
+        while(true)
+        {
+            synchronized(flushLock)
+            {
+                while(durableSeq < seq && flushing)
+                {
+                    try
+                    {
+                        flushLock.wait();
+                    }
+                    catch(InterruptedException ie)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException("Interrupted while waiting for the log " + file);
+                    }
+                }
+                if(durableSeq >= seq)
+                    return;
+                flushing = true;
+            }
+
+            long target;
+            MappedByteBuffer buffer;
+            synchronized(this)
+            {
+                target = appendedSeq;
+                buffer = log;
+            }
+            boolean forced = false;
+            try
+            {
+                buffer.force();
+                forces.incrementAndGet();
+                forced = true;
+            }
+            finally
+            {
+                synchronized(flushLock)
+                {
+                    flushing = false;
+                    if(forced)
+                        durableSeq = Math.max(durableSeq, target);
+                    flushLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * writes the live records to a new log and replaces the old one
+     */
+    void compact(int required) throws IOException
+    {
+        List<byte[]> live = liveRecords.collect();
+        long liveBytes = 0;
+        for(byte[] record : live)
+            liveBytes += 8 + record.length;
+
+        long size = log.capacity();
+        while(size < (liveBytes + required + 4) * 4)
+            size *= 2;
+        if(size > Integer.MAX_VALUE)
+            throw new IOException("Log " + file + " exceeds 2 GB");
+
+        File compacted = new File(file.getPath() + ".compact");
+        RandomAccessFile newRaf = new RandomAccessFile(compacted, "rw");
+        newRaf.setLength(0);
+        FileChannel newChannel = newRaf.getChannel();
+        MappedByteBuffer newLog = newChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        int offset = 0;
+        for(byte[] record : live)
+            offset += writeRecord(newLog, offset, record, record.length);
+        newLog.force();
+        try
+        {
+            Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(IOException e)
+        {
+            newChannel.close();
+            newRaf.close();
+            throw new IOException("Unable to replace " + file + " by " + compacted, e);
+        }
+
+        channel.close();
+        raf.close();
+        raf = newRaf;
+        channel = newChannel;
+        log = newLog;
+        position = offset;
+        compactions.incrementAndGet();
+
+        //the rename is only durable after the directory was forced
+        FileChannel directory = FileChannel.open(file.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ);
+        try
+        {
+            directory.force(true);
+        }
+        finally
+        {
+            directory.close();
+        }
+        forces.incrementAndGet();
+        //the records appended so far are durable in the new log, if the caller provided them as live
+        synchronized(flushLock)
+        {
+            durableSeq = Math.max(durableSeq, appendedSeq);
+            flushLock.notifyAll();
+        }
+    }
+
+    /**
+     * returns the number of times the log was forced to disk
+     */
+    long getForceCount()
+    {
+        return forces.get();
+    }
+
+    int getCompactionCount()
+    {
+        return compactions.get();
+    }
+
+    synchronized long getSize()
+    {
+        return log.capacity();
+    }
+
+    /**
+     * Forces the log and closes the file
+     */
+    synchronized void close() throws IOException
+    {
+        log.force();
+        channel.close();
+        raf.close();
+    }
+
+    public String toString()
+    {
+        return file + ": " + forces.get() + " forces, " + compactions.get() + " compactions, log size " + getSize();
+    }
+}
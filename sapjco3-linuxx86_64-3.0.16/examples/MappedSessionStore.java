@@ -0,0 +1,349 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MappedSessionStore is a SessionRegistry.SessionStore keeping passivated sessions in a memory-mapped
+ * file. Long-lived ABAP sessions of StatefulServerExample hold their data on the heap until sessionClosed
+ * is called; with this store the idle sessions are moved to the file and only an index entry per session
+ * stays on the heap.
+ *
+ * A session is serialized into one record: its id, the values of the counter slots and, if present, the
+ * other session data written with Java serialization. Records are appended to the mapped region. When a
+ * session is restored or removed, only its index entry is dropped. If the region is full, the remaining
+ * records are compacted to its beginning; if more than half of it is still in use, the file is doubled.
+ *
+ * The index entry keeps the time of the passivation, and the index is ordered by it. expire drops the
+ * sessions passivated before a deadline, i.e. the sessions the ABAP side never closed and never used
+ * again, starting with the oldest; it stops at the first session passivated later.
+ *
+ * Sessions whose data is not serializable stay in memory. The file is only a spill area: it is recreated
+ * when the store is opened, because the ABAP sessions do not survive a restart of the server anyway.
+ *
+ * Note: the store methods are synchronized. Passivation and restoration only happen for idle sessions,
+ * so they are rare compared to the calls served from the resident sessions.
+ */
+public class MappedSessionStore implements SessionRegistry.SessionStore
+{
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int position;
+    private long usedBytes;
+    private LinkedHashMap<String, Entry> index = new LinkedHashMap<String, Entry>();
+    private long compactions;
+
+    /**
+     * Index entry of a passivated session
+     */
+    static class Entry
+    {
+        int offset;
+        long passivated;
+
+        Entry(int offset, long passivated)
+        {
+            this.offset = offset;
+            this.passivated = passivated;
+        }
+    }
+
+    /**
+     * Creates a store, an existing file is overwritten
+     * @param file file holding the passivated sessions
+     * @param initialSize initial size of the mapped region in bytes
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public MappedSessionStore(File file, int initialSize) throws IOException
+    {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        this.channel = raf.getChannel();
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(initialSize, 4096));
+    }
+
+    public synchronized boolean passivate(SessionRegistry.Session session)
+    {
+        byte[] record;
+        try
+        {
+            record = serialize(session);
+        }
+        catch(IOException e)
+        {
+            //e.g. a NotSerializableException, the session stays in memory
+            return false;
+        }
+
+        try
+        {
+            ensureCapacity(4 + record.length);
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException("Unable to extend the session store " + file, e);
+        }
+        //removed first, so the index stays ordered by the passivation time
+        Entry previous = index.remove(session.getId());
+        if(previous != null)
+            usedBytes -= 4 + buffer.getInt(previous.offset);
+        index.put(session.getId(), new Entry(position, System.currentTimeMillis()));
+        buffer.putInt(position, record.length);
+        buffer.position(position + 4);
+        buffer.put(record);
+        position += 4 + record.length;
+        usedBytes += 4 + record.length;
+        return true;
+    }
+
+    public synchronized SessionRegistry.Session activate(String sessionId, String[] counterNames)
+    {
+        Entry entry = index.remove(sessionId);
+        if(entry == null)
+            return null;
+        byte[] record = new byte[buffer.getInt(entry.offset)];
+        buffer.position(entry.offset + 4);
+        buffer.get(record);
+        usedBytes -= 4 + record.length;
+        try
+        {
+            return deserialize(record, counterNames);
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException("Unable to restore session " + sessionId + " from " + file, e);
+        }
+        catch(ClassNotFoundException e)
+        {
+            throw new RuntimeException("Unable to restore session " + sessionId + " from " + file, e);
+        }
+    }
+
+    public synchronized void remove(String sessionId)
+    {
+        Entry entry = index.remove(sessionId);
+        if(entry != null)
+            usedBytes -= 4 + buffer.getInt(entry.offset);
+    }
+
+    public synchronized int expire(long deadline)
+    {
+        int count = 0;
+        Iterator<Entry> entries = index.values().iterator();
+        while(entries.hasNext())
+        {
+            Entry entry = entries.next();
+            if(entry.passivated >= deadline)
+                break;
+            usedBytes -= 4 + buffer.getInt(entry.offset);
+            entries.remove();
+            count++;
+        }
+        return count;
+    }
+
+    static byte[] serialize(SessionRegistry.Session session) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(session.getId());
+        int counterCount = session.getCounterNames().length;
+        out.writeInt(counterCount);
+        for(int i = 0; i < counterCount; i++)
+            out.writeLong(session.get(i));
+        if(session.hasAttributes())
+        {
+            out.writeBoolean(true);
+            ObjectOutputStream objects = new ObjectOutputStream(out);
+            objects.writeObject(new HashMap<String, Object>(session.getAttributes()));
+            objects.flush();
+        }
+        else
+            out.writeBoolean(false);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    static SessionRegistry.Session deserialize(byte[] record, String[] counterNames) throws IOException, ClassNotFoundException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        String id = in.readUTF();
+        int counterCount = in.readInt();
+        if(counterCount != counterNames.length)
+            throw new IOException("Session " + id + " was stored with " + counterCount + " counters, expected are " + counterNames.length);
+        long[] counters = new long[counterCount];
+        for(int i = 0; i < counterCount; i++)
+            counters[i] = in.readLong();
+        Map<String, Object> attributes = null;
+        if(in.readBoolean())
+            attributes = (Map<String, Object>)new ObjectInputStream(in).readObject();
+        return new SessionRegistry.Session(id, counterNames, counters, attributes);
+    }
+
+    void ensureCapacity(int length) throws IOException
+    {
+        if(position + length <= buffer.capacity())
+            return;
+        compact();
+        if(usedBytes + length <= buffer.capacity() / 2)
+            return;
+        long size = buffer.capacity();
+        while(size < (usedBytes + length) * 2)
+            size *= 2;
+        if(size > Integer.MAX_VALUE)
+            throw new IOException("Session store " + file + " exceeds 2 GB");
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * moves the records in use to the beginning of the region, in the order of their offsets
+     */
+    void compact()
+    {
+        List<Entry> entries = new ArrayList<Entry>(index.values());
+        Collections.sort(entries, new Comparator<Entry>()
+        {
+            public int compare(Entry a, Entry b)
+            {
+                return a.offset < b.offset ? -1 : (a.offset == b.offset ? 0 : 1);
+            }
+        });
+        int target = 0;
+        byte[] copy = new byte[256];
+        for(Entry entry : entries)
+        {
+            int source = entry.offset;
+            int length = 4 + buffer.getInt(source);
+            if(source != target)
+            {
+                if(copy.length < length)
+                    copy = new byte[length];
+                buffer.position(source);
+                buffer.get(copy, 0, length);
+                buffer.position(target);
+                buffer.put(copy, 0, length);
+                entry.offset = target;
+            }
+            target += length;
+        }
+        position = target;
+        compactions++;
+    }
+
+    /**
+     * returns the number of passivated sessions
+     */
+    public synchronized int size()
+    {
+        return index.size();
+    }
+
+    /**
+     * returns the bytes of the passivated sessions
+     */
+    public synchronized long getUsedBytes()
+    {
+        return usedBytes;
+    }
+
+    /**
+     * returns the size of the mapped region
+     */
+    public synchronized long getMappedSize()
+    {
+        return buffer.capacity();
+    }
+
+    public synchronized long getCompactionCount()
+    {
+        return compactions;
+    }
+
+    /**
+     * Closes and deletes the file. The mapped region is released by the garbage collector.
+     */
+    public synchronized void close() throws IOException
+    {
+        index.clear();
+        channel.close();
+        raf.close();
+        file.delete();
+    }
+
+    public synchronized String toString()
+    {
+        return file + ": " + index.size() + " sessions, " + usedBytes + " of " + buffer.capacity() + " bytes used, " + compactions + " compactions";
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        File file = File.createTempFile("sessions", ".map");
+        MappedSessionStore store = new MappedSessionStore(file, 64 * 1024);
+        SessionRegistry registry = new SessionRegistry(16, "COUNTER");
+        registry.setSessionStore(store);
+        registry.setMaxResidentSessions(1000);
+        int counterSlot = registry.getSlot("COUNTER");
+
+        //10,000 sessions, a third of them with data besides the counter
+        int sessionCount = 10000;
+        for(int i = 0; i < sessionCount; i++)
+        {
+            SessionRegistry.Session session = registry.getOrCreate("SESSION-" + i);
+            session.add(counterSlot, i);
+            if(i % 3 == 0)
+                session.getAttributes().put("USER", "USER" + i);
+            session.release();
+        }
+        System.out.println("after creation: " + registry.size() + " resident, " + registry.getPassivatedCount() + " passivated, " + store);
+
+        //the resident sessions are idle as well
+        registry.evictIdle(0, TimeUnit.MILLISECONDS);
+        System.out.println("after idle eviction: " + registry.size() + " resident, " + store);
+
+        int errors = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < sessionCount; i++)
+        {
+            SessionRegistry.Session session = registry.get("SESSION-" + i);
+            if(session == null || session.increment(counterSlot) != i + 1
+                    || (i % 3 == 0) != "USER".concat(String.valueOf(i)).equals(session.getAttributes().get("USER")))
+                errors++;
+            if(session != null)
+                session.release();
+        }
+        System.out.println("restored " + sessionCount + " sessions in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, "
+                + errors + " errors, " + registry.getActivatedCount() + " activations, " + registry.size() + " resident, " + store);
+
+        //half of the sessions are closed, the ABAP side never comes back for the other half
+        for(int i = 0; i < sessionCount; i += 2)
+            registry.remove("SESSION-" + i);
+        registry.evictIdle(0, TimeUnit.MILLISECONDS);
+        System.out.println("after closing half of the sessions: " + registry.size() + " resident, " + store);
+        Thread.sleep(10);
+        int expired = registry.expirePassivated(0, TimeUnit.MILLISECONDS);
+        SessionRegistry.Session expiredSession = registry.get("SESSION-1");
+        System.out.println("after expiring the passivated sessions: " + expired + " expired, " + expiredSession + " found for SESSION-1, "
+                + store);
+        store.close();
+    }
+}
@@ -0,0 +1,281 @@
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.sap.conn.jco.JCoException;
+import com.sap.conn.jco.JCoFunction;
+import com.sap.conn.jco.JCoFunctionTemplate;
+import com.sap.conn.jco.JCoTable;
+
+/**
+ * StepByStepClient.step4WorkWithTable reads the whole COMPANYCODE_LIST in one call. For large selections
+ * the complete result has to fit into memory at once, otherwise JCo fails with an OutOfNativeMemoryError
+ * or the heap is exhausted.
+ *
+ * PagedTableReader executes a function repeatedly, each time for the next page of rows, and passes the
+ * pages to a PageConsumer. How a page is requested and where its rows are returned is defined by a
+ * PageRequest; readTable creates the PageRequest for RFC_READ_TABLE using ROWSKIPS and ROWCOUNT.
+ *
+ * While the consumer processes a page, the next page is already requested in a background thread, so the
+ * call latency overlaps with the processing. Prefetching keeps two pages in memory, therefore it is only
+ * used, if two pages fit into the configured maximum of resident rows. Otherwise the pages are read one
+ * after the other. The last page is detected by a page containing less rows than requested.
+ *
+ * The main function reads ZSIM_DOCUMENTS from AbapBackendSimulator, so no ABAP system is required. After a
+ * warm-up round it alternates sequential and prefetching reads for several rounds and reports the median
+ * time of each, so neither mode is measured only with cold code or only after the other one.
+ */
+public class PagedTableReader
+{
+    /**
+     * Sets the imports of a page and returns the rows of the executed page
+     */
+    interface PageRequest
+    {
+        void setPage(JCoFunction function, int firstRow, int rowCount);
+
+        JCoTable getRows(JCoFunction function);
+    }
+
+    /**
+     * Processes the pages in row order
+     */
+    interface PageConsumer
+    {
+        /**
+         * @param rows rows of the page; the table must not be used after the method returned
+         * @param firstRow index of the first row of the page in the whole result
+         * @return false to stop reading
+         */
+        boolean accept(JCoTable rows, int firstRow);
+    }
+
+    /**
+     * Creates a PageRequest for RFC_READ_TABLE
+     * @param tableName name of the database table
+     * @param delimiter field delimiter in the DATA rows or null for fixed positions
+     * @param fieldNames selected fields or none for all fields
+     */
+    static PageRequest readTable(final String tableName, final String delimiter, final String... fieldNames)
+    {
+        return new PageRequest()
+        {
+            public void setPage(JCoFunction function, int firstRow, int rowCount)
+            {
+                function.getImportParameterList().setValue("QUERY_TABLE", tableName);
+                if(delimiter != null)
+                    function.getImportParameterList().setValue("DELIMITER", delimiter);
+                function.getImportParameterList().setValue("ROWSKIPS", firstRow);
+                function.getImportParameterList().setValue("ROWCOUNT", rowCount);
+                JCoTable fields = function.getTableParameterList().getTable("FIELDS");
+                for(String fieldName : fieldNames)
+                {
+                    fields.appendRow();
+                    fields.setValue("FIELDNAME", fieldName);
+                }
+            }
+
+            public JCoTable getRows(JCoFunction function)
+            {
+                return function.getTableParameterList().getTable("DATA");
+            }
+        };
+    }
+
+    private FunctionExecutor executor;
+    private JCoFunctionTemplate template;
+    private PageRequest request;
+    private int pageSize;
+    private boolean prefetch;
+    private ExecutorService prefetcher;
+
+    /**
+     * Creates a paged reader
+     * @param executor destination or simulator executing the calls
+     * @param template template of the function returning the pages
+     * @param request sets the page imports and returns the page rows
+     * @param pageSize number of rows requested per call
+     * @param maxResidentRows maximum number of rows kept in memory, at least pageSize;
+     *        the next page is prefetched only, if it is at least twice the page size
+     */
+    public PagedTableReader(FunctionExecutor executor, JCoFunctionTemplate template, PageRequest request,
+            int pageSize, int maxResidentRows)
+    {
+        if(pageSize < 1 || maxResidentRows < pageSize)
+            throw new IllegalArgumentException("page size " + pageSize + " must be positive and not exceed the maximum of resident rows "
+                    + maxResidentRows);
+        this.executor = executor;
+        this.template = template;
+        this.request = request;
+        this.pageSize = pageSize;
+        this.prefetch = maxResidentRows >= 2 * pageSize;
+        if(prefetch)
+        {
+            prefetcher = Executors.newSingleThreadExecutor(ThreadSupport.createThreadFactory("PagedTableReader-" + executor.getName()));
+        }
+    }
+
+    public boolean isPrefetching()
+    {
+        return prefetch;
+    }
+
+    /**
+     * Reads all pages, or until the consumer stops the reading
+     * @param consumer processes the pages in row order
+     * @return number of rows passed to the consumer
+     * @throws JCoException if a call failed
+     * @throws InterruptedException if the calling thread was interrupted while waiting for a page
+     */
+    public long read(PageConsumer consumer) throws JCoException, InterruptedException
+    {
+        long rows = 0;
+        int firstRow = 0;
+        Future<JCoFunction> next = prefetch ? prefetcher.submit(createCall(firstRow)) : null;
+        try
+        {
+            while(true)
+            {
+                JCoFunction function = prefetch ? getPage(next) : executePage(firstRow);
+                next = null;
+                JCoTable page = request.getRows(function);
+                int pageRows = page.getNumRows();
+                boolean last = pageRows < pageSize;
+                if(prefetch && !last)
+                    next = prefetcher.submit(createCall(firstRow + pageRows));
+
+                rows += pageRows;
+                if(pageRows > 0 && !consumer.accept(page, firstRow))
+                    return rows;
+                if(last)
+                    return rows;
+                firstRow += pageRows;
+            }
+        }
+        finally
+        {
+            if(next != null)
+                next.cancel(true);
+        }
+    }
+
+    Callable<JCoFunction> createCall(final int firstRow)
+    {
+        return new Callable<JCoFunction>()
+        {
+            public JCoFunction call() throws JCoException
+            {
+                return executePage(firstRow);
+            }
+        };
+    }
+
+    JCoFunction executePage(int firstRow) throws JCoException
+    {
+        JCoFunction function = template.getFunction();
+        request.setPage(function, firstRow, pageSize);
+        executor.execute(function);
+        return function;
+    }
+
+    static JCoFunction getPage(Future<JCoFunction> future) throws JCoException, InterruptedException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch(ExecutionException ee)
+        {
+            Throwable cause = ee.getCause();
+            if(cause instanceof JCoException)
+                throw (JCoException)cause;
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Stops the prefetching thread
+     */
+    public void shutdown()
+    {
+        if(prefetcher != null)
+            prefetcher.shutdown();
+    }
+
+    /**
+     * reads all documents and returns the elapsed time in nanoseconds
+     */
+    static long readDocuments(AbapBackendSimulator simulator, int pageSize, int maxResidentRows) throws JCoException, InterruptedException
+    {
+        PagedTableReader reader = new PagedTableReader(simulator, simulator.getRepository().getFunctionTemplate("RFC_READ_TABLE"),
+                readTable("ZSIM_DOCUMENTS", "|", "BELNR", "BUKRS", "WRBTR"), pageSize, maxResidentRows);
+        final long[] sum = new long[1];
+        final int[] maxPageRows = new int[1];
+        try
+        {
+            long start = System.nanoTime();
+            long rows = reader.read(new PageConsumer()
+            {
+                public boolean accept(JCoTable page, int firstRow)
+                {
+                    maxPageRows[0] = Math.max(maxPageRows[0], page.getNumRows());
+                    for(int i = 0; i < page.getNumRows(); i++)
+                    {
+                        page.setRow(i);
+                        String wa = page.getString(0);
+                        String amount = wa.substring(wa.lastIndexOf('|') + 1).trim();
+                        sum[0] += Long.parseLong(amount.replace(".", ""));
+                    }
+                    return true;
+                }
+            });
+            long elapsed = System.nanoTime() - start;
+            System.out.println((reader.isPrefetching() ? "  prefetching: " : "  sequential:  ") + rows + " rows in "
+                    + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms, at most " + maxPageRows[0] + " rows per page, checksum " + sum[0]);
+            return elapsed;
+        }
+        finally
+        {
+            reader.shutdown();
+        }
+    }
+
+    public static void main(String[] args) throws JCoException, InterruptedException
+    {
+        AbapBackendSimulator simulator = new AbapBackendSimulator("ABAP_AS_WITH_POOL");
+        simulator.setDocumentCount(200000);
+        simulator.setLatency(30, 10, TimeUnit.MILLISECONDS);
+
+        int rounds = 5;
+        long[] sequential = new long[rounds];
+        long[] prefetching = new long[rounds];
+        System.out.println("warm-up");
+        readDocuments(simulator, 10000, 10000);
+        readDocuments(simulator, 10000, 20000);
+        for(int round = 0; round < rounds; round++)
+        {
+            System.out.println("round " + (round + 1));
+            //alternate the order, so that neither mode always runs first
+            if(round % 2 == 0)
+            {
+                sequential[round] = readDocuments(simulator, 10000, 10000);
+                prefetching[round] = readDocuments(simulator, 10000, 20000);
+            }
+            else
+            {
+                prefetching[round] = readDocuments(simulator, 10000, 20000);
+                sequential[round] = readDocuments(simulator, 10000, 10000);
+            }
+        }
+        Arrays.sort(sequential);
+        Arrays.sort(prefetching);
+        System.out.println("median of " + rounds + " rounds: sequential " + TimeUnit.NANOSECONDS.toMillis(sequential[rounds / 2])
+                + " ms, prefetching " + TimeUnit.NANOSECONDS.toMillis(prefetching[rounds / 2]) + " ms");
+    }
+}
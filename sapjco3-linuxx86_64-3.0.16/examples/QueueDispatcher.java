@@ -0,0 +1,347 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes the items of named queues in a pool of threads: the items of one queue are processed one after
+ * the other in the order they were added, different queues are processed in parallel. This is how an ABAP
+ * system schedules its qRFC inbound queues, and BackgroundUnitHandler uses it for the units it received.
+ *
+ * A queue is scheduled in the pool while it has items. A thread processes up to batchSize items of the queue
+ * and then schedules it again behind the other queues, so a long queue cannot starve the short ones. If
+ * processing an item fails, the queue stops with this item at its head, as a qRFC queue stops in state
+ * SYSFAIL, until resume is called. Items added with the queue name null are not ordered; they are processed
+ * in parallel, and failed ones are kept aside until resume(null).
+ *
+ * For each queue the number of processed and failed items, the depth and a histogram of the lag, the time
+ * between adding an item and the end of its processing, are recorded.
+ */
+public class QueueDispatcher<T>
+{
+    /**
+     * Processes the items of the queues
+     */
+    public interface Processor<T>
+    {
+        void process(String queueName, T item) throws Exception;
+    }
+
+    static final String UNORDERED = "<unordered>";
+
+    static class Entry<T>
+    {
+        T item;
+        long added = System.nanoTime();
+
+        Entry(T item)
+        {
+            this.item = item;
+        }
+    }
+
+    public class Queue implements Runnable
+    {
+        private String name;
+        private boolean ordered;
+        private ConcurrentLinkedQueue<Entry<T>> entries = new ConcurrentLinkedQueue<Entry<T>>();
+        private ConcurrentLinkedQueue<Entry<T>> failedEntries = new ConcurrentLinkedQueue<Entry<T>>();
+        private AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean blocked;
+        private volatile Exception lastFailure;
+        private AtomicLong added = new AtomicLong();
+        private AtomicLong processed = new AtomicLong();
+        private AtomicLong failures = new AtomicLong();
+        private LatencyHistogram lag = new LatencyHistogram();
+        private long reportedCount;
+        private long reportedNanos = System.nanoTime();
+
+        Queue(String name, boolean ordered)
+        {
+            this.name = name;
+            this.ordered = ordered;
+        }
+
+        void add(final Entry<T> entry)
+        {
+            added.incrementAndGet();
+            if(ordered)
+            {
+                entries.offer(entry);
+                schedule();
+            }
+            else
+                submit(entry);
+        }
+
+        void submit(final Entry<T> entry)
+        {
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    if(!process(entry))
+                        failedEntries.offer(entry);
+                }
+            });
+        }
+
+        void schedule()
+        {
+            if(!blocked && !entries.isEmpty() && scheduled.compareAndSet(false, true))
+                executor.execute(this);
+        }
+
+        public void run()
+        {
+            try
+            {
+                for(int i = 0; i < batchSize && !blocked; i++)
+                {
+                    Entry<T> entry = entries.peek();
+                    if(entry == null || !process(entry))
+                        break;
+                    entries.poll();
+                }
+            }
+            finally
+            {
+                scheduled.set(false);
+            }
+            //an item added after the last peek would otherwise not be processed
+            schedule();
+        }
+
+        boolean process(Entry<T> entry)
+        {
+            try
+            {
+                processor.process(ordered ? name : null, entry.item);
+            }
+            catch(Exception e)
+            {
+                failures.incrementAndGet();
+                lastFailure = e;
+                if(ordered)
+                    blocked = true;
+                return false;
+            }
+            processed.incrementAndGet();
+            lag.record(System.nanoTime() - entry.added, TimeUnit.NANOSECONDS);
+            return true;
+        }
+
+        void resume()
+        {
+            lastFailure = null;
+            if(ordered)
+            {
+                blocked = false;
+                schedule();
+            }
+            else
+            {
+                Entry<T> entry;
+                while((entry = failedEntries.poll()) != null)
+                    submit(entry);
+            }
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public boolean isBlocked()
+        {
+            return blocked || !failedEntries.isEmpty();
+        }
+
+        public Exception getLastFailure()
+        {
+            return lastFailure;
+        }
+
+        public long getProcessedCount()
+        {
+            return processed.get();
+        }
+
+        public long getFailureCount()
+        {
+            return failures.get();
+        }
+
+        /**
+         * returns the number of items added but not yet processed
+         */
+        public long getDepth()
+        {
+            return added.get() - processed.get();
+        }
+
+        /**
+         * returns the time the item at the head of the queue is waiting, 0 if the queue is empty
+         */
+        public long getHeadAge(TimeUnit unit)
+        {
+            Entry<T> head = ordered ? entries.peek() : failedEntries.peek();
+            return head == null ? 0 : unit.convert(System.nanoTime() - head.added, TimeUnit.NANOSECONDS);
+        }
+
+        public LatencyHistogram getLag()
+        {
+            return lag;
+        }
+
+        /**
+         * returns the items processed per second since the previous call
+         */
+        public synchronized long getThroughput()
+        {
+            long now = System.nanoTime();
+            long count = processed.get();
+            long rate = now == reportedNanos ? 0 : (count - reportedCount) * 1000000000L / (now - reportedNanos);
+            reportedCount = count;
+            reportedNanos = now;
+            return rate;
+        }
+
+        public String toString()
+        {
+            return name + (isBlocked() ? " (blocked: " + lastFailure + ")" : "") + ": " + processed.get() + " processed, "
+                    + getDepth() + " waiting, " + failures.get() + " failures, lag " + lag;
+        }
+    }
+
+    private ExecutorService executor;
+    private Processor<T> processor;
+    private int batchSize;
+    private ConcurrentHashMap<String, Queue> queues = new ConcurrentHashMap<String, Queue>();
+
+    /**
+     * Creates a dispatcher
+     * @param name prefix of the thread names
+     * @param threads number of threads processing the queues
+     * @param batchSize number of items a thread processes from a queue before it switches to the next queue
+     * @param processor processes the items
+     */
+    public QueueDispatcher(String name, int threads, int batchSize, Processor<T> processor)
+    {
+        this.executor = Executors.newFixedThreadPool(threads, ThreadSupport.createThreadFactory(name));
+        this.batchSize = batchSize;
+        this.processor = processor;
+    }
+
+    /**
+     * Adds an item to the end of a queue
+     * @param queueName name of the queue, null if the item does not need to be ordered
+     */
+    public void add(String queueName, T item)
+    {
+        getOrCreate(queueName).add(new Entry<T>(item));
+    }
+
+    Queue getOrCreate(String queueName)
+    {
+        String key = queueName == null ? UNORDERED : queueName;
+        Queue queue = queues.get(key);
+        if(queue == null)
+        {
+            Queue created = new Queue(key, queueName != null);
+            queue = queues.putIfAbsent(key, created);
+            if(queue == null)
+                queue = created;
+        }
+        return queue;
+    }
+
+    /**
+     * Processes a blocked queue again, starting with the item that failed
+     * @return false if the queue does not exist
+     */
+    public boolean resume(String queueName)
+    {
+        Queue queue = queues.get(queueName == null ? UNORDERED : queueName);
+        if(queue == null)
+            return false;
+        queue.resume();
+        return true;
+    }
+
+    public Queue getQueue(String queueName)
+    {
+        return queues.get(queueName == null ? UNORDERED : queueName);
+    }
+
+    /**
+     * returns the queues sorted by name
+     */
+    public List<Queue> getQueues()
+    {
+        List<Queue> list = new ArrayList<Queue>(queues.values());
+        Collections.sort(list, new Comparator<Queue>()
+        {
+            public int compare(Queue a, Queue b)
+            {
+                return a.name.compareTo(b.name);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * returns the number of items not yet processed in all queues
+     */
+    public long getDepth()
+    {
+        long depth = 0;
+        for(Queue queue : queues.values())
+            depth += queue.getDepth();
+        return depth;
+    }
+
+    /**
+     * Waits until all items were processed or the queues holding the remaining items are blocked
+     * @return true if all items were processed
+     */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while(System.nanoTime() < deadline)
+        {
+            boolean idle = true;
+            for(Queue queue : queues.values())
+                if(queue.getDepth() > 0 && !queue.isBlocked())
+                    idle = false;
+            if(idle)
+                return getDepth() == 0;
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    /**
+     * Stops the threads, the items not yet processed are dropped
+     */
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    public String report()
+    {
+        StringBuilder sb = new StringBuilder();
+        for(Queue queue : getQueues())
+            sb.append(String.format("%-14s %8d %6d/s %7d %8d %9d%s%n", queue.name, queue.getProcessedCount(), queue.getThroughput(),
+                    queue.getDepth(), queue.getFailureCount(), queue.getLag().getPercentile(99), queue.isBlocked() ? " BLOCKED" : ""));
+        return String.format("%-14s %8s %8s %7s %8s %9s%n", "queue", "processed", "rate", "waiting", "failures", "p99 lag/us") + sb;
+    }
+}
@@ -0,0 +1,434 @@
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import com.sap.conn.jco.JCo;
+import com.sap.conn.jco.JCoException;
+import com.sap.conn.jco.JCoField;
+import com.sap.conn.jco.JCoFunction;
+import com.sap.conn.jco.JCoFunctionTemplate;
+import com.sap.conn.jco.JCoMetaData;
+import com.sap.conn.jco.JCoRecordMetaData;
+import com.sap.conn.jco.JCoTable;
+
+/**
+ * StepByStepClient.step3WorkWithStructure states that the direct access via getXXX is more efficient
+ * than the field iterator. This benchmark quantifies the access patterns used in the client examples:
+ * <ul>
+ *  <li>getString(int) versus getString(String) versus JCoField iteration</li>
+ *  <li>JCoTable.setRow(i) versus firstRow()/nextRow() scans</li>
+ *  <li>setActive(false) on unused export parameters</li>
+ * </ul>
+ * The tables are created locally from JCoRecordMetaData with 1k, 100k and 1M rows, so no ABAP system
+ * is required. Each benchmark runs a number of warm-up iterations before the measured iterations and
+ * reports the average, the median and the best time per row (per call for the function benchmarks).
+ * The baseline holds the median, which a single iteration disturbed by a garbage collection does not move. The number of
+ * repetitions forming one iteration is calibrated on the warmed-up code, so the first, still interpreted
+ * runs do not decide how long an iteration is. The results are keyed by the number of rows or calls
+ * actually processed; the function benchmarks execute at most 1000 calls and are therefore measured once
+ * for all tables with at least 1000 rows.
+ *
+ * The results can be saved as a baseline and compared with a later run, for example after switching
+ * between the bundled 3.0.11, 3.0.14, 3.0.16 and 3.0.17 jars:
+ * <pre>
+ *   java -cp sapjco3.jar:. RecordAccessBenchmark -save RecordAccessBenchmark-baseline.properties
+ *   java -cp sapjco3.jar:. RecordAccessBenchmark -compare RecordAccessBenchmark-baseline.properties
+ * </pre>
+ * Additional arguments are interpreted as row counts and replace the default sizes.
+ *
+ * Note: the numbers depend on the JVM and the machine; compare only runs made in the same environment.
+ */
+public class RecordAccessBenchmark
+{
+    static int WARMUP_ITERATIONS = 10;
+    static int MEASURED_ITERATIONS = 10;
+    static long MIN_ITERATION_NANOS = 200000000L;
+    static double REGRESSION_THRESHOLD = 1.10;
+
+    //prevents the JIT from eliminating the benchmarked code
+    static volatile long sink;
+
+    /**
+     * A single benchmark operating on a prepared table
+     */
+    static abstract class Benchmark
+    {
+        private String name;
+
+        Benchmark(String name)
+        {
+            this.name = name;
+        }
+
+        String getName()
+        {
+            return name;
+        }
+
+        /**
+         * runs the benchmarked code once
+         * @param table prepared table
+         * @return a value depending on the read data
+         * @throws JCoException if a function call failed
+         */
+        abstract long run(JCoTable table) throws JCoException;
+
+        /**
+         * returns the number of operations executed by a single run, used to normalize the result
+         */
+        int getOperations(JCoTable table)
+        {
+            return table.getNumRows();
+        }
+    }
+
+    static class Result
+    {
+        String name;
+        int operations;
+        double averageNanos;
+        double medianNanos;
+        double bestNanos;
+
+        Result(String name, int operations, double[] iterationNanos)
+        {
+            this.name = name;
+            this.operations = operations;
+            double[] sorted = iterationNanos.clone();
+            Arrays.sort(sorted);
+            double total = 0;
+            for(double nanos : sorted)
+                total += nanos;
+            this.averageNanos = total / sorted.length;
+            this.medianNanos = sorted[sorted.length / 2];
+            this.bestNanos = sorted[0];
+        }
+
+        String getKey()
+        {
+            return getKey(name, operations);
+        }
+
+        static String getKey(String name, int operations)
+        {
+            return name + "." + operations;
+        }
+    }
+
+    static JCoRecordMetaData createMetaData()
+    {
+        return new AbapBackendSimulator.RecordBuilder("ZBENCH_ROW")
+            .addChar("COMP_CODE", 4)
+            .addChar("COMP_NAME", 25)
+            .addChar("CITY", 25)
+            .addChar("COUNTRY", 3)
+            .addChar("CURRENCY", 5)
+            .add("POSTING_DATE", JCoMetaData.TYPE_DATE, 0, 0)
+            .add("QUANTITY", JCoMetaData.TYPE_INT, 0, 0)
+            .add("AMOUNT", JCoMetaData.TYPE_BCD, 8, 2)
+            .addChar("TEXT", 40)
+            .add("ITEM", JCoMetaData.TYPE_NUM, 6, 0)
+            .lock();
+    }
+
+    static JCoTable createTable(JCoRecordMetaData metaData, int rows)
+    {
+        JCoTable table = JCo.createTable(metaData);
+        table.appendRows(rows);
+        for(int i = 0; i < rows; i++)
+        {
+            table.setRow(i);
+            table.setValue(0, String.format("%04d", i % 10000));
+            table.setValue(1, "Company " + (i % 1000));
+            table.setValue(2, "Walldorf");
+            table.setValue(3, "DE");
+            table.setValue(4, "EUR");
+            table.setValue(5, "20161206");
+            table.setValue(6, i);
+            table.setValue(7, i + ".25");
+            table.setValue(8, "Line item text " + i);
+            table.setValue(9, i % 1000000);
+        }
+        return table;
+    }
+
+    static List<Benchmark> createBenchmarks(final AbapBackendSimulator simulator) throws JCoException
+    {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+        benchmarks.add(new Benchmark("getStringByIndex")
+        {
+            long run(JCoTable table)
+            {
+                long sum = 0;
+                int fieldCount = table.getMetaData().getFieldCount();
+                for(int i = 0; i < table.getNumRows(); i++)
+                {
+                    table.setRow(i);
+                    for(int f = 0; f < fieldCount; f++)
+                        sum += table.getString(f).length();
+                }
+                return sum;
+            }
+        });
+
+        benchmarks.add(new Benchmark("getStringByName")
+        {
+            long run(JCoTable table)
+            {
+                long sum = 0;
+                JCoMetaData metaData = table.getMetaData();
+                String[] names = new String[metaData.getFieldCount()];
+                for(int f = 0; f < names.length; f++)
+                    names[f] = metaData.getName(f);
+                for(int i = 0; i < table.getNumRows(); i++)
+                {
+                    table.setRow(i);
+                    for(int f = 0; f < names.length; f++)
+                        sum += table.getString(names[f]).length();
+                }
+                return sum;
+            }
+        });
+
+        benchmarks.add(new Benchmark("fieldIterator")
+        {
+            long run(JCoTable table)
+            {
+                long sum = 0;
+                for(int i = 0; i < table.getNumRows(); i++)
+                {
+                    table.setRow(i);
+                    for(JCoField field : table)
+                        sum += field.getString().length();
+                }
+                return sum;
+            }
+        });
+
+        benchmarks.add(new Benchmark("setRowScan")
+        {
+            long run(JCoTable table)
+            {
+                long sum = 0;
+                for(int i = 0; i < table.getNumRows(); i++)
+                {
+                    table.setRow(i);
+                    sum += table.getInt(6);
+                }
+                return sum;
+            }
+        });
+
+        benchmarks.add(new Benchmark("nextRowScan")
+        {
+            long run(JCoTable table)
+            {
+                long sum = 0;
+                if(table.isEmpty())
+                    return sum;
+                table.firstRow();
+                do
+                {
+                    sum += table.getInt(6);
+                }
+                while(table.nextRow());
+                return sum;
+            }
+        });
+
+        final JCoFunctionTemplate detailTemplate = simulator.getRepository().getFunctionTemplate("BAPI_COMPANYCODE_GETDETAIL");
+        benchmarks.add(new Benchmark("exportAllActive")
+        {
+            long run(JCoTable table) throws JCoException
+            {
+                return executeDetails(simulator, detailTemplate, table, true);
+            }
+
+            int getOperations(JCoTable table)
+            {
+                return Math.min(table.getNumRows(), 1000);
+            }
+        });
+
+        benchmarks.add(new Benchmark("exportAddressInactive")
+        {
+            long run(JCoTable table) throws JCoException
+            {
+                return executeDetails(simulator, detailTemplate, table, false);
+            }
+
+            int getOperations(JCoTable table)
+            {
+                return Math.min(table.getNumRows(), 1000);
+            }
+        });
+
+        return benchmarks;
+    }
+
+    /**
+     * Executes BAPI_COMPANYCODE_GETDETAIL for up to 1000 rows against the simulator, which,
+     * like the ABAP runtime, does not fill inactive export parameters
+     */
+    static long executeDetails(AbapBackendSimulator simulator, JCoFunctionTemplate template, JCoTable table, boolean addressActive) throws JCoException
+    {
+        long sum = 0;
+        int calls = Math.min(table.getNumRows(), 1000);
+        for(int i = 0; i < calls; i++)
+        {
+            table.setRow(i);
+            JCoFunction function = template.getFunction();
+            function.getImportParameterList().setValue("COMPANYCODEID", AbapBackendSimulator.companyCode(i % 10));
+            if(!addressActive)
+                function.getExportParameterList().setActive("COMPANYCODE_ADDRESS", false);
+            simulator.execute(function);
+            sum += function.getExportParameterList().getStructure("COMPANYCODE_DETAIL").getString("CITY").length();
+        }
+        return sum;
+    }
+
+    /**
+     * returns the time needed for the repetitions of the benchmark
+     */
+    static long runRepeated(Benchmark benchmark, JCoTable table, int repetitions) throws JCoException
+    {
+        long start = System.nanoTime();
+        for(int r = 0; r < repetitions; r++)
+            sink += benchmark.run(table);
+        return Math.max(System.nanoTime() - start, 1);
+    }
+
+    static Result measure(Benchmark benchmark, JCoTable table) throws JCoException
+    {
+        int operations = benchmark.getOperations(table);
+
+        //repeat the benchmark within one iteration so that short runs are measurable, the repetitions are
+        //doubled until an iteration takes long enough and adjusted again after the warm-up
+        int repetitions = 1;
+        while(runRepeated(benchmark, table, repetitions) < MIN_ITERATION_NANOS && repetitions < Integer.MAX_VALUE / 2)
+            repetitions *= 2;
+        long elapsed = 0;
+        for(int i = 0; i < WARMUP_ITERATIONS; i++)
+            elapsed = runRepeated(benchmark, table, repetitions);
+        repetitions = (int)Math.max(1, Math.min(Integer.MAX_VALUE, (long)((double)repetitions * MIN_ITERATION_NANOS / elapsed)));
+
+        double[] iterationNanos = new double[MEASURED_ITERATIONS];
+        for(int i = 0; i < MEASURED_ITERATIONS; i++)
+            iterationNanos[i] = (double)runRepeated(benchmark, table, repetitions) / repetitions / operations;
+        return new Result(benchmark.getName(), operations, iterationNanos);
+    }
+
+    static void save(List<Result> results, String fileName) throws IOException
+    {
+        Properties baseline = new Properties();
+        for(Result result : results)
+            baseline.setProperty(result.getKey(), String.format("%.3f", result.medianNanos));
+        Writer writer = new FileWriter(fileName);
+        try
+        {
+            baseline.store(writer, "RecordAccessBenchmark, ns per operation, JCo " + JCo.getVersion() + ", Java "
+                    + System.getProperty("java.version") + ", " + System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * Prints the ratio between the current run and the baseline
+     * @return number of benchmarks slower than the regression threshold
+     */
+    static int compare(List<Result> results, String fileName) throws IOException
+    {
+        Properties baseline = new Properties();
+        Reader reader = new FileReader(fileName);
+        try
+        {
+            baseline.load(reader);
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        int regressions = 0;
+        System.out.println(">>> Comparison with " + fileName);
+        for(Result result : results)
+        {
+            String value = baseline.getProperty(result.getKey());
+            if(value == null)
+            {
+                System.out.println(String.format("%-24s %9d   no baseline", result.name, result.operations));
+                continue;
+            }
+            double ratio = result.medianNanos / Double.parseDouble(value);
+            boolean regression = ratio > REGRESSION_THRESHOLD;
+            if(regression)
+                regressions++;
+            System.out.println(String.format("%-24s %9d %9.3f ns %9s ns %6.2fx%s", result.name, result.operations,
+                    result.medianNanos, value, ratio, regression ? "  REGRESSION" : ""));
+        }
+        return regressions;
+    }
+
+    public static void main(String[] args) throws JCoException, IOException
+    {
+        String saveFile = null, compareFile = null;
+        List<Integer> sizes = new ArrayList<Integer>();
+        for(int i = 0; i < args.length; i++)
+        {
+            if(args[i].equals("-save"))
+                saveFile = args[++i];
+            else if(args[i].equals("-compare"))
+                compareFile = args[++i];
+            else
+                sizes.add(Integer.valueOf(args[i]));
+        }
+        if(sizes.isEmpty())
+        {
+            sizes.add(1000);
+            sizes.add(100000);
+            sizes.add(1000000);
+        }
+
+        System.out.println("JCo " + JCo.getVersion() + ", Java " + System.getProperty("java.version"));
+        System.out.println(String.format("%-24s %9s %12s %12s %12s", "benchmark", "ops", "avg ns/op", "median ns/op", "best ns/op"));
+
+        AbapBackendSimulator simulator = new AbapBackendSimulator("BENCHMARK");
+        simulator.setCompanyCodeCount(10);
+        List<Benchmark> benchmarks = createBenchmarks(simulator);
+        JCoRecordMetaData metaData = createMetaData();
+        List<Result> results = new ArrayList<Result>();
+        Set<String> measured = new HashSet<String>();
+        for(int rows : sizes)
+        {
+            JCoTable table = createTable(metaData, rows);
+            for(Benchmark benchmark : benchmarks)
+            {
+                //the same work on a larger table is not measured again
+                if(!measured.add(Result.getKey(benchmark.getName(), benchmark.getOperations(table))))
+                    continue;
+                Result result = measure(benchmark, table);
+                results.add(result);
+                System.out.println(String.format("%-24s %9d %12.3f %12.3f %12.3f", result.name, result.operations, result.averageNanos,
+                        result.medianNanos, result.bestNanos));
+            }
+        }
+        System.out.println();
+
+        if(saveFile != null)
+            save(results, saveFile);
+        if(compareFile != null && compare(results, compareFile) > 0)
+            System.exit(1);
+    }
+}
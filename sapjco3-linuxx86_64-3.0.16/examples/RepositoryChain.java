@@ -3,7 +3,24 @@ import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.sap.conn.jco.JCo;
 import com.sap.conn.jco.JCoClassMetaData;
@@ -17,6 +34,8 @@ import com.sap.conn.jco.JCoListMetaData;
 import com.sap.conn.jco.JCoRecordMetaData;
 import com.sap.conn.jco.JCoRepository;
 import com.sap.conn.jco.JCoRequest;
+import com.sap.conn.jco.JCoRuntimeException;
+import com.sap.conn.jco.monitor.JCoDestinationMonitor;
 import com.sap.conn.jco.monitor.JCoRepositoryMonitor;
 import com.sap.conn.jco.server.DefaultServerHandlerFactory;
 import com.sap.conn.jco.server.JCoServer;
@@ -35,24 +54,510 @@ import com.sap.conn.jco.server.JCoServerFactory;
  * provides some tests in the main function. The implementation can be changed for the application
  * needs. 
  * 
- * Note: the repository monitor was not implemented for the RepositoryChain in this example.
+ * Lookups do not walk the chain for each request. Every chain keeps an index mapping the names found so far
+ * to the repository owning them, so that a hit costs a single hash lookup plus the lookup in the owning
+ * repository. Names not found in any repository are remembered for a configurable time (see setMissTTL),
+ * because each level of the chain may query a remote repository for an absent name. At most MAX_MISSES
+ * names are remembered per index, so lookups of ever new absent names cannot grow it. The index is seeded
+ * with the names cached in the repositories and answers getCachedXXXNames without collecting the names
+ * of all levels again. Any change of the chain structure discards the indexes. Metadata added directly to
+ * a repository of the chain is found once the name is not in the index or after invalidateIndex().
+ * 
+ * A chain can be installed in a JCoServer and is then read by many server threads at once. Therefore
+ * the repository and the next chain of each element are kept in an immutable Link, which is replaced
+ * with compareAndSet, and the indexes are rebuilt as new objects instead of being cleared in place.
+ * Readers never block and always see a consistent chain, either the one before or the one after a
+ * change. The whole chain can be changed in one atomic step with reconfigure, e.g. to add, remove or
+ * reorder repositories. A reconfiguration copies the elements following the head, so chains linked
+ * before with setNextRepositoryChain are no longer shared afterwards. Run the main function with
+ * -stress for a test reconfiguring the chain while many threads look up functions.
+ * 
+ * getMonitor returns a ChainMonitor. Besides the JCoRepositoryMonitor data it counts for each repository
+ * of the chain the lookups answered and not answered by it, records their latency in a histogram and
+ * reports the number of cached metadata objects. It also counts the hits per function name, so that the
+ * repositories serving the hottest names can be moved to the front of the chain. The counters are
+ * LongAdders and only a sample of the lookups of indexed names is timed, so the monitoring does not make
+ * the concurrent readers contend on shared cache lines. A sampled lookup is recorded with the weight of
+ * the lookups it stands for, otherwise the always timed chain walks would dominate the percentiles.
+ * 
  * Note: the implementation does not check the cycles in the chain
  */
 public class RepositoryChain implements JCoRepository
 {
-    private JCoRepository current;
-    private RepositoryChain next;
+    /**
+     * Immutable content of a chain element
+     */
+    static class Link
+    {
+        final JCoRepository current;
+        final RepositoryChain next;
+        
+        Link(JCoRepository current, RepositoryChain next)
+        {
+            this.current = current;
+            this.next = next;
+        }
+        
+        /**
+         * returns the content of the next chain element or null
+         */
+        Link following()
+        {
+            return next != null ? next.link.get() : null;
+        }
+    }
+    
+    /**
+     * Changes the list of repositories in reconfigure. The list may be changed several times,
+     * if a concurrent change was detected, so apply must not have other side effects.
+     */
+    interface Reconfiguration
+    {
+        void apply(List<JCoRepository> repositories);
+    }
+    
+    private AtomicReference<Link> link;
+    private ChainMonitor monitor = new ChainMonitor();
+    
+    //incremented with each change of this or a following chain, invalidates the indexes of this chain
+    private AtomicLong structureVersion = new AtomicLong(0);
+    //chains having this chain as next chain, their indexes cover the repositories of this chain as well
+    private Set<RepositoryChain> previous = new CopyOnWriteArraySet<RepositoryChain>();
+    private static final long DEFAULT_MISS_TTL = TimeUnit.SECONDS.toNanos(60);
+    //maximum number of remembered misses per index, expired misses are dropped first and then all of them
+    static final int MAX_MISSES = 1024;
+    //one of LATENCY_SAMPLING lookups of indexed names is timed, so the hot path rarely writes the shared histogram
+    private static final int LATENCY_SAMPLING = 64;
+    
+    private volatile long missTTL = DEFAULT_MISS_TTL;
+    private AtomicReference<NameIndex<JCoFunctionTemplate>> functionIndex =
+            new AtomicReference<NameIndex<JCoFunctionTemplate>>(new NameIndex<JCoFunctionTemplate>(FUNCTIONS, -1));
+    private AtomicReference<NameIndex<JCoRecordMetaData>> recordIndex =
+            new AtomicReference<NameIndex<JCoRecordMetaData>>(new NameIndex<JCoRecordMetaData>(RECORDS, -1));
+    private AtomicReference<NameIndex<JCoClassMetaData>> classIndex =
+            new AtomicReference<NameIndex<JCoClassMetaData>>(new NameIndex<JCoClassMetaData>(CLASSES, -1));
+    
+    /**
+     * Access to one kind of metadata in a repository
+     */
+    static abstract class MetaDataKind<T>
+    {
+        abstract T lookup(JCoRepository repository, String name) throws JCoException;
+        abstract String[] getCachedNames(JCoRepository repository);
+    }
+    
+    static final MetaDataKind<JCoFunctionTemplate> FUNCTIONS = new MetaDataKind<JCoFunctionTemplate>()
+    {
+        JCoFunctionTemplate lookup(JCoRepository repository, String name) throws JCoException
+        {
+            return repository.getFunctionTemplate(name);
+        }
+        
+        String[] getCachedNames(JCoRepository repository)
+        {
+            return repository.getCachedFunctionTemplateNames();
+        }
+    };
+    
+    static final MetaDataKind<JCoRecordMetaData> RECORDS = new MetaDataKind<JCoRecordMetaData>()
+    {
+        JCoRecordMetaData lookup(JCoRepository repository, String name) throws JCoException
+        {
+            return repository.getRecordMetaData(name);
+        }
+        
+        String[] getCachedNames(JCoRepository repository)
+        {
+            return repository.getCachedRecordMetaDataNames();
+        }
+    };
+    
+    static final MetaDataKind<JCoClassMetaData> CLASSES = new MetaDataKind<JCoClassMetaData>()
+    {
+        JCoClassMetaData lookup(JCoRepository repository, String name) throws JCoException
+        {
+            return repository.getClassMetaData(name);
+        }
+        
+        String[] getCachedNames(JCoRepository repository)
+        {
+            return repository.getCachedClassMetaDataNames();
+        }
+    };
+    
+    /**
+     * Index of the names of one metadata kind available in the chain. An index belongs to one
+     * version of the chain structure and is replaced, when the structure changes.
+     */
+    static class NameIndex<T>
+    {
+        final MetaDataKind<T> kind;
+        final long version;
+        final Map<String, JCoRepository> owners = new ConcurrentHashMap<String, JCoRepository>();
+        final Map<String, Long> misses = new ConcurrentHashMap<String, Long>();
+        volatile String[] cachedNames;
+        
+        NameIndex(MetaDataKind<T> kind, long version)
+        {
+            this.kind = kind;
+            this.version = version;
+        }
+        
+        void remove(String name)
+        {
+            owners.remove(name);
+            misses.remove(name);
+            cachedNames = null;
+        }
+        
+        /**
+         * remembers a miss until the expiration, making room if MAX_MISSES are remembered already
+         */
+        void addMiss(String name, long expiration)
+        {
+            if(misses.size() >= MAX_MISSES)
+            {
+                long now = System.nanoTime();
+                for(Iterator<Long> it = misses.values().iterator(); it.hasNext(); )
+                {
+                    if(now - it.next() >= 0)
+                        it.remove();
+                }
+                //the names of a burst of absent lookups are not worth keeping
+                if(misses.size() >= MAX_MISSES)
+                    misses.clear();
+            }
+            misses.put(name, expiration);
+        }
+    }
+    
+    /**
+     * Lookup statistics of one repository in the chain
+     */
+    static class LevelStatistics
+    {
+        private JCoRepository repository;
+        private LongAdder hits = new LongAdder();
+        private LongAdder misses = new LongAdder();
+        private LatencyHistogram latency = new LatencyHistogram();
+        
+        LevelStatistics(JCoRepository repository)
+        {
+            this.repository = repository;
+        }
+        
+        void count(boolean found)
+        {
+            (found ? hits : misses).increment();
+        }
+        
+        public String getRepositoryName()
+        {
+            return repository.getName();
+        }
+        
+        /**
+         * returns the number of lookups answered by this repository
+         */
+        public long getHitCount()
+        {
+            return hits.sum();
+        }
+        
+        /**
+         * returns the number of lookups passed to this repository, but not answered by it
+         */
+        public long getMissCount()
+        {
+            return misses.sum();
+        }
+        
+        /**
+         * returns the latency of the lookups in this repository, which contains the remote queries. Lookups
+         * walking the chain are all recorded, lookups of indexed names only one of LATENCY_SAMPLING, which is
+         * recorded with that weight, so the count and the percentiles estimate all lookups.
+         */
+        public LatencyHistogram getLatency()
+        {
+            return latency;
+        }
+        
+        public int getFunctionCount()
+        {
+            return repository.getCachedFunctionTemplateNames().length;
+        }
+        
+        public int getRecordCount()
+        {
+            return repository.getCachedRecordMetaDataNames().length;
+        }
+        
+        public int getClassCount()
+        {
+            return repository.getCachedClassMetaDataNames().length;
+        }
+        
+        void reset()
+        {
+            hits.reset();
+            misses.reset();
+            latency.reset();
+        }
+        
+        public String toString()
+        {
+            return getRepositoryName() + ": " + hits.sum() + " hits, " + misses.sum() + " misses, cached " + getFunctionCount()
+                    + " functions, " + getRecordCount() + " records, " + getClassCount() + " classes, latency " + latency;
+        }
+    }
+    
+    /**
+     * Repository monitor of the chain
+     */
+    public class ChainMonitor implements JCoRepositoryMonitor
+    {
+        private volatile long lastAccess;
+        private LongAdder indexHits = new LongAdder();
+        private LongAdder cachedMisses = new LongAdder();
+        private LongAdder misses = new LongAdder();
+        private Map<JCoRepository, LevelStatistics> levels = new ConcurrentHashMap<JCoRepository, LevelStatistics>();
+        private Map<String, LongAdder> hitsByName = new ConcurrentHashMap<String, LongAdder>();
+        
+        LevelStatistics getLevel(JCoRepository repository)
+        {
+            LevelStatistics level = levels.get(repository);
+            if(level == null)
+            {
+                level = new LevelStatistics(repository);
+                LevelStatistics existing = ((ConcurrentHashMap<JCoRepository, LevelStatistics>)levels).putIfAbsent(repository, level);
+                if(existing != null)
+                    level = existing;
+            }
+            return level;
+        }
+        
+        void recordHit(String name)
+        {
+            LongAdder count = hitsByName.get(name);
+            if(count == null)
+            {
+                count = new LongAdder();
+                LongAdder existing = ((ConcurrentHashMap<String, LongAdder>)hitsByName).putIfAbsent(name, count);
+                if(existing != null)
+                    count = existing;
+            }
+            count.increment();
+        }
+        
+        /**
+         * updates the access timestamp at most once per second, so lookups rarely write the shared field
+         */
+        void access()
+        {
+            long now = System.currentTimeMillis();
+            if(now - lastAccess >= 1000)
+                lastAccess = now;
+        }
+        
+        /**
+         * returns the statistics of the repositories currently in the chain in lookup order
+         */
+        public List<LevelStatistics> getLevelStatistics()
+        {
+            List<LevelStatistics> statistics = new ArrayList<LevelStatistics>();
+            for(JCoRepository repository : getRepositories())
+                statistics.add(getLevel(repository));
+            return statistics;
+        }
+        
+        /**
+         * returns the number of lookups answered by the repository known from the index
+         */
+        public long getIndexHitCount()
+        {
+            return indexHits.sum();
+        }
+        
+        /**
+         * returns the number of lookups answered from the cache of missing names
+         */
+        public long getCachedMissCount()
+        {
+            return cachedMisses.sum();
+        }
+        
+        /**
+         * returns the number of lookups not answered by any repository of the chain
+         */
+        public long getMissCount()
+        {
+            return misses.sum();
+        }
+        
+        /**
+         * returns the most frequently found names with their hit counts, ordered by the hit count
+         * @param limit maximum number of returned names
+         */
+        public Map<String, Long> getHottestNames(int limit)
+        {
+            List<Map.Entry<String, LongAdder>> entries = new ArrayList<Map.Entry<String, LongAdder>>(hitsByName.entrySet());
+            Collections.sort(entries, new Comparator<Map.Entry<String, LongAdder>>()
+            {
+                public int compare(Map.Entry<String, LongAdder> e1, Map.Entry<String, LongAdder> e2)
+                {
+                    return Long.compare(e2.getValue().sum(), e1.getValue().sum());
+                }
+            });
+            Map<String, Long> hottest = new LinkedHashMap<String, Long>();
+            for(Map.Entry<String, LongAdder> entry : entries.subList(0, Math.min(limit, entries.size())))
+                hottest.put(entry.getKey(), entry.getValue().sum());
+            return hottest;
+        }
+        
+        /**
+         * returns the repository of the chain serving the function or null
+         */
+        public String getServingRepositoryName(String functionName)
+        {
+            JCoRepository owner = getIndex(functionIndex).owners.get(functionName);
+            return owner != null ? owner.getName() : null;
+        }
+        
+        public void reset()
+        {
+            indexHits.reset();
+            cachedMisses.reset();
+            misses.reset();
+            levels.clear();
+            hitsByName.clear();
+        }
+        
+        /**
+         * returns the time of the last lookup with a precision of one second
+         */
+        public long getLastAccessTimestamp()
+        {
+            return lastAccess;
+        }
+        
+        /**
+         * returns the latest remote query of the repositories in the chain providing a monitor
+         */
+        public long getLastRemoteQueryTimestamp()
+        {
+            long last = 0;
+            for(JCoRepositoryMonitor levelMonitor : getLevelMonitors())
+                last = Math.max(last, levelMonitor.getLastRemoteQueryTimestamp());
+            return last;
+        }
+        
+        public int getFunctionMetaDataCount()
+        {
+            return getCachedFunctionTemplateNames().length;
+        }
+        
+        public int getTypeMetaDataCount()
+        {
+            return getCachedRecordMetaDataNames().length;
+        }
+        
+        public int getClassMetaDataCount()
+        {
+            return getCachedClassMetaDataNames().length;
+        }
+        
+        /**
+         * returns the destinations used by the repositories in the chain
+         */
+        public List<String> getDestinationIDs()
+        {
+            LinkedHashSet<String> ids = new LinkedHashSet<String>();
+            for(JCoRepositoryMonitor levelMonitor : getLevelMonitors())
+                ids.addAll(levelMonitor.getDestinationIDs());
+            return new ArrayList<String>(ids);
+        }
+        
+        public JCoDestinationMonitor getRespositoryDestinationMonitor(String destinationID) throws JCoRuntimeException
+        {
+            for(JCoRepositoryMonitor levelMonitor : getLevelMonitors())
+            {
+                if(levelMonitor.getDestinationIDs().contains(destinationID))
+                    return levelMonitor.getRespositoryDestinationMonitor(destinationID);
+            }
+            throw new JCoRuntimeException(JCoException.JCO_ERROR_ILLEGAL_ARGUMENT, "JCO_ERROR_ILLEGAL_ARGUMENT",
+                    "Destination " + destinationID + " is not used by " + getName());
+        }
+        
+        /**
+         * returns the monitors of the repositories in the chain, which provide one
+         */
+        List<JCoRepositoryMonitor> getLevelMonitors()
+        {
+            List<JCoRepositoryMonitor> monitors = new ArrayList<JCoRepositoryMonitor>();
+            for(JCoRepository repository : getRepositories())
+            {
+                try
+                {
+                    monitors.add(repository.getMonitor());
+                }
+                catch(UnsupportedOperationException e)
+                {
+                    //repository without monitor, e.g. another example implementation
+                }
+            }
+            return monitors;
+        }
+        
+        public String toString()
+        {
+            StringBuilder sb = new StringBuilder(getName());
+            sb.append(": ").append(indexHits.sum()).append(" index hits, ").append(cachedMisses.sum()).append(" cached misses, ")
+              .append(misses.sum()).append(" misses");
+            for(LevelStatistics level : getLevelStatistics())
+                sb.append("\n  ").append(level);
+            for(Map.Entry<String, Long> entry : getHottestNames(5).entrySet())
+                sb.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue()).append(" hits, served by ")
+                  .append(getServingRepositoryName(entry.getKey()));
+            return sb.toString();
+        }
+    }
     
     /**
      * Creates a first chain pointed to the given repository
      * @param repository repository in the first chain
      */
     public RepositoryChain(JCoRepository repository)
+    {
+        this(repository, null);
+    }
+    
+    RepositoryChain(JCoRepository repository, RepositoryChain next)
     {
         if(repository instanceof RepositoryChain)
-            current = ((RepositoryChain)repository).current;
-        else
-            current = repository;
+            repository = ((RepositoryChain)repository).getRepository();
+        link = new AtomicReference<Link>(new Link(repository, next));
+        if(next != null)
+            next.previous.add(this);
+    }
+    
+    /**
+     * replaces the next chain and keeps the repository of this chain
+     * @return the replaced content
+     */
+    Link replaceNext(RepositoryChain repositoryChain)
+    {
+        Link removed;
+        do
+        {
+            removed = link.get();
+        }
+        while(!link.compareAndSet(removed, new Link(removed.current, repositoryChain)));
+        if(removed.next != null)
+            removed.next.previous.remove(this);
+        if(repositoryChain != null)
+            repositoryChain.previous.add(this);
+        invalidateIndex();
+        return removed;
     }
     
     /**
@@ -65,9 +570,7 @@ public class RepositoryChain implements JCoRepository
         if(repository instanceof RepositoryChain)
             return setNextRepositoryChain((RepositoryChain)repository);
         
-        RepositoryChain removed = null;
-        removed = next;
-        next = new RepositoryChain(repository);
+        RepositoryChain removed = replaceNext(new RepositoryChain(repository)).next;
         return removed!=null?removed.getRepository():null;
     }
     
@@ -77,6 +580,7 @@ public class RepositoryChain implements JCoRepository
      */
     public JCoRepository getNextRepository()
     {
+        RepositoryChain next = link.get().next;
         return next!=null?next.getRepository():null;
     }
 
@@ -87,10 +591,7 @@ public class RepositoryChain implements JCoRepository
      */
     public RepositoryChain setNextRepositoryChain(RepositoryChain repositoryChain)
     {
-        RepositoryChain removed = null;
-        removed = next;
-        next = repositoryChain;
-        return removed;
+        return replaceNext(repositoryChain).next;
     }
     
     /**
@@ -99,7 +600,7 @@ public class RepositoryChain implements JCoRepository
      */
     public RepositoryChain getNextRepositoryChain()
     {
-        return next;
+        return link.get().next;
     }
     
     /**
@@ -108,15 +609,256 @@ public class RepositoryChain implements JCoRepository
      */
     public JCoRepository getRepository()
     {
-        return current;
+        return link.get().current;
+    }
+    
+    /**
+     * Returns the repositories of this and all following chains
+     * @return the repositories in lookup order
+     */
+    public List<JCoRepository> getRepositories()
+    {
+        return getRepositories(link.get());
+    }
+    
+    static List<JCoRepository> getRepositories(Link first)
+    {
+        List<JCoRepository> repositories = new ArrayList<JCoRepository>();
+        for(Link level = first; level != null; level = level.following())
+            repositories.add(level.current);
+        return repositories;
+    }
+    
+    /**
+     * Changes the repositories of the chain in one atomic step. Concurrent lookups use either
+     * the former or the new chain. The chain elements following this one are replaced by new
+     * elements.
+     * @param reconfiguration changes the list of the repositories in lookup order
+     * @throws IllegalArgumentException if the list of repositories would be empty
+     */
+    public void reconfigure(Reconfiguration reconfiguration)
+    {
+        while(true)
+        {
+            Link former = link.get();
+            List<JCoRepository> repositories = getRepositories(former);
+            reconfiguration.apply(repositories);
+            if(repositories.isEmpty())
+                throw new IllegalArgumentException("A repository chain requires at least one repository");
+            
+            RepositoryChain next = null;
+            for(int i = repositories.size() - 1; i > 0; i--)
+                next = new RepositoryChain(repositories.get(i), next);
+            JCoRepository first = repositories.get(0);
+            if(first instanceof RepositoryChain)
+                first = ((RepositoryChain)first).getRepository();
+            if(link.compareAndSet(former, new Link(first, next)))
+            {
+                if(former.next != null)
+                    former.next.previous.remove(this);
+                if(next != null)
+                    next.previous.add(this);
+                invalidateIndex();
+                return;
+            }
+        }
+    }
+    
+    /**
+     * inserts a repository into the chain
+     * @param position position in lookup order, 0 inserts it before all others
+     * @param repository repository to be inserted
+     */
+    public void addRepository(final int position, final JCoRepository repository)
+    {
+        reconfigure(new Reconfiguration()
+        {
+            public void apply(List<JCoRepository> repositories)
+            {
+                repositories.add(Math.min(position, repositories.size()), repository);
+            }
+        });
+    }
+    
+    /**
+     * removes a repository from the chain
+     * @param repository repository to be removed
+     * @return true if the repository was part of the chain
+     */
+    public boolean removeRepository(final JCoRepository repository)
+    {
+        final boolean[] removed = new boolean[1];
+        reconfigure(new Reconfiguration()
+        {
+            public void apply(List<JCoRepository> repositories)
+            {
+                removed[0] = repositories.remove(repository);
+            }
+        });
+        return removed[0];
+    }
+    
+    /**
+     * moves a repository of the chain to another position
+     * @param repository repository to be moved
+     * @param position new position in lookup order
+     * @return true if the repository was part of the chain
+     */
+    public boolean moveRepository(final JCoRepository repository, final int position)
+    {
+        final boolean[] moved = new boolean[1];
+        reconfigure(new Reconfiguration()
+        {
+            public void apply(List<JCoRepository> repositories)
+            {
+                moved[0] = repositories.remove(repository);
+                if(moved[0])
+                    repositories.add(Math.min(position, repositories.size()), repository);
+            }
+        });
+        return moved[0];
+    }
+    
+    /**
+     * Sets the time a name not found in any repository of the chain is reported as missing
+     * without querying the repositories again
+     * @param ttl time to live of a miss, 0 disables the caching of misses
+     * @param unit time unit of ttl
+     */
+    public void setMissTTL(long ttl, TimeUnit unit)
+    {
+        missTTL = unit.toNanos(ttl);
+        invalidateIndex();
+    }
+    
+    /**
+     * Discards the indexes of this chain and of the chains linked in front of it, e.g. after metadata was
+     * added directly to a repository of the chain. Other chains keep their indexes.
+     */
+    public void invalidateIndex()
+    {
+        structureVersion.incrementAndGet();
+        for(RepositoryChain chain : previous)
+            chain.invalidateIndex();
+    }
+    
+    /**
+     * Returns the index of the current chain structure. An outdated index is replaced by a new one
+     * seeded with the names cached in the repositories. Threads racing for the replacement build
+     * an index each, only one of them is published.
+     */
+    <T> NameIndex<T> getIndex(AtomicReference<NameIndex<T>> reference)
+    {
+        NameIndex<T> index = reference.get();
+        long version = structureVersion.get();
+        if(index.version == version)
+            return index;
+        
+        NameIndex<T> rebuilt = new NameIndex<T>(index.kind, version);
+        for(Link level = link.get(); level != null; level = level.following())
+        {
+            for(String name : rebuilt.kind.getCachedNames(level.current))
+            {
+                if(!rebuilt.owners.containsKey(name))
+                    rebuilt.owners.put(name, level.current);
+            }
+        }
+        reference.compareAndSet(index, rebuilt);
+        return rebuilt;
+    }
+    
+    /**
+     * Looks up the metadata in the owning repository known from the index or walks the chain
+     * if the name is not yet indexed
+     */
+    <T> T lookup(AtomicReference<NameIndex<T>> reference, String name) throws JCoException
+    {
+        monitor.access();
+        NameIndex<T> index = getIndex(reference);
+        JCoRepository owner = index.owners.get(name);
+        if(owner != null)
+        {
+            T metaData = lookup(index, owner, name, ThreadLocalRandom.current().nextInt(LATENCY_SAMPLING) == 0 ? LATENCY_SAMPLING : 0);
+            if(metaData != null)
+            {
+                monitor.indexHits.increment();
+                monitor.recordHit(name);
+                return metaData;
+            }
+            //removed from the owning repository in the meantime
+            index.remove(name);
+        }
+        
+        Long missExpiration = index.misses.get(name);
+        if(missExpiration != null)
+        {
+            if(System.nanoTime() - missExpiration < 0)
+            {
+                monitor.cachedMisses.increment();
+                return null;
+            }
+            index.misses.remove(name);
+        }
+        
+        for(Link level = link.get(); level != null; level = level.following())
+        {
+            T metaData = lookup(index, level.current, name, 1);
+            if(metaData != null)
+            {
+                index.owners.put(name, level.current);
+                index.cachedNames = null;
+                monitor.recordHit(name);
+                return metaData;
+            }
+        }
+        
+        monitor.misses.increment();
+        long ttl = missTTL;
+        if(ttl > 0)
+            index.addMiss(name, System.nanoTime() + ttl);
+        return null;
+    }
+    
+    /**
+     * Looks up the metadata in one repository and records the result in the statistics of this repository
+     * @param weight number of lookups the latency of this lookup stands for, 0 if it is not recorded
+     */
+    <T> T lookup(NameIndex<T> index, JCoRepository repository, String name, int weight) throws JCoException
+    {
+        long start = weight > 0 ? System.nanoTime() : 0;
+        T metaData = null;
+        try
+        {
+            metaData = index.kind.lookup(repository, name);
+            return metaData;
+        }
+        finally
+        {
+            LevelStatistics level = monitor.getLevel(repository);
+            level.count(metaData != null);
+            if(weight > 0)
+                level.latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS, weight);
+        }
+    }
+    
+    <T> String[] getCachedNames(AtomicReference<NameIndex<T>> reference)
+    {
+        NameIndex<T> index = getIndex(reference);
+        String[] names = index.cachedNames;
+        if(names == null)
+        {
+            names = index.owners.keySet().toArray(new String[0]);
+            index.cachedNames = names;
+        }
+        return names.clone();
     }
 
     /**
-     * not supported
+     * returns the monitor of this chain
      */
-    public JCoRepositoryMonitor getMonitor()
+    public ChainMonitor getMonitor()
     {
-        throw new UnsupportedOperationException();
+        return monitor;
     }
     
     /**
@@ -132,11 +874,12 @@ public class RepositoryChain implements JCoRepository
     
     void appendName(StringBuilder sb)
     {
-        sb.append(current.getName());
-        if(next!=null)
+        Link level = link.get();
+        sb.append(level.current.getName());
+        if(level.next!=null)
         {
             sb.append(", ");
-            next.appendName(sb);
+            level.next.appendName(sb);
         }
     }
     
@@ -145,19 +888,7 @@ public class RepositoryChain implements JCoRepository
      */
     public String[] getCachedFunctionTemplateNames()
     {
-        List<String> list = new ArrayList<String>();
-        list = getCachedFunctionTemplateNames(list);
-        return (String[]) list.toArray();
-    }
-    
-    List<String> getCachedFunctionTemplateNames(List<String> list)
-    {
-        String[] cachedNames = current.getCachedFunctionTemplateNames();
-        for(String cachedName : cachedNames)
-            list.add(cachedName);
-        if(next!=null)
-            list = next.getCachedFunctionTemplateNames(list);
-        return list;
+        return getCachedNames(functionIndex);
     }
     
     /**
@@ -165,19 +896,7 @@ public class RepositoryChain implements JCoRepository
      */
     public String[] getCachedRecordMetaDataNames()
     {
-        List<String> list = new ArrayList<String>();
-        list = getCachedRecordMetaDataNames(list);
-        return (String[]) list.toArray();
-    }
-    
-    List<String> getCachedRecordMetaDataNames(List<String> list)
-    {
-        String[] cachedNames = current.getCachedRecordMetaDataNames();
-        for(String cachedName : cachedNames)
-            list.add(cachedName);
-        if(next!=null)
-            list = next.getCachedRecordMetaDataNames(list);
-        return list;
+        return getCachedNames(recordIndex);
     }
 
     /**
@@ -187,10 +906,8 @@ public class RepositoryChain implements JCoRepository
      */
     public JCoFunction getFunction(String functionName) throws JCoException
     {
-        JCoFunction function = current.getFunction(functionName);
-        if(function == null && next != null)
-            return next.getFunction(functionName);
-        return function;
+        JCoFunctionTemplate template = getFunctionTemplate(functionName);
+        return template != null ? template.getFunction() : null;
     }
     
     /**
@@ -200,10 +917,8 @@ public class RepositoryChain implements JCoRepository
      */
     public JCoListMetaData getFunctionInterface(String functionName) throws JCoException
     {
-        JCoListMetaData functionInterface = current.getFunctionInterface(functionName);
-        if(functionInterface == null && next != null)
-            return next.getFunctionInterface(functionName);
-        return functionInterface;
+        JCoFunctionTemplate template = getFunctionTemplate(functionName);
+        return template != null ? template.getFunctionInterface() : null;
     }
     
     /**
@@ -213,10 +928,7 @@ public class RepositoryChain implements JCoRepository
      */
     public JCoFunctionTemplate getFunctionTemplate(String functionName) throws JCoException
     {
-        JCoFunctionTemplate template = current.getFunctionTemplate(functionName);
-        if(template == null && next != null)
-            return next.getFunctionTemplate(functionName);
-        return template;
+        return lookup(functionIndex, functionName);
     }
     
     /**
@@ -226,10 +938,7 @@ public class RepositoryChain implements JCoRepository
      */
     public JCoRecordMetaData getRecordMetaData(String recordName) throws JCoException
     {
-        JCoRecordMetaData template = current.getRecordMetaData(recordName);
-        if(template == null && next != null)
-            return next.getRecordMetaData(recordName);
-        return template;
+        return lookup(recordIndex, recordName);
     }
     
     /**
@@ -239,10 +948,8 @@ public class RepositoryChain implements JCoRepository
      */
     public JCoRequest getRequest(String functionName) throws JCoException
     {
-        JCoRequest template = current.getRequest(functionName);
-        if(template == null && next != null)
-            return next.getRequest(functionName);
-        return template;
+        JCoFunctionTemplate template = getFunctionTemplate(functionName);
+        return template != null ? template.getRequest() : null;
     }
     
     /**
@@ -257,31 +964,16 @@ public class RepositoryChain implements JCoRepository
     
     
     /**
-     * return the record names cached in all chains
+     * return the class names cached in all chains
      */
     public String[] getCachedClassMetaDataNames()
     {
-        List<String> list = new ArrayList<String>();
-        list = getCachedClassMetaDataNames(list);
-        return (String[]) list.toArray();
-    }
-    
-    List<String> getCachedClassMetaDataNames(List<String> list)
-    {
-        String[] cachedNames = current.getCachedClassMetaDataNames();
-        for(String cachedName : cachedNames)
-            list.add(cachedName);
-        if(next!=null)
-            list = next.getCachedClassMetaDataNames(list);
-        return list;
+        return getCachedNames(classIndex);
     }
 
     public JCoClassMetaData getClassMetaData(String className) throws JCoException
     {
-        JCoClassMetaData classMeta = current.getClassMetaData(className);
-        if(classMeta == null && next != null)
-            return next.getClassMetaData(className);
-        return classMeta;
+        return lookup(classIndex, className);
     }
 
     /**
@@ -289,9 +981,10 @@ public class RepositoryChain implements JCoRepository
      */
     public boolean isUnicode()
     {
-        boolean isUnicode = current.isUnicode();
-        if(isUnicode && next!=null)
-            isUnicode = next.isUnicode();
+        Link level = link.get();
+        boolean isUnicode = level.current.isUnicode();
+        if(isUnicode && level.next!=null)
+            isUnicode = level.next.isUnicode();
         return isUnicode;
     }
     
@@ -300,9 +993,11 @@ public class RepositoryChain implements JCoRepository
      */
     public void clear()
     {
-        current.clear();
-        if(next!=null)
-            next.clear();
+        Link level = link.get();
+        level.current.clear();
+        if(level.next!=null)
+            level.next.clear();
+        invalidateIndex();
     }
 
     /**
@@ -311,9 +1006,11 @@ public class RepositoryChain implements JCoRepository
      */
     public void removeFunctionTemplateFromCache(String functionName)
     {
-        current.removeFunctionTemplateFromCache(functionName);
-        if(next!=null)
-            next.removeFunctionTemplateFromCache(functionName);
+        Link level = link.get();
+        level.current.removeFunctionTemplateFromCache(functionName);
+        functionIndex.get().remove(functionName);
+        if(level.next!=null)
+            level.next.removeFunctionTemplateFromCache(functionName);
     }
     
     /**
@@ -322,9 +1019,11 @@ public class RepositoryChain implements JCoRepository
      */
     public void removeRecordMetaDataFromCache(String recordName)
     {
-        current.removeRecordMetaDataFromCache(recordName);
-        if(next!=null)
-            next.removeRecordMetaDataFromCache(recordName);
+        Link level = link.get();
+        level.current.removeRecordMetaDataFromCache(recordName);
+        recordIndex.get().remove(recordName);
+        if(level.next!=null)
+            level.next.removeRecordMetaDataFromCache(recordName);
     }
     
     /**
@@ -333,37 +1032,198 @@ public class RepositoryChain implements JCoRepository
      */
     public void removeClassMetaDataFromCache(String className)
     {
-        current.removeClassMetaDataFromCache(className);
-        if(next!=null)
-            next.removeClassMetaDataFromCache(className);
+        Link level = link.get();
+        level.current.removeClassMetaDataFromCache(className);
+        classIndex.get().remove(className);
+        if(level.next!=null)
+            level.next.removeClassMetaDataFromCache(className);
     }
     
     public void save(Writer writer) throws IOException
     {
-        current.save(writer);
-        if(next!=null)
+        Link level = link.get();
+        level.current.save(writer);
+        if(level.next!=null)
         {
         	writer.write(",");
         	writer.write(System.getProperty("line.separator"));
-            next.save(writer);
+            level.next.save(writer);
         }
     }
 
 	public void load(Reader reader) throws IOException
     {
-        current.load(reader);
-        if(next!=null)
+        Link level = link.get();
+        level.current.load(reader);
+        if(level.next!=null)
         {
         	char c = (char)reader.read();
         	if(c == ',')
-                next.load(reader);
+                level.next.load(reader);
         	else
         		throw new RuntimeException("Unexpected char ["+c+" between repositories in chain");
         }
     }
 
-	public static void main(String[] a) throws JCoException, IOException
+    /**
+     * Compares the lookups of a long chain ending with a repository, whose queries are expensive,
+     * using AbapBackendSimulator instead of an ABAP system
+     */
+    static void runSimulated() throws JCoException
+    {
+        AbapBackendSimulator simulator = new AbapBackendSimulator("ABAP_AS_WITH_POOL");
+        simulator.setMetaDataLatency(20, TimeUnit.MILLISECONDS);
+        JCoRepository remote = simulator.getRemoteRepository();
+        JCoRepository local = simulator.getRepository();
+
+        RepositoryChain chain = new RepositoryChain(JCo.createCustomRepository("Custom Repository 0"));
+        RepositoryChain last = chain;
+        for(int i = 1; i < 20; i++)
+        {
+            JCoCustomRepository custom = JCo.createCustomRepository("Custom Repository " + i);
+            custom.addFunctionTemplateToCache(local.getFunctionTemplate(i % 2 == 0 ? "STFC_CONNECTION" : "RFC_SYSTEM_INFO"));
+            RepositoryChain link = new RepositoryChain(custom);
+            last.setNextRepositoryChain(link);
+            last = link;
+        }
+        last.setNextRepository(remote);
+
+        List<String> names = Arrays.asList("STFC_CONNECTION", "BAPI_COMPANYCODE_GETDETAIL", "Z_NOT_EXISTING");
+        for(long ttl : new long[] { 0, 60 })
+        {
+            chain.setMissTTL(ttl, TimeUnit.SECONDS);
+            long queries = simulator.getRemoteQueryCount();
+            long start = System.nanoTime();
+            for(int i = 0; i < 50; i++)
+            {
+                for(String name : names)
+                    chain.getFunctionTemplate(name);
+            }
+            System.out.println("miss TTL " + ttl + " s: " + (simulator.getRemoteQueryCount() - queries) + " remote queries, "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms for " + 50 * names.size() + " lookups");
+        }
+        System.out.println("cached functions: " + Arrays.toString(chain.getCachedFunctionTemplateNames()));
+        System.out.println(chain.getMonitor());
+
+        //a repository added behind a reconfigured chain must be found despite the cached miss
+        chain.addRepository(1, JCo.createCustomRepository("Custom Repository 20"));
+        if(chain.getFunctionTemplate("Z_ADDED_LATER") != null)
+            System.out.println("error: Z_ADDED_LATER should not be available yet");
+        JCoCustomRepository added = JCo.createCustomRepository("Added later");
+        JCoFunctionTemplate template = local.getFunctionTemplate("STFC_CONNECTION");
+        added.addFunctionTemplateToCache(JCo.createFunctionTemplate("Z_ADDED_LATER", template.getImportParameterList(),
+                template.getExportParameterList(), null, null, null));
+        chain.getNextRepositoryChain().addRepository(0, added);
+        System.out.println("after reconfigure: Z_ADDED_LATER "
+                + (chain.getFunctionTemplate("Z_ADDED_LATER") != null ? "found" : "not found (error)"));
+
+        //absent names do not grow the remembered misses without bound
+        RepositoryChain small = new RepositoryChain(JCo.createCustomRepository("Custom Repository 21"));
+        for(int i = 0; i < 10 * MAX_MISSES; i++)
+            small.getFunctionTemplate("Z_ABSENT_" + i);
+        System.out.println(10 * MAX_MISSES + " absent names, " + small.getIndex(small.functionIndex).misses.size() + " misses remembered");
+    }
+
+    /**
+     * Looks up functions from many threads while another thread adds, removes and reorders repositories.
+     * STFC_CONNECTION is contained in a repository, which is never removed, and must always be found,
+     * Z_STRESS_n is only available while the repository "Stress n" is part of the chain.
+     */
+    static void runStress() throws JCoException, InterruptedException
+    {
+        final JCoRepository local = new AbapBackendSimulator("ABAP_AS_WITH_POOL").getRepository();
+        final RepositoryChain chain = new RepositoryChain(JCo.createCustomRepository("Stress base"));
+        chain.setNextRepository(local);
+        final List<JCoCustomRepository> optional = new ArrayList<JCoCustomRepository>();
+        JCoFunctionTemplate template = local.getFunctionTemplate("STFC_CONNECTION");
+        for(int i = 0; i < 8; i++)
+        {
+            JCoCustomRepository custom = JCo.createCustomRepository("Stress " + i);
+            custom.addFunctionTemplateToCache(JCo.createFunctionTemplate("Z_STRESS_" + i, template.getImportParameterList(),
+                    template.getExportParameterList(), null, null, null));
+            optional.add(custom);
+        }
+        
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong lookups = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong reconfigurations = new AtomicLong();
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int t = 0; t < 32; t++)
+        {
+            final Random random = new Random(t);
+            threads.add(new Thread("Reader-" + t)
+            {
+                public void run()
+                {
+                    while(running.get())
+                    {
+                        try
+                        {
+                            if(chain.getFunctionTemplate("STFC_CONNECTION") == null)
+                                errors.incrementAndGet();
+                            chain.getFunctionTemplate("Z_STRESS_" + random.nextInt(8));
+                            chain.getCachedFunctionTemplateNames();
+                            lookups.addAndGet(3);
+                        }
+                        catch(Throwable e)
+                        {
+                            errors.incrementAndGet();
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            });
+        }
+        threads.add(new Thread("Reconfiguration")
+        {
+            public void run()
+            {
+                Random random = new Random();
+                while(running.get())
+                {
+                    JCoCustomRepository custom = optional.get(random.nextInt(optional.size()));
+                    switch(random.nextInt(3))
+                    {
+                        case 0:
+                            if(!chain.getRepositories().contains(custom))
+                                chain.addRepository(random.nextInt(3), custom);
+                            break;
+                        case 1:
+                            chain.removeRepository(custom);
+                            break;
+                        default:
+                            chain.moveRepository(custom, random.nextInt(5));
+                    }
+                    reconfigurations.incrementAndGet();
+                }
+            }
+        });
+        
+        for(Thread thread : threads)
+            thread.start();
+        Thread.sleep(5000);
+        running.set(false);
+        for(Thread thread : threads)
+            thread.join();
+        
+        System.out.println(lookups.get() + " lookups during " + reconfigurations.get() + " reconfigurations, " + errors.get() + " errors");
+        System.out.println("final chain: " + chain.getName());
+    }
+
+	public static void main(String[] a) throws JCoException, IOException, InterruptedException
     {
+        if(a.length == 1 && a[0].equals("-simulated"))
+        {
+            runSimulated();
+            return;
+        }
+        if(a.length == 1 && a[0].equals("-stress"))
+        {
+            runStress();
+            return;
+        }
+
         //prepare chain
         JCoDestination dest = JCoDestinationManager.getDestination("V9U");
         JCoRepository rep = dest.getRepository();
@@ -0,0 +1,379 @@
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import com.sap.conn.jco.JCo;
+import com.sap.conn.jco.JCoAttributes;
+import com.sap.conn.jco.JCoCustomRepository;
+import com.sap.conn.jco.JCoDestination;
+import com.sap.conn.jco.JCoException;
+import com.sap.conn.jco.JCoFunctionTemplate;
+import com.sap.conn.jco.JCoListMetaData;
+import com.sap.conn.jco.JCoMetaData;
+import com.sap.conn.jco.JCoRecordMetaData;
+import com.sap.conn.jco.JCoRepository;
+
+/**
+ * RepositoryChain.save(Writer) and load(Reader) show that a repository can be serialized, but the text
+ * written there has neither a version nor a checksum. Services starting with an empty repository spend
+ * the first seconds with DDIC lookups for all functions they use.
+ *
+ * RepositorySnapshot stores the metadata of a repository (function templates, record and class metadata)
+ * in a durable file, which is loaded into a JCoCustomRepository at start-up. The metadata itself is
+ * serialized with JCoRepository.save, so the snapshot remains readable by every JCo version. The file
+ * layout is:
+ * <pre>
+ *   magic             8 bytes  "JCOREPOS"
+ *   format version    int
+ *   created           long     creation time in milliseconds
+ *   repository name   string
+ *   JCo version       string   version of the JCo runtime that wrote the snapshot
+ *   fingerprint       string   identifies the state of the backend metadata
+ *   content checksum  long     CRC32 of the content
+ *   content           string   output of JCoRepository.save
+ * </pre>
+ * Strings are stored as int length followed by the UTF-8 bytes. The file is written to a temporary file
+ * first, synced and then renamed, and the directory is synced after the rename, so a crash never leaves a
+ * partially written snapshot. When loading, the file is read in one piece and the content is decoded into
+ * the String JCoRepository.load reads from; a wrong magic, version or checksum causes the snapshot to be
+ * discarded.
+ *
+ * A snapshot is invalidated in two ways: the fingerprint, by default derived from the system ID, client
+ * and release of the backend, differs from the current one (e.g. after an upgrade), or verify() finds
+ * functions whose metadata differs from the backend. verify() is meant to run in the background after the
+ * application started with the snapshot; changed templates are replaced in the custom repository.
+ */
+public class RepositorySnapshot
+{
+    static final byte[] MAGIC = "JCOREPOS".getBytes(Charset.forName("US-ASCII"));
+    static final int FORMAT_VERSION = 1;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private String repositoryName;
+    private long created;
+    private String jcoVersion;
+    private String fingerprint;
+    private String content;
+
+    RepositorySnapshot(String repositoryName, long created, String jcoVersion, String fingerprint, String content)
+    {
+        this.repositoryName = repositoryName;
+        this.created = created;
+        this.jcoVersion = jcoVersion;
+        this.fingerprint = fingerprint;
+        this.content = content;
+    }
+
+    /**
+     * Creates a snapshot of the metadata cached in the repository
+     * @param repository repository, e.g. of a destination after the functions were used or warmed up
+     * @param fingerprint fingerprint of the backend metadata, see fingerprint(JCoDestination)
+     * @return the snapshot
+     */
+    public static RepositorySnapshot capture(JCoRepository repository, String fingerprint) throws IOException
+    {
+        StringWriter writer = new StringWriter();
+        repository.save(writer);
+        return new RepositorySnapshot(repository.getName(), System.currentTimeMillis(), JCo.getVersion(), fingerprint, writer.toString());
+    }
+
+    /**
+     * Returns a fingerprint of the backend metadata state, which changes with a system copy,
+     * a release upgrade or a kernel patch
+     * @param destination destination of the backend
+     */
+    public static String fingerprint(JCoDestination destination) throws JCoException
+    {
+        JCoAttributes attributes = destination.getAttributes();
+        return attributes.getSystemID() + "/" + attributes.getClient() + "/" + attributes.getPartnerRelease()
+                + "/" + attributes.getKernelRelease() + "/" + (destination.getRepository().isUnicode() ? "UC" : "NUC");
+    }
+
+    public String getRepositoryName()
+    {
+        return repositoryName;
+    }
+
+    public long getCreated()
+    {
+        return created;
+    }
+
+    public String getJCoVersion()
+    {
+        return jcoVersion;
+    }
+
+    public String getFingerprint()
+    {
+        return fingerprint;
+    }
+
+    /**
+     * Returns true if the snapshot was created for the given backend state
+     */
+    public boolean matches(String currentFingerprint)
+    {
+        return fingerprint.equals(currentFingerprint);
+    }
+
+    /**
+     * Writes the snapshot, replacing an existing file atomically
+     * @param file target file
+     */
+    public void write(File file) throws IOException
+    {
+        byte[] contentBytes = content.getBytes(UTF8);
+        CRC32 crc = new CRC32();
+        crc.update(contentBytes);
+
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(file.getName(), ".tmp", directory);
+        try
+        {
+            FileOutputStream fos = new FileOutputStream(temp);
+            try
+            {
+                DataOutputStream out = new DataOutputStream(fos);
+                out.write(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(created);
+                writeString(out, repositoryName.getBytes(UTF8));
+                writeString(out, jcoVersion.getBytes(UTF8));
+                writeString(out, fingerprint.getBytes(UTF8));
+                out.writeLong(crc.getValue());
+                writeString(out, contentBytes);
+                out.flush();
+                fos.getFD().sync();
+            }
+            finally
+            {
+                fos.close();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            //the rename is only durable after the directory entry has been written
+            FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+            try
+            {
+                channel.force(true);
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+        finally
+        {
+            if(temp.exists())
+                temp.delete();
+        }
+    }
+
+    static void writeString(DataOutputStream out, byte[] bytes) throws IOException
+    {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer buffer) throws IOException
+    {
+        int length = buffer.getInt();
+        if(length < 0 || length > buffer.remaining())
+            throw new IOException("Invalid string length " + length + " at position " + (buffer.position() - 4));
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return UTF8.decode(slice).toString();
+    }
+
+    /**
+     * Reads a snapshot
+     * @param file snapshot file
+     * @return the snapshot
+     * @throws IOException if the file cannot be read, has an unknown format or a wrong checksum
+     */
+    public static RepositorySnapshot read(File file) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        try
+        {
+            byte[] magic = new byte[MAGIC.length];
+            if(buffer.remaining() < MAGIC.length + 4)
+                throw new IOException("File " + file + " is not a repository snapshot");
+            buffer.get(magic);
+            if(!Arrays.equals(magic, MAGIC))
+                throw new IOException("File " + file + " is not a repository snapshot");
+            int version = buffer.getInt();
+            if(version != FORMAT_VERSION)
+                throw new IOException("Unsupported snapshot format version " + version + " in " + file);
+
+            long created = buffer.getLong();
+            String repositoryName = readString(buffer);
+            String jcoVersion = readString(buffer);
+            String fingerprint = readString(buffer);
+            long checksum = buffer.getLong();
+
+            int length = buffer.getInt();
+            if(length < 0 || length != buffer.remaining())
+                throw new IOException("Snapshot " + file + " is truncated");
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate());
+            if(crc.getValue() != checksum)
+                throw new IOException("Checksum mismatch in snapshot " + file);
+            String content = UTF8.decode(buffer).toString();
+
+            return new RepositorySnapshot(repositoryName, created, jcoVersion, fingerprint, content);
+        }
+        catch(BufferUnderflowException bue)
+        {
+            throw new IOException("Snapshot " + file + " is truncated", bue);
+        }
+    }
+
+    /**
+     * Creates a custom repository containing the metadata of this snapshot
+     * @param name name of the custom repository
+     */
+    public JCoCustomRepository toRepository(String name) throws IOException
+    {
+        JCoCustomRepository repository = JCo.createCustomRepository(name);
+        repository.load(new StringReader(content));
+        return repository;
+    }
+
+    /**
+     * Returns the serialized form of the template. The template is saved and loaded once before,
+     * because loading adds defaults (e.g. the DDIC name of elementary parameters), so that templates
+     * read from a snapshot and templates queried from the backend are compared in the same form.
+     */
+    static String toText(JCoFunctionTemplate template) throws IOException
+    {
+        JCoCustomRepository single = JCo.createCustomRepository("VERIFY");
+        single.addFunctionTemplateToCache(template);
+        StringWriter writer = new StringWriter();
+        single.save(writer);
+
+        JCoCustomRepository loaded = JCo.createCustomRepository("VERIFY");
+        loaded.load(new StringReader(writer.toString()));
+        writer = new StringWriter();
+        loaded.save(writer);
+        return writer.toString();
+    }
+
+    /**
+     * Compares the function templates of the custom repository with the backend and replaces the changed
+     * ones. Functions no longer available in the backend are removed.
+     * @param repository repository loaded from a snapshot
+     * @param backend repository connected to the backend, it should not contain cached metadata
+     * @return names of the changed or removed functions
+     */
+    public static List<String> verify(JCoCustomRepository repository, JCoRepository backend) throws JCoException, IOException
+    {
+        List<String> changed = new ArrayList<String>();
+        for(String functionName : repository.getCachedFunctionTemplateNames())
+        {
+            JCoFunctionTemplate current = backend.getFunctionTemplate(functionName);
+            if(current == null)
+            {
+                repository.removeFunctionTemplateFromCache(functionName);
+                changed.add(functionName);
+            }
+            else if(!toText(current).equals(toText(repository.getFunctionTemplate(functionName))))
+            {
+                repository.addFunctionTemplateToCache(current);
+                changed.add(functionName);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Loads the repository from the snapshot file if the file is intact and matches the fingerprint.
+     * Otherwise the given functions are queried from the backend and a new snapshot is written.
+     * @param file snapshot file
+     * @param backend repository connected to the backend
+     * @param fingerprint current fingerprint of the backend metadata
+     * @param functionNames functions to be queried if the snapshot cannot be used
+     * @return a custom repository containing the metadata
+     */
+    public static JCoCustomRepository open(File file, JCoRepository backend, String fingerprint, List<String> functionNames) throws JCoException, IOException
+    {
+        String name = backend.getName() + " snapshot";
+        if(file.isFile())
+        {
+            try
+            {
+                RepositorySnapshot snapshot = read(file);
+                if(snapshot.matches(fingerprint))
+                    return snapshot.toRepository(name);
+                System.out.println(">>> snapshot " + file + " was created for " + snapshot.getFingerprint() + ", current backend is " + fingerprint);
+            }
+            catch(IOException ioe)
+            {
+                System.out.println(">>> snapshot " + file + " is not usable: " + ioe.getMessage());
+            }
+        }
+
+        new FunctionTemplateCache(backend).warmUp(functionNames);
+        RepositorySnapshot snapshot = capture(backend, fingerprint);
+        snapshot.write(file);
+        return snapshot.toRepository(name);
+    }
+
+    public static void main(String[] args) throws JCoException, IOException
+    {
+        List<String> functionNames = Arrays.asList("STFC_CONNECTION", "RFC_SYSTEM_INFO",
+                "BAPI_COMPANYCODE_GETLIST", "BAPI_COMPANYCODE_GETDETAIL", "Z_INCREMENT_COUNTER", "Z_GET_COUNTER");
+        File file = new File(args.length > 0 ? args[0] : "ABAP_AS_WITH_POOL.snapshot");
+        file.delete();
+        String fingerprint = "SIM/000/740/721/UC";
+
+        //first start: no snapshot, the metadata is queried from the backend
+        AbapBackendSimulator simulator = new AbapBackendSimulator("ABAP_AS_WITH_POOL");
+        simulator.setMetaDataLatency(50, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        JCoCustomRepository repository = open(file, simulator.getRemoteRepository(), fingerprint, functionNames);
+        System.out.println("cold start: " + repository.getCachedFunctionTemplateNames().length + " functions in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, " + simulator.getRemoteQueryCount()
+                + " remote queries, snapshot size " + file.length() + " bytes");
+
+        //restart: the snapshot is used
+        simulator = new AbapBackendSimulator("ABAP_AS_WITH_POOL");
+        simulator.setMetaDataLatency(50, TimeUnit.MILLISECONDS);
+        start = System.nanoTime();
+        repository = open(file, simulator.getRemoteRepository(), fingerprint, functionNames);
+        System.out.println("warm start: " + repository.getCachedFunctionTemplateNames().length + " functions in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, " + simulator.getRemoteQueryCount()
+                + " remote queries");
+
+        //background verification against the backend
+        JCoCustomRepository backendChanged = AbapBackendSimulator.createRepository("CHANGED");
+        JCoRecordMetaData recordMetaData = new AbapBackendSimulator.RecordBuilder("ZCHANGED").addChar("NEW_FIELD", 10).lock();
+        JCoListMetaData exports = JCo.createListMetaData("EXPORTS");
+        exports.add("GET_VALUE", JCoMetaData.TYPE_STRUCTURE, recordMetaData, JCoListMetaData.EXPORT_PARAMETER);
+        exports.lock();
+        backendChanged.addFunctionTemplateToCache(JCo.createFunctionTemplate("Z_GET_COUNTER", null, exports, null, null, null));
+        System.out.println("verification found changed functions " + verify(repository, backendChanged));
+
+        //backend upgrade: the fingerprint changes and the snapshot is rebuilt
+        repository = open(file, simulator.getRemoteRepository(), "SIM/000/750/745/UC", functionNames);
+        System.out.println("after upgrade: " + repository.getCachedFunctionTemplateNames().length + " functions, snapshot fingerprint "
+                + read(file).getFingerprint());
+        file.delete();
+    }
+}
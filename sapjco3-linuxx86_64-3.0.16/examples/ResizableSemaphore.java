@@ -0,0 +1,40 @@
+import java.util.concurrent.Semaphore;
+
+/**
+ * A fair Semaphore whose number of permits can be changed while permits are held. It limits
+ * concurrent calls whose limit is adjusted at runtime, e.g. the peak limit of a simulated pool.
+ *
+ * Reducing the limit does not revoke permits already acquired; the available permits may become
+ * negative and new acquirers wait until enough permits were released.
+ */
+class ResizableSemaphore extends Semaphore
+{
+    private static final long serialVersionUID = 1L;
+
+    private int limit;
+
+    ResizableSemaphore(int limit)
+    {
+        super(limit, true);
+        if(limit < 1)
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        this.limit = limit;
+    }
+
+    synchronized void setLimit(int newLimit)
+    {
+        if(newLimit < 1)
+            throw new IllegalArgumentException("limit must be positive: " + newLimit);
+        int delta = newLimit - limit;
+        limit = newLimit;
+        if(delta > 0)
+            release(delta);
+        else if(delta < 0)
+            reducePermits(-delta);
+    }
+
+    synchronized int getLimit()
+    {
+        return limit;
+    }
+}
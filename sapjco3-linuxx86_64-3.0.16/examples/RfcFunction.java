@@ -0,0 +1,23 @@
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the function modules a JCoServerFunctionHandler implements. HandlerDispatchTable reads the
+ * annotation once when the table is built; it is not evaluated per call.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface RfcFunction
+{
+    /**
+     * names of the function modules handled
+     */
+    String[] value();
+
+    /**
+     * true if the calls keep data in the session of the ABAP caller, the session is then made stateful
+     */
+    boolean stateful() default false;
+}
@@ -0,0 +1,745 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import com.sap.conn.jco.AbapClassException;
+import com.sap.conn.jco.AbapException;
+import com.sap.conn.jco.JCoFunction;
+import com.sap.conn.jco.JCoRepository;
+import com.sap.conn.jco.monitor.JCoServerMonitor;
+import com.sap.conn.jco.server.DefaultServerHandlerFactory;
+import com.sap.conn.jco.server.JCoServer;
+import com.sap.conn.jco.server.JCoServerContext;
+import com.sap.conn.jco.server.JCoServerContextInfo;
+import com.sap.conn.jco.server.JCoServerErrorListener;
+import com.sap.conn.jco.server.JCoServerExceptionListener;
+import com.sap.conn.jco.server.JCoServerFunctionHandler;
+import com.sap.conn.jco.server.JCoServerFunctionHandlerFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * ServerMetrics records the calls of a JCoServer per function module: a LatencyHistogram of the
+ * duration of handleRequest, the number of calls running and the number of calls ending with an
+ * exception. The handlers are wrapped by instrument, either one by one or all handlers returned by a
+ * JCoServerFunctionHandlerFactory. Registered with addServer, it also counts the errors and exceptions
+ * reported to the JCoServerErrorListener and JCoServerExceptionListener of the server, which include
+ * failures outside of the handlers, and reads the connection and thread counts of its JCoServerMonitor.
+ *
+ * Recording a call does not allocate: the statistics of a function are found with a get on a
+ * ConcurrentHashMap, the histogram is striped and the counters are LongAdders, so server threads calling
+ * the same function do not contend on a shared counter. Only the first call of a function creates its
+ * statistics. This replaces the System.out.println calls of
+ * StepByStepServer.StfcConnectionHandler, which serialized all server threads on the console.
+ *
+ * The values are exposed as MBeans, JCoServer:type=Function,server=...,name=... per function and
+ * JCoServer:type=Server,name=... with the name of the server, so the metrics of several servers in one
+ * JVM can be registered side by side, and in the Prometheus text format, returned by scrape and served on
+ * http://127.0.0.1:port/metrics by startHttpEndpoint. The JMX percentiles are read from the log-linear
+ * buckets of LatencyHistogram; the Prometheus histogram exports its buckets at the powers of two only,
+ * to keep the number of series small.
+ */
+public class ServerMetrics implements JCoServerErrorListener, JCoServerExceptionListener
+{
+    public interface FunctionStatsMBean
+    {
+        String getFunctionName();
+
+        long getCallCount();
+
+        long getErrorCount();
+
+        int getActiveCount();
+
+        long getMeanMicros();
+
+        long getP50Micros();
+
+        long getP99Micros();
+
+        long getMaxMicros();
+    }
+
+    public static class FunctionStats implements FunctionStatsMBean
+    {
+        private String functionName;
+        private LatencyHistogram latency = new LatencyHistogram();
+        private LongAdder errors = new LongAdder();
+        private LongAdder active = new LongAdder();
+
+        FunctionStats(String functionName)
+        {
+            this.functionName = functionName;
+        }
+
+        public String getFunctionName()
+        {
+            return functionName;
+        }
+
+        public long getCallCount()
+        {
+            return latency.getCount();
+        }
+
+        public long getErrorCount()
+        {
+            return errors.sum();
+        }
+
+        public int getActiveCount()
+        {
+            return (int)active.sum();
+        }
+
+        public long getMeanMicros()
+        {
+            return latency.getMean(TimeUnit.MICROSECONDS);
+        }
+
+        public long getP50Micros()
+        {
+            return latency.getPercentile(50);
+        }
+
+        public long getP99Micros()
+        {
+            return latency.getPercentile(99);
+        }
+
+        public long getMaxMicros()
+        {
+            return latency.getPercentile(100);
+        }
+
+        public LatencyHistogram getLatency()
+        {
+            return latency;
+        }
+
+        public String toString()
+        {
+            return functionName + ": " + errors.sum() + " errors, " + latency;
+        }
+    }
+
+    public interface ServerStatsMBean
+    {
+        long getServerErrorCount();
+
+        long getServerExceptionCount();
+
+        String getLastServerException();
+
+        int getConnectionCount();
+
+        int getUsedServerThreadCount();
+
+        int getMaximumUsedServerThreadCount();
+
+        int getServerThreadCount();
+    }
+
+    /**
+     * Records the calls of the wrapped handler
+     */
+    class InstrumentedHandler implements JCoServerFunctionHandler
+    {
+        JCoServerFunctionHandler handler;
+
+        InstrumentedHandler(JCoServerFunctionHandler handler)
+        {
+            this.handler = handler;
+        }
+
+        public void handleRequest(JCoServerContext serverCtx, JCoFunction function) throws AbapException, AbapClassException
+        {
+            FunctionStats stats = getStats(function.getName());
+            stats.active.increment();
+            long start = System.nanoTime();
+            boolean failed = true;
+            try
+            {
+                handler.handleRequest(serverCtx, function);
+                failed = false;
+            }
+            finally
+            {
+                stats.latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                if(failed)
+                    stats.errors.increment();
+                stats.active.decrement();
+            }
+        }
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ConcurrentHashMap<String, FunctionStats> functions = new ConcurrentHashMap<String, FunctionStats>();
+    private ConcurrentHashMap<JCoServerFunctionHandler, JCoServerFunctionHandler> instrumented = new ConcurrentHashMap<JCoServerFunctionHandler, JCoServerFunctionHandler>();
+    private CopyOnWriteArrayList<JCoServerMonitor> monitors = new CopyOnWriteArrayList<JCoServerMonitor>();
+    private AtomicLong serverErrors = new AtomicLong();
+    private AtomicLong serverExceptions = new AtomicLong();
+    private AtomicLong unknownFunctions = new AtomicLong();
+    private volatile String lastServerException;
+    private volatile MBeanServer mbeanServer;
+    private String mbeanServerName;
+
+    /**
+     * returns the statistics of the function, created with the first call
+     */
+    public FunctionStats getStats(String functionName)
+    {
+        FunctionStats stats = functions.get(functionName);
+        if(stats == null)
+        {
+            FunctionStats created = new FunctionStats(functionName);
+            stats = functions.putIfAbsent(functionName, created);
+            if(stats == null)
+            {
+                stats = created;
+                MBeanServer server = mbeanServer;
+                if(server != null)
+                    register(server, stats);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * returns the statistics of all functions called, sorted by name
+     */
+    public List<FunctionStats> getFunctionStats()
+    {
+        List<FunctionStats> list = new ArrayList<FunctionStats>(functions.values());
+        Collections.sort(list, new Comparator<FunctionStats>()
+        {
+            public int compare(FunctionStats a, FunctionStats b)
+            {
+                return a.functionName.compareTo(b.functionName);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Wraps a handler, so its calls are recorded under the name of the called function
+     */
+    public JCoServerFunctionHandler instrument(JCoServerFunctionHandler handler)
+    {
+        JCoServerFunctionHandler wrapper = instrumented.get(handler);
+        if(wrapper == null)
+        {
+            JCoServerFunctionHandler created = new InstrumentedHandler(handler);
+            wrapper = instrumented.putIfAbsent(handler, created);
+            if(wrapper == null)
+                wrapper = created;
+        }
+        return wrapper;
+    }
+
+    /**
+     * Wraps a factory, so the calls of all handlers it returns are recorded. A wrapper is created once per
+     * handler, not per call.
+     */
+    public JCoServerFunctionHandlerFactory instrument(final JCoServerFunctionHandlerFactory factory)
+    {
+        return new JCoServerFunctionHandlerFactory()
+        {
+            public JCoServerFunctionHandler getCallHandler(JCoServerContext serverCtx, String functionName)
+            {
+                JCoServerFunctionHandler handler;
+                try
+                {
+                    handler = factory.getCallHandler(serverCtx, functionName);
+                }
+                catch(RuntimeException e)
+                {
+                    //DefaultServerHandlerFactory throws if no handler is installed
+                    unknownFunctions.incrementAndGet();
+                    throw e;
+                }
+                if(handler == null)
+                {
+                    unknownFunctions.incrementAndGet();
+                    return null;
+                }
+                return instrument(handler);
+            }
+
+            public void sessionClosed(JCoServerContext serverCtx, String message, boolean error)
+            {
+                factory.sessionClosed(serverCtx, message, error);
+            }
+        };
+    }
+
+    /**
+     * Registers the metrics as error and exception listener of the server and reads its monitor
+     */
+    public void addServer(JCoServer server)
+    {
+        server.addServerErrorListener(this);
+        server.addServerExceptionListener(this);
+        addMonitor(server.getMonitor());
+    }
+
+    public void addMonitor(JCoServerMonitor monitor)
+    {
+        monitors.addIfAbsent(monitor);
+    }
+
+    public void serverErrorOccurred(JCoServer server, String connectionId, JCoServerContextInfo serverCtx, Error error)
+    {
+        serverErrors.incrementAndGet();
+        lastServerException = error.toString();
+    }
+
+    public void serverExceptionOccurred(JCoServer server, String connectionId, JCoServerContextInfo serverCtx, Exception error)
+    {
+        serverExceptions.incrementAndGet();
+        lastServerException = error.toString();
+    }
+
+    public long getServerErrorCount()
+    {
+        return serverErrors.get();
+    }
+
+    public long getServerExceptionCount()
+    {
+        return serverExceptions.get();
+    }
+
+    public String getLastServerException()
+    {
+        return lastServerException;
+    }
+
+    /**
+     * returns the number of calls for which the factory returned no handler
+     */
+    public long getUnknownFunctionCount()
+    {
+        return unknownFunctions.get();
+    }
+
+    /**
+     * The server statistics summed over the monitors
+     */
+    ServerStatsMBean getServerStats()
+    {
+        return new ServerStatsMBean()
+        {
+            public long getServerErrorCount()
+            {
+                return serverErrors.get();
+            }
+
+            public long getServerExceptionCount()
+            {
+                return serverExceptions.get();
+            }
+
+            public String getLastServerException()
+            {
+                return lastServerException;
+            }
+
+            public int getConnectionCount()
+            {
+                int count = 0;
+                for(JCoServerMonitor monitor : monitors)
+                    count += monitor.getCurrentConnectionCount();
+                return count;
+            }
+
+            public int getUsedServerThreadCount()
+            {
+                int count = 0;
+                for(JCoServerMonitor monitor : monitors)
+                    count += monitor.getUsedServerThreadCount();
+                return count;
+            }
+
+            public int getMaximumUsedServerThreadCount()
+            {
+                int count = 0;
+                for(JCoServerMonitor monitor : monitors)
+                    count += monitor.getMaximumUsedServerThreadCount();
+                return count;
+            }
+
+            public int getServerThreadCount()
+            {
+                int count = 0;
+                for(JCoServerMonitor monitor : monitors)
+                    count += monitor.getServerThreadCount();
+                return count;
+            }
+        };
+    }
+
+    /**
+     * Registers the MBeans of the server and of the functions, including those called later
+     * @param serverName name of the server, e.g. as passed to JCoServerFactory.getServer, which distinguishes
+     *        the MBeans of several servers
+     * @throws JMException if an MBean cannot be registered, e.g. because the server name is already used
+     */
+    public void registerMBeans(MBeanServer server, String serverName) throws JMException
+    {
+        server.registerMBean(new StandardMBean(getServerStats(), ServerStatsMBean.class),
+                new ObjectName("JCoServer:type=Server,name=" + ObjectName.quote(serverName)));
+        mbeanServerName = serverName;
+        mbeanServer = server;
+        for(FunctionStats stats : functions.values())
+            register(server, stats);
+    }
+
+    void register(MBeanServer server, FunctionStats stats)
+    {
+        try
+        {
+            ObjectName name = new ObjectName("JCoServer:type=Function,server=" + ObjectName.quote(mbeanServerName) + ",name="
+                    + ObjectName.quote(stats.functionName));
+            if(!server.isRegistered(name))
+                server.registerMBean(new StandardMBean(stats, FunctionStatsMBean.class), name);
+        }
+        catch(JMException e)
+        {
+            //the metrics are still recorded and exported by scrape
+            lastServerException = "Unable to register the MBean of " + stats.functionName + ": " + e;
+        }
+    }
+
+    /**
+     * returns the metrics in the Prometheus text format
+     */
+    public String scrape()
+    {
+        StringBuilder sb = new StringBuilder(4096);
+        List<FunctionStats> list = getFunctionStats();
+        sb.append("# HELP jco_server_function_calls_total Calls of the function module\n");
+        sb.append("# TYPE jco_server_function_calls_total counter\n");
+        for(FunctionStats stats : list)
+            sample(sb, "jco_server_function_calls_total", stats.functionName, null, stats.getCallCount());
+        sb.append("# HELP jco_server_function_errors_total Calls of the function module ending with an exception\n");
+        sb.append("# TYPE jco_server_function_errors_total counter\n");
+        for(FunctionStats stats : list)
+            sample(sb, "jco_server_function_errors_total", stats.functionName, null, stats.getErrorCount());
+        sb.append("# HELP jco_server_function_active Calls of the function module running\n");
+        sb.append("# TYPE jco_server_function_active gauge\n");
+        for(FunctionStats stats : list)
+            sample(sb, "jco_server_function_active", stats.functionName, null, stats.getActiveCount());
+        sb.append("# HELP jco_server_function_duration_seconds Duration of the handler of the function module\n");
+        sb.append("# TYPE jco_server_function_duration_seconds histogram\n");
+        for(FunctionStats stats : list)
+        {
+            long[] counts = stats.latency.getCounts();
+            long cumulative = 0;
+            //the last bucket also counts the larger values, so it is reported as +Inf only
+            for(int i = 0; i < counts.length - 1; i++)
+            {
+                cumulative += counts[i];
+                long upperBound = LatencyHistogram.getUpperBound(i);
+                if(Long.bitCount(upperBound) == 1)
+                    sample(sb, "jco_server_function_duration_seconds_bucket", stats.functionName, Double.toString(upperBound / 1e6),
+                            cumulative);
+            }
+            cumulative += counts[counts.length - 1];
+            sample(sb, "jco_server_function_duration_seconds_bucket", stats.functionName, "+Inf", cumulative);
+            sb.append("jco_server_function_duration_seconds_sum{function=\"").append(escape(stats.functionName)).append("\"} ")
+                    .append(stats.latency.getTotal(TimeUnit.NANOSECONDS) / 1e9).append('\n');
+            //the count of the buckets read above, so the histogram is consistent
+            sample(sb, "jco_server_function_duration_seconds_count", stats.functionName, null, cumulative);
+        }
+
+        ServerStatsMBean server = getServerStats();
+        gauge(sb, "jco_server_unknown_function_calls_total", "counter", "Calls of functions without handler", unknownFunctions.get());
+        gauge(sb, "jco_server_errors_total", "counter", "Errors reported to the JCoServerErrorListener", serverErrors.get());
+        gauge(sb, "jco_server_exceptions_total", "counter", "Exceptions reported to the JCoServerExceptionListener", serverExceptions.get());
+        gauge(sb, "jco_server_connections", "gauge", "Current connections of the servers", server.getConnectionCount());
+        gauge(sb, "jco_server_threads", "gauge", "Server threads", server.getServerThreadCount());
+        gauge(sb, "jco_server_threads_used", "gauge", "Server threads executing a call", server.getUsedServerThreadCount());
+        gauge(sb, "jco_server_threads_used_max", "gauge", "Maximum of the server threads executing a call",
+                server.getMaximumUsedServerThreadCount());
+        return sb.toString();
+    }
+
+    static void sample(StringBuilder sb, String metric, String functionName, String le, long value)
+    {
+        sb.append(metric).append("{function=\"").append(escape(functionName)).append('"');
+        if(le != null)
+            sb.append(",le=\"").append(le).append('"');
+        sb.append("} ").append(value).append('\n');
+    }
+
+    static void gauge(StringBuilder sb, String metric, String type, String help, long value)
+    {
+        sb.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(metric).append(' ').append(type).append('\n');
+        sb.append(metric).append(' ').append(value).append('\n');
+    }
+
+    static String escape(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Serves scrape on http://127.0.0.1:port/metrics
+     * @param port port, 0 for any free port
+     * @return the started HTTP server, stop it to end the endpoint
+     */
+    public HttpServer startHttpEndpoint(int port) throws IOException
+    {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 0);
+        http.createContext("/metrics", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                byte[] body = scrape().getBytes(UTF8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        http.setExecutor(null);
+        http.start();
+        return http;
+    }
+
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for(FunctionStats stats : getFunctionStats())
+            sb.append(stats).append('\n');
+        sb.append(serverErrors.get()).append(" server errors, ").append(serverExceptions.get()).append(" server exceptions, ")
+                .append(unknownFunctions.get()).append(" calls of unknown functions");
+        return sb.toString();
+    }
+
+    static JCoServerMonitor createMonitor(final int connections, final int threads)
+    {
+        return (JCoServerMonitor)Proxy.newProxyInstance(ServerMetrics.class.getClassLoader(), new Class<?>[] { JCoServerMonitor.class },
+                new InvocationHandler()
+                {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        String name = method.getName();
+                        if(name.equals("getCurrentConnectionCount"))
+                            return Integer.valueOf(connections);
+                        if(name.equals("getServerThreadCount") || name.equals("getMaximumUsedServerThreadCount"))
+                            return Integer.valueOf(threads);
+                        if(name.equals("getUsedServerThreadCount"))
+                            return Integer.valueOf(threads / 2);
+                        throw new UnsupportedOperationException(name);
+                    }
+                });
+    }
+
+    /**
+     * Calls the handler from several threads at once, each with its own function
+     * @return the elapsed nanoseconds per call and thread
+     */
+    static long measureConcurrent(final JCoServerFunctionHandler handler, JCoRepository repository, int threads, final int calls)
+            throws Exception
+    {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for(int t = 0; t < threads; t++)
+        {
+            final JCoFunction function = repository.getFunction("STFC_CONNECTION");
+            function.getImportParameterList().setValue("REQUTEXT", "Hello");
+            Thread thread = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for(int i = 0; i < calls; i++)
+                            handler.handleRequest(null, function);
+                    }
+                    catch(Exception e)
+                    {
+                        e.printStackTrace();
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        return (System.nanoTime() - begin) / calls;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        JCoRepository repository = new AbapBackendSimulator("SIM").getRepository();
+        final ServerMetrics metrics = new ServerMetrics();
+        metrics.addMonitor(createMonitor(8, 8));
+        metrics.registerMBeans(ManagementFactory.getPlatformMBeanServer(), "SIM");
+
+        DefaultServerHandlerFactory.FunctionHandlerFactory handlers = new DefaultServerHandlerFactory.FunctionHandlerFactory();
+        handlers.registerHandler("STFC_CONNECTION", new StepByStepServer.StfcConnectionHandler(false));
+        handlers.registerHandler("BAPI_COMPANYCODE_GETDETAIL", new JCoServerFunctionHandler()
+        {
+            public void handleRequest(JCoServerContext serverCtx, JCoFunction function) throws AbapException
+            {
+                String code = function.getImportParameterList().getString("COMPANYCODEID");
+                if(code.endsWith("7"))
+                    throw new AbapException("NOT_FOUND", "Company code " + code + " does not exist");
+                function.getExportParameterList().getStructure("COMPANYCODE_DETAIL").setValue("COMP_CODE", code);
+            }
+        });
+        final JCoServerFunctionHandlerFactory factory = metrics.instrument(handlers);
+
+        //recording a call allocates nothing; the first calls create the statistics and warm up the code
+        final JCoFunction stfc = repository.getFunction("STFC_CONNECTION");
+        stfc.getImportParameterList().setValue("REQUTEXT", "Hello");
+        JCoServerFunctionHandler handler = factory.getCallHandler(null, "STFC_CONNECTION");
+        JCoServerFunctionHandler plain = new StepByStepServer.StfcConnectionHandler(false);
+        int calls = 2000000;
+        for(int i = 0; i < calls / 10; i++)
+        {
+            handler.handleRequest(null, stfc);
+            plain.handleRequest(null, stfc);
+        }
+        long allocated = ThreadSupport.getAllocatedBytes();
+        long start = System.nanoTime();
+        for(int i = 0; i < calls; i++)
+            plain.handleRequest(null, stfc);
+        long plainNanos = System.nanoTime() - start;
+        long plainBytes = ThreadSupport.getAllocatedBytes() - allocated;
+        allocated = ThreadSupport.getAllocatedBytes();
+        start = System.nanoTime();
+        for(int i = 0; i < calls; i++)
+            handler.handleRequest(null, stfc);
+        long instrumentedNanos = System.nanoTime() - start;
+        long instrumentedBytes = ThreadSupport.getAllocatedBytes() - allocated;
+        System.out.println(String.format("STFC_CONNECTION handler: %d ns and %d bytes per call, instrumented %d ns and %d bytes per call",
+                plainNanos / calls, plainBytes / calls, instrumentedNanos / calls, instrumentedBytes / calls));
+
+        //the overhead when all server threads call the same function and record into the same statistics
+        int contending = 8;
+        measureConcurrent(plain, repository, contending, calls / 40);
+        measureConcurrent(handler, repository, contending, calls / 40);
+        System.out.println(String.format("%d threads calling STFC_CONNECTION on %d processors: %d ns per call, instrumented %d ns per call",
+                contending, Runtime.getRuntime().availableProcessors(), measureConcurrent(plain, repository, contending, calls / 8),
+                measureConcurrent(handler, repository, contending, calls / 8)));
+
+        //several server threads calling both functions, some ending with an ABAP exception
+        final int threads = 8;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for(int t = 0; t < threads; t++)
+        {
+            final JCoFunction detail = repository.getFunction("BAPI_COMPANYCODE_GETDETAIL");
+            final JCoFunction echo = repository.getFunction("STFC_CONNECTION");
+            Thread thread = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    for(int i = 0; i < 100000; i++)
+                    {
+                        detail.getImportParameterList().setValue("COMPANYCODEID", AbapBackendSimulator.companyCode(i % 10));
+                        try
+                        {
+                            factory.getCallHandler(null, "BAPI_COMPANYCODE_GETDETAIL").handleRequest(null, detail);
+                        }
+                        catch(AbapException e)
+                        {
+                            //reported to the ABAP caller
+                        }
+                        catch(AbapClassException e)
+                        {
+                            //not raised by the handlers of this example
+                        }
+                        try
+                        {
+                            factory.getCallHandler(null, "STFC_CONNECTION").handleRequest(null, echo);
+                        }
+                        catch(AbapException e)
+                        {
+                        }
+                        catch(AbapClassException e)
+                        {
+                        }
+                    }
+                    done.countDown();
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        try
+        {
+            factory.getCallHandler(null, "Z_NOT_IMPLEMENTED");
+        }
+        catch(RuntimeException e)
+        {
+            //JCo reports the missing handler to the caller
+        }
+        metrics.serverExceptionOccurred(null, "1", null, new IllegalStateException("Connection reset by the gateway"));
+        System.out.println(metrics);
+
+        //the same values by JMX and on the Prometheus endpoint
+        MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        System.out.println("\nJMX: JCoServer:type=Function,server=\"SIM\",name=\"BAPI_COMPANYCODE_GETDETAIL\" ErrorCount="
+                + mbeans.getAttribute(new ObjectName("JCoServer:type=Function,server=\"SIM\",name=\"BAPI_COMPANYCODE_GETDETAIL\""), "ErrorCount")
+                + ", JCoServer:type=Server,name=\"SIM\" ConnectionCount="
+                + mbeans.getAttribute(new ObjectName("JCoServer:type=Server,name=\"SIM\""), "ConnectionCount"));
+
+        //a second server in the same JVM registers its MBeans under its own name
+        ServerMetrics second = new ServerMetrics();
+        second.registerMBeans(mbeans, "SIM2");
+        second.getStats("STFC_CONNECTION");
+        System.out.println("JMX: " + mbeans.queryNames(new ObjectName("JCoServer:type=Server,*"), null) + ", function MBeans of SIM2: "
+                + mbeans.queryNames(new ObjectName("JCoServer:type=Function,server=\"SIM2\",*"), null));
+
+        HttpServer http = metrics.startHttpEndpoint(0);
+        URL url = new URL("http://127.0.0.1:" + http.getAddress().getPort() + "/metrics");
+        BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream(), UTF8));
+        System.out.println("\n" + url + ":");
+        String line;
+        while((line = reader.readLine()) != null)
+            if(!line.contains("_bucket") || line.contains("le=\"0.001024\"") || line.contains("+Inf"))
+                System.out.println(line);
+        reader.close();
+        http.stop(0);
+    }
+}
@@ -0,0 +1,735 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.sap.conn.jco.JCoException;
+import com.sap.conn.jco.JCoFunction;
+import com.sap.conn.jco.JCoFunctionTemplate;
+import com.sap.conn.jco.server.JCoServerContext;
+import com.sap.conn.jco.server.JCoServerFunctionHandler;
+import com.sap.conn.jco.server.JCoServerFunctionHandlerFactory;
+
+/**
+ * StatefulServerExample originally kept the sessions and the data of each session in java.util.Hashtable,
+ * so every getCallHandler and every counter increment of all ABAP sessions synchronized on one monitor.
+ *
+ * SessionRegistry keeps the sessions in a ConcurrentHashMap whose table is split into as many segments
+ * as configured, so lookups do not lock and updates of different sessions rarely contend. Counters
+ * declared when the registry is created are stored as primitive slots of an AtomicLongArray in each
+ * session, so incrementing them neither locks nor boxes. Other session data is kept in a map created
+ * on first use.
+ *
+ * Each access stamps the session. evictIdle removes the sessions not used within the given time, e.g.
+ * because the ABAP side never closed them, and passes them to the EvictionListener. get and getOrCreate
+ * also mark the session as in use until the caller releases it, usually in a finally block after the
+ * call was handled. A session is marked as evicted with a compare-and-set on its time stamp, and the
+ * eviction is cancelled if the session is in use at that moment. A call therefore either holds the
+ * session resident until its updates are done, or finds it evicted and restores it from the store after
+ * it was passivated; no update is made to a session whose data was already passivated.
+ *
+ * With a SessionStore the evicted sessions are passivated instead of discarded and restored by the next
+ * get for their id. expirePassivated removes the sessions passivated longer than the given time from the
+ * store, so a session the ABAP side never closed does not stay in the store forever.
+ * setMaxResidentSessions bounds the sessions kept in memory; when it is exceeded, the least recently
+ * used sessions are passivated. Eviction and restoration of a session synchronize on one of a set of
+ * striped locks, the lookup of a resident session does not lock.
+ *
+ * The main function dispatches Z_INCREMENT_COUNTER with the factory of StatefulServerExample from 16
+ * threads to 10 to 10,000 concurrent ABAP sessions, prints the calls per second for each number of
+ * sessions and checks that no increment was lost.
+ */
+public class SessionRegistry
+{
+    private static final long EVICTED = -1;
+
+    /**
+     * Receives the sessions removed by evictIdle or because the maximum of resident sessions was exceeded
+     */
+    interface EvictionListener
+    {
+        void evicted(Session session);
+    }
+
+    /**
+     * Keeps evicted sessions outside of the heap until they are used again, see MappedSessionStore
+     */
+    interface SessionStore
+    {
+        /**
+         * stores the session, returns false if its data cannot be stored
+         */
+        boolean passivate(Session session);
+
+        /**
+         * removes the session from the store and returns it, or null if it is not stored
+         */
+        Session activate(String sessionId, String[] counterNames);
+
+        void remove(String sessionId);
+
+        /**
+         * removes the sessions passivated before the deadline
+         * @return the number of removed sessions
+         */
+        int expire(long deadline);
+    }
+
+    /**
+     * Data of one stateful ABAP session
+     */
+    static class Session
+    {
+        private String id;
+        private String[] counterNames;
+        private AtomicLongArray counters;
+        private volatile Map<String, Object> attributes;
+        private AtomicLong lastAccess;
+        private AtomicInteger users = new AtomicInteger();
+
+        Session(String id, String[] counterNames)
+        {
+            this.id = id;
+            this.counterNames = counterNames;
+            this.counters = new AtomicLongArray(counterNames.length);
+            this.lastAccess = new AtomicLong(System.currentTimeMillis());
+        }
+
+        /**
+         * restores a passivated session
+         */
+        Session(String id, String[] counterNames, long[] counterValues, Map<String, Object> attributes)
+        {
+            this(id, counterNames);
+            for(int i = 0; i < counterValues.length; i++)
+                counters.set(i, counterValues[i]);
+            if(attributes != null && !attributes.isEmpty())
+                getAttributes().putAll(attributes);
+        }
+
+        public String getId()
+        {
+            return id;
+        }
+
+        /**
+         * returns the value of the counter in the given slot
+         */
+        public long get(int slot)
+        {
+            return counters.get(slot);
+        }
+
+        public void set(int slot, long value)
+        {
+            counters.set(slot, value);
+        }
+
+        /**
+         * adds delta to the counter in the given slot and returns the new value
+         */
+        public long add(int slot, long delta)
+        {
+            return counters.addAndGet(slot, delta);
+        }
+
+        public long increment(int slot)
+        {
+            return counters.incrementAndGet(slot);
+        }
+
+        /**
+         * returns the names of the counter slots
+         */
+        public String[] getCounterNames()
+        {
+            return counterNames.clone();
+        }
+
+        /**
+         * returns the data not kept in counters
+         */
+        public Map<String, Object> getAttributes()
+        {
+            Map<String, Object> map = attributes;
+            if(map == null)
+            {
+                synchronized(this)
+                {
+                    map = attributes;
+                    if(map == null)
+                        attributes = map = new ConcurrentHashMap<String, Object>(4, 0.75f, 1);
+                }
+            }
+            return map;
+        }
+
+        /**
+         * returns true if the session has data not kept in counters
+         */
+        public boolean hasAttributes()
+        {
+            Map<String, Object> map = attributes;
+            return map != null && !map.isEmpty();
+        }
+
+        public long getLastAccessTime()
+        {
+            return lastAccess.get();
+        }
+
+        /**
+         * stamps the session, returns false if it was evicted
+         */
+        boolean touch(long now)
+        {
+            while(true)
+            {
+                long last = lastAccess.get();
+                if(last == EVICTED)
+                    return false;
+                if(last >= now || lastAccess.compareAndSet(last, now))
+                    return true;
+            }
+        }
+
+        /**
+         * marks the session as in use and stamps it, returns false and leaves it unmarked if it was evicted
+         */
+        boolean use(long now)
+        {
+            users.incrementAndGet();
+            if(touch(now))
+                return true;
+            users.decrementAndGet();
+            return false;
+        }
+
+        /**
+         * ends the use of the session started by SessionRegistry.get or getOrCreate
+         */
+        public void release()
+        {
+            users.decrementAndGet();
+        }
+
+        /**
+         * returns true if the session was returned by get or getOrCreate and not released yet
+         */
+        boolean isInUse()
+        {
+            return users.get() > 0;
+        }
+
+        /**
+         * marks the session as evicted, if it was not used since the deadline
+         */
+        boolean evictIfIdle(long deadline)
+        {
+            long last = lastAccess.get();
+            return last != EVICTED && last < deadline && lastAccess.compareAndSet(last, EVICTED);
+        }
+
+        /**
+         * keeps a session marked as evicted, because it could not be passivated
+         */
+        void cancelEviction(long now)
+        {
+            lastAccess.compareAndSet(EVICTED, now);
+        }
+    }
+
+    private String[] counterNames;
+    private ConcurrentHashMap<String, Session> sessions;
+    private Object[] locks;
+    private EvictionListener evictionListener;
+    private volatile SessionStore store;
+    private volatile int maxResident = Integer.MAX_VALUE;
+    private AtomicBoolean trimming = new AtomicBoolean(false);
+    private AtomicLong created = new AtomicLong();
+    private AtomicLong evicted = new AtomicLong();
+    private AtomicLong passivated = new AtomicLong();
+    private AtomicLong activated = new AtomicLong();
+    private AtomicLong expired = new AtomicLong();
+
+    /**
+     * Creates a registry
+     * @param concurrencyLevel estimated number of threads updating the registry concurrently
+     * @param counterNames names of the counters kept in primitive slots; the slot of a counter is its index
+     */
+    public SessionRegistry(int concurrencyLevel, String... counterNames)
+    {
+        this.counterNames = counterNames.clone();
+        this.sessions = new ConcurrentHashMap<String, Session>(64, 0.75f, concurrencyLevel);
+        int stripes = 1;
+        while(stripes < concurrencyLevel)
+            stripes <<= 1;
+        this.locks = new Object[stripes];
+        for(int i = 0; i < stripes; i++)
+            locks[i] = new Object();
+    }
+
+    /**
+     * returns the slot of the counter with the given name
+     * @throws IllegalArgumentException if the counter was not declared
+     */
+    public int getSlot(String counterName)
+    {
+        for(int i = 0; i < counterNames.length; i++)
+            if(counterNames[i].equals(counterName))
+                return i;
+        throw new IllegalArgumentException("Counter " + counterName + " is not declared, declared are " + Arrays.toString(counterNames));
+    }
+
+    public void setEvictionListener(EvictionListener evictionListener)
+    {
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * Sets the store the evicted sessions are passivated to, null to discard them
+     */
+    public void setSessionStore(SessionStore store)
+    {
+        this.store = store;
+    }
+
+    /**
+     * Sets the maximum number of sessions kept in memory. If it is exceeded, the least recently used
+     * sessions are evicted, and passivated if a SessionStore is set.
+     */
+    public void setMaxResidentSessions(int maxResident)
+    {
+        if(maxResident < 1)
+            throw new IllegalArgumentException("maximum of resident sessions must be positive: " + maxResident);
+        this.maxResident = maxResident;
+    }
+
+    /**
+     * Returns the session with the given id, creating it if necessary. The session is in use and not
+     * evicted until it is released.
+     */
+    public Session getOrCreate(String sessionId)
+    {
+        return lookup(sessionId, true);
+    }
+
+    /**
+     * Returns the session with the given id or null, if it does not exist or was evicted.
+     * A passivated session is restored from the SessionStore. The session is in use and not
+     * evicted until it is released.
+     */
+    public Session get(String sessionId)
+    {
+        return lookup(sessionId, false);
+    }
+
+    Session lookup(String sessionId, boolean create)
+    {
+        long now = System.currentTimeMillis();
+        Session session = sessions.get(sessionId);
+        if(session != null && session.use(now))
+            return session;
+        if(session == null && store == null && !create)
+            return null;
+
+        //the session does not exist, is passivated or is just being evicted, which holds the lock
+        boolean added = false;
+        synchronized(lockFor(sessionId))
+        {
+            session = sessions.get(sessionId);
+            if(session == null || !session.use(now))
+            {
+                session = store != null ? store.activate(sessionId, counterNames) : null;
+                if(session != null)
+                    activated.incrementAndGet();
+                else if(create)
+                {
+                    session = new Session(sessionId, counterNames);
+                    created.incrementAndGet();
+                }
+                else
+                    return null;
+                session.users.incrementAndGet();
+                sessions.put(sessionId, session);
+                added = true;
+            }
+        }
+        if(added && sessions.size() > maxResident)
+            evictLeastRecentlyUsed();
+        return session;
+    }
+
+    Object lockFor(String sessionId)
+    {
+        int h = sessionId.hashCode();
+        h ^= (h >>> 16);
+        return locks[h & (locks.length - 1)];
+    }
+
+    /**
+     * Removes the session, e.g. when the ABAP side closed it
+     * @return the removed session or null
+     */
+    public Session remove(String sessionId)
+    {
+        synchronized(lockFor(sessionId))
+        {
+            if(store != null)
+                store.remove(sessionId);
+            return sessions.remove(sessionId);
+        }
+    }
+
+    /**
+     * Removes the sessions not used within maxIdle, passivates them if a SessionStore is set
+     * and passes them to the EvictionListener
+     * @return the number of evicted sessions
+     */
+    public int evictIdle(long maxIdle, TimeUnit unit)
+    {
+        long deadline = System.currentTimeMillis() - unit.toMillis(maxIdle);
+        int count = 0;
+        for(Session session : sessions.values())
+            if(evict(session, deadline))
+                count++;
+        return count;
+    }
+
+    /**
+     * Removes the sessions passivated longer than maxAge from the SessionStore. Together with evictIdle
+     * it bounds the lifetime of an unused session to the sum of both times.
+     * @return the number of removed sessions
+     */
+    public int expirePassivated(long maxAge, TimeUnit unit)
+    {
+        SessionStore current = store;
+        if(current == null)
+            return 0;
+        int count = current.expire(System.currentTimeMillis() - unit.toMillis(maxAge));
+        expired.addAndGet(count);
+        return count;
+    }
+
+    /**
+     * Evicts the least recently used sessions until the resident sessions are ten percent below the maximum
+     */
+    void evictLeastRecentlyUsed()
+    {
+        if(!trimming.compareAndSet(false, true))
+            return;
+        try
+        {
+            int excess = sessions.size() - maxResident + maxResident / 10;
+            if(excess <= 0)
+                return;
+            //the access stamps of the snapshot, as they may change while sorting
+            Session[] snapshot = sessions.values().toArray(new Session[0]);
+            final long[] stamps = new long[snapshot.length];
+            Integer[] order = new Integer[snapshot.length];
+            for(int i = 0; i < snapshot.length; i++)
+            {
+                stamps[i] = snapshot[i].getLastAccessTime();
+                order[i] = Integer.valueOf(i);
+            }
+            Arrays.sort(order, new Comparator<Integer>()
+            {
+                public int compare(Integer a, Integer b)
+                {
+                    long x = stamps[a.intValue()];
+                    long y = stamps[b.intValue()];
+                    return x < y ? -1 : (x == y ? 0 : 1);
+                }
+            });
+            for(int i = 0; i < order.length && excess > 0; i++)
+            {
+                int index = order[i].intValue();
+                //evicted only if not used since the snapshot
+                if(evict(snapshot[index], stamps[index] + 1))
+                    excess--;
+            }
+        }
+        finally
+        {
+            trimming.set(false);
+        }
+    }
+
+    boolean evict(Session session, long deadline)
+    {
+        synchronized(lockFor(session.getId()))
+        {
+            if(!session.evictIfIdle(deadline))
+                return false;
+            //a caller got the session before it was marked, it is evicted when idle again
+            if(session.isInUse())
+            {
+                session.cancelEviction(System.currentTimeMillis());
+                return false;
+            }
+            if(store != null)
+            {
+                if(!store.passivate(session))
+                {
+                    session.cancelEviction(System.currentTimeMillis());
+                    return false;
+                }
+                passivated.incrementAndGet();
+            }
+            sessions.remove(session.getId(), session);
+        }
+        evicted.incrementAndGet();
+        if(evictionListener != null)
+            evictionListener.evicted(session);
+        return true;
+    }
+
+    public int size()
+    {
+        return sessions.size();
+    }
+
+    public long getCreatedCount()
+    {
+        return created.get();
+    }
+
+    public long getEvictedCount()
+    {
+        return evicted.get();
+    }
+
+    public long getPassivatedCount()
+    {
+        return passivated.get();
+    }
+
+    public long getActivatedCount()
+    {
+        return activated.get();
+    }
+
+    /**
+     * returns the number of passivated sessions removed by expirePassivated
+     */
+    public long getExpiredCount()
+    {
+        return expired.get();
+    }
+
+    /**
+     * Creates a server context of a simulated ABAP session
+     */
+    static JCoServerContext createContext(final String sessionId)
+    {
+        return (JCoServerContext)Proxy.newProxyInstance(SessionRegistry.class.getClassLoader(), new Class<?>[] { JCoServerContext.class },
+                new InvocationHandler()
+                {
+                    boolean stateful = false;
+
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                    {
+                        String name = method.getName();
+                        if(name.equals("getSessionID"))
+                            return sessionId;
+                        if(name.equals("isStatefulSession"))
+                            return Boolean.valueOf(stateful);
+                        if(name.equals("setStateful"))
+                        {
+                            stateful = ((Boolean)args[0]).booleanValue();
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(name);
+                    }
+                });
+    }
+
+    /**
+     * Creates the server contexts of the given number of simulated ABAP sessions
+     */
+    static JCoServerContext[] createContexts(String prefix, int sessionCount)
+    {
+        JCoServerContext[] contexts = new JCoServerContext[sessionCount];
+        for(int i = 0; i < sessionCount; i++)
+            contexts[i] = createContext(prefix + "-" + i);
+        return contexts;
+    }
+
+    /**
+     * Dispatches Z_INCREMENT_COUNTER for the given number of sessions from several threads and closes the
+     * sessions afterwards
+     * @return calls per second
+     */
+    static long runDispatch(JCoServerFunctionHandlerFactory factory, JCoFunctionTemplate template, int sessionCount, int threads,
+            int callsPerThread) throws InterruptedException
+    {
+        JCoServerContext[] contexts = createContexts("SESSION-" + sessionCount, sessionCount);
+        long callsPerSecond = runDispatch(factory, template, contexts, threads, callsPerThread);
+        for(JCoServerContext ctx : contexts)
+            factory.sessionClosed(ctx, null, false);
+        return callsPerSecond;
+    }
+
+    /**
+     * Dispatches Z_INCREMENT_COUNTER to the sessions from several threads. The calls of a session are
+     * executed by the same thread, as JCo serializes the calls of a stateful session. The number of threads
+     * is limited to the number of sessions.
+     * @return calls per second
+     */
+    static long runDispatch(final JCoServerFunctionHandlerFactory factory, final JCoFunctionTemplate template,
+            final JCoServerContext[] contexts, int threads, final int callsPerThread) throws InterruptedException
+    {
+        //a session is never used by two threads at the same time
+        threads = Math.min(threads, contexts.length);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for(int t = 0; t < threads; t++)
+        {
+            final int first = t;
+            final int step = threads;
+            Thread thread = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    JCoFunction function = template.getFunction();
+                    try
+                    {
+                        start.await();
+                        int session = first;
+                        for(int i = 0; i < callsPerThread; i++)
+                        {
+                            JCoServerContext ctx = contexts[session % contexts.length];
+                            factory.getCallHandler(ctx, "Z_INCREMENT_COUNTER").handleRequest(ctx, function);
+                            session += step;
+                            if(session >= contexts.length)
+                                session = first;
+                        }
+                    }
+                    catch(Exception e)
+                    {
+                        e.printStackTrace();
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }, "Dispatcher-" + t);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long nanos = System.nanoTime() - begin;
+        return (long)threads * callsPerThread * 1000000000L / nanos;
+    }
+
+    public static void main(String[] args) throws JCoException, IOException, InterruptedException
+    {
+        JCoFunctionTemplate template = new AbapBackendSimulator("ABAP_AS_WITH_POOL").getRepository().getFunctionTemplate("Z_INCREMENT_COUNTER");
+        int threads = 16;
+        int callsPerThread = 50000;
+
+        System.out.println("sessions   threads     calls/s   expected increments   counted increments");
+        for(int sessionCount : new int[] { 10, 100, 1000, 10000 })
+        {
+            StatefulServerExample.MyFunctionHandlerFactory factory = new StatefulServerExample.MyFunctionHandlerFactory();
+            JCoServerContext[] contexts = createContexts("SESSION-" + sessionCount, sessionCount);
+            long callsPerSecond = runDispatch(factory, template, contexts, threads, callsPerThread);
+
+            SessionRegistry sessions = factory.getSessions();
+            int slot = sessions.getSlot("COUNTER");
+            long counted = 0;
+            for(JCoServerContext ctx : contexts)
+            {
+                Session session = sessions.get(ctx.getSessionID());
+                counted += session.get(slot);
+                session.release();
+                factory.sessionClosed(ctx, null, false);
+            }
+            int used = Math.min(threads, sessionCount);
+            System.out.println(String.format("%8d   %7d   %9d   %19d   %18d", sessionCount, used, callsPerSecond, (long)used * callsPerThread,
+                    counted));
+        }
+        checkLostUpdates();
+    }
+
+    /**
+     * Increments the counters of 2,000 sessions from 8 threads, while at most 200 sessions are resident
+     * and the others are passivated to a MappedSessionStore, and prints the increments lost by a session
+     * evicted during its update
+     */
+    static void checkLostUpdates() throws IOException, InterruptedException
+    {
+        File file = File.createTempFile("sessions", ".map");
+        file.deleteOnExit();
+        final MappedSessionStore store = new MappedSessionStore(file, 1024 * 1024);
+        final SessionRegistry registry = new SessionRegistry(16, "COUNTER");
+        registry.setSessionStore(store);
+        registry.setMaxResidentSessions(200);
+        final int slot = registry.getSlot("COUNTER");
+        final int sessionCount = 2000;
+        final int threads = 8;
+        final int callsPerThread = 200000;
+        for(int i = 0; i < sessionCount; i++)
+            registry.getOrCreate("SESSION-" + i).release();
+
+        //each thread updates its own sessions, as JCo serializes the calls of a stateful session
+        final CountDownLatch done = new CountDownLatch(threads);
+        for(int t = 0; t < threads; t++)
+        {
+            final int first = t;
+            Thread thread = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for(int i = 0; i < callsPerThread; i++)
+                        {
+                            Session session = registry.get("SESSION-" + (first + (i * threads) % sessionCount));
+                            try
+                            {
+                                session.increment(slot);
+                            }
+                            finally
+                            {
+                                session.release();
+                            }
+                        }
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }, "Updater-" + t);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+
+        long counted = 0;
+        for(int i = 0; i < sessionCount; i++)
+        {
+            Session session = registry.get("SESSION-" + i);
+            counted += session.get(slot);
+            session.release();
+        }
+        System.out.println((long)threads * callsPerThread - counted + " of " + (long)threads * callsPerThread + " increments lost with "
+                + registry.getPassivatedCount() + " passivations and " + registry.getActivatedCount() + " activations");
+        store.close();
+    }
+}
@@ -1,5 +1,8 @@
-import java.util.Hashtable;
-import java.util.Map;
+import java.io.File;
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
 import com.sap.conn.jco.JCoException;
 import com.sap.conn.jco.JCoFunction;
@@ -56,24 +59,27 @@ import com.sap.conn.jco.server.JCoServerFunctionHandlerFactory;
  *
  * The function modules are required in this example for repository queries only. 
  * The client-side stateful communication is illustrated by the client examples.
+ *
+ * The session data is kept in a SessionRegistry, whose counters are updated without locking, so the
+ * sessions do not contend with each other. Sessions not closed by the ABAP side are evicted after
+ * 30 minutes without a call.
+ *
+ * With the argument -passivate the sessions are instead moved to a MappedSessionStore after 5 minutes
+ * without a call, and at most 10,000 sessions are kept in memory. A passivated session is restored by
+ * the next getCallHandler for its session id; it is removed from the store after 25 more minutes, so
+ * an unused session is discarded after 30 minutes in both cases.
  */
 public class StatefulServerExample
 {
     static class MyFunctionHandlerFactory implements JCoServerFunctionHandlerFactory
     {
-        class SessionContext
-        {
-            Hashtable<String, Object> cachedSessionData = new Hashtable<String, Object>();
-        }
-        
-        private Map<String, SessionContext> statefulSessions = 
-            new Hashtable<String, SessionContext>();
+        private SessionRegistry statefulSessions = new SessionRegistry(16, "COUNTER");
 
         private ZGetCounterFunctionHandler zGetCounterFunctionHandler = 
-            new ZGetCounterFunctionHandler();
+            new ZGetCounterFunctionHandler(statefulSessions);
 
         private ZIncrementCounterFunctionHandler zIncrementCounterFunctionHandler = 
-            new ZIncrementCounterFunctionHandler();
+            new ZIncrementCounterFunctionHandler(statefulSessions);
         
         public JCoServerFunctionHandler getCallHandler(JCoServerContext serverCtx, String functionName)
         {
@@ -86,20 +92,15 @@ public class StatefulServerExample
             
             if(handler instanceof StatefulFunctionModule)
             {
-                SessionContext cachedSession;
+                SessionRegistry.Session session;
                 if(!serverCtx.isStatefulSession())
                 {
                     serverCtx.setStateful(true);
-                    cachedSession = new SessionContext();
-                    statefulSessions.put(serverCtx.getSessionID(), cachedSession);
+                    session = statefulSessions.getOrCreate(serverCtx.getSessionID());
                 }
-                else
-                {
-                    cachedSession = statefulSessions.get(serverCtx.getSessionID());
-                    if(cachedSession == null)
-                        throw new RuntimeException("Unable to find the session context for session id " + serverCtx.getSessionID());
-                }
-                ((StatefulFunctionModule)handler).setSessionData(cachedSession.cachedSessionData);
+                else if((session = statefulSessions.get(serverCtx.getSessionID())) == null)
+                    throw new RuntimeException("Unable to find the session context for session id " + serverCtx.getSessionID());
+                session.release();
                 return handler;
             }
             
@@ -109,49 +110,90 @@ public class StatefulServerExample
 
         public void sessionClosed(JCoServerContext serverCtx, String message, boolean error)
         {
-            System.out.println("Session " + serverCtx.getSessionID() + " was closed " + (error?message:"by SAP system"));
+            if(error)
+                System.out.println("Session " + serverCtx.getSessionID() + " was closed " + message);
             statefulSessions.remove(serverCtx.getSessionID());
         }
+
+        SessionRegistry getSessions()
+        {
+            return statefulSessions;
+        }
     }
 
+    /**
+     * The handlers are shared by all sessions, so they look up the data of the calling session
+     * in the registry instead of keeping it in a field. The session is released after the update,
+     * so it cannot be evicted while the handler works with it.
+     */
     static abstract class StatefulFunctionModule implements JCoServerFunctionHandler
     {
-        Hashtable<String, Object> sessionData;
-        public void setSessionData(Hashtable<String, Object> sessionData)
+        SessionRegistry sessions;
+        int counterSlot;
+
+        StatefulFunctionModule(SessionRegistry sessions)
+        {
+            this.sessions = sessions;
+            this.counterSlot = sessions.getSlot("COUNTER");
+        }
+
+        /**
+         * returns the session of the call, which must be released when the call is handled
+         */
+        SessionRegistry.Session getSession(JCoServerContext serverCtx)
         {
-            this.sessionData = sessionData;
+            SessionRegistry.Session session = sessions.get(serverCtx.getSessionID());
+            if(session == null)
+                throw new RuntimeException("Unable to find the session context for session id " + serverCtx.getSessionID());
+            return session;
         }
     }
     
     
     static class ZGetCounterFunctionHandler extends StatefulFunctionModule
     {
+        ZGetCounterFunctionHandler(SessionRegistry sessions)
+        {
+            super(sessions);
+        }
+
         public void handleRequest(JCoServerContext serverCtx, JCoFunction function)
         {
-            System.out.println("ZGetCounterFunctionHandler: return counter");
-            Integer counter = (Integer)sessionData.get("COUNTER");
-            if(counter == null)
-                function.getExportParameterList().setValue("GET_VALUE", 0);
-            else
-                function.getExportParameterList().setValue("GET_VALUE", counter.intValue());
+            SessionRegistry.Session session = getSession(serverCtx);
+            try
+            {
+                function.getExportParameterList().setValue("GET_VALUE", (int)session.get(counterSlot));
+            }
+            finally
+            {
+                session.release();
+            }
         }
         
     }
 
     static class ZIncrementCounterFunctionHandler extends StatefulFunctionModule
     {
+        ZIncrementCounterFunctionHandler(SessionRegistry sessions)
+        {
+            super(sessions);
+        }
+
         public void handleRequest(JCoServerContext serverCtx, JCoFunction function)
         {
-            System.out.println("ZIncrementCounterFunctionHandler: increase counter");
-            Integer counter = (Integer)sessionData.get("COUNTER");
-            if(counter == null)
-                sessionData.put("COUNTER", new Integer(1));
-            else
-                sessionData.put("COUNTER", new Integer(counter.intValue()+1));
+            SessionRegistry.Session session = getSession(serverCtx);
+            try
+            {
+                session.increment(counterSlot);
+            }
+            finally
+            {
+                session.release();
+            }
         }
     }
     
-    public static void main(String[] args)
+    public static void main(String[] args) throws IOException
     {
         String serverName = "SERVER";
         JCoServer server;
@@ -164,7 +206,35 @@ public class StatefulServerExample
             throw new RuntimeException("Unable to create the server " + serverName + ", because of " + ex.getMessage(), ex);
         }
         
-        server.setCallHandlerFactory(new MyFunctionHandlerFactory());
+        final MyFunctionHandlerFactory factory = new MyFunctionHandlerFactory();
+        server.setCallHandlerFactory(factory);
+
+        //removes the sessions the ABAP side did not close within 30 minutes, or passivates them after 5 minutes
+        //and removes them from the store after 25 more minutes
+        final long maxIdleMinutes;
+        if(args.length == 1 && args[0].equals("-passivate"))
+        {
+            File file = File.createTempFile("StatefulServerExample", ".sessions");
+            file.deleteOnExit();
+            factory.getSessions().setSessionStore(new MappedSessionStore(file, 1024 * 1024));
+            factory.getSessions().setMaxResidentSessions(10000);
+            maxIdleMinutes = 5;
+        }
+        else
+            maxIdleMinutes = 30;
+        Timer evictor = new Timer("SessionEvictor", true);
+        evictor.schedule(new TimerTask()
+        {
+            public void run()
+            {
+                int evicted = factory.getSessions().evictIdle(maxIdleMinutes, TimeUnit.MINUTES);
+                if(evicted > 0)
+                    System.out.println(evicted + " idle sessions evicted");
+                int expired = factory.getSessions().expirePassivated(30 - maxIdleMinutes, TimeUnit.MINUTES);
+                if(expired > 0)
+                    System.out.println(expired + " passivated sessions expired");
+            }
+        }, 60000, 60000);
         
         server.start();
         System.out.println("The program can be stopped using <ctrl>+<c>");
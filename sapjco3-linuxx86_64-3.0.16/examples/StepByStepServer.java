@@ -1,5 +1,6 @@
-import java.util.Hashtable;
-import java.util.Map;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 
 import com.sap.conn.jco.JCo;
 import com.sap.conn.jco.JCoCustomRepository;
@@ -37,7 +38,33 @@ public class StepByStepServer
      */
     static class StfcConnectionHandler implements JCoServerFunctionHandler
     {
+        // Printing holds the lock of System.out, so all server threads wait for the console.
+        // Without verbose only the ServerMetrics of step 5 record the calls.
+        private boolean verbose;
+        
+        StfcConnectionHandler()
+        {
+            this(true);
+        }
+        
+        StfcConnectionHandler(boolean verbose)
+        {
+            this.verbose = verbose;
+        }
+        
         public void handleRequest(JCoServerContext serverCtx, JCoFunction function)
+        {
+            if(verbose)
+                printRequest(serverCtx, function);
+            function.getExportParameterList().setValue("ECHOTEXT", function.getImportParameterList().getString("REQUTEXT"));
+            function.getExportParameterList().setValue("RESPTEXT", "Hello World");
+            
+            // In sample 3 (tRFC Server) we also set the status to executed:
+            if(myTIDHandler != null)
+                myTIDHandler.execute(serverCtx);
+        }
+        
+        void printRequest(JCoServerContext serverCtx, JCoFunction function)
         {
             System.out.println("----------------------------------------------------------------");
             System.out.println("call              : " + function.getName());
@@ -58,12 +85,6 @@ public class StepByStepServer
             System.out.println("CPIC conversation ID: " + serverCtx.getConnectionAttributes().getCPICConversationID());
             System.out.println("----------------------------------------------------------------");
             System.out.println("req text: " + function.getImportParameterList().getString("REQUTEXT"));
-            function.getExportParameterList().setValue("ECHOTEXT", function.getImportParameterList().getString("REQUTEXT"));
-            function.getExportParameterList().setValue("RESPTEXT", "Hello World");
-            
-            // In sample 3 (tRFC Server) we also set the status to executed:
-            if(myTIDHandler != null)
-                myTIDHandler.execute(serverCtx);
         }
     }
     
@@ -160,27 +181,22 @@ public class StepByStepServer
     static class MyTIDHandler implements JCoServerTIDHandler
     {
         
-        Map<String, TIDState> availableTIDs = new Hashtable<String, TIDState>();
+        TIDStore availableTIDs;
+        
+        MyTIDHandler(TIDStore availableTIDs)
+        {
+            this.availableTIDs = availableTIDs;
+        }
         
         public boolean checkTID(JCoServerContext serverCtx, String tid)
         {
-            // This example uses a Hashtable to store status information. Normally, however,
-            // you would use a database. If the DB is down throw a RuntimeException at
-            // this point. JCo will then abort the tRFC and the R/3 backend will try
-            // again later.
+            // This example uses a TIDStore, which logs the committed TIDs to a local file, to store
+            // status information. You may as well use a database. If the DB is down throw a
+            // RuntimeException at this point. JCo will then abort the tRFC and the R/3 backend
+            // will try again later.
             
             System.out.println("TID Handler: checkTID for " + tid);
-            TIDState state = availableTIDs.get(tid);
-            if(state == null)
-            {
-                availableTIDs.put(tid, TIDState.CREATED);
-                return true;
-            }
-            
-            if(state == TIDState.CREATED || state == TIDState.ROLLED_BACK)
-                return true;
-
-            return false;
+            return availableTIDs.begin(tid);
             // "true" means that JCo will now execute the transaction, "false" means
             // that we have already executed this transaction previously, so JCo will
             // skip the handleRequest() step and will immediately return an OK code to R/3.
@@ -191,14 +207,16 @@ public class StepByStepServer
             System.out.println("TID Handler: commit for " + tid);
             
             // react on commit, e.g. commit on the database;
-            // if necessary throw a RuntimeException, if the commit was not possible
-            availableTIDs.put(tid, TIDState.COMMITTED);
+            // if necessary throw a RuntimeException, if the commit was not possible.
+            // The TIDStore returns after the commit was written to disk, so the transaction
+            // is not executed again after a restart.
+            availableTIDs.commit(tid);
         }
         
         public void rollback(JCoServerContext serverCtx, String tid)
         {
             System.out.println("TID Handler: rollback for " + tid);
-            availableTIDs.put(tid, TIDState.ROLLED_BACK);
+            availableTIDs.rollback(tid);
             
             // react on rollback, e.g. rollback on the database
         }
@@ -215,7 +233,7 @@ public class StepByStepServer
             // this point
             finally
             {
-                availableTIDs.remove(tid);
+                availableTIDs.confirm(tid);
             }
         }
         
@@ -225,14 +243,9 @@ public class StepByStepServer
             if(tid != null)
             {
                 System.out.println("TID Handler: execute for " + tid);
-                availableTIDs.put(tid, TIDState.EXECUTED);
+                availableTIDs.executed(tid);
             }
         }
-        
-        private enum TIDState
-        {
-            CREATED, EXECUTED, COMMITTED, ROLLED_BACK, CONFIRMED;
-        }
     }
     
     /**
@@ -261,7 +274,14 @@ public class StepByStepServer
         server.setCallHandlerFactory(factory);
         
         // additionally to step 1
-        myTIDHandler = new MyTIDHandler();
+        try
+        {
+            myTIDHandler = new MyTIDHandler(new TIDStore(new File(SERVER_NAME1 + ".tidlog"), 1024 * 1024));
+        }
+        catch(IOException ex)
+        {
+            throw new RuntimeException("Unable to open the TID log of " + SERVER_NAME1 + " because of " + ex.getMessage(), ex);
+        }
         server.setTIDHandler(myTIDHandler);
         
         server.start();
@@ -358,11 +378,49 @@ public class StepByStepServer
     }
     
 
+    /**
+     * Step 5 replaces the console output of step 2 by ServerMetrics. The handlers returned by the factory are
+     * instrumented, so the latency, calls and errors are recorded per function module, and the metrics count
+     * the errors and exceptions of the server and read its monitor. The values are available as MBeans, e.g.
+     * in jconsole, and in the Prometheus format on http://127.0.0.1:9464/metrics.
+     */
+    static void step5MonitoredServer()
+    {
+        JCoServer server;
+        try
+        {
+            server = JCoServerFactory.getServer(SERVER_NAME1);
+        }
+        catch(JCoException ex)
+        {
+            throw new RuntimeException("Unable to create the server " + SERVER_NAME1 + " because of " + ex.getMessage(), ex);
+        }
+        
+        DefaultServerHandlerFactory.FunctionHandlerFactory factory = new DefaultServerHandlerFactory.FunctionHandlerFactory();
+        factory.registerHandler("STFC_CONNECTION", new StfcConnectionHandler(false));
+        ServerMetrics metrics = new ServerMetrics();
+        server.setCallHandlerFactory(metrics.instrument(factory));
+        metrics.addServer(server);
+        try
+        {
+            metrics.registerMBeans(ManagementFactory.getPlatformMBeanServer(), SERVER_NAME1);
+            metrics.startHttpEndpoint(9464);
+        }
+        catch(Exception ex)
+        {
+            System.out.println(">>> metrics are not exported: " + ex);
+        }
+        
+        server.start();
+        System.out.println("The program can be stoped using <ctrl>+<c>");
+    }
+    
     public static void main(String[] a)
     {
 //        step1SimpleServer();
 //        step2SimpleServer();
 //        step3SimpleTRfcServer();
+//        step5MonitoredServer();
         step4StaticRepository();
     }
 }
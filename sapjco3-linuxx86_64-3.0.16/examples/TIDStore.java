@@ -0,0 +1,293 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * StepByStepServer.MyTIDHandler kept the state of the tRFC transactions in a Hashtable. The state was lost
+ * on restart, so a transaction committed shortly before was executed a second time when the ABAP system
+ * repeated it, and all checkTID, commit and confirmTID calls synchronized on the Hashtable.
+ *
+ * TIDStore keeps the state of the transactions in a ConcurrentHashMap and writes the committed and the
+ * confirmed TIDs to an append-only log in a memory-mapped file. commit returns only after the COMMITTED
+ * record was forced to disk. Commits arriving while the log is forced wait and are forced together with
+ * the next force (group commit), so the number of disk syncs grows slower than the number of commits.
+ * The CONFIRMED records are not forced; if one is lost, the TID is only kept longer.
+ *
+ * The other states are not logged: after a restart a TID which was created, executed or rolled back but not
+ * committed is unknown, so checkTID allows its execution again, which is what the ABAP system expects as
+ * the work of an uncommitted transaction was not made persistent.
+ *
+ * The log is a MappedAppendLog. A record consists of the state and the characters of the TID. When the log
+ * is full, it is compacted: the TIDs still committed are written to a new log file, which replaces the old
+ * one. Appends wait while the log is compacted.
+ */
+public class TIDStore
+{
+    enum TIDState
+    {
+        CREATED, EXECUTED, COMMITTED, ROLLED_BACK;
+    }
+
+    private static final byte RECORD_COMMITTED = 1;
+    private static final byte RECORD_CONFIRMED = 2;
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private File file;
+    private ConcurrentHashMap<String, TIDState> states = new ConcurrentHashMap<String, TIDState>(1024, 0.75f, 64);
+    private Set<String> pendingCommits = new HashSet<String>();
+    private MappedAppendLog log;
+    private AtomicLong commits = new AtomicLong();
+
+    /**
+     * Opens the store and recovers the committed TIDs from the log
+     * @param file log file, created if it does not exist
+     * @param initialSize initial size of the log in bytes
+     * @throws IOException if the log cannot be read or mapped
+     */
+    public TIDStore(File file, int initialSize) throws IOException
+    {
+        this.file = file;
+        this.log = new MappedAppendLog(file, initialSize, new MappedAppendLog.RecordVisitor()
+        {
+            public void visit(byte[] record, int length)
+            {
+                String tid = new String(record, 1, length - 1, LATIN1);
+                if(record[0] == RECORD_COMMITTED)
+                    states.put(tid, TIDState.COMMITTED);
+                else
+                    states.remove(tid);
+            }
+        }, new MappedAppendLog.LiveRecords()
+        {
+            public List<byte[]> collect()
+            {
+                List<byte[]> live = new ArrayList<byte[]>();
+                for(Map.Entry<String, TIDState> entry : states.entrySet())
+                    if(entry.getValue() == TIDState.COMMITTED)
+                        live.add(createRecord(RECORD_COMMITTED, entry.getKey()));
+                for(String tid : pendingCommits)
+                    live.add(createRecord(RECORD_COMMITTED, tid));
+                return live;
+            }
+        });
+    }
+
+    static byte[] createRecord(byte type, String tid)
+    {
+        byte[] record = new byte[1 + tid.length()];
+        record[0] = type;
+        for(int i = 0; i < tid.length(); i++)
+            record[1 + i] = (byte)tid.charAt(i);
+        return record;
+    }
+
+    /**
+     * Registers a TID for execution, as JCoServerTIDHandler.checkTID does
+     * @return true if the transaction must be executed, false if it was already committed
+     */
+    public boolean begin(String tid)
+    {
+        TIDState state = states.get(tid);
+        if(state == null)
+        {
+            state = states.putIfAbsent(tid, TIDState.CREATED);
+            if(state == null)
+                return true;
+        }
+        return state == TIDState.CREATED || state == TIDState.ROLLED_BACK;
+    }
+
+    public void executed(String tid)
+    {
+        setUncommitted(tid, TIDState.EXECUTED);
+    }
+
+    public void rollback(String tid)
+    {
+        setUncommitted(tid, TIDState.ROLLED_BACK);
+    }
+
+    void setUncommitted(String tid, TIDState newState)
+    {
+        while(true)
+        {
+            TIDState state = states.get(tid);
+            if(state == TIDState.COMMITTED)
+                throw new IllegalStateException("Transaction " + tid + " is already committed");
+            if(state == null ? states.putIfAbsent(tid, newState) == null : states.replace(tid, state, newState))
+                return;
+        }
+    }
+
+    /**
+     * Marks the transaction as committed and returns after this was written to disk
+     * @throws RuntimeException if the log could not be written, so JCo aborts the transaction
+     */
+    public void commit(String tid)
+    {
+        long seq;
+        try
+        {
+            seq = append(RECORD_COMMITTED, tid, true);
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException("Unable to log the commit of " + tid + " in " + file, e);
+        }
+        log.awaitDurable(seq);
+        //a compaction sees the TID either as pending or as committed
+        synchronized(log)
+        {
+            states.put(tid, TIDState.COMMITTED);
+            pendingCommits.remove(tid);
+        }
+        commits.incrementAndGet();
+    }
+
+    /**
+     * Forgets the transaction, as JCoServerTIDHandler.confirmTID does
+     */
+    public void confirm(String tid)
+    {
+        TIDState state = states.remove(tid);
+        if(state == TIDState.COMMITTED)
+        {
+            try
+            {
+                append(RECORD_CONFIRMED, tid, false);
+            }
+            catch(IOException e)
+            {
+                //the partner does not react on an exception at this point, the TID is kept in the log
+            }
+        }
+    }
+
+    public TIDState getState(String tid)
+    {
+        return states.get(tid);
+    }
+
+    long append(byte type, String tid, boolean commit) throws IOException
+    {
+        byte[] record = createRecord(type, tid);
+        //a compaction triggered by the append already writes the record to the new log, later ones see it as pending
+        synchronized(log)
+        {
+            long seq = log.append(record, record.length);
+            if(commit)
+                pendingCommits.add(tid);
+            return seq;
+        }
+    }
+
+    /**
+     * returns the number of TIDs known to the store
+     */
+    public int size()
+    {
+        return states.size();
+    }
+
+    public long getCommitCount()
+    {
+        return commits.get();
+    }
+
+    /**
+     * returns the number of times the log was forced to disk
+     */
+    public long getForceCount()
+    {
+        return log.getForceCount();
+    }
+
+    public int getCompactionCount()
+    {
+        return log.getCompactionCount();
+    }
+
+    /**
+     * Forces the log and closes the file
+     */
+    public void close() throws IOException
+    {
+        log.close();
+    }
+
+    public String toString()
+    {
+        return file + ": " + states.size() + " TIDs, " + commits.get() + " commits, " + log.getForceCount() + " forces, "
+                + log.getCompactionCount() + " compactions, log size " + log.getSize();
+    }
+
+    static String createTID(int thread, int i)
+    {
+        //24 hexadecimal characters like the TIDs of an ABAP system
+        return String.format("%08X%04X%012X", 0x0A0B0C0D, thread, i);
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        File file = File.createTempFile("tids", ".log");
+        file.deleteOnExit();
+        final TIDStore store = new TIDStore(file, 256 * 1024);
+        final int threads = 16;
+        final int tidsPerThread = 5000;
+
+        //checkTID, execute, commit and confirmTID of each TID, as driven by the ABAP system
+        final CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for(int t = 0; t < threads; t++)
+        {
+            final int thread = t;
+            Thread worker = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    for(int i = 0; i < tidsPerThread; i++)
+                    {
+                        String tid = createTID(thread, i);
+                        if(store.begin(tid))
+                        {
+                            store.executed(tid);
+                            store.commit(tid);
+                        }
+                        //the last TIDs are not confirmed, as if the server stopped
+                        if(i < tidsPerThread - 10)
+                            store.confirm(tid);
+                    }
+                    done.countDown();
+                }
+            }, "tRFC-" + t);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        done.await();
+        long nanos = System.nanoTime() - start;
+        System.out.println(threads * tidsPerThread + " transactions in " + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms, "
+                + (threads * tidsPerThread * 1000000000L / nanos) + " TIDs/s, " + String.format("%.1f", (double)store.getCommitCount()
+                / store.getForceCount()) + " commits per force");
+        System.out.println(store);
+        store.close();
+
+        //the unconfirmed TIDs are recovered and not executed again
+        TIDStore recovered = new TIDStore(file, 64 * 1024);
+        int repeated = 0;
+        for(int t = 0; t < threads; t++)
+            for(int i = tidsPerThread - 10; i < tidsPerThread; i++)
+                if(recovered.begin(createTID(t, i)))
+                    repeated++;
+        System.out.println("after restart: " + recovered.size() + " committed TIDs recovered, " + repeated + " would be executed again");
+        recovered.close();
+    }
+}
@@ -0,0 +1,367 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sap.conn.jco.JCoException;
+import com.sap.conn.jco.JCoFunction;
+import com.sap.conn.jco.JCoFunctionTemplate;
+import com.sap.conn.jco.JCoRecordMetaData;
+import com.sap.conn.jco.JCoTable;
+
+/**
+ * TableRowPublisher emits the rows of a JCoTable, or of a sequence of pages read with an RFC function, to
+ * a subscriber that controls the flow with request(n), as defined by Reactive Streams. The rows are mapped
+ * with a TableRowReader.RowMapper before they are emitted.
+ *
+ * The publisher only reads as far as requested: the next page is requested from the ABAP system when the
+ * current page is consumed and the subscriber has outstanding demand. A consumed page is released
+ * before the next one is read, so at most one page is kept in memory. A single table source is cleared
+ * after its last row was emitted.
+ *
+ * The signals are emitted by the given Executor, one at a time per subscription. A publisher reads
+ * its source once and therefore accepts one subscriber only.
+ *
+ * Note: TableRowPublisher implements java.util.concurrent.Flow.Publisher, so it can be used with
+ * FlowAdapters of Reactive Streams or with Reactor. onSubscribe is invoked in the subscribing thread;
+ * the emission of a request made in onSubscribe is deferred until onSubscribe returned, so no signal
+ * runs concurrently with it.
+ */
+public class TableRowPublisher<T> implements Flow.Publisher<T>
+{
+    /**
+     * Provides the rows in pages
+     */
+    interface RowSource
+    {
+        /**
+         * returns the next page or null, if all rows were read
+         */
+        JCoTable nextPage() throws JCoException;
+
+        /**
+         * releases the resources after the last page or the cancellation
+         */
+        void close();
+    }
+
+    /**
+     * Creates a source for a single table
+     */
+    static RowSource fromTable(final JCoTable table)
+    {
+        return new RowSource()
+        {
+            boolean read = false;
+
+            public JCoTable nextPage()
+            {
+                if(read)
+                    return null;
+                read = true;
+                return table;
+            }
+
+            public void close()
+            {
+                table.clear();
+            }
+        };
+    }
+
+    /**
+     * Creates a source executing a function for each page, as PagedTableReader does
+     * @param executor destination or simulator executing the calls
+     * @param template template of the function returning the pages
+     * @param request sets the page imports and returns the page rows, e.g. PagedTableReader.readTable
+     * @param pageSize number of rows requested per call
+     */
+    static RowSource fromPages(final FunctionExecutor executor, final JCoFunctionTemplate template,
+            final PagedTableReader.PageRequest request, final int pageSize)
+    {
+        return new RowSource()
+        {
+            int firstRow = 0;
+            boolean last = false;
+
+            public JCoTable nextPage() throws JCoException
+            {
+                if(last)
+                    return null;
+                JCoFunction function = template.getFunction();
+                request.setPage(function, firstRow, pageSize);
+                executor.execute(function);
+                JCoTable page = request.getRows(function);
+                firstRow += page.getNumRows();
+                last = page.getNumRows() < pageSize;
+                return page;
+            }
+
+            public void close()
+            {
+                last = true;
+            }
+        };
+    }
+
+    private RowSource source;
+    private String[] fieldNames;
+    private TableRowReader.RowMapper<T> mapper;
+    private Executor executor;
+    private AtomicBoolean subscribed = new AtomicBoolean(false);
+
+    /**
+     * Creates a publisher
+     * @param source provides the pages
+     * @param fieldNames fields read by the mapper, in column order
+     * @param mapper converts a row into the emitted item
+     * @param executor emits the signals
+     */
+    public TableRowPublisher(RowSource source, String[] fieldNames, TableRowReader.RowMapper<T> mapper, Executor executor)
+    {
+        this.source = source;
+        this.fieldNames = fieldNames.clone();
+        this.mapper = mapper;
+        this.executor = executor;
+    }
+
+    public void subscribe(Flow.Subscriber<? super T> subscriber)
+    {
+        if(subscriber == null)
+            throw new NullPointerException("subscriber");
+        if(!subscribed.compareAndSet(false, true))
+        {
+            subscriber.onSubscribe(new Flow.Subscription()
+            {
+                public void request(long n)
+                {
+                }
+
+                public void cancel()
+                {
+                }
+            });
+            subscriber.onError(new IllegalStateException("TableRowPublisher allows only one subscriber"));
+            return;
+        }
+        new RowSubscription(subscriber).start();
+    }
+
+    /**
+     * Emits the rows requested by the subscriber
+     */
+    class RowSubscription implements Flow.Subscription, Runnable
+    {
+        private Flow.Subscriber<? super T> subscriber;
+        private AtomicLong demand = new AtomicLong();
+        private AtomicInteger pending = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+        private boolean done;
+
+        private JCoTable page;
+        private int pageRow;
+        private TableRowReader.Row row;
+
+        RowSubscription(Flow.Subscriber<? super T> subscriber)
+        {
+            this.subscriber = subscriber;
+        }
+
+        void start()
+        {
+            //holds back the emission of requests made in onSubscribe until it returned
+            pending.incrementAndGet();
+            try
+            {
+                subscriber.onSubscribe(this);
+            }
+            finally
+            {
+                executor.execute(this);
+            }
+        }
+
+        public void request(long n)
+        {
+            if(n <= 0)
+                invalidRequest = new IllegalArgumentException("request must be positive: " + n);
+            else
+            {
+                long current;
+                do
+                {
+                    current = demand.get();
+                }
+                while(current != Long.MAX_VALUE && !demand.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+            }
+            schedule();
+        }
+
+        public void cancel()
+        {
+            cancelled = true;
+            schedule();
+        }
+
+        /**
+         * runs the emission in the executor, unless it is already running
+         */
+        void schedule()
+        {
+            if(pending.getAndIncrement() == 0)
+                executor.execute(this);
+        }
+
+        public void run()
+        {
+            int missed = 1;
+            do
+            {
+                emit();
+                missed = pending.addAndGet(-missed);
+            }
+            while(missed != 0);
+        }
+
+        void emit()
+        {
+            if(done)
+                return;
+            try
+            {
+                if(cancelled)
+                {
+                    finish();
+                    return;
+                }
+                if(invalidRequest != null)
+                {
+                    finish();
+                    subscriber.onError(invalidRequest);
+                    return;
+                }
+
+                while(demand.get() > 0 && !cancelled)
+                {
+                    if(page == null || pageRow >= page.getNumRows())
+                    {
+                        //release the consumed page before the next one is read
+                        page = null;
+                        page = source.nextPage();
+                        if(page == null)
+                        {
+                            finish();
+                            subscriber.onComplete();
+                            return;
+                        }
+                        pageRow = 0;
+                        row = createRow(page.getRecordMetaData());
+                        row.table = page;
+                        continue;
+                    }
+                    page.setRow(pageRow++);
+                    T item = mapper.map(row);
+                    if(demand.get() != Long.MAX_VALUE)
+                        demand.decrementAndGet();
+                    subscriber.onNext(item);
+                }
+                if(cancelled)
+                    finish();
+            }
+            catch(Throwable t)
+            {
+                finish();
+                subscriber.onError(t);
+            }
+        }
+
+        TableRowReader.Row createRow(JCoRecordMetaData metaData)
+        {
+            int[] indexes = new int[fieldNames.length];
+            for(int i = 0; i < indexes.length; i++)
+            {
+                indexes[i] = metaData.indexOf(fieldNames[i]);
+                if(indexes[i] < 0)
+                    throw new IllegalArgumentException("Field " + fieldNames[i] + " does not exist in " + metaData.getName());
+            }
+            return new TableRowReader.Row(indexes);
+        }
+
+        void finish()
+        {
+            done = true;
+            page = null;
+            row = null;
+            source.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        final AbapBackendSimulator simulator = new AbapBackendSimulator("ABAP_AS_WITH_POOL");
+        simulator.setDocumentCount(50000);
+        simulator.setLatency(5, 0, TimeUnit.MILLISECONDS);
+        JCoFunctionTemplate template = simulator.getRepository().getFunctionTemplate("RFC_READ_TABLE");
+        ExecutorService executor = Executors.newSingleThreadExecutor(ThreadSupport.createThreadFactory("Publisher"));
+
+        TableRowPublisher<String> publisher = new TableRowPublisher<String>(
+                fromPages(simulator, template, PagedTableReader.readTable("ZSIM_DOCUMENTS", "|", "BELNR", "WRBTR"), 1000),
+                new String[] { "WA" },
+                new TableRowReader.RowMapper<String>()
+                {
+                    public String map(TableRowReader.Row row)
+                    {
+                        return row.getString(0);
+                    }
+                }, executor);
+
+        //requests 100 rows at a time and cancels after 12,345 rows
+        final CountDownLatch finished = new CountDownLatch(1);
+        final long start = System.nanoTime();
+        publisher.subscribe(new Flow.Subscriber<String>()
+        {
+            Flow.Subscription subscription;
+            int received;
+
+            public void onSubscribe(Flow.Subscription subscription)
+            {
+                this.subscription = subscription;
+                subscription.request(100);
+            }
+
+            public void onNext(String item)
+            {
+                received++;
+                if(received == 12345)
+                {
+                    subscription.cancel();
+                    System.out.println("cancelled after " + received + " rows, last " + item + ", " + simulator.getExecutedCallCount()
+                            + " pages read in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+                    finished.countDown();
+                }
+                else if(received % 100 == 0)
+                    subscription.request(100);
+            }
+
+            public void onError(Throwable throwable)
+            {
+                throwable.printStackTrace();
+                finished.countDown();
+            }
+
+            public void onComplete()
+            {
+                System.out.println("completed after " + received + " rows");
+                finished.countDown();
+            }
+        });
+        finished.await();
+        executor.shutdown();
+    }
+}
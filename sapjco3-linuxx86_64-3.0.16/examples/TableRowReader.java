@@ -0,0 +1,245 @@
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.sap.conn.jco.JCo;
+import com.sap.conn.jco.JCoMetaData;
+import com.sap.conn.jco.JCoRecordMetaData;
+import com.sap.conn.jco.JCoTable;
+
+/**
+ * StepByStepClient reads tables with codes.getString("COMP_CODE"), i.e. each access looks up the field
+ * by name and converts the value to a String. For tables with hundreds of thousands of rows, copied
+ * into a list of application objects, both the lookups and the conversions add up.
+ *
+ * TableRowReader resolves the field indexes once from the JCoRecordMetaData and passes each row to a
+ * RowMapper, which reads the values by column position with the typed getters (getInt, getLong,
+ * getDouble, getBigDecimal, getDate). The mapped objects are handed to a RowConsumer one by one, so
+ * no intermediate list is built; the consumer can stop the iteration by returning false.
+ *
+ * Note: JCo offers no getter copying a CHAR field into a caller supplied buffer. getString is the
+ * cheapest way to read a CHAR field (getCharArray and getCharacterStream allocate more), therefore
+ * Row.getString is used for CHAR fields. Numeric fields should be read with the primitive getters,
+ * INT fields are read without any allocation.
+ */
+public class TableRowReader<T>
+{
+    /**
+     * Converts the current row into an application object
+     */
+    interface RowMapper<T>
+    {
+        T map(Row row);
+    }
+
+    /**
+     * Receives the mapped rows
+     */
+    interface RowConsumer<T>
+    {
+        /**
+         * @return false to stop reading the table
+         */
+        boolean accept(T value);
+    }
+
+    /**
+     * View of the current table row. Columns are addressed by their position in the field names
+     * passed to the TableRowReader.
+     */
+    static class Row
+    {
+        JCoTable table;
+        private int[] indexes;
+
+        Row(int[] indexes)
+        {
+            this.indexes = indexes;
+        }
+
+        public int getRowIndex()
+        {
+            return table.getRow();
+        }
+
+        public String getString(int column)
+        {
+            return table.getString(indexes[column]);
+        }
+
+        public int getInt(int column)
+        {
+            return table.getInt(indexes[column]);
+        }
+
+        public long getLong(int column)
+        {
+            return table.getLong(indexes[column]);
+        }
+
+        public double getDouble(int column)
+        {
+            return table.getDouble(indexes[column]);
+        }
+
+        public BigDecimal getBigDecimal(int column)
+        {
+            return table.getBigDecimal(indexes[column]);
+        }
+
+        public Date getDate(int column)
+        {
+            return table.getDate(indexes[column]);
+        }
+
+        public byte[] getByteArray(int column)
+        {
+            return table.getByteArray(indexes[column]);
+        }
+    }
+
+    private String[] fieldNames;
+    private int[] indexes;
+    private RowMapper<T> mapper;
+
+    /**
+     * Creates a reader for tables with the given line type
+     * @param metaData line type of the tables
+     * @param fieldNames fields read by the mapper, in column order
+     * @param mapper converts a row into an application object
+     * @throws IllegalArgumentException if a field does not exist in the line type
+     */
+    public TableRowReader(JCoRecordMetaData metaData, String[] fieldNames, RowMapper<T> mapper)
+    {
+        this.fieldNames = fieldNames.clone();
+        this.indexes = new int[fieldNames.length];
+        this.mapper = mapper;
+        for(int i = 0; i < fieldNames.length; i++)
+        {
+            indexes[i] = metaData.indexOf(fieldNames[i]);
+            if(indexes[i] < 0)
+                throw new IllegalArgumentException("Field " + fieldNames[i] + " does not exist in " + metaData.getName());
+        }
+    }
+
+    /**
+     * Passes the mapped rows of the table to the consumer. The field positions are verified once per
+     * table, so the reader can be used for all tables of the same line type, e.g. for each chunk
+     * of a paged result.
+     * @param table table to be read; the row cursor is moved by this method
+     * @param consumer receives the mapped rows
+     * @return number of rows passed to the consumer
+     * @throws IllegalArgumentException if the line type of the table does not match
+     */
+    public int read(JCoTable table, RowConsumer<? super T> consumer)
+    {
+        JCoRecordMetaData metaData = table.getRecordMetaData();
+        for(int i = 0; i < fieldNames.length; i++)
+        {
+            if(indexes[i] >= metaData.getFieldCount() || !fieldNames[i].equals(metaData.getName(indexes[i])))
+                throw new IllegalArgumentException("Table " + metaData.getName() + " has no field " + fieldNames[i]
+                        + " at position " + indexes[i]);
+        }
+
+        Row row = new Row(indexes);
+        row.table = table;
+        int count = 0;
+        for(int i = 0, rows = table.getNumRows(); i < rows; i++)
+        {
+            table.setRow(i);
+            count++;
+            if(!consumer.accept(mapper.map(row)))
+                break;
+        }
+        return count;
+    }
+
+    /**
+     * Example application object
+     */
+    static class CompanyCode
+    {
+        final String code;
+        final String name;
+        final int employees;
+        final BigDecimal amount;
+
+        CompanyCode(String code, String name, int employees, BigDecimal amount)
+        {
+            this.code = code;
+            this.name = name;
+            this.employees = employees;
+            this.amount = amount;
+        }
+    }
+
+    static volatile long sink;
+
+    public static void main(String[] args)
+    {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        JCoRecordMetaData metaData = new AbapBackendSimulator.RecordBuilder("ZCOMPANY_ROW")
+            .addChar("COMP_CODE", 4)
+            .addChar("COMP_NAME", 25)
+            .add("EMPLOYEES", JCoMetaData.TYPE_INT, 0, 0)
+            .add("AMOUNT", JCoMetaData.TYPE_BCD, 8, 2)
+            .lock();
+        JCoTable table = JCo.createTable(metaData);
+        table.appendRows(rows);
+        for(int i = 0; i < rows; i++)
+        {
+            table.setRow(i);
+            table.setValue(0, AbapBackendSimulator.companyCode(i % 9999));
+            table.setValue(1, "Company " + (i % 100));
+            table.setValue(2, i);
+            table.setValue(3, i);
+        }
+
+        TableRowReader<CompanyCode> reader = new TableRowReader<CompanyCode>(metaData,
+            new String[] { "COMP_CODE", "COMP_NAME", "EMPLOYEES", "AMOUNT" },
+            new RowMapper<CompanyCode>()
+            {
+                public CompanyCode map(Row row)
+                {
+                    return new CompanyCode(row.getString(0), row.getString(1), row.getInt(2), row.getBigDecimal(3));
+                }
+            });
+        RowConsumer<CompanyCode> consumer = new RowConsumer<CompanyCode>()
+        {
+            public boolean accept(CompanyCode value)
+            {
+                sink += value.employees + value.amount.scale() + value.name.length();
+                return true;
+            }
+        };
+
+        for(int round = 0; round < 5; round++)
+        {
+            //access by name with getString and an intermediate list, as in StepByStepClient
+            long allocated = ThreadSupport.getAllocatedBytes();
+            long start = System.nanoTime();
+            List<CompanyCode> list = new ArrayList<CompanyCode>();
+            table.firstRow();
+            do
+            {
+                list.add(new CompanyCode(table.getString("COMP_CODE"), table.getString("COMP_NAME"),
+                        Integer.parseInt(table.getString("EMPLOYEES")), new BigDecimal(table.getString("AMOUNT"))));
+            }
+            while(table.nextRow());
+            for(CompanyCode value : list)
+                consumer.accept(value);
+            long byNameNanos = System.nanoTime() - start;
+            long byNameBytes = ThreadSupport.getAllocatedBytes() - allocated;
+
+            allocated = ThreadSupport.getAllocatedBytes();
+            start = System.nanoTime();
+            reader.read(table, consumer);
+            long readerNanos = System.nanoTime() - start;
+            long readerBytes = ThreadSupport.getAllocatedBytes() - allocated;
+
+            System.out.println("round " + round + ": by name " + byNameNanos / 1000000 + " ms, " + byNameBytes / rows + " bytes/row; "
+                    + "reader " + readerNanos / 1000000 + " ms, " + readerBytes / rows + " bytes/row");
+        }
+    }
+}
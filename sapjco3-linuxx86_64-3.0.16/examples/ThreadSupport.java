@@ -0,0 +1,44 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread helpers shared by the examples: the factory of the daemon worker threads used by the executors
+ * and the allocation counter read by the benchmarks.
+ */
+final class ThreadSupport
+{
+    private ThreadSupport()
+    {
+    }
+
+    /**
+     * returns a factory of daemon threads named name-1, name-2, ..., so the workers do not keep the JVM alive
+     */
+    static ThreadFactory createThreadFactory(final String name)
+    {
+        return new ThreadFactory()
+        {
+            AtomicInteger count = new AtomicInteger(0);
+
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * returns the bytes allocated by the current thread or -1 if not supported by the JVM
+     */
+    static long getAllocatedBytes()
+    {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if(threadBean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean)threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+}
@@ -0,0 +1,660 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sap.conn.jco.JCo;
+import com.sap.conn.jco.JCoBackgroundUnitAttributes;
+import com.sap.conn.jco.JCoDestination;
+import com.sap.conn.jco.JCoException;
+import com.sap.conn.jco.JCoFunction;
+import com.sap.conn.jco.JCoFunctionUnit;
+import com.sap.conn.jco.JCoRepository;
+import com.sap.conn.jco.JCoUnitIdentifier;
+
+/**
+ * UnitBatchSender sends many small updates to an ABAP system in bgRFC units instead of executing each of them
+ * synchronously. A synchronous call costs a round trip and a connection per update; a unit transfers many
+ * functions in one round trip, and the caller does not wait for the ABAP system at all.
+ *
+ * add writes the function to a MappedAppendLog and returns after the record was forced to disk, concurrent
+ * adds are forced together (group commit). The functions are collected in an open unit per queue name, units
+ * for the name null are of type T. A unit is closed when it holds maxFunctions functions or maxDelay after its
+ * first function was added, and is then committed by a QueueDispatcher: the units of a queue in the order they
+ * were closed, different queues in parallel.
+ *
+ * The unit ID is assigned and logged when a unit is opened, so a unit which is committed again after a
+ * failure or a restart has the same ID and the same functions, and the ABAP system executes it only once. A
+ * failed commit stops the queue of the unit; all stopped queues are resumed every retryInterval. After a
+ * successful commit, a COMMITTED record is forced before the unit is confirmed, so a unit the ABAP system has
+ * already forgotten is never sent again. After a restart the units of the log are committed or confirmed.
+ *
+ * Note: the open units are closed when the sender is restarted. The ABAP system executes the functions of a
+ * unit of type Q in the order of the queue names added to it; the sender adds one queue name per unit.
+ */
+public class UnitBatchSender
+{
+    /**
+     * Transfers units to the ABAP system
+     */
+    public interface UnitTransport
+    {
+        String getName();
+
+        /**
+         * Commits the unit; committing a unit with the ID of a unit executed before has no effect
+         * @param queueName queue of a unit of type Q, null for type T
+         */
+        void commit(JCoUnitIdentifier unitID, String queueName, List<JCoFunction> functions) throws JCoException;
+
+        /**
+         * Allows the ABAP system to forget the unit ID
+         */
+        void confirm(JCoUnitIdentifier unitID) throws JCoException;
+    }
+
+    /**
+     * UnitTransport committing JCoFunctionUnits to a JCoDestination
+     */
+    public static class DestinationTransport implements UnitTransport
+    {
+        private JCoDestination destination;
+        private JCoBackgroundUnitAttributes attributes;
+
+        public DestinationTransport(JCoDestination destination, JCoBackgroundUnitAttributes attributes)
+        {
+            this.destination = destination;
+            this.attributes = attributes;
+        }
+
+        public String getName()
+        {
+            return destination.getDestinationName();
+        }
+
+        public void commit(JCoUnitIdentifier unitID, String queueName, List<JCoFunction> functions) throws JCoException
+        {
+            JCoFunctionUnit unit = JCo.createFunctionUnit(unitID.getID(), attributes);
+            if(queueName != null)
+                unit.addQueueName(queueName);
+            unit.addFunctions(functions);
+            unit.commit(destination);
+        }
+
+        public void confirm(JCoUnitIdentifier unitID) throws JCoException
+        {
+            destination.confirmFunctionUnit(unitID);
+        }
+    }
+
+    enum UnitState
+    {
+        OPEN, CLOSED, COMMITTED;
+    }
+
+    static class PendingUnit
+    {
+        String id;
+        String queueName;
+        UnitState state = UnitState.OPEN;
+        List<byte[]> functionRecords = new ArrayList<byte[]>();
+        //sequence number of the last record of the unit in the log
+        long lastSeq;
+
+        PendingUnit(String id, String queueName)
+        {
+            this.id = id;
+            this.queueName = queueName;
+        }
+
+        JCoUnitIdentifier getIdentifier()
+        {
+            return JCo.createUnitIdentifier(id, queueName == null ? JCoUnitIdentifier.Type.TYPE_T : JCoUnitIdentifier.Type.TYPE_Q);
+        }
+    }
+
+    private static final byte RECORD_OPEN = 1;
+    private static final byte RECORD_FUNCTION = 2;
+    private static final byte RECORD_COMMITTED = 3;
+    private static final byte RECORD_CONFIRMED = 4;
+
+    private UnitTransport transport;
+    private JCoRepository repository;
+    private int maxFunctions;
+    private long maxDelay;
+    private MappedAppendLog log;
+    //all units not yet confirmed in the order they were opened, guarded by the log
+    private LinkedHashMap<String, PendingUnit> units = new LinkedHashMap<String, PendingUnit>();
+    //the open unit of each queue name, guarded by the log
+    private Map<String, PendingUnit> openUnits = new HashMap<String, PendingUnit>();
+    private QueueDispatcher<PendingUnit> dispatcher;
+    private ScheduledExecutorService timer;
+
+    private AtomicLong addedFunctions = new AtomicLong();
+    private AtomicLong committedUnits = new AtomicLong();
+    private AtomicLong committedFunctions = new AtomicLong();
+    private AtomicLong failedCommits = new AtomicLong();
+    private int recoveredCount;
+
+    /**
+     * Opens the log and sends the units left by a previous run
+     * @param file log file, created if it does not exist
+     * @param initialSize initial size of the log in bytes
+     * @param transport transfers the units
+     * @param repository repository providing the metadata of the functions
+     * @param maxFunctions number of functions closing a unit
+     * @param maxDelay time after the first function of a unit, after which the unit is closed
+     * @param retryInterval time between two attempts to commit a unit that failed
+     * @param threads number of threads committing the units
+     * @throws IOException if the log cannot be read or mapped
+     */
+    public UnitBatchSender(File file, int initialSize, UnitTransport transport, JCoRepository repository, int maxFunctions,
+            long maxDelay, long retryInterval, TimeUnit unit, int threads) throws IOException
+    {
+        this.transport = transport;
+        this.repository = repository;
+        this.maxFunctions = maxFunctions;
+        this.maxDelay = unit.toNanos(maxDelay);
+        this.dispatcher = new QueueDispatcher<PendingUnit>("UnitSender-" + transport.getName(), threads, 1,
+                new QueueDispatcher.Processor<PendingUnit>()
+                {
+                    public void process(String queueName, PendingUnit pending) throws Exception
+                    {
+                        send(pending);
+                    }
+                });
+
+        this.log = new MappedAppendLog(file, initialSize, new MappedAppendLog.RecordVisitor()
+        {
+            public void visit(byte[] record, int length) throws IOException
+            {
+                recover(Arrays.copyOf(record, length));
+            }
+        }, new MappedAppendLog.LiveRecords()
+        {
+            public List<byte[]> collect()
+            {
+                List<byte[]> live = new ArrayList<byte[]>();
+                for(PendingUnit pending : units.values())
+                {
+                    live.add(createOpenRecord(pending));
+                    if(pending.state == UnitState.COMMITTED)
+                        live.add(createRecord(RECORD_COMMITTED, pending.id, null));
+                    else
+                        live.addAll(pending.functionRecords);
+                }
+                return live;
+            }
+        });
+
+        for(PendingUnit pending : new ArrayList<PendingUnit>(units.values()))
+        {
+            if(pending.state == UnitState.OPEN && pending.functionRecords.isEmpty())
+                units.remove(pending.id);
+            else
+            {
+                if(pending.state == UnitState.OPEN)
+                    pending.state = UnitState.CLOSED;
+                dispatcher.add(pending.queueName, pending);
+                recoveredCount++;
+            }
+        }
+
+        timer = Executors.newSingleThreadScheduledExecutor(ThreadSupport.createThreadFactory("UnitSender-"
+                + transport.getName() + "-Timer"));
+        timer.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                for(QueueDispatcher<PendingUnit>.Queue queue : dispatcher.getQueues())
+                    if(queue.isBlocked())
+                        dispatcher.resume(queue.getName());
+            }
+        }, retryInterval, retryInterval, unit);
+    }
+
+    void recover(byte[] record) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        String id = in.readUTF();
+        PendingUnit pending = units.get(id);
+        if(type == RECORD_OPEN)
+            units.put(id, new PendingUnit(id, in.readBoolean() ? in.readUTF() : null));
+        else if(pending == null)
+            return;
+        else if(type == RECORD_FUNCTION)
+            pending.functionRecords.add(record);
+        else if(type == RECORD_COMMITTED)
+        {
+            pending.state = UnitState.COMMITTED;
+            pending.functionRecords = null;
+        }
+        else if(type == RECORD_CONFIRMED)
+            units.remove(id);
+    }
+
+    static byte[] createOpenRecord(PendingUnit pending)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+            out.writeByte(RECORD_OPEN);
+            out.writeUTF(pending.id);
+            out.writeBoolean(pending.queueName != null);
+            if(pending.queueName != null)
+                out.writeUTF(pending.queueName);
+        }
+        catch(IOException e)
+        {
+            //not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static byte[] createRecord(byte type, String unitID, byte[] function)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(40 + (function == null ? 0 : function.length));
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+            out.writeByte(type);
+            out.writeUTF(unitID);
+            if(function != null)
+                out.write(function);
+        }
+        catch(IOException e)
+        {
+            //not thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Adds a function to a unit of type T
+     */
+    public void add(JCoFunction function) throws IOException
+    {
+        add(null, function);
+    }
+
+    /**
+     * Adds a function to the open unit of a queue and returns after it was written to disk
+     * @param queueName queue of a unit of type Q, null for a unit of type T
+     * @throws IOException if the function cannot be encoded or the log cannot be written
+     */
+    public void add(String queueName, JCoFunction function) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        FunctionCodec.write(new DataOutputStream(bytes), function);
+        byte[] encoded = bytes.toByteArray();
+
+        long seq;
+        synchronized(log)
+        {
+            PendingUnit pending = openUnits.get(queueName);
+            if(pending == null)
+                pending = open(queueName);
+            byte[] record = createRecord(RECORD_FUNCTION, pending.id, encoded);
+            seq = log.append(record, record.length);
+            pending.functionRecords.add(record);
+            pending.lastSeq = seq;
+            if(pending.functionRecords.size() >= maxFunctions)
+                close(pending);
+        }
+        addedFunctions.incrementAndGet();
+        log.awaitDurable(seq);
+    }
+
+    PendingUnit open(String queueName) throws IOException
+    {
+        //the GUID format of unit IDs
+        final PendingUnit pending = new PendingUnit(UUID.randomUUID().toString().replace("-", "").toUpperCase(), queueName);
+        byte[] record = createOpenRecord(pending);
+        log.append(record, record.length);
+        units.put(pending.id, pending);
+        openUnits.put(queueName, pending);
+        timer.schedule(new Runnable()
+        {
+            public void run()
+            {
+                synchronized(log)
+                {
+                    if(pending.state == UnitState.OPEN)
+                        close(pending);
+                }
+            }
+        }, maxDelay, TimeUnit.NANOSECONDS);
+        return pending;
+    }
+
+    /**
+     * closes the unit and adds it to the queue of units to be committed; called while the log is locked,
+     * so the units of a queue are added in the order they are closed
+     */
+    void close(PendingUnit pending)
+    {
+        pending.state = UnitState.CLOSED;
+        openUnits.remove(pending.queueName);
+        dispatcher.add(pending.queueName, pending);
+    }
+
+    /**
+     * Closes all open units, so they are committed without waiting for maxDelay
+     */
+    public void flush()
+    {
+        synchronized(log)
+        {
+            for(PendingUnit pending : new ArrayList<PendingUnit>(openUnits.values()))
+                close(pending);
+        }
+    }
+
+    void send(PendingUnit pending) throws Exception
+    {
+        //the unit may have been closed by the timer before the adding thread forced its last record
+        log.awaitDurable(pending.lastSeq);
+        JCoUnitIdentifier unitID = pending.getIdentifier();
+        if(pending.state == UnitState.CLOSED)
+        {
+            List<JCoFunction> functions = new ArrayList<JCoFunction>(pending.functionRecords.size());
+            for(byte[] record : pending.functionRecords)
+            {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+                in.readByte();
+                in.readUTF();
+                functions.add(FunctionCodec.read(in, repository));
+            }
+            try
+            {
+                transport.commit(unitID, pending.queueName, functions);
+            }
+            catch(JCoException e)
+            {
+                failedCommits.incrementAndGet();
+                throw e;
+            }
+
+            byte[] record = createRecord(RECORD_COMMITTED, pending.id, null);
+            long seq;
+            synchronized(log)
+            {
+                seq = log.append(record, record.length);
+                pending.state = UnitState.COMMITTED;
+                pending.functionRecords = null;
+            }
+            //after the confirmation the ABAP system would execute the unit again
+            log.awaitDurable(seq);
+            committedUnits.incrementAndGet();
+            committedFunctions.addAndGet(functions.size());
+        }
+
+        transport.confirm(unitID);
+        byte[] record = createRecord(RECORD_CONFIRMED, pending.id, null);
+        synchronized(log)
+        {
+            //not forced, if the record is lost, the unit is only confirmed again
+            log.append(record, record.length);
+            units.remove(pending.id);
+        }
+    }
+
+    /**
+     * Waits until all units were committed and confirmed
+     * @return false if units are still pending after the timeout
+     */
+    public boolean awaitSent(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while(getPendingUnitCount() > 0)
+        {
+            if(System.nanoTime() >= deadline)
+                return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * returns the number of units not yet confirmed, including the open ones
+     */
+    public int getPendingUnitCount()
+    {
+        synchronized(log)
+        {
+            return units.size();
+        }
+    }
+
+    public long getAddedFunctionCount()
+    {
+        return addedFunctions.get();
+    }
+
+    public long getCommittedUnitCount()
+    {
+        return committedUnits.get();
+    }
+
+    public long getFailedCommitCount()
+    {
+        return failedCommits.get();
+    }
+
+    /**
+     * returns the number of units found in the log when the sender was opened
+     */
+    public int getRecoveredCount()
+    {
+        return recoveredCount;
+    }
+
+    public QueueDispatcher<PendingUnit> getDispatcher()
+    {
+        return dispatcher;
+    }
+
+    /**
+     * Stops sending and closes the log; the open and pending units are sent after the next start
+     */
+    public void close() throws IOException
+    {
+        timer.shutdownNow();
+        dispatcher.shutdown();
+        log.close();
+    }
+
+    public String toString()
+    {
+        long units = committedUnits.get();
+        return transport.getName() + ": " + addedFunctions.get() + " functions added, " + units + " units committed ("
+                + (units == 0 ? 0 : committedFunctions.get() / units) + " functions per unit), " + failedCommits.get() + " failed commits, "
+                + getPendingUnitCount() + " pending, " + log;
+    }
+
+    /**
+     * Receives the units in the demo: a unit costs one round trip to the simulator. An ID committed before
+     * is ignored, as the bgRFC scheduler of an ABAP system does. Some commits fail after the unit was
+     * executed, as if the response was lost.
+     */
+    static class SimulatedReceiver implements UnitTransport
+    {
+        AbapBackendSimulator system;
+        double lostResponseRate;
+        Random random = new Random(4711);
+        volatile boolean available = true;
+        ConcurrentHashMap<String, Boolean> executedUnits = new ConcurrentHashMap<String, Boolean>();
+        ConcurrentHashMap<String, AtomicInteger> lastNumbers = new ConcurrentHashMap<String, AtomicInteger>();
+        AtomicInteger executedFunctions = new AtomicInteger();
+        AtomicInteger orderViolations = new AtomicInteger();
+
+        SimulatedReceiver(AbapBackendSimulator system, double lostResponseRate)
+        {
+            this.system = system;
+            this.lostResponseRate = lostResponseRate;
+        }
+
+        public String getName()
+        {
+            return system.getName();
+        }
+
+        public void commit(JCoUnitIdentifier unitID, String queueName, List<JCoFunction> functions) throws JCoException
+        {
+            if(!available)
+                throw new JCoException(JCoException.JCO_ERROR_COMMUNICATION, "Partner " + system.getName() + " not reached");
+            system.execute(system.getRepository().getFunction("STFC_CONNECTION"));
+            if(executedUnits.putIfAbsent(unitID.getID(), Boolean.TRUE) == null)
+            {
+                for(JCoFunction function : functions)
+                {
+                    //the request texts are "queue:number", the numbers of a queue must arrive in order
+                    String text = function.getImportParameterList().getString("REQUTEXT");
+                    int separator = text.indexOf(':');
+                    String queue = text.substring(0, separator);
+                    lastNumbers.putIfAbsent(queue, new AtomicInteger(-1));
+                    if(lastNumbers.get(queue).getAndSet(Integer.parseInt(text.substring(separator + 1))) + 1 != Integer
+                            .parseInt(text.substring(separator + 1)))
+                        orderViolations.incrementAndGet();
+                    executedFunctions.incrementAndGet();
+                }
+            }
+            synchronized(random)
+            {
+                if(random.nextDouble() < lostResponseRate)
+                    throw new JCoException(JCoException.JCO_ERROR_COMMUNICATION, "Connection to " + system.getName() + " lost");
+            }
+        }
+
+        public void confirm(JCoUnitIdentifier unitID)
+        {
+        }
+    }
+
+    static void addUpdates(final UnitBatchSender sender, final JCoRepository repository, int producers, final int updatesPerProducer,
+            final String prefix) throws InterruptedException
+    {
+        final CountDownLatch done = new CountDownLatch(producers);
+        for(int p = 0; p < producers; p++)
+        {
+            final String queueName = String.format("%s%02d", prefix, p);
+            Thread producer = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for(int i = 0; i < updatesPerProducer; i++)
+                        {
+                            JCoFunction function = repository.getFunction("STFC_CONNECTION");
+                            function.getImportParameterList().setValue("REQUTEXT", queueName + ":" + i);
+                            sender.add(queueName, function);
+                        }
+                    }
+                    catch(Exception e)
+                    {
+                        e.printStackTrace();
+                    }
+                    done.countDown();
+                }
+            }, "producer-" + p);
+            producer.setDaemon(true);
+            producer.start();
+        }
+        done.await();
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        AbapBackendSimulator system = new AbapBackendSimulator("SIM");
+        system.setLatency(2, 0, TimeUnit.MILLISECONDS);
+        final JCoRepository repository = system.getRepository();
+        int producers = 8;
+        int updates = 2500;
+
+        //each update as a synchronous call: a round trip per update
+        final FunctionExecutor executor = system;
+        final CountDownLatch done = new CountDownLatch(producers);
+        final int callsPerProducer = 250;
+        long start = System.nanoTime();
+        for(int p = 0; p < producers; p++)
+        {
+            Thread caller = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for(int i = 0; i < callsPerProducer; i++)
+                        {
+                            JCoFunction function = repository.getFunction("STFC_CONNECTION");
+                            function.getImportParameterList().setValue("REQUTEXT", "SYNC:" + i);
+                            executor.execute(function);
+                        }
+                    }
+                    catch(JCoException e)
+                    {
+                        e.printStackTrace();
+                    }
+                    done.countDown();
+                }
+            });
+            caller.setDaemon(true);
+            caller.start();
+        }
+        done.await();
+        long nanos = System.nanoTime() - start;
+        System.out.println("synchronous calls: " + producers * callsPerProducer * 1000000000L / nanos + " updates/s, 2 ms round trip");
+
+        //batched in units of up to 100 functions, 5% of the commits lose their response and are repeated
+        File file = File.createTempFile("units", ".out");
+        file.deleteOnExit();
+        SimulatedReceiver receiver = new SimulatedReceiver(system, 0.05);
+        UnitBatchSender sender = new UnitBatchSender(file, 64 * 1024, receiver, repository, 100, 20, 50, TimeUnit.MILLISECONDS, 4);
+        start = System.nanoTime();
+        addUpdates(sender, repository, producers, updates, "QUEUE");
+        long addNanos = System.nanoTime() - start;
+        sender.awaitSent(60, TimeUnit.SECONDS);
+        nanos = System.nanoTime() - start;
+        System.out.println("batched units: " + producers * updates * 1000000000L / addNanos + " updates/s added, "
+                + producers * updates * 1000000000L / nanos + " updates/s executed");
+        System.out.println(sender);
+        System.out.println("receiver: " + receiver.executedFunctions.get() + " functions executed once, " + receiver.orderViolations.get()
+                + " order violations");
+
+        //the partner is not reachable and the sender stops; the units are committed after the restart
+        receiver.available = false;
+        addUpdates(sender, repository, 2, 250, "RESTART");
+        sender.close();
+        int executedBefore = receiver.executedFunctions.get();
+        receiver.available = true;
+        UnitBatchSender restarted = new UnitBatchSender(file, 64 * 1024, receiver, repository, 100, 20, 50, TimeUnit.MILLISECONDS, 4);
+        int recovered = restarted.getRecoveredCount();
+        restarted.awaitSent(60, TimeUnit.SECONDS);
+        System.out.println("\nafter restart: " + recovered + " units recovered, " + (receiver.executedFunctions.get() - executedBefore)
+                + " of 500 functions executed, " + receiver.orderViolations.get() + " order violations");
+        System.out.println(restarted);
+        restarted.close();
+    }
+}